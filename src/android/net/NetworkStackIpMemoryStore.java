@@ -17,31 +17,242 @@
 package android.net;
 
 import android.content.Context;
+import android.net.ipmemorystore.NetworkAttributes;
+import android.net.ipmemorystore.OnDeleteStatusListener;
+import android.net.ipmemorystore.OnNetworkAttributesRetrievedListener;
+import android.net.ipmemorystore.OnStatusListener;
+import android.net.ipmemorystore.Status;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.networkstack.ipmemorystore.IpMemoryStoreService;
 
+import java.util.ArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * service used to communicate with the ip memory store service in network stack,
  * which is running in the same module.
+ *
+ * <p>Network attributes are cached in memory for the most recently used L2 keys, so that
+ * retrieving them when starting DHCP does not wait for the database executor of the service.
+ * The cache is write-through: attributes stored through this client are merged into the cache
+ * immediately, and entries are dropped when the corresponding records are deleted.
+ *
+ * <p>Changes made to the store without going through this client, such as writes by other
+ * clients of the service or records deleted by the service itself when it wipes data, are not
+ * seen by the cache. Entries therefore expire {@link #CACHE_EXPIRY_MS} after they are retrieved,
+ * which is enough for the retrievals that follow the prefetch at the start of provisioning.
  * @see IpMemoryStoreService
  * @hide
  */
 public class NetworkStackIpMemoryStore extends IpMemoryStoreClient {
+    @VisibleForTesting
+    static final int MAX_CACHED_ATTRIBUTES = 16;
+    @VisibleForTesting
+    static final long CACHE_EXPIRY_MS = 30_000L;
+
+    // Cached value for L2 keys that have no network attributes in the store, as LruCache does not
+    // accept null values.
+    private static final NetworkAttributes NO_ATTRIBUTES = new NetworkAttributes.Builder().build();
+
     @NonNull private final IIpMemoryStore mService;
+    // Returns the current time in milliseconds, used to expire cache entries.
+    @NonNull private final LongSupplier mClock;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final LruCache<String, CacheEntry> mAttributesCache =
+            new LruCache<>(MAX_CACHED_ATTRIBUTES);
+    // Listeners waiting for a retrieval in progress, by L2 key.
+    @GuardedBy("mLock")
+    private final ArrayMap<String, ArrayList<OnNetworkAttributesRetrievedListener>>
+            mPendingRetrievals = new ArrayMap<>();
+    // Incremented whenever the store is modified, so that the results of retrievals that were
+    // started before the modification are not cached.
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    private static class CacheEntry {
+        @NonNull public final NetworkAttributes attributes;
+        public final long expiryMs;
+
+        CacheEntry(@NonNull final NetworkAttributes attributes, final long expiryMs) {
+            this.attributes = attributes;
+            this.expiryMs = expiryMs;
+        }
+    }
 
     public NetworkStackIpMemoryStore(@NonNull final Context context,
             @NonNull final IIpMemoryStore service) {
+        this(context, service, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    NetworkStackIpMemoryStore(@NonNull final Context context,
+            @NonNull final IIpMemoryStore service, @NonNull final LongSupplier clock) {
         super(context);
         mService = service;
+        mClock = clock;
+    }
+
+    @GuardedBy("mLock")
+    @Nullable
+    private NetworkAttributes getCachedAttributes(@NonNull final String l2Key) {
+        final CacheEntry entry = mAttributesCache.get(l2Key);
+        if (entry == null) return null;
+        if (mClock.getAsLong() >= entry.expiryMs) {
+            mAttributesCache.remove(l2Key);
+            return null;
+        }
+        return entry.attributes;
     }
 
     @Override
     protected void runWhenServiceReady(Consumer<IIpMemoryStore> cb) throws ExecutionException {
         cb.accept(mService);
     }
+
+    /**
+     * Start retrieving the network attributes for an L2 key into the cache, if they are not cached
+     * already, so that a later call to {@link #retrieveNetworkAttributes} is answered from memory.
+     */
+    public void prefetchNetworkAttributes(@NonNull final String l2Key) {
+        retrieveNetworkAttributes(l2Key, (status, key, attributes) -> { });
+    }
+
+    /**
+     * Retrieve the network attributes for a key.
+     *
+     * <p>If the attributes are cached, the listener is called synchronously on the calling thread.
+     * Otherwise, concurrent retrievals for the same key share a single query to the service.
+     * @see IpMemoryStoreClient#retrieveNetworkAttributes
+     */
+    @Override
+    public void retrieveNetworkAttributes(@NonNull final String l2Key,
+            @NonNull final OnNetworkAttributesRetrievedListener listener) {
+        final NetworkAttributes cached;
+        final long generation;
+        synchronized (mLock) {
+            cached = getCachedAttributes(l2Key);
+            if (cached == null) {
+                final ArrayList<OnNetworkAttributesRetrievedListener> pending =
+                        mPendingRetrievals.get(l2Key);
+                if (pending != null) {
+                    pending.add(listener);
+                    return;
+                }
+                final ArrayList<OnNetworkAttributesRetrievedListener> listeners =
+                        new ArrayList<>();
+                listeners.add(listener);
+                mPendingRetrievals.put(l2Key, listeners);
+            }
+            generation = mGeneration;
+        }
+        if (cached != null) {
+            listener.onNetworkAttributesRetrieved(new Status(Status.SUCCESS), l2Key,
+                    cached == NO_ATTRIBUTES ? null : cached);
+            return;
+        }
+
+        super.retrieveNetworkAttributes(l2Key, (status, key, attributes) -> {
+            final ArrayList<OnNetworkAttributesRetrievedListener> listeners;
+            synchronized (mLock) {
+                listeners = mPendingRetrievals.remove(l2Key);
+                if (status.isSuccess() && generation == mGeneration) {
+                    mAttributesCache.put(l2Key, new CacheEntry(
+                            attributes == null ? NO_ATTRIBUTES : attributes,
+                            mClock.getAsLong() + CACHE_EXPIRY_MS));
+                }
+            }
+            if (listeners == null) return;
+            for (OnNetworkAttributesRetrievedListener l : listeners) {
+                l.onNetworkAttributesRetrieved(status, key, attributes);
+            }
+        });
+    }
+
+    @Override
+    public void storeNetworkAttributes(@NonNull final String l2Key,
+            @NonNull final NetworkAttributes attributes,
+            @Nullable final OnStatusListener listener) {
+        synchronized (mLock) {
+            mGeneration++;
+            // If the key is not cached, the other attributes already in the store are unknown, so
+            // they will be retrieved from the store next time.
+            // The expiry is not extended, as the other cached attributes are not refreshed.
+            final CacheEntry cached = mAttributesCache.get(l2Key);
+            if (cached != null) {
+                mAttributesCache.put(l2Key, new CacheEntry(
+                        mergeAttributes(cached.attributes, attributes), cached.expiryMs));
+            }
+        }
+        super.storeNetworkAttributes(l2Key, attributes, status -> {
+            if (!status.isSuccess()) invalidate(l2Key);
+            if (listener != null) listener.onComplete(status);
+        });
+    }
+
+    @Override
+    public void delete(@NonNull final String l2Key, final boolean needWipe,
+            @Nullable final OnDeleteStatusListener listener) {
+        invalidate(l2Key);
+        super.delete(l2Key, needWipe, listener);
+    }
+
+    @Override
+    public void deleteCluster(@NonNull final String cluster, final boolean needWipe,
+            @Nullable final OnDeleteStatusListener listener) {
+        invalidateAll();
+        super.deleteCluster(cluster, needWipe, listener);
+    }
+
+    @Override
+    public void factoryReset() {
+        invalidateAll();
+        super.factoryReset();
+    }
+
+    private void invalidate(@NonNull final String l2Key) {
+        synchronized (mLock) {
+            mGeneration++;
+            mAttributesCache.remove(l2Key);
+        }
+    }
+
+    private void invalidateAll() {
+        synchronized (mLock) {
+            mGeneration++;
+            mAttributesCache.evictAll();
+        }
+    }
+
+    /**
+     * Merge stored attributes into cached attributes the way the store does: fields that are not
+     * null in the stored attributes replace the cached ones. Only fields that the store persists
+     * are merged.
+     */
+    @NonNull
+    private static NetworkAttributes mergeAttributes(@NonNull final NetworkAttributes cached,
+            @NonNull final NetworkAttributes stored) {
+        final NetworkAttributes.Builder builder = new NetworkAttributes.Builder(cached);
+        if (stored.assignedV4Address != null) {
+            builder.setAssignedV4Address(stored.assignedV4Address);
+        }
+        if (stored.assignedV4AddressExpiry != null) {
+            builder.setAssignedV4AddressExpiry(stored.assignedV4AddressExpiry);
+        }
+        if (stored.cluster != null) builder.setCluster(stored.cluster);
+        if (stored.dnsAddresses != null) builder.setDnsAddresses(stored.dnsAddresses);
+        if (stored.mtu != null) builder.setMtu(stored.mtu);
+        return builder.build();
+    }
 }
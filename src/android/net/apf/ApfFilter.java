@@ -30,6 +30,7 @@ import static android.system.OsConstants.IPPROTO_ICMPV6;
 import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.SOCK_CLOEXEC;
+import static android.system.OsConstants.SOCK_NONBLOCK;
 import static android.system.OsConstants.SOCK_RAW;
 
 import static com.android.net.module.util.NetworkStackConstants.ETHER_BROADCAST;
@@ -50,6 +51,8 @@ import android.net.TcpKeepalivePacketDataParcelable;
 import android.net.apf.ApfCounterTracker.Counter;
 import android.net.apf.BaseApfGenerator.IllegalInstructionException;
 import android.net.ip.IpClient.IpClientCallbacksWrapper;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.stats.connectivity.NetworkQuirkEvent;
@@ -66,12 +69,10 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.HexDump;
 import com.android.internal.util.IndentingPrintWriter;
-import com.android.internal.util.TokenBucket;
 import com.android.modules.utils.build.SdkLevel;
 import com.android.net.module.util.CollectionUtils;
 import com.android.net.module.util.ConnectivityUtils;
 import com.android.net.module.util.InterfaceParams;
-import com.android.net.module.util.SocketUtils;
 import com.android.networkstack.metrics.ApfSessionInfoMetrics;
 import com.android.networkstack.metrics.IpClientRaInfoMetrics;
 import com.android.networkstack.metrics.NetworkQuirkMetrics;
@@ -79,7 +80,6 @@ import com.android.networkstack.util.NetworkStackUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
-import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -94,6 +94,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 
 /**
  * For networks that support packet filtering via APF programs, {@code ApfFilter}
@@ -104,7 +105,10 @@ import java.util.Map;
  * A collection of RAs we've received is kept in mRas. Generating APF programs uses mRas to
  * know what RAs to filter for, thus generating APF programs is dependent on mRas.
  * mRas can be accessed by multiple threads:
- * - ReceiveThread, which listens for RAs and adds them to mRas, and generates APF programs.
+ * - the RaReceiver thread, which is shared by the filters of all interfaces, listens for RAs
+ *   and adds them to mRas, and generates APF programs if installs are not coalesced.
+ * - the install thread of the filter, if installs are coalesced, which generates and installs
+ *   APF programs.
  * - callers of:
  *    - setMulticastFilter(), which can cause an APF program to be generated.
  *    - dump(), which dumps mRas among other things.
@@ -125,6 +129,8 @@ public class ApfFilter implements AndroidPacketFilter {
         public int acceptRaMinLft;
         public boolean shouldHandleLightDoze;
         public long minMetricsSessionDurationMs;
+        public boolean valueBasedRaPacking;
+        public int installCoalescingWindowMs;
     }
 
     /** A wrapper class of {@link SystemClock} to be mocked in unit tests. */
@@ -151,40 +157,6 @@ public class ApfFilter implements AndroidPacketFilter {
     private final String mCountAndPassLabel;
     private final String mCountAndDropLabel;
 
-    // Thread to listen for RAs.
-    @VisibleForTesting
-    public class ReceiveThread extends Thread {
-        private final byte[] mPacket = new byte[1514];
-        private final FileDescriptor mSocket;
-
-        private volatile boolean mStopped;
-
-        public ReceiveThread(FileDescriptor socket) {
-            mSocket = socket;
-        }
-
-        public void halt() {
-            mStopped = true;
-            // Interrupts the read() call the thread is blocked in.
-            SocketUtils.closeSocketQuietly(mSocket);
-        }
-
-        @Override
-        public void run() {
-            log("begin monitoring");
-            while (!mStopped) {
-                try {
-                    int length = Os.read(mSocket, mPacket, 0, mPacket.length);
-                    processRa(mPacket, length);
-                } catch (IOException|ErrnoException e) {
-                    if (!mStopped) {
-                        Log.e(TAG, "Read error", e);
-                    }
-                }
-            }
-        }
-    }
-
     private static final String TAG = "ApfFilter";
     private static final boolean DBG = true;
     private static final boolean VDBG = false;
@@ -267,16 +239,27 @@ public class ApfFilter implements AndroidPacketFilter {
     private static final int MDNS_QNAME_OFFSET =
             ETH_HEADER_LEN + UDP_HEADER_LEN + DNS_HEADER_LEN;
 
+    // Names of the program regions reported by the APF program profiler.
+    private static final String REGION_PROLOGUE = "prologue";
+    private static final String REGION_ARP = "arp";
+    private static final String REGION_MDNS = "mdns";
+    private static final String REGION_IPV4 = "ipv4";
+    private static final String REGION_KEEPALIVE = "keepalive";
+    private static final String REGION_NON_IP = "non_ip";
+    private static final String REGION_IPV6 = "ipv6";
+    private static final String REGION_RA = "ra";
+    private static final String REGION_EPILOGUE = "epilogue";
+
 
     private final ApfCapabilities mApfCapabilities;
     private final IpClientCallbacksWrapper mIpClientCallback;
     private final InterfaceParams mInterfaceParams;
-    private final TokenBucket mTokenBucket;
 
     @VisibleForTesting
     public byte[] mHardwareAddress;
-    @VisibleForTesting
-    public ReceiveThread mReceiveThread;
+    // Registration of the RA socket with the shared RaReceiver, or null if not receiving RAs.
+    @GuardedBy("this")
+    private RaReceiver.Registration mRaRegistration;
     @GuardedBy("this")
     private long mUniqueCounter;
     @GuardedBy("this")
@@ -313,6 +296,8 @@ public class ApfFilter implements AndroidPacketFilter {
     // and PIO valid lifetimes.
     private final int mAcceptRaMinLft;
     private final boolean mShouldHandleLightDoze;
+    // How to choose the RA filters that fit in the program.
+    private final RaFilterPacker.Strategy mRaPackingStrategy;
 
     private final NetworkQuirkMetrics mNetworkQuirkMetrics;
     private final IpClientRaInfoMetrics mIpClientRaInfoMetrics;
@@ -407,6 +392,8 @@ public class ApfFilter implements AndroidPacketFilter {
         mClock = clock;
         mSessionStartMs = mClock.elapsedRealtime();
         mMinMetricsSessionDurationMs = config.minMetricsSessionDurationMs;
+        mRaPackingStrategy = config.valueBasedRaPacking
+                ? RaFilterPacker.Strategy.VALUE : RaFilterPacker.Strategy.LRU;
 
         if (mApfCapabilities.hasDataAccess()) {
             mCountAndPassLabel = "countAndPass";
@@ -421,14 +408,14 @@ public class ApfFilter implements AndroidPacketFilter {
         // Now fill the black list from the passed array
         mEthTypeBlackList = filterEthTypeBlackList(config.ethTypeBlackList);
 
-        // TokenBucket for rate limiting filter installation. APF filtering relies on the filter
-        // always being up-to-date and APF bytecode being in sync with userspace. The TokenBucket
-        // merely prevents illconfigured / abusive networks from impacting the system, so it does
-        // not need to be very restrictive.
-        // The TokenBucket starts with its full capacity of 20 tokens (= 20 filter updates). A new
-        // token is generated every 3 seconds limiting the filter update rate to at most once every
-        // 3 seconds.
-        mTokenBucket = new TokenBucket(3_000 /* deltaMs */, 20 /* capacity */, 20 /* tokens */);
+        // Coalesce program installs. APF filtering relies on the filter always being up-to-date
+        // and APF bytecode being in sync with userspace, so changes are never dropped: the window
+        // merely prevents illconfigured / abusive networks from impacting the system by limiting
+        // installs to one per window. Installs run on a thread owned by the filter, so that a slow
+        // HAL call does not delay RA processing, which is shared by all interfaces.
+        mInstallCoalescingWindowMs = config.installCoalescingWindowMs;
+        mInstallHandler = mInstallCoalescingWindowMs > 0
+                ? mDependencies.makeInstallHandler(mInterfaceParams.name) : null;
 
         // TODO: ApfFilter should not generate programs until IpClient sends provisioning success.
         maybeStartFilter();
@@ -475,6 +462,23 @@ public class ApfFilter implements AndroidPacketFilter {
         public IpClientRaInfoMetrics getIpClientRaInfoMetrics() {
             return new IpClientRaInfoMetrics();
         }
+
+        /**
+         * Get the RaReceiver that reads RAs for all filters.
+         */
+        public RaReceiver getRaReceiver() {
+            return RaReceiver.getInstance();
+        }
+
+        /**
+         * Create the handler that runs the coalesced program installs of a filter, on a new
+         * thread. The thread is stopped when the filter is shut down.
+         */
+        public Handler makeInstallHandler(@NonNull String ifaceName) {
+            final HandlerThread thread = new HandlerThread(TAG + "Install/" + ifaceName);
+            thread.start();
+            return new Handler(thread.getLooper());
+        }
     }
 
     public synchronized void setDataSnapshot(byte[] data) {
@@ -542,7 +546,7 @@ public class ApfFilter implements AndroidPacketFilter {
                 // Install basic filters
                 installNewProgramLocked();
             }
-            socket = Os.socket(AF_PACKET, SOCK_RAW | SOCK_CLOEXEC, 0);
+            socket = Os.socket(AF_PACKET, SOCK_RAW | SOCK_CLOEXEC | SOCK_NONBLOCK, 0);
             NetworkStackUtils.attachRaFilter(socket);
             SocketAddress addr = makePacketSocketAddress(ETH_P_IPV6, mInterfaceParams.index);
             Os.bind(socket, addr);
@@ -550,8 +554,17 @@ public class ApfFilter implements AndroidPacketFilter {
             Log.e(TAG, "Error starting filter", e);
             return;
         }
-        mReceiveThread = new ReceiveThread(socket);
-        mReceiveThread.start();
+        startReceivingRas(socket);
+    }
+
+    /**
+     * Starts passing the RAs received on {@code socket} to {@link #processRa}. The socket must be
+     * non-blocking, and is closed by {@link #shutdown}.
+     */
+    @VisibleForTesting
+    protected synchronized void startReceivingRas(@NonNull FileDescriptor socket) {
+        log("begin monitoring");
+        mRaRegistration = mDependencies.getRaReceiver().register(socket, this::processRa);
     }
 
     // Returns seconds since device boot.
@@ -616,46 +629,384 @@ public class ApfFilter implements AndroidPacketFilter {
         }
     }
 
+    // From RFC4861:
+    private static final int ICMP6_RA_HEADER_LEN = 16;
+    private static final int ICMP6_RA_CHECKSUM_OFFSET =
+            ETH_HEADER_LEN + IPV6_HEADER_LEN + 2;
+    private static final int ICMP6_RA_CHECKSUM_LEN = 2;
+    private static final int ICMP6_RA_OPTION_OFFSET =
+            ETH_HEADER_LEN + IPV6_HEADER_LEN + ICMP6_RA_HEADER_LEN;
+    private static final int ICMP6_RA_ROUTER_LIFETIME_OFFSET =
+            ETH_HEADER_LEN + IPV6_HEADER_LEN + 6;
+    private static final int ICMP6_RA_ROUTER_LIFETIME_LEN = 2;
+    // Prefix information option.
+    private static final int ICMP6_PREFIX_OPTION_TYPE = 3;
+    private static final int ICMP6_PREFIX_OPTION_LEN = 32;
+    private static final int ICMP6_PREFIX_OPTION_VALID_LIFETIME_OFFSET = 4;
+    private static final int ICMP6_PREFIX_OPTION_VALID_LIFETIME_LEN = 4;
+    private static final int ICMP6_PREFIX_OPTION_PREFERRED_LIFETIME_OFFSET = 8;
+    private static final int ICMP6_PREFIX_OPTION_PREFERRED_LIFETIME_LEN = 4;
+
+    // From RFC4861: source link-layer address
+    private static final int ICMP6_SOURCE_LL_ADDRESS_OPTION_TYPE = 1;
+    // From RFC4861: mtu size option
+    private static final int ICMP6_MTU_OPTION_TYPE = 5;
+    // From RFC6106: Recursive DNS Server option
+    private static final int ICMP6_RDNSS_OPTION_TYPE = 25;
+    // From RFC6106: DNS Search List option
+    private static final int ICMP6_DNSSL_OPTION_TYPE = 31;
+    // From RFC8910: Captive-Portal option
+    private static final int ICMP6_CAPTIVE_PORTAL_OPTION_TYPE = 37;
+    // From RFC8781: PREF64 option
+    private static final int ICMP6_PREF64_OPTION_TYPE = 38;
+
+    // From RFC4191: Route Information option
+    private static final int ICMP6_ROUTE_INFO_OPTION_TYPE = 24;
+    // Above three options all have the same format:
+    private static final int ICMP6_4_BYTE_LIFETIME_OFFSET = 4;
+    private static final int ICMP6_4_BYTE_LIFETIME_LEN = 4;
+
+    /**
+     * A reusable parser that reads an RA in place.
+     *
+     * The sections and option offsets of the RA are stored in primitive arrays that only grow
+     * when an RA has more of them than any RA parsed before, and the packet is only rewrapped
+     * when the receive buffer changes. Checking a received RA against the known RAs therefore
+     * allocates nothing; an {@link Ra} is only materialized, with {@link Ra#Ra(RaParser)}, for
+     * RAs that are new or that change a known RA.
+     *
+     * The result of parsing is only valid until the next call to {@link #parse}.
+     */
+    @VisibleForTesting
+    public class RaParser {
+        private static final int INITIAL_CAPACITY = 16;
+
+        // Note: mPacket's position() cannot be assumed to be reset. mPacket may wrap an array
+        // that is longer than the RA; its limit is the length of the RA.
+        private ByteBuffer mPacket;
+        private int mLength;
+
+        // Sections in the packet, stored as in PacketSection.
+        private int mNumSections;
+        private int[] mSectionStarts = new int[INITIAL_CAPACITY];
+        private int[] mSectionLengths = new int[INITIAL_CAPACITY];
+        private boolean[] mSectionIsLifetime = new boolean[INITIAL_CAPACITY];
+        private long[] mSectionLifetimes = new long[INITIAL_CAPACITY];
+        private int[] mSectionMins = new int[INITIAL_CAPACITY];
+
+        // Offsets into the packet where PIOs, RDNSS options and RIOs are.
+        private int mNumPrefixOptions;
+        private int[] mPrefixOptionOffsets = new int[INITIAL_CAPACITY];
+        private int mNumRdnssOptions;
+        private int[] mRdnssOptionOffsets = new int[INITIAL_CAPACITY];
+        private int mNumRioOptions;
+        private int[] mRioOptionOffsets = new int[INITIAL_CAPACITY];
+
+        // See the fields of the same name in Ra.
+        private int mRouterLifetime;
+        private long mMinPioValidLifetime;
+        private long mMinRioRouteLifetime;
+        private long mMinRdnssLifetime;
+        private int mMinLifetime;
+        private int mLastSeen;
+
+        /**
+         * Add a packet section that should be matched, starting from the current position.
+         * @param length the length of the section
+         */
+        private void addMatchSection(int length) {
+            // Don't generate JNEBS instruction for 0 bytes as they will fail the
+            // ASSERT_FORWARD_IN_PROGRAM(pc + cmp_imm - 1) check (where cmp_imm is
+            // the number of bytes to compare) and immediately pass the packet.
+            // The code does not attempt to generate such matches, but add a safety
+            // check to prevent doing so in the presence of bugs or malformed or
+            // truncated packets.
+            if (length == 0) return;
+
+            // we need to add a MATCH section 'from, length, MATCH, 0, 0'
+            int from = mPacket.position();
+
+            // if possible try to increase the length of the previous match section
+            int lastIdx = mNumSections - 1;
+            if (lastIdx >= 0) {  // there had to be a previous section
+                if (!mSectionIsLifetime[lastIdx]) {  // of type match
+                    if (mSectionStarts[lastIdx] + mSectionLengths[lastIdx] == from) {
+                        // ending where we start
+                        from -= mSectionLengths[lastIdx];
+                        length += mSectionLengths[lastIdx];
+                        mNumSections--;
+                    }
+                }
+            }
+
+            addSection(from, length, false /* isLifetime */, 0, 0);
+            mPacket.position(from + length);
+        }
+
+        /**
+         * Add a packet section that should be matched, starting from the current position.
+         * @param end the offset in the packet before which the section ends
+         */
+        private void addMatchUntil(int end) {
+            addMatchSection(end - mPacket.position());
+        }
+
+        /**
+         * Add a packet section that should be ignored, starting from the current position.
+         * @param length the length of the section in bytes
+         */
+        private void addIgnoreSection(int length) {
+            mPacket.position(mPacket.position() + length);
+        }
+
+        /**
+         * Add a packet section that represents a lifetime, starting from the current position.
+         * @param length the length of the section in bytes
+         * @param lifetime the lifetime
+         * @param min the minimum acceptable lifetime
+         */
+        private void addLifetimeSection(int length, long lifetime, int min) {
+            addSection(mPacket.position(), length, true /* isLifetime */, lifetime, min);
+            mPacket.position(mPacket.position() + length);
+        }
+
+        /**
+         * Adds packet sections for an RA option with a 4-byte lifetime 4 bytes into the option
+         * @param optionLength the length of the option in bytes
+         * @param min the minimum acceptable lifetime
+         */
+        private long add4ByteLifetimeOption(int optionLength, int min) {
+            addMatchSection(ICMP6_4_BYTE_LIFETIME_OFFSET);
+            final long lifetime = getUint32(mPacket, mPacket.position());
+            addLifetimeSection(ICMP6_4_BYTE_LIFETIME_LEN, lifetime, min);
+            addMatchSection(optionLength - ICMP6_4_BYTE_LIFETIME_OFFSET
+                    - ICMP6_4_BYTE_LIFETIME_LEN);
+            return lifetime;
+        }
+
+        private void addSection(int start, int length, boolean isLifetime, long lifetime,
+                int min) {
+            if (mNumSections == mSectionStarts.length) {
+                final int capacity = 2 * mNumSections;
+                mSectionStarts = Arrays.copyOf(mSectionStarts, capacity);
+                mSectionLengths = Arrays.copyOf(mSectionLengths, capacity);
+                mSectionIsLifetime = Arrays.copyOf(mSectionIsLifetime, capacity);
+                mSectionLifetimes = Arrays.copyOf(mSectionLifetimes, capacity);
+                mSectionMins = Arrays.copyOf(mSectionMins, capacity);
+            }
+            mSectionStarts[mNumSections] = start;
+            mSectionLengths[mNumSections] = length;
+            mSectionIsLifetime[mNumSections] = isLifetime;
+            mSectionLifetimes[mNumSections] = lifetime;
+            mSectionMins[mNumSections] = min;
+            mNumSections++;
+        }
+
+        // Stores value at array[index], growing the array if needed.
+        private int[] addOffset(int[] array, int index, int value) {
+            if (index == array.length) array = Arrays.copyOf(array, 2 * index);
+            array[index] = value;
+            return array;
+        }
+
+        private void reset(byte[] packet, int length) throws InvalidRaException {
+            if (length < ICMP6_RA_OPTION_OFFSET) {
+                throw new InvalidRaException("Not an ICMP6 router advertisement: too short");
+            }
+            if (length > packet.length) {
+                throw new InvalidRaException("Invalid length " + length);
+            }
+            if (mPacket == null || mPacket.array() != packet) {
+                mPacket = ByteBuffer.wrap(packet);
+            }
+            mPacket.clear();
+            mPacket.limit(length);
+            mLength = length;
+            mNumSections = 0;
+            mNumPrefixOptions = 0;
+            mNumRdnssOptions = 0;
+            mNumRioOptions = 0;
+            mMinPioValidLifetime = Long.MAX_VALUE;
+            mMinRioRouteLifetime = Long.MAX_VALUE;
+            mMinRdnssLifetime = Long.MAX_VALUE;
+        }
+
+        /**
+         * Parses the RA in the first {@code length} bytes of {@code packet}. The packet is not
+         * copied, and must not be modified while the result is in use.
+         *
+         * Note that this may throw InvalidRaException (due to an invalid-length option),
+         * IllegalArgumentException (from Buffer.position(int)) or IndexOutOfBoundsException
+         * (from ByteBuffer.get(int)) if parsing encounters something non-compliant with
+         * specifications.
+         *
+         * @return this parser.
+         */
+        public RaParser parse(byte[] packet, int length) throws InvalidRaException {
+            reset(packet, length);
+            mLastSeen = secondsSinceBoot();
+
+            // Check packet in case a packet arrives before we attach RA filter
+            // to our packet socket. b/29586253
+            if (getUint16(mPacket, ETH_ETHERTYPE_OFFSET) != ETH_P_IPV6 ||
+                    getUint8(mPacket, IPV6_NEXT_HEADER_OFFSET) != IPPROTO_ICMPV6 ||
+                    getUint8(mPacket, ICMP6_TYPE_OFFSET) != ICMPV6_ROUTER_ADVERTISEMENT) {
+                throw new InvalidRaException("Not an ICMP6 router advertisement");
+            }
+
+            // Ignore the flow label and low 4 bits of traffic class.
+            addMatchUntil(IPV6_FLOW_LABEL_OFFSET);
+            addIgnoreSection(IPV6_FLOW_LABEL_LEN);
+
+            // Ignore IPv6 destination address.
+            addMatchUntil(IPV6_DEST_ADDR_OFFSET);
+            addIgnoreSection(IPV6_ADDR_LEN);
+
+            // Ignore checksum.
+            addMatchUntil(ICMP6_RA_CHECKSUM_OFFSET);
+            addIgnoreSection(ICMP6_RA_CHECKSUM_LEN);
+
+            // Parse router lifetime
+            addMatchUntil(ICMP6_RA_ROUTER_LIFETIME_OFFSET);
+            mRouterLifetime = getUint16(mPacket, ICMP6_RA_ROUTER_LIFETIME_OFFSET);
+            addLifetimeSection(ICMP6_RA_ROUTER_LIFETIME_LEN, mRouterLifetime, mAcceptRaMinLft);
+            if (mRouterLifetime == 0) mNumZeroLifetimeRas++;
+
+            // Add remaining fields (reachable time and retransmission timer) to match section.
+            addMatchUntil(ICMP6_RA_OPTION_OFFSET);
+
+            while (mPacket.hasRemaining()) {
+                final int position = mPacket.position();
+                final int optionType = getUint8(mPacket, position);
+                final int optionLength = getUint8(mPacket, position + 1) * 8;
+                if (optionLength <= 0) {
+                    throw new InvalidRaException(String.format(
+                        "Invalid option length opt=%d len=%d", optionType, optionLength));
+                }
+
+                long lifetime;
+                switch (optionType) {
+                    case ICMP6_PREFIX_OPTION_TYPE:
+                        mPrefixOptionOffsets = addOffset(mPrefixOptionOffsets,
+                                mNumPrefixOptions++, position);
+
+                        // Parse valid lifetime
+                        addMatchSection(ICMP6_PREFIX_OPTION_VALID_LIFETIME_OFFSET);
+                        lifetime = getUint32(mPacket, mPacket.position());
+                        addLifetimeSection(ICMP6_PREFIX_OPTION_VALID_LIFETIME_LEN,
+                                lifetime, mAcceptRaMinLft);
+                        mMinPioValidLifetime = getMinForPositiveValue(
+                                mMinPioValidLifetime, lifetime);
+                        if (lifetime == 0) mNumZeroLifetimeRas++;
+
+                        // Parse preferred lifetime
+                        lifetime = getUint32(mPacket, mPacket.position());
+                        // The PIO preferred lifetime is not affected by accept_ra_min_lft and
+                        // therefore does not have a minimum.
+                        addLifetimeSection(ICMP6_PREFIX_OPTION_PREFERRED_LIFETIME_LEN,
+                                lifetime, 0 /* min lifetime */);
+
+                        addMatchSection(4);       // Reserved bytes
+                        addMatchSection(IPV6_ADDR_LEN);  // The prefix itself
+                        break;
+                    // These three options have the same lifetime offset and size, and
+                    // are processed with the same specialized add4ByteLifetimeOption:
+                    case ICMP6_RDNSS_OPTION_TYPE:
+                        mRdnssOptionOffsets = addOffset(mRdnssOptionOffsets,
+                                mNumRdnssOptions++, position);
+                        lifetime = add4ByteLifetimeOption(optionLength, mMinRdnssLifetimeSec);
+                        mMinRdnssLifetime = getMinForPositiveValue(mMinRdnssLifetime, lifetime);
+                        if (lifetime == 0) mNumZeroLifetimeRas++;
+                        break;
+                    case ICMP6_ROUTE_INFO_OPTION_TYPE:
+                        mRioOptionOffsets = addOffset(mRioOptionOffsets,
+                                mNumRioOptions++, position);
+                        lifetime = add4ByteLifetimeOption(optionLength, mAcceptRaMinLft);
+                        mMinRioRouteLifetime = getMinForPositiveValue(
+                                mMinRioRouteLifetime, lifetime);
+                        if (lifetime == 0) mNumZeroLifetimeRas++;
+                        break;
+                    case ICMP6_SOURCE_LL_ADDRESS_OPTION_TYPE:
+                    case ICMP6_MTU_OPTION_TYPE:
+                    case ICMP6_PREF64_OPTION_TYPE:
+                        addMatchSection(optionLength);
+                        break;
+                    case ICMP6_CAPTIVE_PORTAL_OPTION_TYPE: // unlikely to ever change.
+                    case ICMP6_DNSSL_OPTION_TYPE: // currently unsupported in userspace.
+                    default:
+                        // RFC4861 section 4.2 dictates we ignore unknown options for forwards
+                        // compatibility.
+                        // However, make sure the option's type and length match.
+                        addMatchSection(2); // option type & length
+                        // optionLength is guaranteed to be >= 8.
+                        addIgnoreSection(optionLength - 2);
+                        break;
+                }
+            }
+            mMinLifetime = minLifetime();
+            return this;
+        }
+
+        // What is the minimum of all lifetimes within {@code packet} in seconds?
+        private int minLifetime() {
+            // While technically most lifetimes in the RA are u32s, as far as the RA filter is
+            // concerned, INT_MAX is still a *much* longer lifetime than any filter would ever
+            // reasonably be active for.
+            // Clamp minLifetime at INT_MAX.
+            int minLifetime = Integer.MAX_VALUE;
+            for (int i = 0; i < mNumSections; i++) {
+                if (!mSectionIsLifetime[i]) {
+                    continue;
+                }
+                // Ignore lifetimes below section.min and always ignore 0 lifetimes.
+                if (mSectionLifetimes[i] < Math.max(mSectionMins[i], 1)) {
+                    continue;
+                }
+
+                minLifetime = (int) Math.min(minLifetime, mSectionLifetimes[i]);
+            }
+            return minLifetime;
+        }
+
+        // Hash of the MATCH sections. Since the MATCH sections determine where the LIFETIME
+        // sections are, RAs that match each other always have the same fingerprint.
+        int getMatchFingerprint() {
+            final byte[] packet = mPacket.array();
+            int hash = mLength;
+            for (int i = 0; i < mNumSections; i++) {
+                if (mSectionIsLifetime[i]) continue;
+                final int end = mSectionStarts[i] + mSectionLengths[i];
+                for (int j = mSectionStarts[i]; j < end; j++) {
+                    hash = 31 * hash + packet[j];
+                }
+            }
+            return hash;
+        }
+
+        /** Return the router lifetime of the RA */
+        public int routerLifetime() {
+            return mRouterLifetime;
+        }
+
+        /** Return the minimum valid lifetime in PIOs */
+        public long minPioValidLifetime() {
+            return mMinPioValidLifetime;
+        }
+
+        /** Return the minimum route lifetime in RIOs */
+        public long minRioRouteLifetime() {
+            return mMinRioRouteLifetime;
+        }
+
+        /** Return the minimum lifetime in RDNSSs */
+        public long minRdnssLifetime() {
+            return mMinRdnssLifetime;
+        }
+    }
+
     // A class to hold information about an RA.
     @VisibleForTesting
     public class Ra {
-        // From RFC4861:
-        private static final int ICMP6_RA_HEADER_LEN = 16;
-        private static final int ICMP6_RA_CHECKSUM_OFFSET =
-                ETH_HEADER_LEN + IPV6_HEADER_LEN + 2;
-        private static final int ICMP6_RA_CHECKSUM_LEN = 2;
-        private static final int ICMP6_RA_OPTION_OFFSET =
-                ETH_HEADER_LEN + IPV6_HEADER_LEN + ICMP6_RA_HEADER_LEN;
-        private static final int ICMP6_RA_ROUTER_LIFETIME_OFFSET =
-                ETH_HEADER_LEN + IPV6_HEADER_LEN + 6;
-        private static final int ICMP6_RA_ROUTER_LIFETIME_LEN = 2;
-        // Prefix information option.
-        private static final int ICMP6_PREFIX_OPTION_TYPE = 3;
-        private static final int ICMP6_PREFIX_OPTION_LEN = 32;
-        private static final int ICMP6_PREFIX_OPTION_VALID_LIFETIME_OFFSET = 4;
-        private static final int ICMP6_PREFIX_OPTION_VALID_LIFETIME_LEN = 4;
-        private static final int ICMP6_PREFIX_OPTION_PREFERRED_LIFETIME_OFFSET = 8;
-        private static final int ICMP6_PREFIX_OPTION_PREFERRED_LIFETIME_LEN = 4;
-
-        // From RFC4861: source link-layer address
-        private static final int ICMP6_SOURCE_LL_ADDRESS_OPTION_TYPE = 1;
-        // From RFC4861: mtu size option
-        private static final int ICMP6_MTU_OPTION_TYPE = 5;
-        // From RFC6106: Recursive DNS Server option
-        private static final int ICMP6_RDNSS_OPTION_TYPE = 25;
-        // From RFC6106: DNS Search List option
-        private static final int ICMP6_DNSSL_OPTION_TYPE = 31;
-        // From RFC8910: Captive-Portal option
-        private static final int ICMP6_CAPTIVE_PORTAL_OPTION_TYPE = 37;
-        // From RFC8781: PREF64 option
-        private static final int ICMP6_PREF64_OPTION_TYPE = 38;
-
-        // From RFC4191: Route Information option
-        private static final int ICMP6_ROUTE_INFO_OPTION_TYPE = 24;
-        // Above three options all have the same format:
-        private static final int ICMP6_4_BYTE_LIFETIME_OFFSET = 4;
-        private static final int ICMP6_4_BYTE_LIFETIME_LEN = 4;
-
         // Note: mPacket's position() cannot be assumed to be reset.
         private final ByteBuffer mPacket;
 
@@ -665,16 +1016,37 @@ public class ApfFilter implements AndroidPacketFilter {
         // Router lifetime in packet
         private final int mRouterLifetime;
         // Minimum valid lifetime of PIOs in packet, Long.MAX_VALUE means not seen.
-        private long mMinPioValidLifetime = Long.MAX_VALUE;
+        private final long mMinPioValidLifetime;
         // Minimum route lifetime of RIOs in packet, Long.MAX_VALUE means not seen.
-        private long mMinRioRouteLifetime = Long.MAX_VALUE;
+        private final long mMinRioRouteLifetime;
         // Minimum lifetime of RDNSSs in packet, Long.MAX_VALUE means not seen.
-        private long mMinRdnssLifetime = Long.MAX_VALUE;
+        private final long mMinRdnssLifetime;
         // Minimum lifetime in packet
         private final int mMinLifetime;
         // When the packet was last captured, in seconds since Unix Epoch
         private final int mLastSeen;
 
+        // When this RA, or an RA it replaced, was last received, including as a duplicate.
+        @GuardedBy("ApfFilter.this")
+        private int mLastReceived;
+        // Shortest interval between two receptions of this RA or the RAs it replaced, or 0 if it
+        // was only received once. RAs dropped by the APF program are never seen, but they only
+        // make the observed intervals longer, so the shortest interval is the best estimate of
+        // how often the router sends this RA.
+        @GuardedBy("ApfFilter.this")
+        private int mMinIntervalSeconds;
+        // Whether the filter for this RA is in the last installed program, and its value at the
+        // time. For debugging only.
+        @GuardedBy("ApfFilter.this")
+        private boolean mInLastProgram;
+        @GuardedBy("ApfFilter.this")
+        private double mLastFilterValue;
+
+        // The filter for this RA, generated on first use and reused by every program installed
+        // afterwards. Only its remaining lifetime changes from one program to the next.
+        @GuardedBy("ApfFilter.this")
+        private ApfProgramFragment mFilterFragment;
+
         // For debugging only. Offsets into the packet where PIOs are.
         private final ArrayList<Integer> mPrefixOptionOffsets = new ArrayList<>();
 
@@ -755,102 +1127,26 @@ public class ApfFilter implements AndroidPacketFilter {
             sb.append("/").append(prefixLen).append(" ");
         }
 
-        public String toString() {
-            try {
-                StringBuffer sb = new StringBuffer();
-                sb.append(String.format("RA %s -> %s %ds ",
-                        IPv6AddresstoString(IPV6_SRC_ADDR_OFFSET),
-                        IPv6AddresstoString(IPV6_DEST_ADDR_OFFSET),
-                        getUint16(mPacket, ICMP6_RA_ROUTER_LIFETIME_OFFSET)));
-                for (int i: mPrefixOptionOffsets) {
-                    prefixOptionToString(sb, i);
-                }
-                for (int i: mRdnssOptionOffsets) {
-                    rdnssOptionToString(sb, i);
-                }
-                for (int i: mRioOptionOffsets) {
-                    rioOptionToString(sb, i);
-                }
-                return sb.toString();
-            } catch (BufferUnderflowException|IndexOutOfBoundsException e) {
-                return "<Malformed RA>";
-            }
-        }
-
-        /**
-         * Add a packet section that should be matched, starting from the current position.
-         * @param length the length of the section
-         */
-        private void addMatchSection(int length) {
-            // Don't generate JNEBS instruction for 0 bytes as they will fail the
-            // ASSERT_FORWARD_IN_PROGRAM(pc + cmp_imm - 1) check (where cmp_imm is
-            // the number of bytes to compare) and immediately pass the packet.
-            // The code does not attempt to generate such matches, but add a safety
-            // check to prevent doing so in the presence of bugs or malformed or
-            // truncated packets.
-            if (length == 0) return;
-
-            // we need to add a MATCH section 'from, length, MATCH, 0, 0'
-            int from = mPacket.position();
-
-            // if possible try to increase the length of the previous match section
-            int lastIdx = mPacketSections.size() - 1;
-            if (lastIdx >= 0) {  // there had to be a previous section
-                PacketSection prev = mPacketSections.get(lastIdx);
-                if (prev.type == PacketSection.Type.MATCH) {  // of type match
-                    if (prev.start + prev.length == from) {  // ending where we start
-                        from -= prev.length;
-                        length += prev.length;
-                        mPacketSections.remove(lastIdx);
-                    }
-                }
-            }
-
-            mPacketSections.add(new PacketSection(from, length, PacketSection.Type.MATCH, 0, 0));
-            mPacket.position(from + length);
-        }
-
-        /**
-         * Add a packet section that should be matched, starting from the current position.
-         * @param end the offset in the packet before which the section ends
-         */
-        private void addMatchUntil(int end) {
-            addMatchSection(end - mPacket.position());
-        }
-
-        /**
-         * Add a packet section that should be ignored, starting from the current position.
-         * @param length the length of the section in bytes
-         */
-        private void addIgnoreSection(int length) {
-            mPacket.position(mPacket.position() + length);
-        }
-
-        /**
-         * Add a packet section that represents a lifetime, starting from the current position.
-         * @param length the length of the section in bytes
-         * @param lifetime the lifetime
-         * @param min the minimum acceptable lifetime
-         */
-        private void addLifetimeSection(int length, long lifetime, int min) {
-            mPacketSections.add(
-                    new PacketSection(mPacket.position(), length, PacketSection.Type.LIFETIME,
-                            lifetime, min));
-            mPacket.position(mPacket.position() + length);
-        }
-
-        /**
-         * Adds packet sections for an RA option with a 4-byte lifetime 4 bytes into the option
-         * @param optionLength the length of the option in bytes
-         * @param min the minimum acceptable lifetime
-         */
-        private long add4ByteLifetimeOption(int optionLength, int min) {
-            addMatchSection(ICMP6_4_BYTE_LIFETIME_OFFSET);
-            final long lifetime = getUint32(mPacket, mPacket.position());
-            addLifetimeSection(ICMP6_4_BYTE_LIFETIME_LEN, lifetime, min);
-            addMatchSection(optionLength - ICMP6_4_BYTE_LIFETIME_OFFSET
-                    - ICMP6_4_BYTE_LIFETIME_LEN);
-            return lifetime;
+        public String toString() {
+            try {
+                StringBuffer sb = new StringBuffer();
+                sb.append(String.format("RA %s -> %s %ds ",
+                        IPv6AddresstoString(IPV6_SRC_ADDR_OFFSET),
+                        IPv6AddresstoString(IPV6_DEST_ADDR_OFFSET),
+                        getUint16(mPacket, ICMP6_RA_ROUTER_LIFETIME_OFFSET)));
+                for (int i: mPrefixOptionOffsets) {
+                    prefixOptionToString(sb, i);
+                }
+                for (int i: mRdnssOptionOffsets) {
+                    rdnssOptionToString(sb, i);
+                }
+                for (int i: mRioOptionOffsets) {
+                    rioOptionToString(sb, i);
+                }
+                return sb.toString();
+            } catch (BufferUnderflowException|IndexOutOfBoundsException e) {
+                return "<Malformed RA>";
+            }
         }
 
         /**
@@ -881,114 +1177,41 @@ public class ApfFilter implements AndroidPacketFilter {
             return mMinRdnssLifetime;
         }
 
-        // Note that this parses RA and may throw InvalidRaException (from
-        // Buffer.position(int) or due to an invalid-length option) or IndexOutOfBoundsException
-        // (from ByteBuffer.get(int) ) if parsing encounters something non-compliant with
-        // specifications.
+        // Note that this parses RA and may throw InvalidRaException (from an invalid-length
+        // option), IllegalArgumentException (from Buffer.position(int)) or
+        // IndexOutOfBoundsException (from ByteBuffer.get(int)) if parsing encounters something
+        // non-compliant with specifications.
         @VisibleForTesting
         public Ra(byte[] packet, int length) throws InvalidRaException {
-            if (length < ICMP6_RA_OPTION_OFFSET) {
-                throw new InvalidRaException("Not an ICMP6 router advertisement: too short");
+            this(new RaParser().parse(packet, length));
+        }
+
+        // Copies the RA last parsed by {@code parser}.
+        Ra(RaParser parser) {
+            mPacket = ByteBuffer.wrap(Arrays.copyOf(parser.mPacket.array(), parser.mLength));
+            for (int i = 0; i < parser.mNumSections; i++) {
+                mPacketSections.add(new PacketSection(parser.mSectionStarts[i],
+                        parser.mSectionLengths[i],
+                        parser.mSectionIsLifetime[i]
+                                ? PacketSection.Type.LIFETIME : PacketSection.Type.MATCH,
+                        parser.mSectionLifetimes[i], parser.mSectionMins[i]));
             }
-
-            mPacket = ByteBuffer.wrap(Arrays.copyOf(packet, length));
-            mLastSeen = secondsSinceBoot();
-
-            // Check packet in case a packet arrives before we attach RA filter
-            // to our packet socket. b/29586253
-            if (getUint16(mPacket, ETH_ETHERTYPE_OFFSET) != ETH_P_IPV6 ||
-                    getUint8(mPacket, IPV6_NEXT_HEADER_OFFSET) != IPPROTO_ICMPV6 ||
-                    getUint8(mPacket, ICMP6_TYPE_OFFSET) != ICMPV6_ROUTER_ADVERTISEMENT) {
-                throw new InvalidRaException("Not an ICMP6 router advertisement");
+            for (int i = 0; i < parser.mNumPrefixOptions; i++) {
+                mPrefixOptionOffsets.add(parser.mPrefixOptionOffsets[i]);
             }
-
-            // Ignore the flow label and low 4 bits of traffic class.
-            addMatchUntil(IPV6_FLOW_LABEL_OFFSET);
-            addIgnoreSection(IPV6_FLOW_LABEL_LEN);
-
-            // Ignore IPv6 destination address.
-            addMatchUntil(IPV6_DEST_ADDR_OFFSET);
-            addIgnoreSection(IPV6_ADDR_LEN);
-
-            // Ignore checksum.
-            addMatchUntil(ICMP6_RA_CHECKSUM_OFFSET);
-            addIgnoreSection(ICMP6_RA_CHECKSUM_LEN);
-
-            // Parse router lifetime
-            addMatchUntil(ICMP6_RA_ROUTER_LIFETIME_OFFSET);
-            mRouterLifetime = getUint16(mPacket, ICMP6_RA_ROUTER_LIFETIME_OFFSET);
-            addLifetimeSection(ICMP6_RA_ROUTER_LIFETIME_LEN, mRouterLifetime, mAcceptRaMinLft);
-            if (mRouterLifetime == 0) mNumZeroLifetimeRas++;
-
-            // Add remaining fields (reachable time and retransmission timer) to match section.
-            addMatchUntil(ICMP6_RA_OPTION_OFFSET);
-
-            while (mPacket.hasRemaining()) {
-                final int position = mPacket.position();
-                final int optionType = getUint8(mPacket, position);
-                final int optionLength = getUint8(mPacket, position + 1) * 8;
-                if (optionLength <= 0) {
-                    throw new InvalidRaException(String.format(
-                        "Invalid option length opt=%d len=%d", optionType, optionLength));
-                }
-
-                long lifetime;
-                switch (optionType) {
-                    case ICMP6_PREFIX_OPTION_TYPE:
-                        mPrefixOptionOffsets.add(position);
-
-                        // Parse valid lifetime
-                        addMatchSection(ICMP6_PREFIX_OPTION_VALID_LIFETIME_OFFSET);
-                        lifetime = getUint32(mPacket, mPacket.position());
-                        addLifetimeSection(ICMP6_PREFIX_OPTION_VALID_LIFETIME_LEN,
-                                lifetime, mAcceptRaMinLft);
-                        mMinPioValidLifetime = getMinForPositiveValue(
-                                mMinPioValidLifetime, lifetime);
-                        if (lifetime == 0) mNumZeroLifetimeRas++;
-
-                        // Parse preferred lifetime
-                        lifetime = getUint32(mPacket, mPacket.position());
-                        // The PIO preferred lifetime is not affected by accept_ra_min_lft and
-                        // therefore does not have a minimum.
-                        addLifetimeSection(ICMP6_PREFIX_OPTION_PREFERRED_LIFETIME_LEN,
-                                lifetime, 0 /* min lifetime */);
-
-                        addMatchSection(4);       // Reserved bytes
-                        addMatchSection(IPV6_ADDR_LEN);  // The prefix itself
-                        break;
-                    // These three options have the same lifetime offset and size, and
-                    // are processed with the same specialized add4ByteLifetimeOption:
-                    case ICMP6_RDNSS_OPTION_TYPE:
-                        mRdnssOptionOffsets.add(position);
-                        lifetime = add4ByteLifetimeOption(optionLength, mMinRdnssLifetimeSec);
-                        mMinRdnssLifetime = getMinForPositiveValue(mMinRdnssLifetime, lifetime);
-                        if (lifetime == 0) mNumZeroLifetimeRas++;
-                        break;
-                    case ICMP6_ROUTE_INFO_OPTION_TYPE:
-                        mRioOptionOffsets.add(position);
-                        lifetime = add4ByteLifetimeOption(optionLength, mAcceptRaMinLft);
-                        mMinRioRouteLifetime = getMinForPositiveValue(
-                                mMinRioRouteLifetime, lifetime);
-                        if (lifetime == 0) mNumZeroLifetimeRas++;
-                        break;
-                    case ICMP6_SOURCE_LL_ADDRESS_OPTION_TYPE:
-                    case ICMP6_MTU_OPTION_TYPE:
-                    case ICMP6_PREF64_OPTION_TYPE:
-                        addMatchSection(optionLength);
-                        break;
-                    case ICMP6_CAPTIVE_PORTAL_OPTION_TYPE: // unlikely to ever change.
-                    case ICMP6_DNSSL_OPTION_TYPE: // currently unsupported in userspace.
-                    default:
-                        // RFC4861 section 4.2 dictates we ignore unknown options for forwards
-                        // compatibility.
-                        // However, make sure the option's type and length match.
-                        addMatchSection(2); // option type & length
-                        // optionLength is guaranteed to be >= 8.
-                        addIgnoreSection(optionLength - 2);
-                        break;
-                }
+            for (int i = 0; i < parser.mNumRdnssOptions; i++) {
+                mRdnssOptionOffsets.add(parser.mRdnssOptionOffsets[i]);
             }
-            mMinLifetime = minLifetime();
+            for (int i = 0; i < parser.mNumRioOptions; i++) {
+                mRioOptionOffsets.add(parser.mRioOptionOffsets[i]);
+            }
+            mRouterLifetime = parser.mRouterLifetime;
+            mMinPioValidLifetime = parser.mMinPioValidLifetime;
+            mMinRioRouteLifetime = parser.mMinRioRouteLifetime;
+            mMinRdnssLifetime = parser.mMinRdnssLifetime;
+            mMinLifetime = parser.mMinLifetime;
+            mLastSeen = parser.mLastSeen;
+            mLastReceived = parser.mLastSeen;
         }
 
         public enum MatchType {
@@ -997,10 +1220,11 @@ public class ApfFilter implements AndroidPacketFilter {
             MATCH_DROP, // the RAs match, but the APF program would drop.
         }
 
-        // Considering only the MATCH sections, does {@code packet} match this RA?
-        MatchType matches(Ra newRa) {
+        // Considering only the MATCH sections, does the RA last parsed by {@code newRa} match
+        // this RA?
+        MatchType matches(RaParser newRa) {
             // Does their size match?
-            if (newRa.mPacket.capacity() != mPacket.capacity()) return MatchType.NO_MATCH;
+            if (newRa.mLength != mPacket.capacity()) return MatchType.NO_MATCH;
 
             // If the filter has expired, it cannot match the new RA.
             if (getRemainingFilterLft(secondsSinceBoot()) <= 0) return MatchType.NO_MATCH;
@@ -1008,7 +1232,9 @@ public class ApfFilter implements AndroidPacketFilter {
             // Check if all MATCH sections are byte-identical.
             final byte[] newPacket = newRa.mPacket.array();
             final byte[] oldPacket = mPacket.array();
-            for (PacketSection section : mPacketSections) {
+            // Indexed loops avoid allocating iterators, as this runs for every RA received.
+            for (int s = 0; s < mPacketSections.size(); s++) {
+                final PacketSection section = mPacketSections.get(s);
                 if (section.type != PacketSection.Type.MATCH) continue;
                 for (int i = section.start; i < (section.start + section.length); i++) {
                     if (newPacket[i] != oldPacket[i]) return MatchType.NO_MATCH;
@@ -1020,7 +1246,8 @@ public class ApfFilter implements AndroidPacketFilter {
             // consistently process / ignore packets no matter the current state of the APF program.
             // Note that userspace has no control (or knowledge) over when the APF program is
             // running.
-            for (PacketSection section : mPacketSections) {
+            for (int s = 0; s < mPacketSections.size(); s++) {
+                final PacketSection section = mPacketSections.get(s);
                 if (section.type != PacketSection.Type.LIFETIME) continue;
 
                 // the lifetime of the new RA.
@@ -1101,26 +1328,37 @@ public class ApfFilter implements AndroidPacketFilter {
             return MatchType.MATCH_DROP;
         }
 
-        // What is the minimum of all lifetimes within {@code packet} in seconds?
-        // Precondition: matches(packet, length) already returned true.
-        private int minLifetime() {
-            // While technically most lifetimes in the RA are u32s, as far as the RA filter is
-            // concerned, INT_MAX is still a *much* longer lifetime than any filter would ever
-            // reasonably be active for.
-            // Clamp minLifetime at INT_MAX.
-            int minLifetime = Integer.MAX_VALUE;
-            for (PacketSection section : mPacketSections) {
-                if (section.type != PacketSection.Type.LIFETIME) {
-                    continue;
-                }
-                // Ignore lifetimes below section.min and always ignore 0 lifetimes.
-                if (section.lifetime < Math.max(section.min, 1)) {
-                    continue;
-                }
-
-                minLifetime = (int) Math.min(minLifetime, section.lifetime);
+        // Records that this RA was received again, at {@code timeSeconds}.
+        @GuardedBy("ApfFilter.this")
+        void onReceivedAgainLocked(int timeSeconds) {
+            final int interval = timeSeconds - mLastReceived;
+            if (interval > 0 && (mMinIntervalSeconds == 0 || interval < mMinIntervalSeconds)) {
+                mMinIntervalSeconds = interval;
             }
-            return minLifetime;
+            mLastReceived = timeSeconds;
+        }
+
+        // Takes over the arrival history of {@code oldRa}, which this RA replaces.
+        @GuardedBy("ApfFilter.this")
+        void inheritArrivalsLocked(Ra oldRa) {
+            mLastReceived = oldRa.mLastReceived;
+            mMinIntervalSeconds = oldRa.mMinIntervalSeconds;
+            onReceivedAgainLocked(mLastSeen);
+        }
+
+        // The expected number of RAs the filter for this RA drops if it is installed at
+        // {@code timeSeconds}, i.e., the number of times the RA is sent during the remaining
+        // lifetime of the filter.
+        @GuardedBy("ApfFilter.this")
+        double getFilterValueLocked(int timeSeconds) {
+            final int interval = mMinIntervalSeconds > 0
+                    ? mMinIntervalSeconds : DEFAULT_RA_INTERVAL_SECONDS;
+            return (double) getRemainingFilterLft(timeSeconds) / interval;
+        }
+
+        // The time at which getRemainingFilterLft() drops to 0.
+        long getFilterExpirySeconds() {
+            return (long) mLastSeen + mMinLifetime / FRACTION_OF_LIFETIME_TO_FILTER;
         }
 
         // Filter for a fraction of the lifetime and adjust for the age of the RA.
@@ -1132,18 +1370,37 @@ public class ApfFilter implements AndroidPacketFilter {
             return Math.min(65535, filterLifetime);
         }
 
-        // Append a filter for this RA to {@code gen}. Jump to DROP_LABEL if it should be dropped.
-        // Jump to the next filter if packet doesn't match this RA.
+        // Returns the filter for this RA, with the remaining lifetime computed at
+        // {@code timeSeconds}. The fragment is only valid until the next call.
         @GuardedBy("ApfFilter.this")
-        void generateFilterLocked(ApfV4Generator gen, int timeSeconds)
+        ApfProgramFragment getFilterFragmentLocked(int timeSeconds)
                 throws IllegalInstructionException {
+            if (mFilterFragment == null) {
+                final ApfV4Generator gen =
+                        new ApfV4Generator(mApfCapabilities.apfVersionSupported);
+                gen.setOptimizationEnabled(true);
+                generateFilterLocked(gen);
+                mFilterFragment = gen.generateFragment();
+            }
+            mFilterFragment.setParameter(RA_FILTER_LIFETIME_PARAMETER,
+                    getRemainingFilterLft(timeSeconds));
+            return mFilterFragment;
+        }
+
+        // Append a filter for this RA to {@code gen}. Jump to DROP_LABEL if it should be dropped.
+        // Jump to the next filter if packet doesn't match this RA. The remaining lifetime of the
+        // filter is left as a parameter, see getFilterFragmentLocked().
+        @GuardedBy("ApfFilter.this")
+        private void generateFilterLocked(ApfV4Generator gen) throws IllegalInstructionException {
             String nextFilterLabel = "Ra" + getUniqueNumberLocked();
+            gen.defineRegion(REGION_RA);
             // Skip if packet is not the right size
             gen.addLoadFromMemory(R0, gen.PACKET_SIZE_MEMORY_SLOT);
             gen.addJumpIfR0NotEquals(mPacket.capacity(), nextFilterLabel);
             // Skip filter if expired
             gen.addLoadFromMemory(R0, gen.FILTER_AGE_MEMORY_SLOT);
-            gen.addJumpIfR0GreaterThan(getRemainingFilterLft(timeSeconds), nextFilterLabel);
+            gen.addJumpIfR0GreaterThan(0, nextFilterLabel);
+            gen.markLastImmediateAsParameter(RA_FILTER_LIFETIME_PARAMETER);
             for (PacketSection section : mPacketSections) {
                 // Generate code to match the packet bytes.
                 if (section.type == PacketSection.Type.MATCH) {
@@ -1447,8 +1704,30 @@ public class ApfFilter implements AndroidPacketFilter {
     // Maximum number of RAs to filter for.
     private static final int MAX_RAS = 10;
 
+    // Interval at which routers are assumed to send an RA that was only received once. This is
+    // the default MaxRtrAdvInterval from RFC 4861.
+    private static final int DEFAULT_RA_INTERVAL_SECONDS = 600;
+
+    // Name of the parameter holding the remaining lifetime of an RA filter.
+    private static final String RA_FILTER_LIFETIME_PARAMETER = "ra_filter_lifetime";
+
+    @GuardedBy("this")
+    private final RaTable<Ra> mRas = new RaTable<>();
+    // Parses received RAs. Reused for every RA so that duplicate RAs are handled without
+    // allocating.
+    @GuardedBy("this")
+    private final RaParser mRaParser = new RaParser();
+    // Result of the last call to mMatchesParsedRa, so that the RA it found does not need to be
+    // matched again.
     @GuardedBy("this")
-    private ArrayList<Ra> mRas = new ArrayList<>();
+    private Ra.MatchType mParsedRaMatchType;
+    // Whether a known RA matches the RA last parsed by mRaParser. Kept in a field rather than
+    // created for every RA received.
+    @GuardedBy("this")
+    private final Predicate<Ra> mMatchesParsedRa = ra -> {
+        mParsedRaMatchType = ra.matches(mRaParser);
+        return mParsedRaMatchType != Ra.MatchType.NO_MATCH;
+    };
     @GuardedBy("this")
     private SparseArray<KeepalivePacket> mKeepalivePackets = new SparseArray<>();
     @GuardedBy("this")
@@ -1466,9 +1745,48 @@ public class ApfFilter implements AndroidPacketFilter {
     @GuardedBy("this")
     private int mLastInstalledProgramMinLifetime;
 
-    // For debugging only. The last program installed.
+    // The parts of the program that do not depend on the RAs, cached so that only the RA filters
+    // that changed need to be generated when an RA is received. mPrologueFragment is cleared by
+    // installNewProgramLocked(), since any of the state it depends on may have changed.
+    @GuardedBy("this")
+    private ApfProgramFragment mPrologueFragment;
+    @GuardedBy("this")
+    private ApfProgramFragment mEpilogueFragment;
+
+    // Changes requested within this many milliseconds of the last install are installed together
+    // at the end of the window. If 0, every change is installed immediately.
+    private final int mInstallCoalescingWindowMs;
+    // Runs the coalesced installs on the install thread of the filter. Null if
+    // mInstallCoalescingWindowMs is 0.
+    @Nullable
+    private final Handler mInstallHandler;
+    private final Runnable mScheduledInstall = this::runScheduledInstall;
+    // Whether mScheduledInstall is posted and has not run yet.
+    @GuardedBy("this")
+    private boolean mInstallScheduled;
+    // When the last program was generated, in SystemClock#uptimeMillis time base.
+    @GuardedBy("this")
+    private long mLastInstallUptimeMs;
+    // For debugging only. How many install requests were merged into an already scheduled
+    // install, and how many generated programs were identical to the installed one.
+    @GuardedBy("this")
+    private int mNumCoalescedInstallRequests;
+    @GuardedBy("this")
+    private int mNumIdenticalProgramsSkipped;
+    // Whether the last program was successfully installed. Identical programs are only skipped
+    // if it was.
+    @GuardedBy("this")
+    private boolean mLastInstallSucceeded;
+
+    // The last program installed. Used to skip installing identical programs, and for debugging.
     @GuardedBy("this")
     private byte[] mLastInstalledProgram;
+    // For debugging only. The regions of the last program installed, so that dump can profile
+    // it. The program is only profiled when dumped, outside the lock.
+    @GuardedBy("this") @Nullable
+    private List<String> mLastInstalledProgramRegionNames;
+    @GuardedBy("this") @Nullable
+    private int[] mLastInstalledProgramRegionOffsets;
 
     /**
      * For debugging only. Contains the latest APF buffer snapshot captured from the firmware.
@@ -1627,10 +1945,12 @@ public class ApfFilter implements AndroidPacketFilter {
         }
 
         // If any TCP keepalive filter matches, drop
+        gen.defineRegion(REGION_KEEPALIVE);
         generateV4KeepaliveFilters(gen);
 
         // If any NAT-T keepalive filter matches, drop
         generateV4NattKeepaliveFilters(gen);
+        gen.defineRegion(REGION_IPV4);
 
         // If TCP unicast on port 7, drop
         generateV4TcpPort7FilterLocked(gen);
@@ -1741,13 +2061,17 @@ public class ApfFilter implements AndroidPacketFilter {
             gen.addLoad8(R0, IPV6_DEST_ADDR_OFFSET);
             gen.addJumpIfR0Equals(0xff, mCountAndDropLabel);
             // If any keepalive filter matches, drop
+            gen.defineRegion(REGION_KEEPALIVE);
             generateV6KeepaliveFilters(gen);
+            gen.defineRegion(REGION_IPV6);
             // Not multicast. Pass.
             maybeSetupCounter(gen, Counter.PASSED_IPV6_UNICAST_NON_ICMP);
             gen.addJump(mCountAndPassLabel);
             gen.defineLabel(skipIPv6MulticastFilterLabel);
         } else {
+            gen.defineRegion(REGION_KEEPALIVE);
             generateV6KeepaliveFilters(gen);
+            gen.defineRegion(REGION_IPV6);
             // If not ICMPv6, pass.
             maybeSetupCounter(gen, Counter.PASSED_IPV6_NON_ICMP);
             gen.addJumpIfR0NotEquals(IPPROTO_ICMPV6, mCountAndPassLabel);
@@ -1783,9 +2107,7 @@ public class ApfFilter implements AndroidPacketFilter {
     public static byte[] encodeQname(String[] labels) {
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         for (String label : labels) {
-            byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
-            out.write(labelBytes.length);
-            out.write(labelBytes, 0, labelBytes.length);
+            encodeLabel(out, label);
         }
         out.write(0);
         return out.toByteArray();
@@ -1879,15 +2201,8 @@ public class ApfFilter implements AndroidPacketFilter {
         gen.addAddR1();
 
         // Check first QNAME against allowlist
-        for (int i = 0; i < mMdnsAllowList.size(); ++i) {
-            final String mDnsNextAllowedQnameCheck = "mdns_next_allowed_qname_check" + i;
-            final byte[] encodedQname = encodeQname(mMdnsAllowList.get(i));
-            gen.addJumpIfBytesAtR0NotEqual(encodedQname, mDnsNextAllowedQnameCheck);
-            // QNAME matched
-            gen.addJump(mDnsAcceptPacket);
-            // QNAME not matched
-            gen.defineLabel(mDnsNextAllowedQnameCheck);
-        }
+        generateMdnsQnameMatchLocked(gen, mDnsAcceptPacket, mDnsDropPacket);
+
         // If QNAME doesn't match any entries in allowlist, drop the packet.
         gen.defineLabel(mDnsDropPacket);
         maybeSetupCounter(gen, Counter.DROPPED_MDNS);
@@ -1901,6 +2216,76 @@ public class ApfFilter implements AndroidPacketFilter {
         gen.defineLabel(skipMdnsFilter);
     }
 
+    /**
+     * Generate code that matches the QNAME at offset R0 against the mDNS allowlist, and jumps to
+     * {@code acceptLabel} or {@code dropLabel}.
+     *
+     * The allowlist is compiled into a {@link DnsNameTrie}, so that labels shared by several
+     * names, typically "_tcp.local" or "_udp.local", are compared once. Each node compares the
+     * labels that can follow, and advances R0 past the one that matched. Chains of labels that
+     * always follow each other are compared in a single instruction, so an allowlist with a
+     * single name compiles to a single comparison.
+     */
+    @GuardedBy("this")
+    private void generateMdnsQnameMatchLocked(ApfV4Generator gen, String acceptLabel,
+            String dropLabel) throws IllegalInstructionException {
+        final DnsNameTrie trie = new DnsNameTrie(mMdnsAllowList, false /* matchPrefixes */);
+        final List<DnsNameTrie.Node> nodes = trie.getNodes();
+        // Whether code is generated for each node, i.e., whether it is the root, or a node that
+        // another node jumps to. Nodes come before the nodes they lead to, so this is known by the
+        // time each node is reached.
+        final boolean[] generated = new boolean[nodes.size()];
+        generated[trie.getRoot().getIndex()] = true;
+        for (DnsNameTrie.Node node : nodes) {
+            if (!generated[node.getIndex()]) continue;
+            gen.defineLabel(getMdnsNodeLabel(node.getIndex()));
+            final List<String> labels = node.getLabels();
+            for (int i = 0; i < labels.size(); i++) {
+                final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                DnsNameTrie.Node next = node.getChild(labels.get(i));
+                encodeLabel(encoded, labels.get(i));
+                // Follow the labels that always come next. Nodes reached by other nodes have
+                // their own code, so stop there.
+                while (!next.isTerminal() && next.getLabels().size() == 1
+                        && next.getInDegree() == 1) {
+                    final String label = next.getLabels().get(0);
+                    encodeLabel(encoded, label);
+                    next = next.getChild(label);
+                }
+                final boolean endOfName = next.isTerminal() && next.getLabels().isEmpty();
+                if (endOfName) encoded.write(0);
+
+                final String tryNextLabel = getMdnsNodeLabel(node.getIndex()) + "_" + i;
+                gen.addJumpIfBytesAtR0NotEqual(encoded.toByteArray(), tryNextLabel);
+                if (endOfName) {
+                    gen.addJump(acceptLabel);
+                } else {
+                    gen.addAdd(encoded.size());
+                    gen.addJump(getMdnsNodeLabel(next.getIndex()));
+                    generated[next.getIndex()] = true;
+                }
+                gen.defineLabel(tryNextLabel);
+            }
+            if (node.isTerminal()) {
+                // Accept if the QNAME ends here.
+                gen.addJumpIfBytesAtR0NotEqual(new byte[] {0}, dropLabel);
+                gen.addJump(acceptLabel);
+            } else {
+                gen.addJump(dropLabel);
+            }
+        }
+    }
+
+    private static String getMdnsNodeLabel(int index) {
+        return "mdns_qname_node_" + index;
+    }
+
+    private static void encodeLabel(ByteArrayOutputStream out, String label) {
+        final byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
+        out.write(labelBytes.length);
+        out.write(labelBytes, 0, labelBytes.length);
+    }
+
     /**
      * Generate filter code to drop IPv4 TCP packets on port 7.
      *
@@ -1964,6 +2349,7 @@ public class ApfFilter implements AndroidPacketFilter {
     protected ApfV4Generator emitPrologueLocked() throws IllegalInstructionException {
         // This is guaranteed to succeed because of the check in maybeCreate.
         ApfV4Generator gen = new ApfV4Generator(mApfCapabilities.apfVersionSupported);
+        gen.defineRegion(REGION_PROLOGUE);
 
         if (mApfCapabilities.hasDataAccess()) {
             // Increment TOTAL_PACKETS
@@ -2015,18 +2401,23 @@ public class ApfFilter implements AndroidPacketFilter {
         // Add ARP filters:
         String skipArpFiltersLabel = "skipArpFilters";
         gen.addJumpIfR0NotEquals(ETH_P_ARP, skipArpFiltersLabel);
+        gen.defineRegion(REGION_ARP);
         generateArpFilterLocked(gen);
         gen.defineLabel(skipArpFiltersLabel);
 
         // Add mDNS filter:
+        gen.defineRegion(REGION_MDNS);
         generateMdnsFilterLocked(gen);
+        gen.defineRegion(REGION_PROLOGUE);
         gen.addLoad16(R0, ETH_ETHERTYPE_OFFSET);
 
         // Add IPv4 filters:
         String skipIPv4FiltersLabel = "skipIPv4Filters";
         gen.addJumpIfR0NotEquals(ETH_P_IP, skipIPv4FiltersLabel);
+        gen.defineRegion(REGION_IPV4);
         generateIPv4FilterLocked(gen);
         gen.defineLabel(skipIPv4FiltersLabel);
+        gen.defineRegion(REGION_PROLOGUE);
 
         // Check for IPv6:
         // NOTE: Relies on R0 containing ethertype. This is safe because if we got here, we did
@@ -2036,6 +2427,7 @@ public class ApfFilter implements AndroidPacketFilter {
         gen.addJumpIfR0Equals(ETH_P_IPV6, ipv6FilterLabel);
 
         // Drop non-IP non-ARP broadcasts, pass the rest
+        gen.defineRegion(REGION_NON_IP);
         gen.addLoadImmediate(R0, ETH_DEST_ADDR_OFFSET);
         maybeSetupCounter(gen, Counter.PASSED_NON_IP_UNICAST);
         gen.addJumpIfBytesAtR0NotEqual(ETHER_BROADCAST, mCountAndPassLabel);
@@ -2044,6 +2436,7 @@ public class ApfFilter implements AndroidPacketFilter {
 
         // Add IPv6 filters:
         gen.defineLabel(ipv6FilterLabel);
+        gen.defineRegion(REGION_IPV6);
         generateIPv6FilterLocked(gen);
         return gen;
     }
@@ -2062,6 +2455,7 @@ public class ApfFilter implements AndroidPacketFilter {
 
         // Execution will reach the bottom of the program if none of the filters match,
         // which will pass the packet to the application processor.
+        gen.defineRegion(REGION_EPILOGUE);
         maybeSetupCounter(gen, Counter.PASSED_IPV6_ICMP);
 
         // Append the count & pass trampoline, which increments the counter at the data address
@@ -2085,10 +2479,63 @@ public class ApfFilter implements AndroidPacketFilter {
      * Generate and install a new filter program.
      */
     @GuardedBy("this")
-    @SuppressWarnings("GuardedBy") // errorprone false positive on ra#generateFilterLocked
     @VisibleForTesting
     public void installNewProgramLocked() {
-        ArrayList<Ra> rasToFilter = new ArrayList<>();
+        mPrologueFragment = null;
+        installProgramWithCachedFragmentsLocked();
+    }
+
+    /**
+     * Request a new filter program, after any of the state it depends on changed. The program is
+     * generated and installed when the coalescing window allows, together with any other change
+     * requested meanwhile.
+     */
+    @GuardedBy("this")
+    private void requestNewProgramLocked() {
+        mPrologueFragment = null;
+        requestProgramWithCachedFragmentsLocked();
+    }
+
+    /**
+     * Request a new filter program after only mRas changed. See
+     * {@link #installProgramWithCachedFragmentsLocked}.
+     */
+    @GuardedBy("this")
+    private void requestProgramWithCachedFragmentsLocked() {
+        if (mInstallHandler == null) {
+            installProgramWithCachedFragmentsLocked();
+            return;
+        }
+        if (mInstallScheduled) {
+            mNumCoalescedInstallRequests++;
+            return;
+        }
+        mInstallScheduled = true;
+        // Install right away if the last install is older than the window, so that isolated
+        // changes are not delayed.
+        final long installTimeMs = Math.max(SystemClock.uptimeMillis(),
+                mLastInstallUptimeMs + mInstallCoalescingWindowMs);
+        mInstallHandler.postAtTime(mScheduledInstall, installTimeMs);
+    }
+
+    private synchronized void runScheduledInstall() {
+        // Cancelled by shutdown().
+        if (!mInstallScheduled) return;
+        mInstallScheduled = false;
+        // Whether mPrologueFragment was cleared by requestNewProgramLocked() or not, this
+        // generates whatever changed since the last install.
+        installProgramWithCachedFragmentsLocked();
+    }
+
+    /**
+     * Install a new filter program reflecting the current set of RAs. Only the prologue and
+     * epilogue cached by the last call to {@link #installNewProgramLocked} are reused, so this
+     * must only be called if nothing but mRas has changed since.
+     */
+    @GuardedBy("this")
+    @SuppressWarnings("GuardedBy") // errorprone false positive on ra#getFilterFragmentLocked
+    private void installProgramWithCachedFragmentsLocked() {
+        final ApfProgramLinker linker = new ApfProgramLinker();
         final byte[] program;
         int programMinLft = Integer.MAX_VALUE;
         int maximumApfProgramSize = mApfCapabilities.maximumApfProgramSize;
@@ -2099,56 +2546,93 @@ public class ApfFilter implements AndroidPacketFilter {
 
         // Ensure the entire APF program uses the same time base.
         int timeSeconds = secondsSinceBoot();
+        mLastInstallUptimeMs = SystemClock.uptimeMillis();
         try {
-            // Step 1: Determine how many RA filters we can fit in the program.
-            ApfV4Generator gen = emitPrologueLocked();
-
-            // The epilogue normally goes after the RA filters, but add it early to include its
-            // length when estimating the total.
-            emitEpilogue(gen);
+            if (mPrologueFragment == null) {
+                final ApfV4Generator gen = emitPrologueLocked();
+                gen.setOptimizationEnabled(true);
+                mPrologueFragment = gen.generateFragment();
+            }
+            if (mEpilogueFragment == null) {
+                final ApfV4Generator gen =
+                        new ApfV4Generator(mApfCapabilities.apfVersionSupported);
+                emitEpilogue(gen);
+                mEpilogueFragment = gen.generateFragment();
+            }
 
             // Can't fit the program even without any RA filters?
-            if (gen.programLengthOverEstimate() > maximumApfProgramSize) {
+            int programSize = mPrologueFragment.length() + mEpilogueFragment.length();
+            if (programSize > maximumApfProgramSize) {
                 Log.e(TAG, "Program exceeds maximum size " + maximumApfProgramSize);
                 sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
                 return;
             }
 
+            // Fragments have a fixed size, so the RA filters that fit can be chosen without
+            // generating the program first to estimate its size.
+            final ArrayList<Ra> ras = new ArrayList<>(mRas.size());
             for (Ra ra : mRas) {
+                ra.mInLastProgram = false;
                 // skip filter if it has expired.
                 if (ra.getRemainingFilterLft(timeSeconds) <= 0) continue;
-                ra.generateFilterLocked(gen, timeSeconds);
-                // Stop if we get too big.
-                if (gen.programLengthOverEstimate() > maximumApfProgramSize) {
-                    if (VDBG) Log.d(TAG, "Past maximum program size, skipping RAs");
-                    sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
-                    break;
-                }
-
-                rasToFilter.add(ra);
+                ras.add(ra);
             }
-
-            // Step 2: Actually generate the program
-            gen = emitPrologueLocked();
-            for (Ra ra : rasToFilter) {
-                ra.generateFilterLocked(gen, timeSeconds);
+            final int[] sizes = new int[ras.size()];
+            final double[] values = new double[ras.size()];
+            for (int i = 0; i < ras.size(); i++) {
+                final Ra ra = ras.get(i);
+                // With LRU packing, this generates the filters of RAs that may not fit. This is
+                // no worse than before: they are cached for the next program.
+                sizes[i] = ra.getFilterFragmentLocked(timeSeconds).length();
+                values[i] = ra.getFilterValueLocked(timeSeconds);
+                ra.mLastFilterValue = values[i];
+            }
+            final boolean[] chosen = RaFilterPacker.pack(mRaPackingStrategy, sizes, values,
+                    maximumApfProgramSize - programSize);
+
+            linker.add(mPrologueFragment);
+            int numSkippedRas = 0;
+            for (int i = 0; i < ras.size(); i++) {
+                if (!chosen[i]) {
+                    numSkippedRas++;
+                    continue;
+                }
+                final Ra ra = ras.get(i);
+                // Filters are kept in most recently used order, whichever the strategy.
+                linker.add(ra.getFilterFragmentLocked(timeSeconds));
+                ra.mInLastProgram = true;
                 programMinLft = Math.min(programMinLft, ra.getRemainingFilterLft(timeSeconds));
             }
-            emitEpilogue(gen);
-            program = gen.generate();
+            if (numSkippedRas > 0) {
+                if (VDBG) log("Past maximum program size, skipped " + numSkippedRas + " RAs");
+                sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_OVER_SIZE_FAILURE);
+            }
+            linker.add(mEpilogueFragment);
+            program = linker.link();
         } catch (IllegalInstructionException|IllegalStateException e) {
             Log.e(TAG, "Failed to generate APF program.", e);
             sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_GENERATE_FILTER_EXCEPTION);
             return;
         }
+        // The program only changes if the state it depends on changed, or if the lifetime of
+        // one of its RA filters did. Merged changes can cancel out, e.g., toggling the multicast
+        // filter twice within a coalescing window, so skip the HAL call if nothing changed.
+        if (mLastInstallSucceeded && Arrays.equals(program, mLastInstalledProgram)) {
+            if (VDBG) log("Program unchanged, not installing");
+            mNumIdenticalProgramsSkipped++;
+            return;
+        }
         // Update data snapshot every time we install a new program
         mIpClientCallback.startReadPacketFilter();
-        if (!mIpClientCallback.installPacketFilter(program)) {
+        mLastInstallSucceeded = mIpClientCallback.installPacketFilter(program);
+        if (!mLastInstallSucceeded) {
             sendNetworkQuirkMetrics(NetworkQuirkEvent.QE_APF_INSTALL_FAILURE);
         }
         mLastTimeInstalledProgram = timeSeconds;
         mLastInstalledProgramMinLifetime = programMinLft;
         mLastInstalledProgram = program;
+        mLastInstalledProgramRegionNames = linker.getRegionNames();
+        mLastInstalledProgramRegionOffsets = linker.getRegionOffsets();
         mNumProgramUpdates++;
         mMaxProgramSize = Math.max(mMaxProgramSize, program.length);
 
@@ -2183,9 +2667,11 @@ public class ApfFilter implements AndroidPacketFilter {
     public synchronized void processRa(byte[] packet, int length) {
         if (VDBG) hexDump("Read packet = ", packet, length);
 
-        final Ra ra;
+        // Most RAs are duplicates of a known RA, so parse in place and only copy the RA if it
+        // is new or changes a known RA.
+        final RaParser parsedRa = mRaParser;
         try {
-            ra = new Ra(packet, length);
+            parsedRa.parse(packet, length);
         } catch (Exception e) {
             Log.e(TAG, "Error parsing RA", e);
             mNumParseErrorRas++;
@@ -2194,62 +2680,54 @@ public class ApfFilter implements AndroidPacketFilter {
 
         // Update info for Metrics
         mLowestRouterLifetimeSeconds = getMinForPositiveValue(
-                mLowestRouterLifetimeSeconds, ra.routerLifetime());
+                mLowestRouterLifetimeSeconds, parsedRa.routerLifetime());
         mLowestPioValidLifetimeSeconds = getMinForPositiveValue(
-                mLowestPioValidLifetimeSeconds, ra.minPioValidLifetime());
+                mLowestPioValidLifetimeSeconds, parsedRa.minPioValidLifetime());
         mLowestRioRouteLifetimeSeconds = getMinForPositiveValue(
-                mLowestRioRouteLifetimeSeconds, ra.minRioRouteLifetime());
+                mLowestRioRouteLifetimeSeconds, parsedRa.minRioRouteLifetime());
         mLowestRdnssLifetimeSeconds = getMinForPositiveValue(
-                mLowestRdnssLifetimeSeconds, ra.minRdnssLifetime());
+                mLowestRdnssLifetimeSeconds, parsedRa.minRdnssLifetime());
 
         // Remove all expired RA filters before trying to match the new RA.
         // TODO: matches() still checks that the old RA filter has not expired. Consider removing
         // that check.
         final int now = secondsSinceBoot();
-        mRas.removeIf(item -> item.getRemainingFilterLft(now) <= 0);
+        mRas.removeExpired(now);
 
         // Have we seen this RA before?
-        for (int i = 0; i < mRas.size(); i++) {
-            final Ra oldRa = mRas.get(i);
-            final Ra.MatchType result = oldRa.matches(ra);
+        final int fingerprint = parsedRa.getMatchFingerprint();
+        final Ra oldRa = mRas.find(fingerprint, mMatchesParsedRa);
+        if (oldRa != null) {
+            // The predicate stops at the first match, so this is the result for oldRa.
+            final Ra.MatchType result = mParsedRaMatchType;
             if (result == Ra.MatchType.MATCH_PASS) {
+                final Ra ra = new Ra(parsedRa);
+                ra.inheritArrivalsLocked(oldRa);
                 log("Updating RA from " + oldRa + " to " + ra);
 
                 // Keep mRas in LRU order so as to prioritize generating filters for recently seen
-                // RAs. LRU prioritizes this because RA filters are generated in order from mRas
-                // until the filter program exceeds the maximum filter program size allowed by the
-                // chipset, so RAs appearing earlier in mRas are more likely to make it into the
-                // filter program.
+                // RAs. With LRU packing, RA filters are added in order from mRas until the filter
+                // program exceeds the maximum filter program size allowed by the chipset, so RAs
+                // appearing earlier in mRas are more likely to make it into the filter program.
                 // TODO: consider sorting the RAs in order of increasing expiry time as well.
-                // Swap to front of array.
-                mRas.remove(i);
-                mRas.add(0, ra);
-
-                // Rate limit program installation
-                if (mTokenBucket.get()) {
-                    installNewProgramLocked();
-                } else {
-                    Log.e(TAG, "Failed to install prog for tracked RA, too many updates. " + ra);
-                }
+                mRas.replace(oldRa, ra, fingerprint, ra.getFilterExpirySeconds());
+                requestProgramWithCachedFragmentsLocked();
                 return;
             } else if (result == Ra.MatchType.MATCH_DROP) {
-                log("Ignoring RA " + ra + " which matches " + oldRa);
+                if (VDBG) log("Ignoring RA which matches " + oldRa);
+                oldRa.onReceivedAgainLocked(parsedRa.mLastSeen);
                 return;
             }
         }
+        final Ra ra = new Ra(parsedRa);
         mMaxDistinctRas = Math.max(mMaxDistinctRas, mRas.size() + 1);
         if (mRas.size() >= MAX_RAS) {
             // Remove the last (i.e. oldest) RA.
-            mRas.remove(mRas.size() - 1);
+            mRas.removeLast();
         }
         log("Adding " + ra);
-        mRas.add(0, ra);
-        // Rate limit program installation
-        if (mTokenBucket.get()) {
-            installNewProgramLocked();
-        } else {
-            Log.e(TAG, "Failed to install prog for new RA, too many updates. " + ra);
-        }
+        mRas.addFirst(ra, fingerprint, ra.getFilterExpirySeconds());
+        requestProgramWithCachedFragmentsLocked();
     }
 
     /**
@@ -2310,10 +2788,15 @@ public class ApfFilter implements AndroidPacketFilter {
 
     public synchronized void shutdown() {
         collectAndSendMetrics();
-        if (mReceiveThread != null) {
+        if (mRaRegistration != null) {
             log("shutting down");
-            mReceiveThread.halt();  // Also closes socket.
-            mReceiveThread = null;
+            mRaRegistration.cancel();  // Also closes socket.
+            mRaRegistration = null;
+        }
+        if (mInstallHandler != null) {
+            mInstallHandler.removeCallbacks(mScheduledInstall);
+            mInstallHandler.getLooper().quitSafely();
+            mInstallScheduled = false;
         }
         mRas.clear();
         mDependencies.removeBroadcastReceiver(mDeviceIdleReceiver);
@@ -2325,14 +2808,14 @@ public class ApfFilter implements AndroidPacketFilter {
         if (!isEnabled) {
             mNumProgramUpdatesAllowingMulticast++;
         }
-        installNewProgramLocked();
+        requestNewProgramLocked();
     }
 
     /** Adds qname to the mDNS allowlist */
     public synchronized void addToMdnsAllowList(String[] labels) {
         mMdnsAllowList.add(labels);
         if (mMulticastFilter) {
-            installNewProgramLocked();
+            requestNewProgramLocked();
         }
     }
 
@@ -2340,7 +2823,7 @@ public class ApfFilter implements AndroidPacketFilter {
     public synchronized void removeFromAllowList(String[] labels) {
         mMdnsAllowList.removeIf(e -> Arrays.equals(labels, e));
         if (mMulticastFilter) {
-            installNewProgramLocked();
+            requestNewProgramLocked();
         }
     }
 
@@ -2348,7 +2831,7 @@ public class ApfFilter implements AndroidPacketFilter {
     public synchronized void setDozeMode(boolean isEnabled) {
         if (mInDozeMode == isEnabled) return;
         mInDozeMode = isEnabled;
-        installNewProgramLocked();
+        requestNewProgramLocked();
     }
 
     @VisibleForTesting
@@ -2382,7 +2865,7 @@ public class ApfFilter implements AndroidPacketFilter {
         }
         mIPv4Address = addr;
         mIPv4PrefixLength = prefix;
-        installNewProgramLocked();
+        requestNewProgramLocked();
     }
 
     /**
@@ -2402,7 +2885,7 @@ public class ApfFilter implements AndroidPacketFilter {
         mKeepalivePackets.put(slot, (ipVersion == 4)
                 ? new TcpKeepaliveAckV4(sentKeepalivePacket)
                 : new TcpKeepaliveAckV6(sentKeepalivePacket));
-        installNewProgramLocked();
+        requestNewProgramLocked();
     }
 
     /**
@@ -2425,7 +2908,7 @@ public class ApfFilter implements AndroidPacketFilter {
         }
 
         mKeepalivePackets.put(slot, new NattKeepaliveResponse(sentKeepalivePacket));
-        installNewProgramLocked();
+        requestNewProgramLocked();
     }
 
     /**
@@ -2436,12 +2919,48 @@ public class ApfFilter implements AndroidPacketFilter {
     public synchronized void removeKeepalivePacketFilter(int slot) {
         log("Removing keepalive packet(" + slot + ")");
         mKeepalivePackets.remove(slot);
-        installNewProgramLocked();
+        requestNewProgramLocked();
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        // The installed program and its regions are never modified, only replaced.
+        final byte[] program;
+        final List<String> regionNames;
+        final int[] regionOffsets;
+        final ArrayList<byte[]> raPackets = new ArrayList<>();
+        synchronized (this) {
+            dumpLocked(pw);
+            program = mLastInstalledProgram;
+            regionNames = mLastInstalledProgramRegionNames;
+            regionOffsets = mLastInstalledProgramRegionOffsets;
+            if (DBG) {
+                for (Ra ra : mRas) {
+                    raPackets.add(ra.mPacket.array().clone());
+                }
+            }
+        }
+        if (!DBG) return;
+
+        // Running the corpus through the interpreter is slow, so do not hold the lock meanwhile:
+        // RA processing and installs would be blocked.
+        pw.println("Last program profile:");
+        pw.increaseIndent();
+        if (program == null) {
+            pw.println("No program installed.");
+        } else {
+            final ApfProgramProfiler profiler = new ApfProgramProfiler(
+                    mApfCapabilities.apfVersionSupported, mApfCapabilities.maximumApfProgramSize,
+                    program, regionNames, regionOffsets);
+            profileProgram(profiler, raPackets);
+            profiler.dump(pw);
+        }
+        pw.decreaseIndent();
     }
 
-    public synchronized void dump(IndentingPrintWriter pw) {
+    @GuardedBy("this")
+    private void dumpLocked(IndentingPrintWriter pw) {
         pw.println("Capabilities: " + mApfCapabilities);
-        pw.println("Receive thread: " + (mReceiveThread != null ? "RUNNING" : "STOPPED"));
+        pw.println("RA receiver: " + (mRaRegistration != null ? "RUNNING" : "STOPPED"));
         pw.println("Multicast: " + (mMulticastFilter ? "DROP" : "ALLOW"));
         pw.println("Minimum RDNSS lifetime: " + mMinRdnssLifetimeSec);
         try {
@@ -2453,6 +2972,10 @@ public class ApfFilter implements AndroidPacketFilter {
             return;
         }
         pw.println("Program updates: " + mNumProgramUpdates);
+        pw.println(String.format(
+                "Install coalescing window %dms, coalesced requests %d, identical programs %d",
+                mInstallCoalescingWindowMs, mNumCoalescedInstallRequests,
+                mNumIdenticalProgramsSkipped));
         pw.println(String.format(
                 "Last program length %d, installed %ds ago, lifetime %ds",
                 mLastInstalledProgram.length, secondsSinceBoot() - mLastTimeInstalledProgram,
@@ -2463,6 +2986,7 @@ public class ApfFilter implements AndroidPacketFilter {
             pw.print(String.format(" %04x", p));
         }
         pw.println();
+        pw.println("RA packing: " + mRaPackingStrategy);
         pw.println("RA filters:");
         pw.increaseIndent();
         for (Ra ra: mRas) {
@@ -2470,6 +2994,10 @@ public class ApfFilter implements AndroidPacketFilter {
             pw.increaseIndent();
             pw.println(String.format(
                     "Last seen %ds ago", secondsSinceBoot() - ra.mLastSeen));
+            pw.println(String.format("%s, size %d, value %.2f, min interval %ds",
+                    ra.mInLastProgram ? "Installed" : "Not installed",
+                    ra.mFilterFragment != null ? ra.mFilterFragment.length() : 0,
+                    ra.mLastFilterValue, ra.mMinIntervalSeconds));
             if (DBG) {
                 pw.println("Last match:");
                 pw.increaseIndent();
@@ -2546,6 +3074,94 @@ public class ApfFilter implements AndroidPacketFilter {
         pw.decreaseIndent();
     }
 
+    /**
+     * Runs a corpus of packets through {@code profiler}: the specified RAs, plus synthetic
+     * examples of the broadcast and multicast traffic that the program has to process on busy
+     * networks.
+     */
+    @VisibleForTesting
+    public static void profileProgram(@NonNull ApfProgramProfiler profiler,
+            @NonNull List<byte[]> raPackets) {
+        final byte[] mdnsQname = encodeQname(new String[] {"_googlecast", "_tcp", "local"});
+
+        ByteBuffer pkt = newProfilingPacket(ETHER_BROADCAST, ETH_P_ARP,
+                ARP_TARGET_IP_ADDRESS_OFFSET + 4);
+        pkt.position(ARP_HEADER_OFFSET);
+        pkt.put(ARP_IPV4_HEADER);
+        pkt.putShort(ARP_OPCODE_OFFSET, ARP_OPCODE_REQUEST);
+        pkt.putInt(ARP_SOURCE_IP_ADDRESS_OFFSET, 0xc0000202);  // 192.0.2.2
+        pkt.putInt(ARP_TARGET_IP_ADDRESS_OFFSET, 0xc0000203);  // 192.0.2.3
+        profiler.profile("ARP request", pkt.array());
+
+        pkt = newProfilingIpv4Packet(ETHER_BROADCAST, IPV4_BROADCAST_ADDRESS, 137 /* dstPort */,
+                50 /* payloadLen */);
+        profiler.profile("IPv4 broadcast", pkt.array());
+
+        // LLMNR query to 224.0.0.252.
+        pkt = newProfilingIpv4Packet(new byte[] {1, 0, 0x5e, 0, 0, (byte) 0xfc}, 0xe00000fc,
+                5355 /* dstPort */, 40 /* payloadLen */);
+        profiler.profile("IPv4 multicast", pkt.array());
+
+        pkt = newProfilingIpv4Packet(ETH_MULTICAST_MDNS_V4_MAC_ADDRESS, 0xe00000fb, MDNS_PORT,
+                DNS_HEADER_LEN + mdnsQname.length + 4 /* qtype and qclass */);
+        pkt.putShort(ETH_HEADER_LEN + IPV4_HEADER_LEN + UDP_HEADER_LEN + DNS_QDCOUNT_OFFSET,
+                (short) 1);
+        pkt.position(ETH_HEADER_LEN + IPV4_HEADER_LEN + UDP_HEADER_LEN + DNS_HEADER_LEN);
+        pkt.put(mdnsQname);
+        profiler.profile("mDNS query", pkt.array());
+
+        pkt = newProfilingIpv6Packet(IPPROTO_UDP, 40 /* payloadLen */);
+        profiler.profile("IPv6 multicast", pkt.array());
+
+        pkt = newProfilingIpv6Packet(IPPROTO_ICMPV6, 32 /* payloadLen */);
+        pkt.put(ICMP6_TYPE_OFFSET, (byte) ICMPV6_NEIGHBOR_ADVERTISEMENT);
+        profiler.profile("IPv6 multicast NA", pkt.array());
+
+        // HomePlug AV frames are a common source of non-IP broadcasts.
+        pkt = newProfilingPacket(ETHER_BROADCAST, 0x88e1, 60);
+        profiler.profile("non-IP broadcast", pkt.array());
+
+        for (byte[] raPacket : raPackets) {
+            profiler.profile("RA", raPacket);
+        }
+    }
+
+    private static final byte[] PROFILING_PEER_MAC_ADDRESS = {2, 0, 0, 0, 0, 1};
+
+    private static ByteBuffer newProfilingPacket(byte[] dstMac, int ethertype, int length) {
+        final ByteBuffer pkt = ByteBuffer.allocate(length);
+        pkt.put(dstMac);
+        pkt.put(PROFILING_PEER_MAC_ADDRESS);
+        pkt.putShort((short) ethertype);
+        return pkt;
+    }
+
+    private static ByteBuffer newProfilingIpv4Packet(byte[] dstMac, int dstAddr, int dstPort,
+            int payloadLen) {
+        final int ipLen = IPV4_HEADER_LEN + UDP_HEADER_LEN + payloadLen;
+        final ByteBuffer pkt = newProfilingPacket(dstMac, ETH_P_IP, ETH_HEADER_LEN + ipLen);
+        pkt.put(ETH_HEADER_LEN, (byte) 0x45);  // IPv4, 20-byte header
+        pkt.putShort(IPV4_TOTAL_LENGTH_OFFSET, (short) ipLen);
+        pkt.put(IPV4_PROTOCOL_OFFSET, (byte) IPPROTO_UDP);
+        pkt.putInt(IPV4_DEST_ADDR_OFFSET, dstAddr);
+        pkt.putShort(ETH_HEADER_LEN + IPV4_HEADER_LEN, (short) dstPort);
+        pkt.putShort(ETH_HEADER_LEN + IPV4_HEADER_LEN + 2, (short) dstPort);
+        return pkt;
+    }
+
+    // Builds an IPv6 packet to ff02::1.
+    private static ByteBuffer newProfilingIpv6Packet(int nextHeader, int payloadLen) {
+        final byte[] dstMac = {0x33, 0x33, 0, 0, 0, 1};
+        final ByteBuffer pkt = newProfilingPacket(dstMac, ETH_P_IPV6,
+                ETH_HEADER_LEN + IPV6_HEADER_LEN + payloadLen);
+        pkt.put(ETH_HEADER_LEN, (byte) 0x60);
+        pkt.putShort(ETH_HEADER_LEN + 4, (short) payloadLen);
+        pkt.put(IPV6_NEXT_HEADER_OFFSET, (byte) nextHeader);
+        pkt.position(IPV6_DEST_ADDR_OFFSET);
+        pkt.put(IPV6_ALL_NODES_ADDRESS);
+        return pkt;
+    }
+
     // TODO: move to android.net.NetworkUtils
     @VisibleForTesting
     public static int ipv4BroadcastAddress(byte[] addrBytes, int prefixLength) {
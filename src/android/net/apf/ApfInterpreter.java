@@ -0,0 +1,805 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import static android.net.apf.BaseApfGenerator.APF_VERSION_4;
+import static android.net.apf.BaseApfGenerator.FILTER_AGE_MEMORY_SLOT;
+import static android.net.apf.BaseApfGenerator.IPV4_HEADER_SIZE_MEMORY_SLOT;
+import static android.net.apf.BaseApfGenerator.MEMORY_SLOTS;
+import static android.net.apf.BaseApfGenerator.MIN_APF_VERSION_IN_DEV;
+import static android.net.apf.BaseApfGenerator.PACKET_SIZE_MEMORY_SLOT;
+
+import android.net.apf.ApfCounterTracker.Counter;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A pure-Java implementation of the APF interpreter.
+ *
+ * Executes APFv2, APFv4 and APFv6 bytecode as produced by {@link BaseApfGenerator#generate},
+ * including the APFv6 packet transmit and DNS matching extensions, without requiring the native
+ * interpreter. This allows APF programs to be simulated and benchmarked on any host.
+ *
+ * The interpreter owns a RAM region that holds the program followed by the data region, exactly
+ * like the firmware does. The data region persists across calls to {@link #run}, so counters
+ * accumulate the same way they would on the device.
+ *
+ * Once constructed, {@link #run} does not allocate, so it can be used to execute a program
+ * against a packet corpus millions of times without producing garbage. Instances are not
+ * thread-safe.
+ *
+ * @hide
+ */
+public class ApfInterpreter {
+    /** Verdict returned when the packet should be passed to the application processor. */
+    public static final int PASS = 1;
+    /** Verdict returned when the packet should be dropped. */
+    public static final int DROP = 0;
+
+    /** Default size of the transmit buffer. Same as the buffer used by the native test harness. */
+    public static final int DEFAULT_TX_BUFFER_SIZE = 1514;
+
+    // Size of the Ethernet header. The interpreter refuses to run on shorter packets.
+    private static final int ETH_HLEN = 14;
+
+    // Memory slot prefilled with the filter age in 16384ths of a second. APFv6 only.
+    private static final int FILTER_AGE_16384THS_MEMORY_SLOT = 9;
+    // Memory slot that holds the transmit buffer write pointer. APFv6 only.
+    private static final int TX_BUFFER_OUTPUT_POINTER_MEMORY_SLOT = 10;
+
+    // Extended opcodes below this value are LDM, above (and below STM + MEMORY_SLOTS) are STM.
+    private static final int EXT_LDM = BaseApfGenerator.ExtendedOpcodes.LDM.value;
+    private static final int EXT_STM = BaseApfGenerator.ExtendedOpcodes.STM.value;
+
+    // Value stored by the APFv6 interpreter in the ENDIANNESS counter.
+    private static final int ENDIANNESS_MARKER = 0x12345678;
+
+    private static final int DNS_HEADER_LEN = 12;
+    private static final int DNS_QDCOUNT_OFFSET = 4;
+    private static final int DNS_ANCOUNT_OFFSET = 6;
+    private static final int DNS_NSCOUNT_OFFSET = 8;
+    private static final int DNS_ARCOUNT_OFFSET = 10;
+    // qtype + qclass
+    private static final int DNS_QUESTION_TRAILER_LEN = 4;
+    // type + class + ttl + rdlength
+    private static final int DNS_RECORD_TRAILER_LEN = 10;
+    private static final int DNS_RDLENGTH_OFFSET = 8;
+
+    // Results of matching a DNS name against the names stored in the program.
+    private static final int DNS_NO_MATCH = 0;
+    private static final int DNS_MATCH = 1;
+    private static final int DNS_CORRUPT_PACKET = -1;
+    private static final int DNS_CORRUPT_PROGRAM = -2;
+
+    private final int mApfVersion;
+    private final boolean mIsV6;
+    // Program followed by the data region.
+    private final byte[] mRam;
+    private int mProgramLen;
+
+    private final int[] mMemory = new int[MEMORY_SLOTS];
+    private int mR0;
+    private int mR1;
+
+    private final byte[] mTxBuffer;
+    // Size of the currently allocated transmit buffer, or -1 if no buffer is allocated.
+    private int mTxAllocatedLen = -1;
+    private int mTransmittedLen;
+
+    private byte[] mPacket;
+    private int mPacketLen;
+    private int mPc;
+    private int mInstructionCount;
+    // If non-null, incremented at the program offset of every executed instruction.
+    @Nullable
+    private int[] mExecutionCounts;
+
+    /**
+     * Creates an interpreter for the specified APF version.
+     *
+     * @param apfVersion the APF version the interpreter implements.
+     * @param ramSize the total size of the APF RAM (program plus data region).
+     */
+    public ApfInterpreter(int apfVersion, int ramSize) {
+        this(apfVersion, ramSize, DEFAULT_TX_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates an interpreter for the specified APF version.
+     *
+     * @param apfVersion the APF version the interpreter implements.
+     * @param ramSize the total size of the APF RAM (program plus data region).
+     * @param txBufferSize the maximum size of a buffer that can be allocated for transmission.
+     */
+    public ApfInterpreter(int apfVersion, int ramSize, int txBufferSize) {
+        if (!BaseApfGenerator.supportsVersion(apfVersion)) {
+            throw new IllegalArgumentException("Unsupported APF version: " + apfVersion);
+        }
+        if (ramSize <= 0 || txBufferSize < 0) {
+            throw new IllegalArgumentException("Invalid ramSize " + ramSize
+                    + " or txBufferSize " + txBufferSize);
+        }
+        mApfVersion = apfVersion;
+        mIsV6 = apfVersion >= MIN_APF_VERSION_IN_DEV;
+        mRam = new byte[ramSize];
+        mTxBuffer = new byte[txBufferSize];
+    }
+
+    /**
+     * Loads {@code program} at the start of the APF RAM. The data region past the end of the
+     * program is preserved, as it is when a new program is installed on a device.
+     */
+    public void loadProgram(@NonNull byte[] program) {
+        if (program.length > mRam.length) {
+            throw new IllegalArgumentException("Program of " + program.length
+                    + " bytes does not fit in " + mRam.length + " bytes of RAM");
+        }
+        System.arraycopy(program, 0, mRam, 0, program.length);
+        mProgramLen = program.length;
+    }
+
+    /** Zeroes the data region, resetting all counters. */
+    public void clearData() {
+        Arrays.fill(mRam, mProgramLen, mRam.length, (byte) 0);
+    }
+
+    /** Returns the APF version implemented by this interpreter. */
+    public int getApfVersion() {
+        return mApfVersion;
+    }
+
+    /** Returns the length of the currently loaded program. */
+    public int getProgramLength() {
+        return mProgramLen;
+    }
+
+    /**
+     * Returns the APF RAM, i.e., the program followed by the data region. The returned array is
+     * the interpreter's own storage and must not be modified while a program runs.
+     */
+    @NonNull
+    public byte[] getRam() {
+        return mRam;
+    }
+
+    /** Returns the current value of {@code counter} in the data region. */
+    public long getCounterValue(@NonNull Counter counter) {
+        return ApfCounterTracker.getCounterValue(mRam, counter);
+    }
+
+    /** Returns the number of instructions executed by the last call to {@link #run}. */
+    public int getInstructionCount() {
+        return mInstructionCount;
+    }
+
+    /**
+     * Returns the length of the packet transmitted by the last call to {@link #run}, or 0 if no
+     * packet was transmitted. The packet itself is at the start of {@link #getTxBuffer}.
+     */
+    public int getTransmittedPacketLength() {
+        return mTransmittedLen;
+    }
+
+    /** Returns the transmit buffer. The buffer is reused on every call to {@link #run}. */
+    @NonNull
+    public byte[] getTxBuffer() {
+        return mTxBuffer;
+    }
+
+    /** Returns a copy of the packet transmitted by the last call to {@link #run}, if any. */
+    @NonNull
+    public byte[] getTransmittedPacket() {
+        return Arrays.copyOf(mTxBuffer, mTransmittedLen);
+    }
+
+    /**
+     * Sets an array in which the interpreter counts executed instructions by program offset:
+     * every time the instruction starting at offset {@code pc} is executed,
+     * {@code counts[pc]} is incremented. The array must be at least as long as any program that
+     * is run. Pass {@code null} to stop counting.
+     */
+    public void setExecutionCounts(@Nullable int[] counts) {
+        mExecutionCounts = counts;
+    }
+
+    /**
+     * Runs the loaded program on the first {@code packetLen} bytes of {@code packet}, pretending
+     * the filter was installed {@code filterAgeSeconds} seconds ago.
+     *
+     * @return {@link #PASS} or {@link #DROP}.
+     */
+    public int run(@NonNull byte[] packet, int packetLen, int filterAgeSeconds) {
+        if (packetLen < 0 || packetLen > packet.length) {
+            throw new IllegalArgumentException("Invalid packet length " + packetLen);
+        }
+        if (mExecutionCounts != null && mExecutionCounts.length < mProgramLen) {
+            throw new IllegalStateException("Execution counts array shorter than program");
+        }
+        mPacket = packet;
+        mPacketLen = packetLen;
+        mInstructionCount = 0;
+        mTransmittedLen = 0;
+        mTxAllocatedLen = -1;
+        mR0 = 0;
+        mR1 = 0;
+        Arrays.fill(mMemory, 0);
+        try {
+            return execute(filterAgeSeconds);
+        } finally {
+            mPacket = null;
+        }
+    }
+
+    /** Convenience method equivalent to {@code run(packet, packet.length, filterAgeSeconds)}. */
+    public int run(@NonNull byte[] packet, int filterAgeSeconds) {
+        return run(packet, packet.length, filterAgeSeconds);
+    }
+
+    private int execute(int filterAge) {
+        final byte[] prog = mRam;
+        final int progLen = mProgramLen;
+        mMemory[PACKET_SIZE_MEMORY_SLOT] = mPacketLen;
+        mMemory[FILTER_AGE_MEMORY_SLOT] = filterAge;
+        if (mIsV6) {
+            mMemory[FILTER_AGE_16384THS_MEMORY_SLOT] = filterAge << 14;
+            writeCounter(Counter.ENDIANNESS.value(), ENDIANNESS_MARKER);
+            incrementCounter(Counter.TOTAL_PACKETS.value());
+        }
+        if (mPacketLen <= ETH_HLEN) return PASS;
+        // Only populate if the IP version is IPv4.
+        if ((mPacket[ETH_HLEN] & 0xf0) == 0x40) {
+            mMemory[IPV4_HEADER_SIZE_MEMORY_SLOT] = (mPacket[ETH_HLEN] & 0x0f) * 4;
+        }
+
+        mPc = 0;
+        // Bound the number of instructions executed, as the native interpreter does, so that
+        // backwards jumps cannot loop forever.
+        while (mInstructionCount <= progLen) {
+            if (mPc == progLen) return PASS;
+            if (mPc == progLen + 1) return DROP;
+            if (mPc < 0 || mPc > progLen) return PASS;
+            mInstructionCount++;
+            if (mExecutionCounts != null) mExecutionCounts[mPc]++;
+
+            final int bytecode = prog[mPc++] & 0xff;
+            final int opcode = bytecode >>> 3;
+            final int regNum = bytecode & 1;
+            final int lenField = (bytecode >>> 1) & 3;
+            int imm = 0;
+            int signedImm = 0;
+            if (lenField != 0) {
+                final int immLen = 1 << (lenField - 1);
+                if (!isForwardInProgram(immLen)) return PASS;
+                imm = readProgram(immLen);
+                final int shift = (4 - immLen) * 8;
+                signedImm = (imm << shift) >> shift;
+            }
+
+            switch (opcode) {
+                case 0: {  // PASSDROP
+                    if (!mIsV6) return PASS;
+                    if (imm != 0 && !incrementCounter(imm)) return PASS;
+                    return regNum == 0 ? PASS : DROP;
+                }
+                case 1:  // LDB
+                case 2:  // LDH
+                case 3:  // LDW
+                case 4:  // LDBX
+                case 5:  // LDHX
+                case 6: {  // LDWX
+                    int offs = imm;
+                    // Note: this can overflow and actually decrease offs.
+                    if (opcode >= 4) offs += mR1;
+                    final int loadSize = 1 << ((opcode - 1) % 3);
+                    if (!isInPacketBounds(offs, loadSize)) return PASS;
+                    setReg(regNum, readBe(mPacket, offs, loadSize));
+                    break;
+                }
+                case 14:  // JMP. In APFv6, JMP with R=1 is DATA, which also jumps over the data.
+                    // This can jump backwards. Looping is bounded by the instruction count.
+                    mPc += imm;
+                    break;
+                case 15:  // JEQ
+                case 16:  // JNE
+                case 17:  // JGT
+                case 18:  // JLT
+                case 19:  // JSET
+                case 20: {  // JNEBS
+                    final boolean isJnebs = opcode == 20;
+                    int cmpImm = 0;
+                    if (regNum == 1 && !(isJnebs && mIsV6)) {
+                        cmpImm = mR1;
+                    } else if (lenField != 0) {
+                        final int cmpImmLen = 1 << (lenField - 1);
+                        if (!isForwardInProgram(cmpImmLen)) return PASS;
+                        cmpImm = readProgram(cmpImmLen);
+                    }
+                    if (isJnebs) {
+                        // cmpImm is the number of bytes to compare. In APFv6, R=1 jumps if the
+                        // bytes are equal and R0 always points to the packet bytes.
+                        final int pktOfs = mIsV6 ? mR0 : getReg(regNum);
+                        if (cmpImm <= 0 || !isForwardInProgram(cmpImm)) return PASS;
+                        if (!isInPacketBounds(pktOfs, cmpImm)) return PASS;
+                        final boolean equal = regionEquals(prog, mPc, mPacket, pktOfs, cmpImm);
+                        final boolean jumpIfEqual = mIsV6 && regNum == 1;
+                        mPc += cmpImm;
+                        if (equal == jumpIfEqual) mPc += imm;
+                        break;
+                    }
+                    final boolean jump;
+                    switch (opcode) {
+                        case 15: jump = mR0 == cmpImm; break;
+                        case 16: jump = mR0 != cmpImm; break;
+                        case 17: jump = Integer.compareUnsigned(mR0, cmpImm) > 0; break;
+                        case 18: jump = Integer.compareUnsigned(mR0, cmpImm) < 0; break;
+                        default: jump = (mR0 & cmpImm) != 0; break;
+                    }
+                    if (jump) mPc += imm;
+                    break;
+                }
+                case 7:  // ADD
+                case 8:  // MUL
+                case 9:  // DIV
+                case 10:  // AND
+                case 11:  // OR
+                case 12: {  // SH
+                    // APFv6 uses R1 as the operand if there is no immediate; generators never
+                    // emit an arithmetic instruction with a zero immediate for this reason.
+                    final boolean useR1 = regNum == 1 || (mIsV6 && lenField == 0);
+                    final int operand = useR1 ? mR1 : imm;
+                    switch (opcode) {
+                        case 7: mR0 += operand; break;
+                        case 8: mR0 *= operand; break;
+                        case 9:
+                            if (operand == 0) return PASS;
+                            mR0 = Integer.divideUnsigned(mR0, operand);
+                            break;
+                        case 10: mR0 &= operand; break;
+                        case 11: mR0 |= operand; break;
+                        default: {
+                            final int shift = useR1 ? mR1 : signedImm;
+                            if (shift >= 32 || shift <= -32) {
+                                mR0 = 0;
+                            } else if (shift > 0) {
+                                mR0 <<= shift;
+                            } else {
+                                mR0 >>>= -shift;
+                            }
+                            break;
+                        }
+                    }
+                    break;
+                }
+                case 13:  // LI
+                    setReg(regNum, signedImm);
+                    break;
+                case 21: {  // EXT
+                    final int verdict = executeExtended(imm, regNum, lenField);
+                    if (verdict >= 0) return verdict;
+                    break;
+                }
+                case 22:  // LDDW
+                case 23: {  // STDW
+                    if (mApfVersion < APF_VERSION_4) return PASS;
+                    int offs = getReg(regNum ^ 1) + signedImm;
+                    // Negative offsets wrap around the end of the address space. This allows
+                    // efficiently accessing the end of the data region with small immediates.
+                    if (offs < 0) offs += mRam.length;
+                    if (!isInDataBounds(offs, 4)) return PASS;
+                    if (opcode == 22) {
+                        setReg(regNum, readBe(mRam, offs, 4));
+                    } else {
+                        writeBe(mRam, offs, getReg(regNum), 4);
+                    }
+                    break;
+                }
+                case 24: {  // WRITE
+                    if (!mIsV6 || lenField == 0) return PASS;
+                    if (!writeTx(imm, 1 << (lenField - 1))) return PASS;
+                    break;
+                }
+                case 25: {  // PKTDATACOPY
+                    if (!mIsV6 || !isForwardInProgram(1)) return PASS;
+                    final int len = readProgram(1);
+                    if (!copyToTx(regNum == 1, imm, len)) return PASS;
+                    break;
+                }
+                default:
+                    return PASS;
+            }
+        }
+        // Instruction budget exhausted.
+        return PASS;
+    }
+
+    /**
+     * Executes an extended opcode.
+     *
+     * @return the verdict if the program terminates, or -1 if execution should continue.
+     */
+    private int executeExtended(int ext, int regNum, int lenField) {
+        if (ext >= EXT_LDM && ext < EXT_LDM + MEMORY_SLOTS) {
+            setReg(regNum, mMemory[ext - EXT_LDM]);
+            return -1;
+        }
+        if (ext >= EXT_STM && ext < EXT_STM + MEMORY_SLOTS) {
+            mMemory[ext - EXT_STM] = getReg(regNum);
+            return -1;
+        }
+        switch (ext) {
+            case 32:  // NOT
+                setReg(regNum, ~getReg(regNum));
+                return -1;
+            case 33:  // NEG
+                setReg(regNum, -getReg(regNum));
+                return -1;
+            case 34: {  // SWAP
+                final int tmp = mR0;
+                mR0 = mR1;
+                mR1 = tmp;
+                return -1;
+            }
+            case 35:  // MOVE
+                setReg(regNum, getReg(regNum ^ 1));
+                return -1;
+            default:
+                break;
+        }
+        if (!mIsV6) return PASS;
+        switch (ext) {
+            case 36: {  // ALLOCATE
+                int size = mR0;
+                if (regNum == 1) {
+                    if (!isForwardInProgram(2)) return PASS;
+                    size = readProgram(2);
+                }
+                if (size < 0 || size > mTxBuffer.length) {
+                    incrementCounter(Counter.PASSED_ALLOCATE_FAILURE.value());
+                    return PASS;
+                }
+                Arrays.fill(mTxBuffer, 0, size, (byte) 0);
+                mTxAllocatedLen = size;
+                mMemory[TX_BUFFER_OUTPUT_POINTER_MEMORY_SLOT] = 0;
+                return -1;
+            }
+            case 37: {  // TRANSMIT
+                if (!isForwardInProgram(2)) return PASS;
+                final int ipOfs = readProgram(1);
+                final int csumOfs = readProgram(1);
+                int csumStart = 0;
+                int partialCsum = 0;
+                if (csumOfs != 255) {
+                    if (!isForwardInProgram(3)) return PASS;
+                    csumStart = readProgram(1);
+                    partialCsum = readProgram(2);
+                }
+                if (mTxAllocatedLen < 0) return PASS;
+                final int len = mMemory[TX_BUFFER_OUTPUT_POINTER_MEMORY_SLOT];
+                if (len < ETH_HLEN || len > mTxAllocatedLen
+                        || !fillChecksums(len, ipOfs, csumOfs, csumStart, partialCsum,
+                                regNum == 1)) {
+                    mTxAllocatedLen = -1;
+                    incrementCounter(Counter.PASSED_TRANSMIT_FAILURE.value());
+                    return PASS;
+                }
+                mTxAllocatedLen = -1;
+                mTransmittedLen = len;
+                return -1;
+            }
+            case 38:  // EWRITE1
+            case 39:  // EWRITE2
+            case 40:  // EWRITE4
+                return writeTx(getReg(regNum), 1 << (ext - 38)) ? -1 : PASS;
+            case 41: {  // EPKTDATACOPYIMM
+                if (!isForwardInProgram(1)) return PASS;
+                final int len = readProgram(1);
+                return copyToTx(regNum == 1, mR0, len) ? -1 : PASS;
+            }
+            case 42:  // EPKTDATACOPYR1
+                return copyToTx(regNum == 1, mR0, mR1) ? -1 : PASS;
+            case 43:  // JDNSQMATCH
+            case 44:  // JDNSAMATCH
+            case 45:  // JDNSQMATCHSAFE
+            case 46:  // JDNSAMATCHSAFE
+                return executeDnsMatch(ext, regNum, lenField);
+            default:
+                return PASS;
+        }
+    }
+
+    private int executeDnsMatch(int ext, int regNum, int lenField) {
+        final boolean isQuestion = ext == 43 || ext == 45;
+        final boolean isSafe = ext == 45 || ext == 46;
+        int jumpOffs = 0;
+        if (lenField != 0) {
+            final int immLen = 1 << (lenField - 1);
+            if (!isForwardInProgram(immLen)) return PASS;
+            jumpOffs = readProgram(immLen);
+        }
+        int qtype = -1;
+        if (isQuestion) {
+            if (!isForwardInProgram(1)) return PASS;
+            qtype = readProgram(1);
+        }
+        final int namesStart = mPc;
+        final int namesEnd = skipNames(namesStart);
+        if (namesEnd < 0) return PASS;
+        mPc = namesEnd;
+
+        final int result = matchDnsRecords(namesStart, isQuestion, qtype);
+        if (result == DNS_CORRUPT_PROGRAM) return PASS;
+        if (result == DNS_CORRUPT_PACKET) {
+            incrementCounter(Counter.CORRUPT_DNS_PACKET.value());
+            return isSafe ? PASS : DROP;
+        }
+        if ((result == DNS_MATCH) == (regNum == 1)) mPc += jumpOffs;
+        return -1;
+    }
+
+    /**
+     * Scans the null-terminated list of null-terminated names in the program starting at
+     * {@code pc}.
+     *
+     * @return the program offset after the list, or -1 if the list runs past the program.
+     */
+    private int skipNames(int pc) {
+        final int progLen = mProgramLen;
+        while (pc < progLen) {
+            int len = mRam[pc++] & 0xff;
+            if (len == 0) return pc;
+            while (len != 0) {
+                // 0xff is a wildcard label with no data.
+                if (len != 0xff) pc += len;
+                if (pc >= progLen) return -1;
+                len = mRam[pc++] & 0xff;
+            }
+        }
+        return -1;
+    }
+
+    private int matchDnsRecords(int names, boolean isQuestion, int qtype) {
+        final int udp = mR0;
+        final int udpLen = mPacketLen - udp;
+        if (udp < 0 || udpLen < DNS_HEADER_LEN) return DNS_CORRUPT_PACKET;
+        final int qdcount = readBe(mPacket, udp + DNS_QDCOUNT_OFFSET, 2);
+        final int rrcount = readBe(mPacket, udp + DNS_ANCOUNT_OFFSET, 2)
+                + readBe(mPacket, udp + DNS_NSCOUNT_OFFSET, 2)
+                + readBe(mPacket, udp + DNS_ARCOUNT_OFFSET, 2);
+        int ofs = DNS_HEADER_LEN;
+        for (int i = 0; i < qdcount; i++) {
+            final int match = isQuestion ? matchAnyName(names, udp, udpLen, ofs) : DNS_NO_MATCH;
+            if (match < 0) return match;
+            final int end = skipDnsName(udp, udpLen, ofs);
+            if (end < 0 || end + DNS_QUESTION_TRAILER_LEN > udpLen) return DNS_CORRUPT_PACKET;
+            if (match == DNS_MATCH && readBe(mPacket, udp + end, 2) == qtype) return DNS_MATCH;
+            ofs = end + DNS_QUESTION_TRAILER_LEN;
+        }
+        if (isQuestion) return DNS_NO_MATCH;
+        for (int i = 0; i < rrcount; i++) {
+            final int match = matchAnyName(names, udp, udpLen, ofs);
+            if (match < 0) return match;
+            final int end = skipDnsName(udp, udpLen, ofs);
+            if (end < 0 || end + DNS_RECORD_TRAILER_LEN > udpLen) return DNS_CORRUPT_PACKET;
+            if (match == DNS_MATCH) return DNS_MATCH;
+            final int rdlength = readBe(mPacket, udp + end + DNS_RDLENGTH_OFFSET, 2);
+            ofs = end + DNS_RECORD_TRAILER_LEN + rdlength;
+            if (ofs > udpLen) return DNS_CORRUPT_PACKET;
+        }
+        return DNS_NO_MATCH;
+    }
+
+    /** Matches the DNS name at {@code ofs} against every name in the program list. */
+    private int matchAnyName(int names, int udp, int udpLen, int ofs) {
+        int needle = names;
+        while (mRam[needle] != 0) {
+            final int result = matchName(needle, udp, udpLen, ofs);
+            if (result != DNS_NO_MATCH) return result;
+            // Advance to the next name in the list. The list was validated by skipNames().
+            int len = mRam[needle++] & 0xff;
+            while (len != 0) {
+                if (len != 0xff) needle += len;
+                len = mRam[needle++] & 0xff;
+            }
+        }
+        return DNS_NO_MATCH;
+    }
+
+    /**
+     * Matches the DNS name at {@code ofs} within the UDP payload against the program name at
+     * {@code needle}, following compression pointers. Matching is case-insensitive; the program
+     * names are upper case. The whole name is validated even once the match has failed.
+     */
+    private int matchName(int needle, int udp, int udpLen, int ofs) {
+        boolean matching = true;
+        while (true) {
+            if (ofs >= udpLen) return DNS_CORRUPT_PACKET;
+            final int v = mPacket[udp + ofs] & 0xff;
+            if (v >= 0xc0) {
+                if (ofs + 1 >= udpLen) return DNS_CORRUPT_PACKET;
+                final int target = ((v & 0x3f) << 8) | (mPacket[udp + ofs + 1] & 0xff);
+                // Pointers must point backwards, which guarantees termination.
+                if (target >= ofs) return DNS_CORRUPT_PACKET;
+                ofs = target;
+                continue;
+            }
+            if (v > 63) return DNS_CORRUPT_PACKET;
+            ofs++;
+            if (v == 0) {
+                return matching && mRam[needle] == 0 ? DNS_MATCH : DNS_NO_MATCH;
+            }
+            if (ofs + v > udpLen) return DNS_CORRUPT_PACKET;
+            if (matching) {
+                final int needleLen = mRam[needle] & 0xff;
+                if (needleLen == 0xff) {
+                    needle++;
+                } else if (needleLen != v) {
+                    matching = false;
+                } else {
+                    needle++;
+                    for (int i = 0; i < v; i++) {
+                        int c = mPacket[udp + ofs + i] & 0xff;
+                        if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+                        if (c != (mRam[needle + i] & 0xff)) {
+                            matching = false;
+                            break;
+                        }
+                    }
+                    needle += v;
+                }
+            }
+            ofs += v;
+        }
+    }
+
+    /** Returns the offset just past the DNS name at {@code ofs}, or -1 if it is malformed. */
+    private int skipDnsName(int udp, int udpLen, int ofs) {
+        while (ofs < udpLen) {
+            final int v = mPacket[udp + ofs] & 0xff;
+            if (v >= 0xc0) return ofs + 2 <= udpLen ? ofs + 2 : -1;
+            if (v > 63) return -1;
+            ofs += 1 + v;
+            if (v == 0) return ofs;
+        }
+        return -1;
+    }
+
+    private boolean fillChecksums(int len, int ipOfs, int csumOfs, int csumStart,
+            int partialCsum, boolean isUdp) {
+        if (ipOfs != 255) {
+            if (ipOfs + 1 > len) return false;
+            // Only IPv4 has a header checksum.
+            if ((mTxBuffer[ipOfs] & 0xf0) == 0x40) {
+                final int ihl = (mTxBuffer[ipOfs] & 0x0f) * 4;
+                if (ihl < 20 || ipOfs + ihl > len) return false;
+                writeBe(mTxBuffer, ipOfs + 10, 0, 2);
+                writeBe(mTxBuffer, ipOfs + 10, ~checksum(mTxBuffer, ipOfs, ihl, 0), 2);
+            }
+        }
+        if (csumOfs != 255) {
+            if (csumOfs + 2 > len || csumStart > len) return false;
+            int csum = ~checksum(mTxBuffer, csumStart, len - csumStart, partialCsum) & 0xffff;
+            if (isUdp && csum == 0) csum = 0xffff;
+            writeBe(mTxBuffer, csumOfs, csum, 2);
+        }
+        return true;
+    }
+
+    /** Computes the folded one's complement sum of {@code len} bytes. */
+    private static int checksum(byte[] buf, int start, int len, int initial) {
+        long sum = initial & 0xffffffffL;
+        final int end = start + len;
+        int i = start;
+        for (; i + 1 < end; i += 2) {
+            sum += ((buf[i] & 0xff) << 8) | (buf[i + 1] & 0xff);
+        }
+        if (i < end) sum += (buf[i] & 0xff) << 8;
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    private boolean writeTx(int value, int size) {
+        final int ptr = mMemory[TX_BUFFER_OUTPUT_POINTER_MEMORY_SLOT];
+        if (mTxAllocatedLen < 0 || ptr < 0 || ptr > mTxAllocatedLen - size) return false;
+        writeBe(mTxBuffer, ptr, value, size);
+        mMemory[TX_BUFFER_OUTPUT_POINTER_MEMORY_SLOT] = ptr + size;
+        return true;
+    }
+
+    private boolean copyToTx(boolean fromRam, int src, int len) {
+        final int ptr = mMemory[TX_BUFFER_OUTPUT_POINTER_MEMORY_SLOT];
+        if (mTxAllocatedLen < 0 || len < 0 || ptr < 0 || ptr > mTxAllocatedLen - len) {
+            return false;
+        }
+        if (fromRam) {
+            if (src < 0 || src > mRam.length - len) return false;
+            System.arraycopy(mRam, src, mTxBuffer, ptr, len);
+        } else {
+            if (src < 0 || src > mPacketLen - len) return false;
+            System.arraycopy(mPacket, src, mTxBuffer, ptr, len);
+        }
+        mMemory[TX_BUFFER_OUTPUT_POINTER_MEMORY_SLOT] = ptr + len;
+        return true;
+    }
+
+    private boolean incrementCounter(int counterNumber) {
+        final int offs = mRam.length - 4 * counterNumber;
+        if (counterNumber <= 0 || !isInDataBounds(offs, 4)) return false;
+        writeBe(mRam, offs, readBe(mRam, offs, 4) + 1, 4);
+        return true;
+    }
+
+    private void writeCounter(int counterNumber, int value) {
+        final int offs = mRam.length - 4 * counterNumber;
+        if (isInDataBounds(offs, 4)) writeBe(mRam, offs, value, 4);
+    }
+
+    private boolean isForwardInProgram(int len) {
+        return mPc + len <= mProgramLen;
+    }
+
+    private boolean isInPacketBounds(int offs, int len) {
+        return offs >= 0 && offs < mPacketLen && len <= mPacketLen - offs;
+    }
+
+    private boolean isInDataBounds(int offs, int len) {
+        return offs >= mProgramLen && offs <= mRam.length - len;
+    }
+
+    private int readProgram(int len) {
+        final int value = readBe(mRam, mPc, len);
+        mPc += len;
+        return value;
+    }
+
+    private int getReg(int regNum) {
+        return regNum == 0 ? mR0 : mR1;
+    }
+
+    private void setReg(int regNum, int value) {
+        if (regNum == 0) {
+            mR0 = value;
+        } else {
+            mR1 = value;
+        }
+    }
+
+    private static boolean regionEquals(byte[] a, int aOfs, byte[] b, int bOfs, int len) {
+        for (int i = 0; i < len; i++) {
+            if (a[aOfs + i] != b[bOfs + i]) return false;
+        }
+        return true;
+    }
+
+    private static int readBe(byte[] buf, int offs, int len) {
+        int value = 0;
+        for (int i = 0; i < len; i++) {
+            value = (value << 8) | (buf[offs + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeBe(byte[] buf, int offs, int value, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            buf[offs++] = (byte) (value >>> (i * 8));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A piece of APF bytecode generated by {@link BaseApfGenerator#generateFragment}.
+ *
+ * Fragments are concatenated into a complete program by {@link ApfProgramLinker}. A fragment
+ * records the labels it defines and the jumps it makes to labels it does not define (including
+ * {@link BaseApfGenerator#PASS_LABEL} and {@link BaseApfGenerator#DROP_LABEL}), which are
+ * resolved at link time. Because the size of every instruction is fixed once the fragment is
+ * generated, a fragment can be cached and linked into many programs without regenerating it.
+ *
+ * Instances are not thread-safe.
+ *
+ * @hide
+ */
+public class ApfProgramFragment {
+    /** A jump whose target is not defined in the fragment. */
+    static class Relocation {
+        // Label the jump targets.
+        public final String label;
+        // Offset of the jump offset field in the fragment.
+        public final int offset;
+        // Size of the jump offset field in bytes.
+        public final int size;
+        // Offset in the fragment that the jump is relative to, i.e., the end of the instruction.
+        public final int base;
+
+        Relocation(String label, int offset, int size, int base) {
+            this.label = label;
+            this.offset = offset;
+            this.size = size;
+            this.base = base;
+        }
+    }
+
+    private final byte[] mBytecode;
+    private final Map<String, Integer> mLabels;
+    private final List<Relocation> mRelocations;
+    private final Map<String, Integer> mParameterOffsets;
+    private final List<String> mRegionNames;
+    private final int[] mRegionOffsets;
+
+    ApfProgramFragment(@NonNull byte[] bytecode, @NonNull Map<String, Integer> labels,
+            @NonNull List<Relocation> relocations, @NonNull Map<String, Integer> parameterOffsets,
+            @NonNull List<String> regionNames, @NonNull int[] regionOffsets) {
+        mBytecode = bytecode;
+        mLabels = new HashMap<>(labels);
+        mRelocations = new ArrayList<>(relocations);
+        mParameterOffsets = new HashMap<>(parameterOffsets);
+        mRegionNames = new ArrayList<>(regionNames);
+        mRegionOffsets = regionOffsets;
+    }
+
+    /** Returns the length of the fragment in bytes. */
+    public int length() {
+        return mBytecode.length;
+    }
+
+    /**
+     * Sets the value of the parameter called {@code name}, as defined by
+     * {@link ApfV4GeneratorBase#markLastImmediateAsParameter}. The new value is used by all
+     * programs linked afterwards.
+     */
+    public void setParameter(@NonNull String name, int value) {
+        final Integer offset = mParameterOffsets.get(name);
+        if (offset == null) {
+            throw new IllegalArgumentException("Unknown parameter " + name);
+        }
+        final int size = BaseApfGenerator.PARAMETER_SIZE;
+        BaseApfGenerator.checkRange(name, value, 0, (1 << (8 * size)) - 1);
+        for (int i = size - 1, pos = offset; i >= 0; i--, pos++) {
+            mBytecode[pos] = (byte) (value >> (8 * i));
+        }
+    }
+
+    @NonNull
+    byte[] getBytecode() {
+        return mBytecode;
+    }
+
+    @NonNull
+    Map<String, Integer> getLabels() {
+        return mLabels;
+    }
+
+    @NonNull
+    List<Relocation> getRelocations() {
+        return mRelocations;
+    }
+
+    @NonNull
+    List<String> getRegionNames() {
+        return mRegionNames;
+    }
+
+    @NonNull
+    int[] getRegionOffsets() {
+        return mRegionOffsets;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import android.net.apf.BaseApfGenerator.IllegalInstructionException;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Links {@link ApfProgramFragment}s into a complete APF program.
+ *
+ * Fragments are laid out in the order they are added, and execution falling off the end of one
+ * fragment continues in the next. Linking copies each fragment once and patches the jumps between
+ * fragments, so its cost is linear in the size of the program and independent of how expensive
+ * the fragments were to generate.
+ *
+ * @hide
+ */
+public class ApfProgramLinker {
+    private final ArrayList<ApfProgramFragment> mFragments = new ArrayList<>();
+    private final ArrayList<String> mRegionNames = new ArrayList<>();
+    private int[] mRegionOffsets;
+    private int mLength;
+
+    /** Appends {@code fragment} to the program. */
+    public ApfProgramLinker add(@NonNull ApfProgramFragment fragment) {
+        mFragments.add(fragment);
+        mLength += fragment.length();
+        return this;
+    }
+
+    /** Returns the length in bytes of the program linked so far. */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * Links the fragments added so far.
+     * @return the bytecode of the program.
+     * @throws IllegalInstructionException if a jump target is undefined, or too far away.
+     */
+    @NonNull
+    public byte[] link() throws IllegalInstructionException {
+        final Map<String, Integer> labels = new HashMap<>();
+        final int[] bases = new int[mFragments.size()];
+        int base = 0;
+        int numRegions = 0;
+        for (int i = 0; i < mFragments.size(); i++) {
+            final ApfProgramFragment fragment = mFragments.get(i);
+            bases[i] = base;
+            for (Map.Entry<String, Integer> e : fragment.getLabels().entrySet()) {
+                if (labels.put(e.getKey(), base + e.getValue()) != null) {
+                    throw new IllegalInstructionException("duplicate label " + e.getKey());
+                }
+            }
+            numRegions += fragment.getRegionOffsets().length;
+            base += fragment.length();
+        }
+
+        final byte[] program = new byte[mLength];
+        mRegionNames.clear();
+        mRegionOffsets = new int[numRegions];
+        int region = 0;
+        for (int i = 0; i < mFragments.size(); i++) {
+            final ApfProgramFragment fragment = mFragments.get(i);
+            System.arraycopy(fragment.getBytecode(), 0, program, bases[i], fragment.length());
+            for (ApfProgramFragment.Relocation r : fragment.getRelocations()) {
+                patchJump(program, bases[i], r, labels);
+            }
+            mRegionNames.addAll(fragment.getRegionNames());
+            for (int offset : fragment.getRegionOffsets()) {
+                mRegionOffsets[region++] = bases[i] + offset;
+            }
+        }
+        return program;
+    }
+
+    private void patchJump(byte[] program, int base, ApfProgramFragment.Relocation r,
+            Map<String, Integer> labels) throws IllegalInstructionException {
+        final Integer target;
+        if (r.label == BaseApfGenerator.PASS_LABEL) {
+            target = mLength;
+        } else if (r.label == BaseApfGenerator.DROP_LABEL) {
+            target = mLength + 1;
+        } else {
+            target = labels.get(r.label);
+        }
+        if (target == null) {
+            throw new IllegalInstructionException("label not found: " + r.label);
+        }
+        final long jump = target - (base + r.base);
+        if (jump < 0 || jump >= (1L << (8 * r.size))) {
+            throw new IllegalInstructionException("cannot encode jump to " + r.label
+                    + " with offset " + jump + " in " + r.size + " bytes");
+        }
+        for (int i = r.size - 1, pos = base + r.offset; i >= 0; i--, pos++) {
+            program[pos] = (byte) (jump >> (8 * i));
+        }
+    }
+
+    /** Returns the names of the regions of the program. Only valid after {@link #link}. */
+    @NonNull
+    public List<String> getRegionNames() {
+        return new ArrayList<>(mRegionNames);
+    }
+
+    /** Returns the start offsets of the regions of the program. Only valid after {@link #link}. */
+    @NonNull
+    public int[] getRegionOffsets() {
+        if (mRegionOffsets == null) {
+            throw new IllegalStateException("Region offsets are only known after link()");
+        }
+        return mRegionOffsets.clone();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import androidx.annotation.NonNull;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profiles an APF program against a corpus of packets.
+ *
+ * The program is split into named regions, as defined by
+ * {@link ApfV4GeneratorBase#defineRegion} when the program was generated. Each packet fed to
+ * {@link #profile} is run through an {@link ApfInterpreter}, and every executed instruction is
+ * attributed to the region containing it. The profiler reports the instructions executed per
+ * region, both in total and broken down by packet type, which shows which parts of the program
+ * dominate the per-packet instruction budget of the firmware.
+ *
+ * Instances are not thread-safe.
+ *
+ * @hide
+ */
+public class ApfProgramProfiler {
+    /** Name of the region covering any code that precedes the first defined region. */
+    public static final String UNNAMED_REGION = "<unnamed>";
+
+    private final ApfInterpreter mInterpreter;
+    // Distinct region names, in order of first appearance in the program.
+    private final List<String> mRegions = new ArrayList<>();
+    // Index into mRegions of the region containing each program offset.
+    private final int[] mRegionOfPc;
+    private final int[] mExecutionCounts;
+    private final long[] mTotalInstructions;
+    private final Map<String, PacketTypeStats> mPacketTypes = new LinkedHashMap<>();
+
+    private static class PacketTypeStats {
+        public final long[] instructionsPerRegion;
+        public int packets;
+        public int passed;
+        public int dropped;
+        public long instructions;
+        public int maxInstructions;
+
+        PacketTypeStats(int numRegions) {
+            instructionsPerRegion = new long[numRegions];
+        }
+    }
+
+    /**
+     * Creates a profiler for {@code program}.
+     *
+     * @param apfVersion the APF version to interpret the program as.
+     * @param ramSize the size of the APF RAM (program plus data region).
+     * @param program the program to profile.
+     * @param regionNames the region names, as returned by
+     *                    {@link BaseApfGenerator#getRegionNames}.
+     * @param regionOffsets the region start offsets, as returned by
+     *                      {@link BaseApfGenerator#getRegionOffsets}.
+     */
+    public ApfProgramProfiler(int apfVersion, int ramSize, @NonNull byte[] program,
+            @NonNull List<String> regionNames, @NonNull int[] regionOffsets) {
+        if (regionNames.size() != regionOffsets.length) {
+            throw new IllegalArgumentException("Got " + regionNames.size() + " region names but "
+                    + regionOffsets.length + " region offsets");
+        }
+        mInterpreter = new ApfInterpreter(apfVersion, Math.max(ramSize, program.length));
+        mInterpreter.loadProgram(program);
+        mExecutionCounts = new int[program.length];
+        mInterpreter.setExecutionCounts(mExecutionCounts);
+
+        mRegionOfPc = new int[program.length];
+        int current = -1;
+        int next = 0;
+        for (int pc = 0; pc < program.length; pc++) {
+            // Several regions may start at the same offset if some of them are empty. The last
+            // one is the one that contains code.
+            while (next < regionOffsets.length && regionOffsets[next] <= pc) {
+                current = regionIndex(regionNames.get(next));
+                next++;
+            }
+            mRegionOfPc[pc] = current >= 0 ? current : regionIndex(UNNAMED_REGION);
+        }
+        mTotalInstructions = new long[mRegions.size()];
+    }
+
+    private int regionIndex(String name) {
+        final int index = mRegions.indexOf(name);
+        if (index >= 0) return index;
+        mRegions.add(name);
+        return mRegions.size() - 1;
+    }
+
+    /**
+     * Runs the program on {@code packet} and accounts the executed instructions to
+     * {@code packetType}.
+     *
+     * @return the verdict, {@link ApfInterpreter#PASS} or {@link ApfInterpreter#DROP}.
+     */
+    public int profile(@NonNull String packetType, @NonNull byte[] packet) {
+        PacketTypeStats stats = mPacketTypes.get(packetType);
+        if (stats == null) {
+            stats = new PacketTypeStats(mRegions.size());
+            mPacketTypes.put(packetType, stats);
+        }
+
+        Arrays.fill(mExecutionCounts, 0);
+        final int verdict = mInterpreter.run(packet, 0 /* filterAgeSeconds */);
+        for (int pc = 0; pc < mExecutionCounts.length; pc++) {
+            final int count = mExecutionCounts[pc];
+            if (count == 0) continue;
+            stats.instructionsPerRegion[mRegionOfPc[pc]] += count;
+            mTotalInstructions[mRegionOfPc[pc]] += count;
+        }
+        final int instructions = mInterpreter.getInstructionCount();
+        stats.packets++;
+        stats.instructions += instructions;
+        stats.maxInstructions = Math.max(stats.maxInstructions, instructions);
+        if (verdict == ApfInterpreter.PASS) {
+            stats.passed++;
+        } else {
+            stats.dropped++;
+        }
+        return verdict;
+    }
+
+    /** Returns the names of the regions of the program, in order of first appearance. */
+    @NonNull
+    public List<String> getRegions() {
+        return new ArrayList<>(mRegions);
+    }
+
+    /** Returns the total number of instructions executed in {@code region}. */
+    public long getInstructionCount(@NonNull String region) {
+        final int index = mRegions.indexOf(region);
+        return index < 0 ? 0 : mTotalInstructions[index];
+    }
+
+    /** Returns the number of instructions executed in {@code region} by {@code packetType}. */
+    public long getInstructionCount(@NonNull String packetType, @NonNull String region) {
+        final PacketTypeStats stats = mPacketTypes.get(packetType);
+        final int index = mRegions.indexOf(region);
+        return (stats == null || index < 0) ? 0 : stats.instructionsPerRegion[index];
+    }
+
+    /** Returns the number of packets of {@code packetType} that were profiled. */
+    public int getPacketCount(@NonNull String packetType) {
+        final PacketTypeStats stats = mPacketTypes.get(packetType);
+        return stats == null ? 0 : stats.packets;
+    }
+
+    /** Returns the total number of instructions executed across all packets. */
+    public long getTotalInstructionCount() {
+        long total = 0;
+        for (long count : mTotalInstructions) total += count;
+        return total;
+    }
+
+    /** Dumps the profile. */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        int packets = 0;
+        int maxInstructions = 0;
+        for (PacketTypeStats stats : mPacketTypes.values()) {
+            packets += stats.packets;
+            maxInstructions = Math.max(maxInstructions, stats.maxInstructions);
+        }
+        if (packets == 0) {
+            pw.println("No packets profiled.");
+            return;
+        }
+        final long total = getTotalInstructionCount();
+        pw.println(String.format("%d packets, %.1f instructions/packet on average, max %d",
+                packets, (double) total / packets, maxInstructions));
+
+        pw.println("Instructions per region:");
+        pw.increaseIndent();
+        dumpRegions(pw, mTotalInstructions, total);
+        pw.decreaseIndent();
+
+        pw.println("Instructions per packet type:");
+        pw.increaseIndent();
+        for (Map.Entry<String, PacketTypeStats> entry : mPacketTypes.entrySet()) {
+            final PacketTypeStats stats = entry.getValue();
+            pw.println(String.format("%s: %d packets (%d passed, %d dropped), "
+                    + "%.1f instructions/packet, max %d", entry.getKey(), stats.packets,
+                    stats.passed, stats.dropped, (double) stats.instructions / stats.packets,
+                    stats.maxInstructions));
+            pw.increaseIndent();
+            dumpRegions(pw, stats.instructionsPerRegion, stats.instructions);
+            pw.decreaseIndent();
+        }
+        pw.decreaseIndent();
+    }
+
+    private void dumpRegions(IndentingPrintWriter pw, long[] counts, long total) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            pw.println(String.format("%s: %d (%.1f%%)", mRegions.get(i), counts[i],
+                    100.0 * counts[i] / total));
+        }
+    }
+}
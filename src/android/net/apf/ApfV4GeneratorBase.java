@@ -20,6 +20,8 @@ import static android.net.apf.BaseApfGenerator.Rbit.Rbit0;
 import static android.net.apf.BaseApfGenerator.Register.R0;
 import static android.net.apf.BaseApfGenerator.Register.R1;
 
+import androidx.annotation.NonNull;
+
 import com.android.internal.annotations.VisibleForTesting;
 
 /**
@@ -77,6 +79,35 @@ public abstract class ApfV4GeneratorBase<Type extends ApfV4GeneratorBase<Type>>
         return append(new Instruction(Opcodes.LABEL).setLabel(name));
     }
 
+    /**
+     * Mark the current end of the program as the start of the region called {@code name}. The
+     * region extends up to the start of the next region. Regions do not generate any code; they
+     * are only used to attribute executed instructions to parts of the program when profiling it
+     * with {@link ApfProgramProfiler}.
+     */
+    public Type defineRegion(@NonNull String name) {
+        final Instruction marker = new Instruction(Opcodes.LABEL);
+        append(marker);
+        mRegionStarts.add(marker);
+        mRegionNames.add(name);
+        return self();
+    }
+
+    /**
+     * Turn the last immediate of the last instruction added to the program into a parameter
+     * called {@code name}. A parameter is always encoded in
+     * {@link BaseApfGenerator#PARAMETER_SIZE} bytes, so that its value can be changed with
+     * {@link ApfProgramFragment#setParameter} after the program is generated by
+     * {@link #generateFragment}.
+     */
+    public Type markLastImmediateAsParameter(@NonNull String name) {
+        if (mInstructions.isEmpty()) {
+            throw new IllegalStateException("No instruction to parameterize");
+        }
+        mInstructions.get(mInstructions.size() - 1).setParameter(name);
+        return self();
+    }
+
     /**
      * Add an unconditional jump instruction to the end of the program.
      */
@@ -24,7 +24,10 @@ import androidx.annotation.NonNull;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for APF assembler/generator.
@@ -320,6 +323,8 @@ public abstract class BaseApfGenerator {
         private int mTargetLabelSize;
         private int mLenFieldOverride = -1;
         private String mTargetLabel;
+        // Set if the last immediate is a fragment parameter. See #setParameter.
+        private String mParameterName;
         // When mOpcode == Opcodes.LABEL:
         private String mLabel;
         private byte[] mBytesImm;
@@ -447,6 +452,29 @@ public abstract class BaseApfGenerator {
             return this;
         }
 
+        Instruction setParameter(String name) {
+            if (mOpcode == Opcodes.LABEL || mIntImms.size() <= (mOpcode == Opcodes.EXT ? 1 : 0)) {
+                throw new IllegalStateException("instruction has no immediate to parameterize");
+            }
+            final IntImmediate imm = mIntImms.get(mIntImms.size() - 1);
+            if (imm.mImmediateType != IntImmediateType.INDETERMINATE_SIZE_UNSIGNED
+                    || imm.calculateIndeterminateSize() > PARAMETER_SIZE) {
+                throw new IllegalStateException("cannot parameterize " + imm);
+            }
+            mParameterName = name;
+            return this;
+        }
+
+        /**
+         * @return {@code true} if the jump target of this instruction is resolved by
+         *         {@link ApfProgramLinker} rather than by this generator.
+         */
+        private boolean hasExternalTarget() {
+            return mGeneratingFragment && mTargetLabel != null
+                    && (mTargetLabel == DROP_LABEL || mTargetLabel == PASS_LABEL
+                            || !mLabels.containsKey(mTargetLabel));
+        }
+
         Instruction setBytesImm(byte[] bytes) {
             mBytesImm = bytes;
             return this;
@@ -483,7 +511,8 @@ public abstract class BaseApfGenerator {
                 return false;
             }
             int oldTargetLabelSize = mTargetLabelSize;
-            mTargetLabelSize = calculateImmSize(calculateTargetLabelOffset(), false);
+            mTargetLabelSize = hasExternalTarget() ? RELOCATION_SIZE
+                    : calculateImmSize(calculateTargetLabelOffset(), false);
             if (mTargetLabelSize > oldTargetLabelSize) {
                 throw new IllegalStateException("instruction grew");
             }
@@ -554,11 +583,26 @@ public abstract class BaseApfGenerator {
                 writingOffset = mIntImms.get(startOffset++).writeValue(bytecode, writingOffset,
                         indeterminateSize);
             }
-            if (mTargetLabel != null) {
-                writingOffset = writeValue(calculateTargetLabelOffset(), bytecode, writingOffset,
+            if (hasExternalTarget()) {
+                mRelocations.add(new ApfProgramFragment.Relocation(mTargetLabel, writingOffset,
+                        indeterminateSize, offset + size()));
+                writingOffset += indeterminateSize;
+            } else if (mTargetLabel != null) {
+                final int targetLabelOffset = calculateTargetLabelOffset();
+                if (calculateImmSize(targetLabelOffset, false) > indeterminateSize) {
+                    throw new IllegalInstructionException("jump to " + mTargetLabel
+                            + " does not fit in " + indeterminateSize + " bytes");
+                }
+                writingOffset = writeValue(targetLabelOffset, bytecode, writingOffset,
                         indeterminateSize);
             }
             for (int i = startOffset; i < mIntImms.size(); ++i) {
+                if (mParameterName != null && i == mIntImms.size() - 1) {
+                    if (mParameterOffsets.put(mParameterName, writingOffset) != null) {
+                        throw new IllegalInstructionException(
+                                "duplicate parameter " + mParameterName);
+                    }
+                }
                 writingOffset = mIntImms.get(i).writeValue(bytecode, writingOffset,
                         indeterminateSize);
             }
@@ -579,6 +623,8 @@ public abstract class BaseApfGenerator {
          * the instruction. This size will be stored in the immLen field.
          */
         private int calculateRequiredIndeterminateSize() {
+            // Parameters have a fixed size so they can be patched after generation.
+            if (mParameterName != null) return PARAMETER_SIZE;
             int maxSize = mTargetLabelSize;
             for (IntImmediate imm : mIntImms) {
                 maxSize = Math.max(maxSize, imm.calculateIndeterminateSize());
@@ -664,6 +710,27 @@ public abstract class BaseApfGenerator {
             throw new IllegalStateException("Can only generate() once!");
         }
         mGenerated = true;
+        if (mOptimizationEnabled) {
+            // Lay out the unoptimized program first, so that the optimizer can ensure that no
+            // instruction becomes larger than it is in the unoptimized program.
+            shrinkInstructions();
+            optimize();
+        }
+        final int total_size = shrinkInstructions();
+        // Generate bytecode for instructions.
+        byte[] bytecode = new byte[total_size];
+        for (Instruction instruction : mInstructions) {
+            instruction.generate(bytecode);
+        }
+        return bytecode;
+    }
+
+    /**
+     * Shrinks the jump offset fields of the instructions to the smallest size that fits, and
+     * updates the instruction offsets accordingly.
+     * @return the program length in bytes.
+     */
+    private int shrinkInstructions() throws IllegalInstructionException {
         int total_size;
         boolean shrunk;
         // Shrink the immediate value fields of instructions.
@@ -688,12 +755,366 @@ public abstract class BaseApfGenerator {
                 }
             }
         } while (shrunk);
-        // Generate bytecode for instructions.
-        byte[] bytecode = new byte[total_size];
-        for (Instruction instruction : mInstructions) {
-            instruction.generate(bytecode);
+        return total_size;
+    }
+
+    /**
+     * Generate the bytecode for this program as a fragment of a larger program, to be linked with
+     * other fragments by {@link ApfProgramLinker}. Unlike {@link #generate}, jumps to labels that
+     * are not defined by this generator, including {@link #PASS_LABEL} and {@link #DROP_LABEL},
+     * are allowed: they are encoded with a fixed size and resolved when linking. Execution falling
+     * off the end of the fragment continues into the next fragment.
+     * @return the fragment.
+     */
+    @NonNull
+    public ApfProgramFragment generateFragment() throws IllegalInstructionException {
+        mGeneratingFragment = true;
+        final byte[] bytecode = generate();
+        final HashMap<String, Integer> labels = new HashMap<>();
+        for (Map.Entry<String, Instruction> e : mLabels.entrySet()) {
+            labels.put(e.getKey(), e.getValue().offset);
         }
-        return bytecode;
+        return new ApfProgramFragment(bytecode, labels, mRelocations, mParameterOffsets,
+                getRegionNames(), getRegionOffsets());
+    }
+
+    /**
+     * Returns the names of the regions defined by {@link ApfV4GeneratorBase#defineRegion}, in
+     * program order. The same name may appear more than once.
+     */
+    @NonNull
+    public List<String> getRegionNames() {
+        return new ArrayList<>(mRegionNames);
+    }
+
+    /**
+     * Returns the offset in the generated program at which each region returned by
+     * {@link #getRegionNames} starts. Only valid after {@link #generate} has been called.
+     */
+    @NonNull
+    public int[] getRegionOffsets() {
+        if (!mGenerated) {
+            throw new IllegalStateException("Region offsets are only known after generate()");
+        }
+        final int[] offsets = new int[mRegionStarts.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = mRegionStarts.get(i).offset;
+        }
+        return offsets;
+    }
+
+    /**
+     * Enables or disables the peephole optimizer. When enabled, {@link #generate} rewrites the
+     * instruction list before emitting bytecode:
+     * <ul>
+     * <li>Jumps to an unconditional jump are redirected to the final target (jump threading).
+     * <li>Jumps and side-effect free conditional jumps to the immediately following instruction
+     *     are removed.
+     * <li>Unreachable instructions following an unconditional jump or a PASS/DROP instruction are
+     *     removed.
+     * <li>Loads of a register that already holds the loaded value are removed.
+     * </ul>
+     * The optimizer only removes instructions, and only threads a jump if the offset to its new
+     * target fits in the size that the offset has in the unoptimized program. So no instruction
+     * grows, and the generated program is never larger than the unoptimized program. Note that
+     * the interpreter limits the number of instructions executed to the program length, so
+     * removing unreachable code slightly lowers that limit.
+     */
+    public void setOptimizationEnabled(boolean enabled) {
+        mOptimizationEnabled = enabled;
+    }
+
+    // Upper bound on the number of times the optimization passes are repeated. Each pass can
+    // expose more opportunities for the others, but a couple of iterations are usually enough.
+    private static final int MAX_OPTIMIZATION_ITERATIONS = 10;
+    // Upper bound on the length of a chain of jumps followed when threading jumps. Also protects
+    // against loops of unconditional jumps.
+    private static final int MAX_JUMP_THREADING_HOPS = 16;
+
+    private void optimize() {
+        for (int i = 0; i < MAX_OPTIMIZATION_ITERATIONS; i++) {
+            boolean changed = threadJumps();
+            changed |= removeJumpsToNextInstruction();
+            changed |= removeUnreachableInstructions();
+            changed |= removeRedundantLoads();
+            if (!changed) break;
+        }
+    }
+
+    private HashMap<String, Integer> indexLabels() {
+        final HashMap<String, Integer> labelIndexes = new HashMap<>();
+        for (int i = 0; i < mInstructions.size(); i++) {
+            final Instruction insn = mInstructions.get(i);
+            if (insn.mOpcode == Opcodes.LABEL && insn.mLabel != null) {
+                labelIndexes.put(insn.mLabel, i);
+            }
+        }
+        return labelIndexes;
+    }
+
+    private HashSet<String> findReferencedLabels() {
+        final HashSet<String> referenced = new HashSet<>();
+        for (Instruction insn : mInstructions) {
+            if (insn.mTargetLabel != null) referenced.add(insn.mTargetLabel);
+        }
+        // Other fragments may jump to any label of a fragment.
+        if (mGeneratingFragment) referenced.addAll(mLabels.keySet());
+        return referenced;
+    }
+
+    /** Returns the index of the first instruction at or after {@code index} that is not a label. */
+    private int skipLabels(int index) {
+        while (index < mInstructions.size() && mInstructions.get(index).mOpcode == Opcodes.LABEL) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isUnconditionalJump(Instruction insn) {
+        // JMP with R=1 is the APFv6 DATA instruction, which never has a target label.
+        return insn.mOpcode == Opcodes.JMP && insn.mRbit == Rbit0 && insn.mTargetLabel != null;
+    }
+
+    private static boolean isTerminal(Instruction insn) {
+        return isUnconditionalJump(insn) || insn.mOpcode == Opcodes.PASSDROP;
+    }
+
+    /**
+     * Returns the furthest label along the chain of unconditional jumps starting at the target of
+     * {@code insn} that {@code insn} can jump to without growing.
+     */
+    private String resolveJumpTarget(Instruction insn, HashMap<String, Integer> labelIndexes) {
+        String label = insn.mTargetLabel;
+        String resolved = label;
+        for (int hops = 0; hops < MAX_JUMP_THREADING_HOPS; hops++) {
+            if (label == DROP_LABEL || label == PASS_LABEL) break;
+            final Integer labelIndex = labelIndexes.get(label);
+            if (labelIndex == null) break;
+            final int next = skipLabels(labelIndex);
+            if (next == mInstructions.size()) {
+                // Falling off the end of the program passes the packet. Falling off the end of a
+                // fragment continues into code that is not known yet.
+                if (mGeneratingFragment) break;
+                label = PASS_LABEL;
+            } else {
+                final Instruction jump = mInstructions.get(next);
+                if (!isUnconditionalJump(jump)) break;
+                label = jump.mTargetLabel;
+            }
+            if (fitsUnoptimizedOffsetSize(insn, label)) resolved = label;
+        }
+        return resolved;
+    }
+
+    /**
+     * Returns whether the offset from {@code insn} to {@code label} fits in the size that the
+     * jump offset of {@code insn} has in the unoptimized program. The instruction offsets must
+     * be those of the unoptimized program. Removing instructions never makes the offset larger.
+     */
+    private boolean fitsUnoptimizedOffsetSize(Instruction insn, String label) {
+        final int size;
+        if (mGeneratingFragment && (label == DROP_LABEL || label == PASS_LABEL
+                || !mLabels.containsKey(label))) {
+            size = RELOCATION_SIZE;
+        } else {
+            final Instruction target;
+            if (label == DROP_LABEL) {
+                target = mDropLabel;
+            } else if (label == PASS_LABEL) {
+                target = mPassLabel;
+            } else {
+                target = mLabels.get(label);
+            }
+            if (target == null) return false;
+            final int offset = target.offset - (insn.offset + insn.size());
+            // Jumps can only go forward.
+            if (offset < 0) return false;
+            size = calculateImmSize(offset, false);
+        }
+        return size <= insn.mTargetLabelSize;
+    }
+
+    private boolean threadJumps() {
+        final HashMap<String, Integer> labelIndexes = indexLabels();
+        boolean changed = false;
+        for (Instruction insn : mInstructions) {
+            if (insn.mTargetLabel == null) continue;
+            final String target = resolveJumpTarget(insn, labelIndexes);
+            if (!target.equals(insn.mTargetLabel)) {
+                insn.mTargetLabel = target;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isRemovableIfFallthrough(Instruction insn) {
+        if (insn.mParameterName != null) return false;
+        switch (insn.mOpcode) {
+            case JMP:
+                return isUnconditionalJump(insn);
+            case JEQ:
+            case JNE:
+            case JGT:
+            case JLT:
+            case JSET:
+                return true;
+            default:
+                // JNEBS and the DNS matching instructions have side effects (bounds checks,
+                // counters), so they must be kept even if both branches lead to the same place.
+                return false;
+        }
+    }
+
+    private boolean removeJumpsToNextInstruction() {
+        final HashMap<String, Integer> labelIndexes = indexLabels();
+        boolean changed = false;
+        for (int i = mInstructions.size() - 1; i >= 0; i--) {
+            final Instruction insn = mInstructions.get(i);
+            if (insn.mTargetLabel == null || !isRemovableIfFallthrough(insn)) continue;
+            final boolean isFallthrough;
+            if (insn.mTargetLabel == PASS_LABEL) {
+                isFallthrough = !mGeneratingFragment
+                        && skipLabels(i + 1) == mInstructions.size();
+            } else if (insn.mTargetLabel == DROP_LABEL) {
+                isFallthrough = false;
+            } else {
+                final Integer labelIndex = labelIndexes.get(insn.mTargetLabel);
+                isFallthrough = labelIndex != null && labelIndex > i
+                        && skipLabels(i + 1) >= labelIndex;
+            }
+            if (isFallthrough) {
+                mInstructions.remove(i);
+                // Keep the indexes of the labels after the removed instruction up to date.
+                for (Map.Entry<String, Integer> e : labelIndexes.entrySet()) {
+                    if (e.getValue() > i) e.setValue(e.getValue() - 1);
+                }
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean removeUnreachableInstructions() {
+        final HashSet<String> referenced = findReferencedLabels();
+        boolean changed = false;
+        boolean reachable = true;
+        for (Iterator<Instruction> it = mInstructions.iterator(); it.hasNext(); ) {
+            final Instruction insn = it.next();
+            if (insn.mOpcode == Opcodes.LABEL) {
+                if (insn.mLabel == null) continue;  // Region markers are always kept.
+                if (referenced.contains(insn.mLabel)) {
+                    reachable = true;
+                } else if (!reachable) {
+                    it.remove();
+                    mLabels.remove(insn.mLabel);
+                    changed = true;
+                }
+                continue;
+            }
+            if (!reachable) {
+                it.remove();
+                changed = true;
+                continue;
+            }
+            if (isTerminal(insn)) reachable = false;
+        }
+        return changed;
+    }
+
+    /**
+     * Describes the value loaded into a register by {@code insn}, or returns null if the value
+     * cannot be determined statically. Two instructions that load equal descriptions produce the
+     * same value, because the packet is read-only.
+     */
+    private static String describeLoadedValue(Instruction insn) {
+        if (insn.mParameterName != null) return null;
+        switch (insn.mOpcode) {
+            case LI:
+            case LDB:
+            case LDH:
+            case LDW:
+                return insn.mOpcode + " " + insn.mIntImms.get(0).mValue;
+            default:
+                return null;
+        }
+    }
+
+    private boolean removeRedundantLoads() {
+        final HashSet<String> referenced = findReferencedLabels();
+        // Known contents of R0 and R1, or null if unknown.
+        final String[] regs = new String[2];
+        boolean changed = false;
+        for (Iterator<Instruction> it = mInstructions.iterator(); it.hasNext(); ) {
+            final Instruction insn = it.next();
+            final int reg = insn.mRbit.value;
+            switch (insn.mOpcode) {
+                case LABEL:
+                    // Execution can reach a jump target from elsewhere with different contents.
+                    if (insn.mLabel != null && referenced.contains(insn.mLabel)) {
+                        regs[0] = regs[1] = null;
+                    }
+                    break;
+                case LI:
+                case LDB:
+                case LDH:
+                case LDW: {
+                    final String value = describeLoadedValue(insn);
+                    if (value.equals(regs[reg])) {
+                        it.remove();
+                        changed = true;
+                    } else {
+                        regs[reg] = value;
+                    }
+                    break;
+                }
+                case LDBX:
+                case LDHX:
+                case LDWX:
+                case LDDW:
+                    regs[reg] = null;
+                    break;
+                case ADD:
+                case MUL:
+                case DIV:
+                case AND:
+                case OR:
+                case SH:
+                    regs[0] = null;
+                    break;
+                case JMP:
+                case JEQ:
+                case JNE:
+                case JGT:
+                case JLT:
+                case JSET:
+                case JNEBS:
+                case STDW:
+                    // No register is modified.
+                    break;
+                case EXT: {
+                    final int ext = insn.mIntImms.get(0).mValue;
+                    if (ext >= ExtendedOpcodes.STM.value
+                            && ext < ExtendedOpcodes.STM.value + MEMORY_SLOTS) {
+                        break;
+                    } else if (ext == ExtendedOpcodes.SWAP.value) {
+                        final String tmp = regs[0];
+                        regs[0] = regs[1];
+                        regs[1] = tmp;
+                    } else if (ext == ExtendedOpcodes.MOVE.value) {
+                        regs[reg] = regs[reg ^ 1];
+                    } else {
+                        // Covers LDM, NOT, NEG and anything else.
+                        regs[0] = regs[1] = null;
+                    }
+                    break;
+                }
+                default:
+                    regs[0] = regs[1] = null;
+                    break;
+            }
+        }
+        return changed;
     }
 
     /**
@@ -768,11 +1189,29 @@ public abstract class BaseApfGenerator {
     public static final int MIN_APF_VERSION_IN_DEV = 5;
     public static final int APF_VERSION_4 = 4;
 
+    /**
+     * Size in bytes of the immediates marked as parameters by
+     * {@link ApfV4GeneratorBase#markLastImmediateAsParameter}.
+     */
+    public static final int PARAMETER_SIZE = 2;
+
+    // Size in bytes of the offset of jumps that are resolved by ApfProgramLinker. This is enough
+    // for any program that fits in the APF memory.
+    private static final int RELOCATION_SIZE = 2;
+
 
     final ArrayList<Instruction> mInstructions = new ArrayList<Instruction>();
     private final HashMap<String, Instruction> mLabels = new HashMap<String, Instruction>();
+    // Zero-size markers delimiting named regions of the program. Only used for profiling.
+    final ArrayList<Instruction> mRegionStarts = new ArrayList<Instruction>();
+    final ArrayList<String> mRegionNames = new ArrayList<String>();
     private final Instruction mDropLabel = new Instruction(Opcodes.LABEL);
     private final Instruction mPassLabel = new Instruction(Opcodes.LABEL);
     private final int mVersion;
     public boolean mGenerated;
+    private boolean mOptimizationEnabled;
+    // Set by generateFragment().
+    private boolean mGeneratingFragment;
+    private final ArrayList<ApfProgramFragment.Relocation> mRelocations = new ArrayList<>();
+    private final HashMap<String, Integer> mParameterOffsets = new HashMap<>();
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of DNS names, compiled into a graph that APF filters can walk label by label.
+ *
+ * The graph is a trie of the names, from the first label to the last, in which nodes that accept
+ * the same label sequences are merged. Names that end with the same labels, e.g.,
+ * "_googlecast._tcp.local" and "_airplay._tcp.local", therefore share the nodes that match
+ * "_tcp.local", and a filter generated from the graph only contains the code that matches them
+ * once. The graph is acyclic, and {@link #getNodes} returns its nodes in an order in which every
+ * node comes before its children, so that filters only need forward jumps.
+ *
+ * @hide
+ */
+public class DnsNameTrie {
+    /** A node of the graph, i.e., the labels that can follow a given sequence of labels. */
+    public static class Node {
+        // Insertion order, so that the generated code is deterministic.
+        private final LinkedHashMap<String, Node> mChildren = new LinkedHashMap<>();
+        private boolean mTerminal;
+        private int mIndex = -1;
+        private int mInDegree;
+
+        private Node() {}
+
+        /** Whether a name ends at this node. */
+        public boolean isTerminal() {
+            return mTerminal;
+        }
+
+        /** The labels that can follow, in the order the names were added. */
+        @NonNull
+        public List<String> getLabels() {
+            return new ArrayList<>(mChildren.keySet());
+        }
+
+        /** The node reached by matching {@code label}. */
+        @NonNull
+        public Node getChild(@NonNull String label) {
+            return mChildren.get(label);
+        }
+
+        /** The position of this node in {@link #getNodes}. */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /** The number of edges leading to this node. */
+        public int getInDegree() {
+            return mInDegree;
+        }
+    }
+
+    private final Node mRoot;
+    private final List<Node> mNodes;
+
+    /**
+     * Compiles {@code names}, each an array of labels.
+     *
+     * @param matchPrefixes if true, a name also matches any name that starts with its labels, and
+     *                      the labels following a terminal node are discarded.
+     */
+    public DnsNameTrie(@NonNull List<String[]> names, boolean matchPrefixes) {
+        final Node root = new Node();
+        for (String[] labels : names) {
+            Node node = root;
+            for (String label : labels) {
+                if (matchPrefixes && node.mTerminal) break;
+                node = node.mChildren.computeIfAbsent(label, l -> new Node());
+            }
+            node.mTerminal = true;
+            if (matchPrefixes) node.mChildren.clear();
+        }
+        mRoot = merge(root, new HashMap<>());
+        mNodes = sortTopologically(mRoot);
+        for (int i = 0; i < mNodes.size(); i++) {
+            final Node node = mNodes.get(i);
+            node.mIndex = i;
+            for (Node child : node.mChildren.values()) child.mInDegree++;
+        }
+    }
+
+    /** The node at which all names start. */
+    @NonNull
+    public Node getRoot() {
+        return mRoot;
+    }
+
+    /** All the nodes of the graph, root first, each before its children. */
+    @NonNull
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(mNodes);
+    }
+
+    // Replaces the children of node, and then node itself, with the equivalent node that was seen
+    // first, if any. Two nodes are equivalent if they are both terminal or both not, and have the
+    // same labels leading to the same (already merged) children.
+    private static Node merge(Node node, Map<List<Object>, Node> seen) {
+        final List<Object> key = new ArrayList<>();
+        key.add(node.mTerminal);
+        for (Map.Entry<String, Node> e : node.mChildren.entrySet()) {
+            e.setValue(merge(e.getValue(), seen));
+        }
+        final List<String> labels = new ArrayList<>(node.mChildren.keySet());
+        Collections.sort(labels);
+        for (String label : labels) {
+            key.add(label);
+            // Children are already merged, so equivalent children are the same object, and Node
+            // uses identity equality.
+            key.add(node.mChildren.get(label));
+        }
+        final Node existing = seen.putIfAbsent(key, node);
+        return existing != null ? existing : node;
+    }
+
+    // Reverse postorder of a depth-first traversal: every node comes before its children.
+    private static List<Node> sortTopologically(Node root) {
+        final List<Node> postorder = new ArrayList<>();
+        visit(root, new HashSet<>(), postorder);
+        Collections.reverse(postorder);
+        return postorder;
+    }
+
+    private static void visit(Node node, Set<Node> visited, List<Node> postorder) {
+        if (!visited.add(node)) return;
+        for (Node child : node.mChildren.values()) visit(child, visited, postorder);
+        postorder.add(node);
+    }
+}
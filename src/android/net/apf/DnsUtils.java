@@ -24,6 +24,9 @@ import static com.android.net.module.util.NetworkStackConstants.UDP_HEADER_LEN;
 
 import androidx.annotation.NonNull;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Utility class that generates generating APF filters for DNS packets.
  */
@@ -278,20 +281,63 @@ public class DnsUtils {
         return "dns_nomatch_" + labelIndex;
     }
 
-    private static void addMatchLabel(@NonNull ApfV4Generator gen, @NonNull JumpTable jumpTable,
-            int labelIndex, @NonNull String label, @NonNull String nextLabel) throws Exception {
+    /** @return jump label to go to once the specified label is matched. */
+    private static String getNextLabel(@NonNull DnsNameTrie.Node child) {
+        return child.isTerminal() ? ApfV4Generator.PASS_LABEL : getStartMatchLabel(child.getIndex());
+    }
+
+    /**
+     * Adds the code that matches the next DNS label against the labels that can follow at
+     * {@code node}, and continues at the node reached, or at the next question if none match.
+     */
+    private static void addMatchNode(@NonNull ApfV4Generator gen, @NonNull JumpTable jumpTable,
+            @NonNull DnsNameTrie.Node node) throws Exception {
+        final List<String> labels = node.getLabels();
+        if (labels.size() == 1) {
+            final String label = labels.get(0);
+            addMatchLabel(gen, jumpTable, node.getIndex(), label,
+                    getNextLabel(node.getChild(label)));
+            return;
+        }
+
+        final int labelIndex = node.getIndex();
         final String parsedLabel = getPostMatchJumpTargetForLabel(labelIndex);
         final String noMatchLabel = getNoMatchLabel(labelIndex);
         gen.defineLabel(getStartMatchLabel(labelIndex));
+        addParseLabel(gen, jumpTable, parsedLabel);
 
-        // Store return address.
-        gen.addLoadImmediate(R0, jumpTable.getIndex(parsedLabel));
-        gen.addStoreToMemory(R0, SLOT_RETURN_VALUE_INDEX);
+        // If label length is 0, this is the end of the name and the match failed.
+        gen.addSwap(); // Move label length from R1 to R0
+        gen.addJumpIfR0Equals(0, noMatchLabel);
 
-        // Call the parse_label function.
-        gen.addJump(LABEL_PARSE_DNS_LABEL);
+        // Compare the label, including its length byte, against each candidate in turn. This
+        // keeps the parsing offset in R0 across comparisons, since JNEBS does not modify it.
+        gen.addLoadFromMemory(R0, SLOT_CURRENT_PARSE_OFFSET);
+        for (int i = 0; i < labels.size(); i++) {
+            final String label = labels.get(i);
+            final String tryNextLabel = noMatchLabel + "_" + i;
+            final byte[] labelBytes = label.getBytes();
+            final byte[] encodedLabel = new byte[labelBytes.length + 1];
+            encodedLabel[0] = (byte) labelBytes.length;
+            System.arraycopy(labelBytes, 0, encodedLabel, 1, labelBytes.length);
+            gen.addJumpIfBytesAtR0NotEqual(encodedLabel, tryNextLabel);
+
+            // Prep offset of next label, and go to the node it leads to.
+            gen.addAdd(encodedLabel.length);
+            gen.addStoreToMemory(R0, SLOT_CURRENT_PARSE_OFFSET);
+            gen.addJump(getNextLabel(node.getChild(label)));
+            gen.defineLabel(tryNextLabel);
+        }
 
-        gen.defineLabel(parsedLabel);
+        addNoMatch(gen, jumpTable, noMatchLabel);
+    }
+
+    private static void addMatchLabel(@NonNull ApfV4Generator gen, @NonNull JumpTable jumpTable,
+            int labelIndex, @NonNull String label, @NonNull String nextLabel) throws Exception {
+        final String parsedLabel = getPostMatchJumpTargetForLabel(labelIndex);
+        final String noMatchLabel = getNoMatchLabel(labelIndex);
+        gen.defineLabel(getStartMatchLabel(labelIndex));
+        addParseLabel(gen, jumpTable, parsedLabel);
 
         // If label length is 0, this is the end of the name and the match failed.
         gen.addSwap(); // Move label length from R1 to R0
@@ -310,6 +356,25 @@ public class DnsUtils {
         // Match, go to next label.
         gen.addJump(nextLabel);
 
+        addNoMatch(gen, jumpTable, noMatchLabel);
+    }
+
+    /** Calls parse_dns_label, which returns to {@code parsedLabel}. */
+    private static void addParseLabel(@NonNull ApfV4Generator gen, @NonNull JumpTable jumpTable,
+            @NonNull String parsedLabel) throws Exception {
+        // Store return address.
+        gen.addLoadImmediate(R0, jumpTable.getIndex(parsedLabel));
+        gen.addStoreToMemory(R0, SLOT_RETURN_VALUE_INDEX);
+
+        // Call the parse_label function.
+        gen.addJump(LABEL_PARSE_DNS_LABEL);
+
+        gen.defineLabel(parsedLabel);
+    }
+
+    /** Defines {@code noMatchLabel}, which goes to the next question and restarts matching. */
+    private static void addNoMatch(@NonNull ApfV4Generator gen, @NonNull JumpTable jumpTable,
+            @NonNull String noMatchLabel) throws Exception {
         // Match failed. Go to next name, and restart from the first match.
         gen.defineLabel(noMatchLabel);
         gen.addLoadImmediate(R1, jumpTable.getIndex(LABEL_START_MATCH));
@@ -320,8 +385,20 @@ public class DnsUtils {
     /**
      * Generates a filter that accepts DNS packet that ask for the specified name.
      *
+     * @see #generateFilter(ApfV4Generator, List)
+     */
+    public static void generateFilter(ApfV4Generator gen, String[] labels) throws Exception {
+        generateFilter(gen, Collections.singletonList(labels));
+    }
+
+    /**
+     * Generates a filter that accepts DNS packet that ask for any of the specified names.
+     *
      * The filter supports compressed DNS names and scanning through multiple questions in the same
-     * packet, e.g., as used by MDNS. However, it currently only supports one DNS name.
+     * packet, e.g., as used by MDNS. The names are compiled into a {@link DnsNameTrie}: each node
+     * parses one label and compares it against all the labels that can follow, so labels shared
+     * by several names, e.g., "_tcp.local", are only matched once, both in bytecode and at
+     * runtime. A name matches a question if the question starts with its labels.
      *
      * Limitations:
      * <ul>
@@ -340,13 +417,12 @@ public class DnsUtils {
      * TODO:
      * <ul>
      * <li>Add unit tests for the parse_dns_label and find_next_dns_question functions.
-     * <li>Support accepting more than one name.
      * <li>For devices where power saving is a priority (e.g., flat panel TVs), add support for
      *   dropping packets with more than X queries, to ensure the filter will drop the packet rather
      *   than hit the instruction limit.
      * </ul>
      */
-    public static void generateFilter(ApfV4Generator gen, String[] labels) throws Exception {
+    public static void generateFilter(ApfV4Generator gen, List<String[]> names) throws Exception {
         final int etherPlusUdpLen = ETHER_HEADER_LEN + UDP_HEADER_LEN;
 
         final String labelJumpTable = "jump_table";
@@ -388,22 +464,30 @@ public class DnsUtils {
         genParseDnsLabel(gen, table);
         genFindNextDnsQuestion(gen, table);
 
-        // Populate jump table. Should be before the code that calls to it (i.e., the addMatchLabel
+        // Nodes at which a name ends need no code: reaching them passes the packet. The others
+        // are in an order in which every node comes before the nodes it leads to, starting with
+        // the root, so jumps between them are forward.
+        final DnsNameTrie trie = new DnsNameTrie(names, true /* matchPrefixes */);
+
+        // Populate jump table. Should be before the code that calls to it (i.e., the addMatchNode
         // calls below) because otherwise all the jumps are backwards, and backwards jumps are more
         // expensive (5 bytes of bytecode)
-        for (int i = 0; i < labels.length; i++) {
-            table.addLabel(getPostMatchJumpTargetForLabel(i));
+        for (DnsNameTrie.Node node : trie.getNodes()) {
+            if (node.isTerminal()) continue;
+            table.addLabel(getPostMatchJumpTargetForLabel(node.getIndex()));
         }
         table.addLabel(LABEL_START_MATCH);
         table.generate(gen);
 
-        // Add match statements for name.
+        // Add match statements for names.
         gen.defineLabel(LABEL_START_MATCH);
-        for (int i = 0; i < labels.length; i++) {
-            final String nextLabel = (i == labels.length - 1)
-                    ? ApfV4Generator.PASS_LABEL
-                    : getStartMatchLabel(i + 1);
-            addMatchLabel(gen, table, i, labels[i], nextLabel);
+        if (trie.getRoot().isTerminal()) {
+            // An empty name matches every question.
+            gen.addJump(ApfV4Generator.PASS_LABEL);
+        }
+        for (DnsNameTrie.Node node : trie.getNodes()) {
+            if (node.isTerminal()) continue;
+            addMatchNode(gen, table, node);
         }
         gen.addJump(ApfV4Generator.DROP_LABEL);
     }
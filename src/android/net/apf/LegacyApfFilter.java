@@ -27,6 +27,7 @@ import static android.system.OsConstants.ETH_P_IPV6;
 import static android.system.OsConstants.IPPROTO_ICMPV6;
 import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
+import static android.system.OsConstants.SOCK_NONBLOCK;
 import static android.system.OsConstants.SOCK_RAW;
 
 import static com.android.net.module.util.NetworkStackConstants.ETHER_BROADCAST;
@@ -59,6 +60,7 @@ import android.text.format.DateUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.android.internal.annotations.GuardedBy;
@@ -68,7 +70,6 @@ import com.android.internal.util.IndentingPrintWriter;
 import com.android.net.module.util.CollectionUtils;
 import com.android.net.module.util.ConnectivityUtils;
 import com.android.net.module.util.InterfaceParams;
-import com.android.net.module.util.SocketUtils;
 import com.android.networkstack.metrics.ApfSessionInfoMetrics;
 import com.android.networkstack.metrics.IpClientRaInfoMetrics;
 import com.android.networkstack.metrics.NetworkQuirkMetrics;
@@ -76,7 +77,6 @@ import com.android.networkstack.util.NetworkStackUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
-import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -101,7 +101,8 @@ import java.util.Map;
  * A collection of RAs we've received is kept in mRas. Generating APF programs uses mRas to
  * know what RAs to filter for, thus generating APF programs is dependent on mRas.
  * mRas can be accessed by multiple threads:
- * - ReceiveThread, which listens for RAs and adds them to mRas, and generates APF programs.
+ * - the RaReceiver thread, which is shared by the filters of all interfaces, listens for RAs
+ *   and adds them to mRas, and generates APF programs.
  * - callers of:
  *    - setMulticastFilter(), which can cause an APF program to be generated.
  *    - dump(), which dumps mRas among other things.
@@ -136,11 +137,8 @@ public class LegacyApfFilter implements AndroidPacketFilter {
     private final String mCountAndPassLabel;
     private final String mCountAndDropLabel;
 
-    // Thread to listen for RAs.
-    @VisibleForTesting
-    public class ReceiveThread extends Thread {
-        private final byte[] mPacket = new byte[1514];
-        private final FileDescriptor mSocket;
+    // Receives RAs from the shared RaReceiver and keeps statistics about them.
+    private class RaListener implements RaReceiver.Callback {
         private final long mStart = mClock.elapsedRealtime();
 
         private int mReceivedRas = 0;
@@ -150,32 +148,23 @@ public class LegacyApfFilter implements AndroidPacketFilter {
         private int mZeroLifetimeRas = 0;
         private int mProgramUpdates = 0;
 
-        private volatile boolean mStopped;
+        private final RaReceiver.Registration mRegistration;
 
-        public ReceiveThread(FileDescriptor socket) {
-            mSocket = socket;
+        RaListener(FileDescriptor socket) {
+            mRegistration = mDependencies.getRaReceiver().register(socket, this);
         }
 
         public void halt() {
-            mStopped = true;
-            // Interrupts the read() call the thread is blocked in.
-            SocketUtils.closeSocketQuietly(mSocket);
+            mRegistration.cancel();  // Also closes socket.
+            logStats();
         }
 
         @Override
-        public void run() {
-            log("begin monitoring");
-            while (!mStopped) {
-                try {
-                    int length = Os.read(mSocket, mPacket, 0, mPacket.length);
-                    updateStats(processRa(mPacket, length));
-                } catch (IOException|ErrnoException e) {
-                    if (!mStopped) {
-                        Log.e(TAG, "Read error", e);
-                    }
-                }
+        public void onRaReceived(byte[] packet, int length) {
+            // The statistics are logged by halt(), on another thread.
+            synchronized (LegacyApfFilter.this) {
+                updateStats(processRa(packet, length));
             }
-            logStats();
         }
 
         private void updateStats(ProcessRaResult result) {
@@ -313,8 +302,8 @@ public class LegacyApfFilter implements AndroidPacketFilter {
 
     @VisibleForTesting
     public byte[] mHardwareAddress;
-    @VisibleForTesting
-    public ReceiveThread mReceiveThread;
+    @GuardedBy("this")
+    private RaListener mRaListener;
     @GuardedBy("this")
     private long mUniqueCounter;
     @GuardedBy("this")
@@ -491,7 +480,7 @@ public class LegacyApfFilter implements AndroidPacketFilter {
                 // Install basic filters
                 installNewProgramLocked();
             }
-            socket = Os.socket(AF_PACKET, SOCK_RAW, ETH_P_IPV6);
+            socket = Os.socket(AF_PACKET, SOCK_RAW | SOCK_NONBLOCK, ETH_P_IPV6);
             SocketAddress addr = makePacketSocketAddress(ETH_P_IPV6, mInterfaceParams.index);
             Os.bind(socket, addr);
             NetworkStackUtils.attachRaFilter(socket);
@@ -499,8 +488,17 @@ public class LegacyApfFilter implements AndroidPacketFilter {
             Log.e(TAG, "Error starting filter", e);
             return;
         }
-        mReceiveThread = new ReceiveThread(socket);
-        mReceiveThread.start();
+        startReceivingRas(socket);
+    }
+
+    /**
+     * Starts passing the RAs received on {@code socket} to {@link #processRa}. The socket must be
+     * non-blocking, and is closed by {@link #shutdown}.
+     */
+    @VisibleForTesting
+    protected synchronized void startReceivingRas(@NonNull FileDescriptor socket) {
+        log("begin monitoring");
+        mRaListener = new RaListener(socket);
     }
 
     // Returns seconds since device boot.
@@ -945,6 +943,13 @@ public class LegacyApfFilter implements AndroidPacketFilter {
             return mMinLifetime - (currentTimeSeconds() - mLastSeen);
         }
 
+        // The time at which isExpired() becomes true.
+        long expirySeconds() {
+            // mMinLifetime is Long.MAX_VALUE if the RA has no relevant lifetime.
+            if (mMinLifetime > Long.MAX_VALUE - mLastSeen) return Long.MAX_VALUE;
+            return mLastSeen + mMinLifetime;
+        }
+
         boolean isExpired() {
             // TODO: We may want to handle 0 lifetime RAs differently, if they are common. We'll
             // have to calculate the filter lifetime specially as a fraction of 0 is still 0.
@@ -1230,7 +1235,7 @@ public class LegacyApfFilter implements AndroidPacketFilter {
     private static final int MAX_RAS = 10;
 
     @GuardedBy("this")
-    private ArrayList<Ra> mRas = new ArrayList<>();
+    private final RaTable<Ra> mRas = new RaTable<>();
     @GuardedBy("this")
     private SparseArray<KeepalivePacket> mKeepalivePackets = new SparseArray<>();
     @GuardedBy("this")
@@ -1942,16 +1947,26 @@ public class LegacyApfFilter implements AndroidPacketFilter {
 
     @GuardedBy("this")
     private void purgeExpiredRasLocked() {
-        for (int i = 0; i < mRas.size();) {
-            if (mRas.get(i).isExpired()) {
-                log("Expiring " + mRas.get(i));
-                mRas.remove(i);
-            } else {
-                i++;
-            }
+        for (Ra ra : mRas.removeExpired(currentTimeSeconds())) {
+            log("Expiring " + ra);
         }
     }
 
+    // Hash of the Ethernet header and the IPv6 source address, which are part of the MATCH
+    // sections of every RA, so RAs that match each other have the same fingerprint. Unlike a hash
+    // of all the MATCH sections, this can be computed without parsing the packet.
+    private static int raFingerprint(byte[] packet, int length) {
+        int hash = length;
+        if (length < IPV6_SRC_ADDR_OFFSET + IPV6_ADDR_LEN) return hash;
+        for (int i = 0; i < IPV6_FLOW_LABEL_OFFSET; i++) {
+            hash = 31 * hash + packet[i];
+        }
+        for (int i = IPV6_SRC_ADDR_OFFSET; i < IPV6_SRC_ADDR_OFFSET + IPV6_ADDR_LEN; i++) {
+            hash = 31 * hash + packet[i];
+        }
+        return hash;
+    }
+
     // Get the minimum value excludes zero. This is used for calculating the lowest lifetime values
     // in RA packets. Zero lifetimes are excluded because we want to detect whether there is any
     // unusually small lifetimes but zero lifetime is actually valid (cease to be a default router
@@ -1976,30 +1991,28 @@ public class LegacyApfFilter implements AndroidPacketFilter {
         if (VDBG) hexDump("Read packet = ", packet, length);
 
         // Have we seen this RA before?
-        for (int i = 0; i < mRas.size(); i++) {
-            Ra ra = mRas.get(i);
-            if (ra.matches(packet, length)) {
-                if (VDBG) log("matched RA " + ra);
-                // Update lifetimes.
-                ra.mLastSeen = currentTimeSeconds();
-                ra.seenCount++;
-
-                // Keep mRas in LRU order so as to prioritize generating filters for recently seen
-                // RAs. LRU prioritizes this because RA filters are generated in order from mRas
-                // until the filter program exceeds the maximum filter program size allowed by the
-                // chipset, so RAs appearing earlier in mRas are more likely to make it into the
-                // filter program.
-                // TODO: consider sorting the RAs in order of increasing expiry time as well.
-                // Swap to front of array.
-                mRas.add(0, mRas.remove(i));
-
-                // If the current program doesn't expire for a while, don't update.
-                if (shouldInstallnewProgram()) {
-                    installNewProgramLocked();
-                    return ProcessRaResult.UPDATE_EXPIRY;
-                }
-                return ProcessRaResult.MATCH;
+        final int fingerprint = raFingerprint(packet, length);
+        final Ra matched = mRas.find(fingerprint, candidate -> candidate.matches(packet, length));
+        if (matched != null) {
+            if (VDBG) log("matched RA " + matched);
+            // Update lifetimes.
+            matched.mLastSeen = currentTimeSeconds();
+            matched.seenCount++;
+
+            // Keep mRas in LRU order so as to prioritize generating filters for recently seen
+            // RAs. LRU prioritizes this because RA filters are generated in order from mRas
+            // until the filter program exceeds the maximum filter program size allowed by the
+            // chipset, so RAs appearing earlier in mRas are more likely to make it into the
+            // filter program.
+            // TODO: consider sorting the RAs in order of increasing expiry time as well.
+            mRas.replace(matched, matched, fingerprint, matched.expirySeconds());
+
+            // If the current program doesn't expire for a while, don't update.
+            if (shouldInstallnewProgram()) {
+                installNewProgramLocked();
+                return ProcessRaResult.UPDATE_EXPIRY;
             }
+            return ProcessRaResult.MATCH;
         }
         purgeExpiredRasLocked();
 
@@ -2034,7 +2047,7 @@ public class LegacyApfFilter implements AndroidPacketFilter {
             return ProcessRaResult.ZERO_LIFETIME;
         }
         log("Adding " + ra);
-        mRas.add(ra);
+        mRas.addLast(ra, fingerprint, ra.expirySeconds());
         installNewProgramLocked();
         return ProcessRaResult.UPDATE_NEW_RA;
     }
@@ -2100,10 +2113,10 @@ public class LegacyApfFilter implements AndroidPacketFilter {
 
     public synchronized void shutdown() {
         collectAndSendMetrics();
-        if (mReceiveThread != null) {
+        if (mRaListener != null) {
             log("shutting down");
-            mReceiveThread.halt();  // Also closes socket.
-            mReceiveThread = null;
+            mRaListener.halt();
+            mRaListener = null;
         }
         mRas.clear();
         mContext.unregisterReceiver(mDeviceIdleReceiver);
@@ -2226,7 +2239,7 @@ public class LegacyApfFilter implements AndroidPacketFilter {
 
     public synchronized void dump(IndentingPrintWriter pw) {
         pw.println("Capabilities: " + mApfCapabilities);
-        pw.println("Receive thread: " + (mReceiveThread != null ? "RUNNING" : "STOPPED"));
+        pw.println("RA receiver: " + (mRaListener != null ? "RUNNING" : "STOPPED"));
         pw.println("Multicast: " + (mMulticastFilter ? "DROP" : "ALLOW"));
         pw.println("Minimum RDNSS lifetime: " + mMinRdnssLifetimeSec);
         try {
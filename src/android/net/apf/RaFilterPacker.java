@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Chooses which RA filters fit in the space left in an APF program.
+ *
+ * @hide
+ */
+public class RaFilterPacker {
+    /** How to choose the filters. */
+    public enum Strategy {
+        /**
+         * Take the filters in the order given, i.e., most recently used first, until one does not
+         * fit.
+         */
+        LRU,
+        /**
+         * Maximize the total value of the filters, e.g., the number of RAs they are expected to
+         * drop, within the budget.
+         */
+        VALUE,
+    }
+
+    private RaFilterPacker() {}
+
+    /**
+     * Chooses filters whose total size is at most {@code budget}.
+     *
+     * @param sizes the size of each filter, in bytes.
+     * @param values the value of each filter. Only used by {@link Strategy#VALUE}.
+     * @return whether each filter is chosen.
+     */
+    @NonNull
+    public static boolean[] pack(@NonNull Strategy strategy, @NonNull int[] sizes,
+            @NonNull double[] values, int budget) {
+        if (sizes.length != values.length) {
+            throw new IllegalArgumentException("Got " + sizes.length + " sizes and "
+                    + values.length + " values");
+        }
+        switch (strategy) {
+            case LRU:
+                return packInOrder(sizes, budget);
+            case VALUE:
+                return packByValue(sizes, values, budget);
+            default:
+                throw new IllegalArgumentException("Unknown strategy " + strategy);
+        }
+    }
+
+    private static boolean[] packInOrder(int[] sizes, int budget) {
+        final boolean[] chosen = new boolean[sizes.length];
+        int used = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (used + sizes[i] > budget) break;
+            used += sizes[i];
+            chosen[i] = true;
+        }
+        return chosen;
+    }
+
+    // Greedy 0/1 knapsack: take the filters in order of decreasing value per byte, skipping the
+    // ones that no longer fit. If a single filter that fits is worth more than the greedy choice,
+    // take it alone instead, so that the result is worth at least half the optimum.
+    private static boolean[] packByValue(int[] sizes, double[] values, int budget) {
+        final Integer[] order = new Integer[sizes.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        // Arrays.sort is stable, so filters of equal density stay in most recently used order.
+        Arrays.sort(order, Comparator.comparingDouble(i -> -density(sizes[i], values[i])));
+
+        final boolean[] chosen = new boolean[sizes.length];
+        int used = 0;
+        double total = 0;
+        int best = -1;
+        for (int i : order) {
+            if (sizes[i] > budget) continue;
+            if (best < 0 || values[i] > values[best]) best = i;
+            if (used + sizes[i] > budget) continue;
+            used += sizes[i];
+            total += values[i];
+            chosen[i] = true;
+        }
+        if (best >= 0 && values[best] > total) {
+            Arrays.fill(chosen, false);
+            chosen[best] = true;
+        }
+        return chosen;
+    }
+
+    private static double density(int size, double value) {
+        return size > 0 ? value / size : Double.POSITIVE_INFINITY;
+    }
+}
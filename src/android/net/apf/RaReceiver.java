@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.FdEventsReader;
+import com.android.net.module.util.SocketUtils;
+
+import java.io.FileDescriptor;
+
+/**
+ * Receives RAs for the APF filters of all interfaces on a single thread.
+ *
+ * Each filter registers its RA socket, and all registered sockets are polled by the looper of one
+ * shared thread, which is backed by epoll, instead of by one thread per interface blocked in
+ * read(). Packets are read into a buffer shared by all sockets: this is safe because they are read
+ * and dispatched one at a time on the receiver thread.
+ *
+ * @hide
+ */
+public class RaReceiver {
+    private static final String TAG = RaReceiver.class.getSimpleName();
+
+    // Large enough for any Ethernet frame.
+    private static final int RECV_BUF_SIZE = 1514;
+
+    /** Receives the packets read from a registered socket. */
+    public interface Callback {
+        /**
+         * Called on the receiver thread for each packet read from the socket. {@code packet} is
+         * only valid until the method returns.
+         */
+        void onRaReceived(@NonNull byte[] packet, int length);
+    }
+
+    @GuardedBy("RaReceiver.class")
+    private static RaReceiver sInstance;
+
+    private final Handler mHandler;
+    // Only accessed on the receiver thread.
+    private final byte[] mBuffer = new byte[RECV_BUF_SIZE];
+
+    /** Returns the receiver shared by all filters, starting its thread on first use. */
+    @NonNull
+    public static synchronized RaReceiver getInstance() {
+        if (sInstance == null) {
+            final HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sInstance = new RaReceiver(new Handler(thread.getLooper()));
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public RaReceiver(@NonNull Handler handler) {
+        mHandler = handler;
+    }
+
+    /** Returns the handler of the receiver thread. */
+    @NonNull
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Starts passing the packets received on {@code socket} to {@code callback}.
+     *
+     * The socket must be non-blocking. The receiver takes ownership of it, and closes it when the
+     * registration is cancelled.
+     */
+    @NonNull
+    public Registration register(@NonNull FileDescriptor socket, @NonNull Callback callback) {
+        final Registration registration = new Registration(socket, callback);
+        mHandler.post(registration::start);
+        return registration;
+    }
+
+    /** A socket registered with the receiver. */
+    public class Registration {
+        private final Reader mReader;
+        private final FileDescriptor mSocket;
+        private final Callback mCallback;
+        private volatile boolean mCancelled;
+
+        private Registration(@NonNull FileDescriptor socket, @NonNull Callback callback) {
+            mSocket = socket;
+            mCallback = callback;
+            mReader = new Reader();
+        }
+
+        /**
+         * Stops passing packets to the callback, and closes the socket. Once this method returns,
+         * the callback is not called again, other than to finish dispatching a packet whose
+         * dispatch has already started. May be called from any thread, and more than once.
+         */
+        public void cancel() {
+            if (mCancelled) return;
+            mCancelled = true;
+            // The socket is closed on the receiver thread, after it is removed from the looper,
+            // so that its file descriptor cannot be reused while it is still being polled.
+            mHandler.post(this::stop);
+        }
+
+        private void start() {
+            if (mCancelled) {
+                // Cancelled before the reader started. The stop() posted by cancel() runs next and
+                // has nothing to stop, so close the socket here.
+                SocketUtils.closeSocketQuietly(mSocket);
+                return;
+            }
+            mReader.start();
+        }
+
+        private void stop() {
+            mReader.stop();
+        }
+
+        private class Reader extends FdEventsReader<byte[]> {
+            Reader() {
+                super(mHandler, mBuffer);
+            }
+
+            @Override
+            protected FileDescriptor createFd() {
+                return mSocket;
+            }
+
+            @Override
+            protected int recvBufSize(@NonNull byte[] buffer) {
+                return buffer.length;
+            }
+
+            @Override
+            protected int readPacket(@NonNull FileDescriptor fd, @NonNull byte[] packetBuffer)
+                    throws Exception {
+                return Os.read(fd, packetBuffer, 0, packetBuffer.length);
+            }
+
+            @Override
+            protected void handlePacket(@NonNull byte[] recvbuf, int length) {
+                if (mCancelled) return;
+                mCallback.onRaReceived(recvbuf, length);
+            }
+
+            @Override
+            protected boolean handleReadError(@NonNull ErrnoException e) {
+                // Read errors are usually transient, e.g., while the interface goes down. Keep
+                // reading until the registration is cancelled.
+                logError("Read error", e);
+                return false;
+            }
+
+            @Override
+            protected void logError(@NonNull String msg, Exception e) {
+                Log.e(TAG, msg, e);
+            }
+        }
+    }
+}
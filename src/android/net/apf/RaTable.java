@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.apf;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * The set of RAs an APF filter knows about.
+ *
+ * Each RA is stored with a fingerprint, which must be equal for RAs that can match each other
+ * (typically a hash of the bytes the filter matches on), and with the time at which it expires.
+ * The table supports finding a matching RA, and removing expired RAs, in time independent of the
+ * number of RAs, and without allocating unless an RA is added. RAs are kept in most recently
+ * used order, which is the order filters are generated in.
+ *
+ * Instances are not thread-safe.
+ *
+ * @param <T> the type of RA.
+ * @hide
+ */
+public class RaTable<T> implements Iterable<T> {
+    private static class Entry<T> {
+        final T ra;
+        final int fingerprint;
+        final long expiry;
+        // Breaks ties between entries that expire at the same time.
+        final long sequence;
+        // Next entry with the same fingerprint.
+        Entry<T> nextInBucket;
+        // Neighbours in most recently used order.
+        Entry<T> prev;
+        Entry<T> next;
+
+        Entry(T ra, int fingerprint, long expiry, long sequence) {
+            this.ra = ra;
+            this.fingerprint = fingerprint;
+            this.expiry = expiry;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final int INITIAL_BUCKETS = 16;
+
+    // Entries by fingerprint, indexed by the low bits of the fingerprint. Entries in the same
+    // bucket are chained through Entry#nextInBucket. The number of buckets is a power of two
+    // and is doubled when there are more entries than buckets.
+    private Entry<T>[] mBuckets = newBuckets(INITIAL_BUCKETS);
+    // Entries by RA identity, to find the entry of an RA returned by find().
+    private final HashMap<T, Entry<T>> mEntries = new HashMap<>();
+    // Entries in order of expiry.
+    private final TreeSet<Entry<T>> mByExpiry = new TreeSet<>((a, b) -> {
+        if (a.expiry != b.expiry) return Long.compare(a.expiry, b.expiry);
+        return Long.compare(a.sequence, b.sequence);
+    });
+    // Sentinel of the circular list of entries, in most recently used order.
+    private final Entry<T> mHead = new Entry<>(null, 0, 0, 0);
+    private long mNextSequence;
+    private int mModCount;
+
+    public RaTable() {
+        mHead.prev = mHead;
+        mHead.next = mHead;
+    }
+
+    /** Returns the number of RAs in the table. */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /** Returns whether {@code ra} is in the table. */
+    public boolean contains(@NonNull T ra) {
+        return mEntries.containsKey(ra);
+    }
+
+    /**
+     * Returns an RA with the given fingerprint for which {@code matcher} returns true, or null.
+     */
+    @Nullable
+    public T find(int fingerprint, @NonNull Predicate<T> matcher) {
+        for (Entry<T> e = mBuckets[bucketOf(fingerprint)]; e != null; e = e.nextInBucket) {
+            if (e.fingerprint == fingerprint && matcher.test(e.ra)) return e.ra;
+        }
+        return null;
+    }
+
+    /** Adds {@code ra} as the most recently used RA. */
+    public void addFirst(@NonNull T ra, int fingerprint, long expiry) {
+        insertAfter(mHead, newEntry(ra, fingerprint, expiry));
+    }
+
+    /** Adds {@code ra} as the least recently used RA. */
+    public void addLast(@NonNull T ra, int fingerprint, long expiry) {
+        insertAfter(mHead.prev, newEntry(ra, fingerprint, expiry));
+    }
+
+    /**
+     * Replaces {@code oldRa} with {@code newRa}, which becomes the most recently used RA.
+     * {@code oldRa} and {@code newRa} may be the same object, for example to update its expiry.
+     */
+    public void replace(@NonNull T oldRa, @NonNull T newRa, int fingerprint, long expiry) {
+        remove(oldRa);
+        addFirst(newRa, fingerprint, expiry);
+    }
+
+    /** Removes {@code ra} from the table. Returns false if it was not in the table. */
+    public boolean remove(@NonNull T ra) {
+        final Entry<T> e = mEntries.remove(ra);
+        if (e == null) return false;
+        unlink(e);
+        return true;
+    }
+
+    /** Removes the least recently used RA and returns it, or returns null if the table is empty. */
+    @Nullable
+    public T removeLast() {
+        if (mHead.prev == mHead) return null;
+        final T ra = mHead.prev.ra;
+        remove(ra);
+        return ra;
+    }
+
+    /**
+     * Removes the RAs whose expiry is at or before {@code now}.
+     * @return the removed RAs, in order of expiry.
+     */
+    @NonNull
+    public List<T> removeExpired(long now) {
+        if (mByExpiry.isEmpty() || mByExpiry.first().expiry > now) {
+            return Collections.emptyList();
+        }
+        final ArrayList<T> expired = new ArrayList<>();
+        while (!mByExpiry.isEmpty() && mByExpiry.first().expiry <= now) {
+            final Entry<T> e = mByExpiry.first();
+            expired.add(e.ra);
+            remove(e.ra);
+        }
+        return expired;
+    }
+
+    /** Removes all RAs. */
+    public void clear() {
+        Arrays.fill(mBuckets, null);
+        mEntries.clear();
+        mByExpiry.clear();
+        mHead.prev = mHead;
+        mHead.next = mHead;
+        mModCount++;
+    }
+
+    /** Iterates over the RAs from the most to the least recently used. */
+    @Override
+    @NonNull
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private final int mExpectedModCount = mModCount;
+            private Entry<T> mNext = mHead.next;
+
+            @Override
+            public boolean hasNext() {
+                return mNext != mHead;
+            }
+
+            @Override
+            public T next() {
+                if (mModCount != mExpectedModCount) throw new ConcurrentModificationException();
+                if (mNext == mHead) throw new NoSuchElementException();
+                final T ra = mNext.ra;
+                mNext = mNext.next;
+                return ra;
+            }
+        };
+    }
+
+    private Entry<T> newEntry(T ra, int fingerprint, long expiry) {
+        if (mEntries.containsKey(ra)) {
+            throw new IllegalArgumentException("RA already in table: " + ra);
+        }
+        final Entry<T> e = new Entry<>(ra, fingerprint, expiry, mNextSequence++);
+        mEntries.put(ra, e);
+        if (mEntries.size() > mBuckets.length) resize(2 * mBuckets.length);
+        final int bucket = bucketOf(fingerprint);
+        e.nextInBucket = mBuckets[bucket];
+        mBuckets[bucket] = e;
+        mByExpiry.add(e);
+        return e;
+    }
+
+    private void insertAfter(Entry<T> position, Entry<T> e) {
+        e.prev = position;
+        e.next = position.next;
+        position.next.prev = e;
+        position.next = e;
+        mModCount++;
+    }
+
+    private void unlink(Entry<T> e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        mByExpiry.remove(e);
+        // Unchain the entry from its bucket.
+        final int bucket = bucketOf(e.fingerprint);
+        Entry<T> first = mBuckets[bucket];
+        if (first == e) {
+            mBuckets[bucket] = e.nextInBucket;
+        } else {
+            while (first.nextInBucket != e) first = first.nextInBucket;
+            first.nextInBucket = e.nextInBucket;
+        }
+        e.nextInBucket = null;
+        mModCount++;
+    }
+
+    private int bucketOf(int fingerprint) {
+        // Spread the high bits, which the mask would otherwise ignore.
+        return (fingerprint ^ (fingerprint >>> 16)) & (mBuckets.length - 1);
+    }
+
+    private void resize(int numBuckets) {
+        final Entry<T>[] old = mBuckets;
+        mBuckets = newBuckets(numBuckets);
+        for (Entry<T> first : old) {
+            Entry<T> e = first;
+            while (e != null) {
+                final Entry<T> next = e.nextInBucket;
+                final int bucket = bucketOf(e.fingerprint);
+                e.nextInBucket = mBuckets[bucket];
+                mBuckets[bucket] = e;
+                e = next;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Entry<T>[] newBuckets(int numBuckets) {
+        return (Entry<T>[]) new Entry[numBuckets];
+    }
+}
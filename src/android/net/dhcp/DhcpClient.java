@@ -53,7 +53,11 @@ import static com.android.net.module.util.NetworkStackConstants.IPV4_ADDR_ANY;
 import static com.android.net.module.util.NetworkStackConstants.IPV4_CONFLICT_ANNOUNCE_NUM;
 import static com.android.net.module.util.NetworkStackConstants.IPV4_CONFLICT_PROBE_NUM;
 import static com.android.net.module.util.SocketUtils.closeSocketQuietly;
+import static com.android.networkstack.util.NetworkStackUtils.DHCP_ADAPTIVE_RETRANSMISSION_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.DHCP_FAST_REJOIN_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.DHCP_INIT_REBOOT_RACE_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.DHCP_IP_CONFLICT_DETECT_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.DHCP_OPTIMISTIC_IP_CONFLICT_DETECT_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.DHCP_RAPID_COMMIT_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.DHCP_SLOW_RETRANSMISSION_VERSION;
 
@@ -66,6 +70,7 @@ import android.net.NetworkStackIpMemoryStore;
 import android.net.TrafficStats;
 import android.net.ip.IIpClient;
 import android.net.ip.IpClient;
+import android.net.ipmemorystore.Blob;
 import android.net.ipmemorystore.NetworkAttributes;
 import android.net.ipmemorystore.OnNetworkAttributesRetrievedListener;
 import android.net.ipmemorystore.OnStatusListener;
@@ -105,6 +110,7 @@ import com.android.networkstack.R;
 import com.android.networkstack.apishim.CaptivePortalDataShimImpl;
 import com.android.networkstack.apishim.SocketUtilsShimImpl;
 import com.android.networkstack.metrics.IpProvisioningMetrics;
+import com.android.networkstack.metrics.ProvisioningStateLatencies;
 import com.android.networkstack.util.NetworkStackUtils;
 
 import java.io.ByteArrayOutputStream;
@@ -162,6 +168,15 @@ public class DhcpClient extends StateMachine {
     private static final int MAX_TIMEOUT_MS           = 512 * SECONDS;
     private static final int IPMEMORYSTORE_TIMEOUT_MS =   1 * SECONDS;
     private static final int DHCP_INITREBOOT_TIMEOUT_MS = 5 * SECONDS;
+    // Lower bound of the first retransmission timeout computed from the RTT measured on the
+    // network. The upper bound is FIRST_TIMEOUT_MS.
+    private static final int MIN_ADAPTIVE_FIRST_TIMEOUT_MS = 250;
+
+    // Client ID and name of the IpMemoryStore blob holding the DhcpNetworkProfile of a network.
+    @VisibleForTesting
+    public static final String DHCP_PROFILE_CLIENT_ID = "android.net.dhcp.DhcpClient";
+    @VisibleForTesting
+    public static final String DHCP_PROFILE_BLOB_NAME = "dhcp_profile";
 
     // The waiting time to restart the DHCP configuration process after broadcasting a
     // DHCPDECLINE message, (RFC2131 3.1.5 describes client SHOULD wait a minimum of 10
@@ -251,6 +266,9 @@ public class DhcpClient extends StateMachine {
     public static final int DHCP_FAILURE = 2;
     public static final int DHCP_IPV6_ONLY = 3;
     public static final int DHCP_REFRESH_FAILURE = 4;
+    // The address configured optimistically conflicts with another host and was withdrawn. The
+    // client declines it and obtains a new lease, so this is not a provisioning failure.
+    public static final int DHCP_ADDRESS_WITHDRAWN = 5;
 
     // Internal messages.
     private static final int PRIVATE_BASE         = IpClient.DHCPCLIENT_CMD_BASE + 100;
@@ -267,6 +285,7 @@ public class DhcpClient extends StateMachine {
     private static final int EVENT_IP_CONFLICT             = PRIVATE_BASE + 10;
     private static final int CMD_ARP_PROBE        = PRIVATE_BASE + 11;
     private static final int CMD_ARP_ANNOUNCEMENT = PRIVATE_BASE + 12;
+    private static final int EVENT_DHCP_PROFILE_RETRIEVED  = PRIVATE_BASE + 13;
 
     // constant to represent this DHCP lease has been expired.
     @VisibleForTesting
@@ -334,6 +353,8 @@ public class DhcpClient extends StateMachine {
     private final IpConnectivityLog mMetricsLog = new IpConnectivityLog();
     @NonNull
     private final IpProvisioningMetrics mMetrics;
+    @NonNull
+    private final ProvisioningStateLatencies mStateLatencies;
 
     // We use a UDP socket to send, so the kernel handles ARP and routing for us (DHCP servers can
     // be off-link as well as on-link).
@@ -353,8 +374,39 @@ public class DhcpClient extends StateMachine {
     // TODO: MacAddress-ify more of this class hierarchy.
     private byte[] mHwAddr;
     private SocketAddress mInterfaceBroadcastAddr;
-    private int mTransactionId;
+    // Transaction IDs are also read by the receive thread to filter packets before decoding.
+    private volatile int mTransactionId;
+    // Transaction ID of the INIT-REBOOT exchange raced against DISCOVER, valid while
+    // mRacingInitReboot is true.
+    private volatile int mInitRebootTransactionId;
+    private volatile boolean mRacingInitReboot;
     private long mTransactionStartMillis;
+    // Buffer reused to build DISCOVER and REQUEST packets, and how the packet it contains was
+    // last transmitted, so that it can be retransmitted without being rebuilt.
+    private final ByteBuffer mTxBuffer = ByteBuffer.allocate(DhcpPacket.MAX_LENGTH);
+    private String mTxDescription;
+    private int mTxEncap;
+    private Inet4Address mTxDst;
+    private boolean mTxIsDiscover;
+    private boolean mTxRapidCommit;
+    // Round-trip time of DHCP exchanges on the current network.
+    private DhcpRttEstimator mRttEstimator = new DhcpRttEstimator();
+    // DhcpNetworkProfile of the current network retrieved from the IpMemoryStore, and whether its
+    // retrieval for the request mDhcpProfileRequestId is still in progress.
+    @Nullable
+    private DhcpNetworkProfile mRememberedProfile;
+    private int mDhcpProfileRequestId;
+    private boolean mDhcpProfilePending;
+    // Serialized profile last retrieved from or stored to the IpMemoryStore.
+    @Nullable
+    private byte[] mStoredDhcpProfile;
+    // What was observed about the server since DHCP was started: the DhcpNetworkProfile flags in
+    // mObservedProfileFlagsMask were observed with the values in mObservedProfileFlags.
+    private int mObservedProfileFlags;
+    private int mObservedProfileFlagsMask;
+    private boolean mSkippedInitReboot;
+    @Nullable
+    private byte[] mLastAckOptionTypes;
     private DhcpResults mDhcpLease;
     private long mDhcpLeaseExpiry;
     private long mT2;
@@ -392,6 +444,7 @@ public class DhcpClient extends StateMachine {
     private State mDhcpRenewingState = new DhcpRenewingState();
     private State mDhcpRebindingState = new DhcpRebindingState();
     private State mDhcpInitRebootState = new DhcpInitRebootState();
+    private State mDhcpInitRebootRaceState = new DhcpInitRebootRaceState();
     private State mDhcpRebootingState = new DhcpRebootingState();
     private State mObtainingConfigurationState = new ObtainingConfigurationState();
     private State mWaitBeforeStartState = new WaitBeforeStartState(mDhcpInitState);
@@ -496,6 +549,7 @@ public class DhcpClient extends StateMachine {
         mIfaceName = iface;
         mIpMemoryStore = deps.getIpMemoryStore();
         mMetrics = deps.getIpProvisioningMetrics();
+        mStateLatencies = ProvisioningStateLatencies.forInterface(mIfaceName);
 
         // CHECKSTYLE:OFF IndentationCheck
         addState(mStoppedState);
@@ -518,6 +572,7 @@ public class DhcpClient extends StateMachine {
                 addState(mDhcpDecliningState, mDhcpHaveLeaseState);
                 addState(mDhcpRefreshingAddressState, mDhcpHaveLeaseState);
             addState(mDhcpInitRebootState, mDhcpState);
+            addState(mDhcpInitRebootRaceState, mDhcpState);
             addState(mDhcpRebootingState, mDhcpState);
         // CHECKSTYLE:ON IndentationCheck
 
@@ -584,6 +639,38 @@ public class DhcpClient extends StateMachine {
         return mDependencies.isFeatureEnabled(mContext, DHCP_SLOW_RETRANSMISSION_VERSION);
     }
 
+    /**
+     * Check whether to configure the leased IPv4 address while the IP address conflict detection
+     * is in progress.
+     */
+    public boolean isDhcpOptimisticIpConflictDetectEnabled() {
+        return mDependencies.isFeatureEnabled(mContext, DHCP_OPTIMISTIC_IP_CONFLICT_DETECT_VERSION);
+    }
+
+    /**
+     * Check whether to send INIT-REBOOT DHCPREQUEST and DHCPDISCOVER in parallel when a previously
+     * assigned address is known.
+     */
+    public boolean isDhcpInitRebootRaceEnabled() {
+        return mDependencies.isFeatureEnabled(mContext, DHCP_INIT_REBOOT_RACE_VERSION);
+    }
+
+    /**
+     * Check whether to shorten the first retransmission timeout according to the RTT previously
+     * measured on the network.
+     */
+    public boolean isDhcpAdaptiveRetransmissionEnabled() {
+        return mDependencies.isFeatureEnabled(mContext, DHCP_ADAPTIVE_RETRANSMISSION_VERSION);
+    }
+
+    /**
+     * Check whether to skip INIT-REBOOT according to how the DHCP server of the network previously
+     * answered it.
+     */
+    public boolean isDhcpFastRejoinEnabled() {
+        return mDependencies.isFeatureEnabled(mContext, DHCP_FAST_REJOIN_VERSION);
+    }
+
     private void recordMetricEnabledFeatures() {
         mMetrics.setDhcpEnabledFeature(DhcpFeature.DF_INITREBOOT);
         if (isDhcpRapidCommitEnabled()) mMetrics.setDhcpEnabledFeature(DhcpFeature.DF_RAPIDCOMMIT);
@@ -595,6 +682,7 @@ public class DhcpClient extends StateMachine {
 
     private void confirmDhcpLease(DhcpPacket packet, DhcpResults results) {
         setDhcpLeaseExpiry(packet);
+        mLastAckOptionTypes = packet.getOptionTypes();
         acceptDhcpResults(results, "Confirmed");
     }
 
@@ -664,8 +752,12 @@ public class DhcpClient extends StateMachine {
         @Override
         protected void handlePacket(byte[] recvbuf, int length) {
             try {
-                final DhcpPacket packet = DhcpPacket.decodeFullPacket(recvbuf, length,
-                        DhcpPacket.ENCAP_L2, getOptionsToSkip());
+                // Drop replies to other clients or transactions before decoding options, as all
+                // DHCP traffic on the link is received.
+                final DhcpRawPacket rawPacket =
+                        DhcpRawPacket.parse(recvbuf, length, DhcpPacket.ENCAP_L2);
+                if (!isValidRawPacket(rawPacket)) return;
+                final DhcpPacket packet = rawPacket.decode(getOptionsToSkip());
                 if (DBG) Log.d(TAG, "Received packet: " + packet);
                 sendMessage(CMD_RECEIVED_PACKET, packet);
             } catch (DhcpPacket.ParseException e) {
@@ -759,37 +851,74 @@ public class DhcpClient extends StateMachine {
         return true;
     }
 
-    private boolean sendDiscoverPacket() {
+    private boolean shouldRequestRapidCommit() {
         // When Rapid Commit option is enabled, limit only the first 3 DHCPDISCOVER packets
         // taking Rapid Commit option, in order to prevent the potential interoperability issue
         // and be able to rollback later. See {@link DHCP_TIMEOUT_MS} for the (re)transmission
         // schedule with 10% jitter.
-        final boolean requestRapidCommit = isDhcpRapidCommitEnabled() && (getSecs() <= 4);
-        final ByteBuffer packet = DhcpPacket.buildDiscoverPacket(
+        return isDhcpRapidCommitEnabled() && (getSecs() <= 4);
+    }
+
+    private boolean sendDiscoverPacket() {
+        final boolean requestRapidCommit = shouldRequestRapidCommit();
+        DhcpPacket.buildDiscoverPacket(
                 DhcpPacket.ENCAP_L2, mTransactionId, getSecs(), mHwAddr,
                 DO_UNICAST, getRequestedParams(), requestRapidCommit, maybeGetHostnameForSending(),
-                mConfiguration.options);
+                mConfiguration.options, mTxBuffer);
+        mTxIsDiscover = true;
+        mTxRapidCommit = requestRapidCommit;
         mMetrics.incrementCountForDiscover();
-        return transmitPacket(packet, "DHCPDISCOVER", DhcpPacket.ENCAP_L2, INADDR_BROADCAST);
+        return transmitTxBuffer("DHCPDISCOVER", DhcpPacket.ENCAP_L2, INADDR_BROADCAST);
     }
 
     private boolean sendRequestPacket(
             final Inet4Address clientAddress, final Inet4Address requestedAddress,
             final Inet4Address serverAddress, final Inet4Address to) {
+        return sendRequestPacket(mTransactionId, clientAddress, requestedAddress, serverAddress,
+                to);
+    }
+
+    private boolean sendRequestPacket(final int transactionId,
+            final Inet4Address clientAddress, final Inet4Address requestedAddress,
+            final Inet4Address serverAddress, final Inet4Address to) {
         // TODO: should we use the transaction ID from the server?
         final int encap = INADDR_ANY.equals(clientAddress)
                 ? DhcpPacket.ENCAP_L2 : DhcpPacket.ENCAP_BOOTP;
 
-        final ByteBuffer packet = DhcpPacket.buildRequestPacket(
-                encap, mTransactionId, getSecs(), clientAddress, DO_UNICAST, mHwAddr,
+        DhcpPacket.buildRequestPacket(
+                encap, transactionId, getSecs(), clientAddress, DO_UNICAST, mHwAddr,
                 requestedAddress, serverAddress, getRequestedParams(), maybeGetHostnameForSending(),
-                mConfiguration.options);
+                mConfiguration.options, mTxBuffer);
         String serverStr = (serverAddress != null) ? serverAddress.getHostAddress() : null;
         String description = "DHCPREQUEST ciaddr=" + clientAddress.getHostAddress() +
                              " request=" + requestedAddress.getHostAddress() +
                              " serverid=" + serverStr;
+        mTxIsDiscover = false;
         mMetrics.incrementCountForRequest();
-        return transmitPacket(packet, description, encap, to);
+        return transmitTxBuffer(description, encap, to);
+    }
+
+    private boolean transmitTxBuffer(String description, int encap, Inet4Address to) {
+        mTxDescription = description;
+        mTxEncap = encap;
+        mTxDst = to;
+        return transmitPacket(mTxBuffer, description, encap, to);
+    }
+
+    /**
+     * Retransmits the DISCOVER or REQUEST packet last built in mTxBuffer, only updating its
+     * elapsed seconds field.
+     */
+    private boolean retransmitTxBuffer() {
+        DhcpPacket.updateSecs(mTxBuffer, mTxEncap, getSecs());
+        // Sending through the UDP socket consumes the buffer.
+        mTxBuffer.rewind();
+        if (mTxIsDiscover) {
+            mMetrics.incrementCountForDiscover();
+        } else {
+            mMetrics.incrementCountForRequest();
+        }
+        return transmitPacket(mTxBuffer, mTxDescription, mTxEncap, mTxDst);
     }
 
     private boolean sendDeclinePacket(final Inet4Address requestedAddress,
@@ -838,6 +967,114 @@ public class DhcpClient extends StateMachine {
         mIpMemoryStore.storeNetworkAttributes(l2Key, na.build(), listener);
     }
 
+    private boolean isDhcpProfileEnabled() {
+        return isDhcpAdaptiveRetransmissionEnabled() || isDhcpFastRejoinEnabled();
+    }
+
+    private void maybeRetrieveDhcpProfile() {
+        mRttEstimator = new DhcpRttEstimator();
+        mRememberedProfile = null;
+        mStoredDhcpProfile = null;
+        mObservedProfileFlags = 0;
+        mObservedProfileFlagsMask = 0;
+        mSkippedInitReboot = false;
+        mLastAckOptionTypes = null;
+        mDhcpProfilePending = false;
+        final String l2Key = mConfiguration.l2Key;
+        if (l2Key == null || !isDhcpProfileEnabled()) return;
+
+        // Results of the retrievals for previous starts are ignored, in case DHCP was restarted on
+        // another network in the meantime.
+        final int requestId = ++mDhcpProfileRequestId;
+        mDhcpProfilePending = true;
+        mIpMemoryStore.retrieveBlob(l2Key, DHCP_PROFILE_CLIENT_ID, DHCP_PROFILE_BLOB_NAME,
+                (status, key, name, blob) -> {
+                    if (!status.isSuccess()) {
+                        Log.e(TAG, "Error retrieving DHCP profile: " + status);
+                    }
+                    final DhcpNetworkProfile profile = (status.isSuccess() && blob != null)
+                            ? DhcpNetworkProfile.fromBytes(blob.data) : null;
+                    sendMessage(EVENT_DHCP_PROFILE_RETRIEVED, requestId, 0, profile);
+                });
+    }
+
+    private void handleDhcpProfileRetrieved(@NonNull Message message) {
+        if (message.arg1 != mDhcpProfileRequestId) return;
+        mDhcpProfilePending = false;
+        final DhcpNetworkProfile profile = (DhcpNetworkProfile) message.obj;
+        if (profile == null) return;
+        if (DBG) Log.d(TAG, "Retrieved " + profile);
+        mRememberedProfile = profile;
+        mStoredDhcpProfile = profile.toBytes();
+        if (isDhcpAdaptiveRetransmissionEnabled()
+                && mRttEstimator.restore(profile.getRttEstimate())) {
+            if (DBG) Log.d(TAG, "Restored " + mRttEstimator);
+        }
+    }
+
+    private void observeProfileFlags(int mask, int flags) {
+        mObservedProfileFlagsMask |= mask;
+        mObservedProfileFlags = (mObservedProfileFlags & ~mask) | (flags & mask);
+    }
+
+    private void observeInitRebootReply(@NonNull DhcpPacket packet) {
+        if (packet instanceof DhcpAckPacket) {
+            observeProfileFlags(DhcpNetworkProfile.FLAGS_INIT_REBOOT,
+                    DhcpNetworkProfile.FLAG_INIT_REBOOT_ACKED);
+        } else if (packet instanceof DhcpNakPacket) {
+            observeProfileFlags(DhcpNetworkProfile.FLAGS_INIT_REBOOT,
+                    DhcpNetworkProfile.FLAG_INIT_REBOOT_FAILED);
+        }
+    }
+
+    /**
+     * Returns whether INIT-REBOOT should be skipped because the DHCP server of the network did not
+     * acknowledge it last time, or because rapid commit is known to be at least as fast.
+     */
+    private boolean shouldSkipInitReboot() {
+        final DhcpNetworkProfile profile = mRememberedProfile;
+        if (profile == null || !isDhcpFastRejoinEnabled()) return false;
+        if (profile.hasFlag(DhcpNetworkProfile.FLAG_INIT_REBOOT_ACKED)) return false;
+        return profile.hasFlag(DhcpNetworkProfile.FLAG_INIT_REBOOT_FAILED)
+                || (profile.hasFlag(DhcpNetworkProfile.FLAG_RAPID_COMMIT)
+                        && isDhcpRapidCommitEnabled());
+    }
+
+    private void maybeSaveDhcpProfileToIpMemoryStore() {
+        final String l2Key = mConfiguration.l2Key;
+        if (l2Key == null || mDhcpLease == null || !isDhcpProfileEnabled()) return;
+
+        // The flags of the remembered profile are only kept if the server is configured the same,
+        // as the server may otherwise behave differently.
+        final Inet4Address serverId = mDhcpLease.serverAddress;
+        final DhcpNetworkProfile remembered = mRememberedProfile;
+        int flags = 0;
+        if (remembered != null
+                && remembered.isSameServerConfiguration(serverId, mLastAckOptionTypes)) {
+            flags = remembered.getFlags();
+        }
+        // Try INIT-REBOOT again next time, in case the server now supports it.
+        if (mSkippedInitReboot) flags &= ~DhcpNetworkProfile.FLAGS_INIT_REBOOT;
+        flags = (flags & ~mObservedProfileFlagsMask) | mObservedProfileFlags;
+        final byte[] rttEstimate = mRttEstimator.hasEstimate() ? mRttEstimator.toBytes()
+                : (remembered != null ? remembered.getRttEstimate() : null);
+
+        final DhcpNetworkProfile profile =
+                new DhcpNetworkProfile(serverId, mLastAckOptionTypes, rttEstimate, flags);
+        final byte[] data = profile.toBytes();
+        if (Arrays.equals(data, mStoredDhcpProfile)) return;
+        mStoredDhcpProfile = data;
+        if (DBG) Log.d(TAG, "Storing " + profile);
+
+        final Blob blob = new Blob();
+        blob.data = data;
+        final OnStatusListener listener = status -> {
+            if (!status.isSuccess()) Log.e(TAG, "Failed to store DHCP profile, status: " + status);
+        };
+        mIpMemoryStore.storeBlob(l2Key, DHCP_PROFILE_CLIENT_ID, DHCP_PROFILE_BLOB_NAME, blob,
+                listener);
+    }
+
     private void maybeSaveLeaseToIpMemoryStore() {
         final String l2Key = mConfiguration.l2Key;
         if (l2Key == null || mDhcpLease == null || mDhcpLease.ipAddress == null) return;
@@ -857,15 +1094,31 @@ public class DhcpClient extends StateMachine {
 
     private void notifySuccess() {
         maybeSaveLeaseToIpMemoryStore();
+        maybeSaveDhcpProfileToIpMemoryStore();
         mController.sendMessage(
                 CMD_POST_DHCP_ACTION, DHCP_SUCCESS, 0, new DhcpResults(mDhcpLease));
     }
 
+    private void notifySuccessAndConfigureLinkAddress() {
+        // We must call notifySuccess to apply the rest of the DHCP configuration (e.g., DNS
+        // servers) before adding the IP address to the interface. Otherwise, as soon as
+        // IpClient sees the IP address appear, it will enter provisioned state without any
+        // configuration information from DHCP. http://b/146850745.
+        notifySuccess();
+        mController.sendMessage(CMD_CONFIGURE_LINKADDRESS, mDhcpLease.leaseDuration, 0,
+                mDhcpLease.ipAddress);
+    }
+
     private void notifyFailure(int arg) {
         setLeaseExpiredToIpMemoryStore();
         mController.sendMessage(CMD_POST_DHCP_ACTION, arg, 0, null);
     }
 
+    private void notifyAddressWithdrawn() {
+        setLeaseExpiredToIpMemoryStore();
+        mController.sendMessage(CMD_POST_DHCP_ACTION, DHCP_ADDRESS_WITHDRAWN, 0, null);
+    }
+
     private void acceptDhcpResults(DhcpResults results, String msg) {
         mDhcpLease = results;
         if (mDhcpLease.dnsServers.isEmpty()) {
@@ -907,19 +1160,41 @@ public class DhcpClient extends StateMachine {
         mController.sendMessage(CMD_ON_QUIT);
     }
 
+    /**
+     * Returns the state of {@link ProvisioningStateLatencies} in which the time spent in a state is
+     * recorded, or {@link ProvisioningStateLatencies#STATE_NONE}.
+     */
+    private int getLatencyState(@NonNull State state) {
+        if (state == mObtainingConfigurationState) {
+            return ProvisioningStateLatencies.STATE_DHCP_OBTAINING_CONFIGURATION;
+        } else if (state == mDhcpInitState) {
+            return ProvisioningStateLatencies.STATE_DHCP_INIT;
+        } else if (state == mDhcpInitRebootState || state == mDhcpInitRebootRaceState) {
+            return ProvisioningStateLatencies.STATE_DHCP_INIT_REBOOT;
+        } else if (state == mDhcpRequestingState) {
+            return ProvisioningStateLatencies.STATE_DHCP_REQUESTING;
+        } else if (state == mIpAddressConflictDetectingState) {
+            return ProvisioningStateLatencies.STATE_DHCP_IP_CONFLICT_DETECTING;
+        } else if (state == mConfiguringInterfaceState) {
+            return ProvisioningStateLatencies.STATE_DHCP_CONFIGURING_INTERFACE;
+        }
+        return ProvisioningStateLatencies.STATE_NONE;
+    }
+
     abstract class LoggingState extends State {
-        private long mEnterTimeMs;
+        private long mEnterTimeNs;
 
         @Override
         public void enter() {
             if (STATE_DBG) Log.d(TAG, "Entering state " + getName());
-            mEnterTimeMs = SystemClock.elapsedRealtime();
+            mEnterTimeNs = SystemClock.elapsedRealtimeNanos();
         }
 
         @Override
         public void exit() {
-            long durationMs = SystemClock.elapsedRealtime() - mEnterTimeMs;
-            logState(getName(), (int) durationMs);
+            final long durationNs = SystemClock.elapsedRealtimeNanos() - mEnterTimeNs;
+            mStateLatencies.record(getLatencyState(this), durationNs);
+            logState(getName(), (int) (durationNs / 1_000_000L));
         }
 
         private String messageName(int what) {
@@ -1025,6 +1300,7 @@ public class DhcpClient extends StateMachine {
             switch (message.what) {
                 case CMD_START_DHCP:
                     mConfiguration = (Configuration) message.obj;
+                    maybeRetrieveDhcpProfile();
                     if (mConfiguration.isPreconnectionEnabled) {
                         transitionTo(mDhcpPreconnectingState);
                     } else {
@@ -1089,17 +1365,41 @@ public class DhcpClient extends StateMachine {
                 case CMD_STOP_DHCP:
                     transitionTo(mStoppedState);
                     return HANDLED;
+                case EVENT_DHCP_PROFILE_RETRIEVED:
+                    handleDhcpProfileRetrieved(message);
+                    return HANDLED;
                 default:
                     return NOT_HANDLED;
             }
         }
     }
 
+    /**
+     * Check whether a received packet could be a reply for the current transaction, before
+     * decoding it. Packets that pass this check are still checked by {@link #isValidPacket}.
+     */
+    private boolean isValidRawPacket(@NonNull DhcpRawPacket packet) {
+        if (packet.getOp() != DhcpPacket.DHCP_BOOTREPLY) return false;
+        final int xid = packet.getTransactionId();
+        if (xid != mTransactionId && !(mRacingInitReboot && xid == mInitRebootTransactionId)) {
+            if (DBG) {
+                Log.d(TAG, "Unexpected transaction ID " + xid + ", expected " + mTransactionId);
+            }
+            return false;
+        }
+        return packet.clientMacEquals(mHwAddr);
+    }
+
     public boolean isValidPacket(DhcpPacket packet) {
+        return isValidPacket(packet, mTransactionId);
+    }
+
+    private boolean isValidPacket(DhcpPacket packet, int expectedTransactionId) {
         // TODO: check checksum.
         int xid = packet.getTransactionId();
-        if (xid != mTransactionId) {
-            Log.d(TAG, "Unexpected transaction ID " + xid + ", expected " + mTransactionId);
+        if (xid != expectedTransactionId) {
+            Log.d(TAG, "Unexpected transaction ID " + xid + ", expected "
+                    + expectedTransactionId);
             return false;
         }
         if (!Arrays.equals(packet.getClientMac(), mHwAddr)) {
@@ -1166,11 +1466,31 @@ public class DhcpClient extends StateMachine {
      */
     abstract class PacketRetransmittingState extends TimeoutState {
         private int mTimer;
+        // Whether mTxBuffer contains the packet last sent by this state.
+        private boolean mPacketSent;
+        private int mKickCount;
+        // Time at which the first packet was sent, or 0 if no RTT sample can be taken because the
+        // packet was retransmitted or a sample was already taken.
+        private long mRttSampleStartMs;
+        // Time at which the first packet was sent.
+        private long mFirstTransmitMs;
+        // First retransmission timeout computed from the RTT estimate, or 0 if the usual timeout
+        // was used.
+        private int mAdaptiveTimeoutMs;
+        // Whether the packet was retransmitted after mAdaptiveTimeoutMs and no reply was received
+        // since, in which case the estimate must be backed off when the reply arrives.
+        private boolean mRetransmittedEarly;
 
         @Override
         public void enter() {
             super.enter();
             initTimer();
+            mPacketSent = false;
+            mKickCount = 0;
+            mRttSampleStartMs = 0;
+            mFirstTransmitMs = 0;
+            mAdaptiveTimeoutMs = 0;
+            mRetransmittedEarly = false;
             sendMessage(CMD_KICK);
         }
 
@@ -1182,10 +1502,23 @@ public class DhcpClient extends StateMachine {
 
             switch (message.what) {
                 case CMD_KICK:
-                    sendPacket();
+                    if (mKickCount == 1 && mAdaptiveTimeoutMs > 0) {
+                        mMetrics.addAdaptiveRetransmission(mTimer - mAdaptiveTimeoutMs);
+                        mRetransmittedEarly = mFirstTransmitMs != 0;
+                    }
+                    if (mPacketSent && canRetransmitPacket()) {
+                        retransmitTxBuffer();
+                    } else {
+                        mPacketSent = sendPacket();
+                    }
+                    mKickCount++;
+                    mRttSampleStartMs = (mKickCount == 1 && mPacketSent)
+                            ? SystemClock.elapsedRealtime() : 0;
+                    if (mKickCount == 1) mFirstTransmitMs = mRttSampleStartMs;
                     scheduleKick();
                     return HANDLED;
                 case CMD_RECEIVED_PACKET:
+                    maybeUpdateRttEstimate((DhcpPacket) message.obj);
                     receivePacket((DhcpPacket) message.obj);
                     return HANDLED;
                 default:
@@ -1203,10 +1536,55 @@ public class DhcpClient extends StateMachine {
         protected abstract void receivePacket(DhcpPacket packet);
         protected void timeout() {}
 
+        /**
+         * Returns whether the packet last sent by sendPacket is still valid, so that the next kick
+         * can retransmit it instead of building a new one.
+         */
+        protected boolean canRetransmitPacket() {
+            return true;
+        }
+
         protected void initTimer() {
             mTimer = FIRST_TIMEOUT_MS;
         }
 
+        private void maybeUpdateRttEstimate(DhcpPacket packet) {
+            if (mRttSampleStartMs == 0 && !mRetransmittedEarly) return;
+            if (!(packet instanceof DhcpOfferPacket) && !(packet instanceof DhcpAckPacket)
+                    && !(packet instanceof DhcpNakPacket)) {
+                return;
+            }
+            final int xid = packet.getTransactionId();
+            if (xid != mTransactionId && !(mRacingInitReboot && xid == mInitRebootTransactionId)) {
+                return;
+            }
+            if (!Arrays.equals(packet.getClientMac(), mHwAddr)) return;
+            final long now = SystemClock.elapsedRealtime();
+            if (mRttSampleStartMs != 0) {
+                mRttEstimator.addSample(now - mRttSampleStartMs);
+                mRttSampleStartMs = 0;
+            } else {
+                // The reply came after the early retransmission, so the estimate is too low. The
+                // reply may be to either transmission, so back off instead of taking a sample.
+                mRttEstimator.backOff(now - mFirstTransmitMs);
+                if (DBG) Log.d(TAG, "Backed off " + mRttEstimator);
+            }
+            mRetransmittedEarly = false;
+        }
+
+        /**
+         * Returns the timeout of the first retransmission computed from the RTT estimate, or 0 if
+         * it would not be shorter than the usual timeout.
+         */
+        private int getAdaptiveTimeoutMs() {
+            if (mKickCount != 1 || !mRttEstimator.hasEstimate()
+                    || !isDhcpAdaptiveRetransmissionEnabled()) {
+                return 0;
+            }
+            final int timeout = mRttEstimator.getTimeoutMs(MIN_ADAPTIVE_FIRST_TIMEOUT_MS, mTimer);
+            return timeout < mTimer ? timeout : 0;
+        }
+
         protected int jitterTimer(int baseTimer) {
             int maxJitter = baseTimer / 10;
             int jitter = mRandom.nextInt(2 * maxJitter) - maxJitter;
@@ -1215,6 +1593,13 @@ public class DhcpClient extends StateMachine {
 
         protected void scheduleFastKick() {
             long now = SystemClock.elapsedRealtime();
+            mAdaptiveTimeoutMs = getAdaptiveTimeoutMs();
+            if (mAdaptiveTimeoutMs > 0) {
+                // Retransmit earlier when the server usually replies quickly, then follow the
+                // usual schedule: mTimer is not doubled.
+                mKickAlarm.schedule(now + jitterTimer(mAdaptiveTimeoutMs));
+                return;
+            }
             long timeout = jitterTimer(mTimer);
             long alarmTime = now + timeout;
             mKickAlarm.schedule(alarmTime);
@@ -1232,9 +1617,17 @@ public class DhcpClient extends StateMachine {
     }
 
     class ObtainingConfigurationState extends LoggingState {
+        // Network attributes retrieved from the IpMemoryStore, and whether their retrieval
+        // completed. The DHCP profile of the network is also waited for if it is being retrieved.
+        @Nullable
+        private NetworkAttributes mAttributes;
+        private boolean mAttributesRetrieved;
+
         @Override
         public void enter() {
             super.enter();
+            mAttributes = null;
+            mAttributesRetrieved = false;
 
             // Set a timeout for retrieving network attributes operation
             sendMessageDelayed(EVENT_CONFIGURATION_TIMEOUT, IPMEMORYSTORE_TIMEOUT_MS);
@@ -1257,27 +1650,24 @@ public class DhcpClient extends StateMachine {
             super.processMessage(message);
             switch (message.what) {
                 case EVENT_CONFIGURATION_INVALID:
-                case EVENT_CONFIGURATION_TIMEOUT:
-                    transitionTo(mDhcpInitState);
+                    mAttributesRetrieved = true;
+                    maybeStartObtainingLease();
                     return HANDLED;
 
                 case EVENT_CONFIGURATION_OBTAINED:
-                    final long currentTime = System.currentTimeMillis();
-                    NetworkAttributes attributes = (NetworkAttributes) message.obj;
-                    if (DBG) {
-                        Log.d(TAG, "l2key: "         + mConfiguration.l2Key
-                                + " lease address: " + attributes.assignedV4Address
-                                + " lease expiry: "  + attributes.assignedV4AddressExpiry
-                                + " current time: "  + currentTime);
-                    }
-                    if (currentTime >= attributes.assignedV4AddressExpiry) {
-                        // Lease has expired.
-                        transitionTo(mDhcpInitState);
-                        return HANDLED;
-                    }
-                    mLastAssignedIpv4Address = attributes.assignedV4Address;
-                    mLastAssignedIpv4AddressExpiry = attributes.assignedV4AddressExpiry;
-                    transitionTo(mDhcpInitRebootState);
+                    mAttributes = (NetworkAttributes) message.obj;
+                    mAttributesRetrieved = true;
+                    maybeStartObtainingLease();
+                    return HANDLED;
+
+                case EVENT_DHCP_PROFILE_RETRIEVED:
+                    handleDhcpProfileRetrieved(message);
+                    maybeStartObtainingLease();
+                    return HANDLED;
+
+                case EVENT_CONFIGURATION_TIMEOUT:
+                    // Continue with whatever was retrieved.
+                    startObtainingLease();
                     return HANDLED;
 
                 default:
@@ -1286,12 +1676,47 @@ public class DhcpClient extends StateMachine {
             }
         }
 
+        private void maybeStartObtainingLease() {
+            if (mAttributesRetrieved && !mDhcpProfilePending) startObtainingLease();
+        }
+
+        private void startObtainingLease() {
+            final NetworkAttributes attributes = mAttributes;
+            if (attributes == null) {
+                transitionTo(mDhcpInitState);
+                return;
+            }
+            final long currentTime = System.currentTimeMillis();
+            if (DBG) {
+                Log.d(TAG, "l2key: "         + mConfiguration.l2Key
+                        + " lease address: " + attributes.assignedV4Address
+                        + " lease expiry: "  + attributes.assignedV4AddressExpiry
+                        + " current time: "  + currentTime);
+            }
+            if (currentTime >= attributes.assignedV4AddressExpiry) {
+                // Lease has expired.
+                transitionTo(mDhcpInitState);
+                return;
+            }
+            if (shouldSkipInitReboot()) {
+                Log.d(TAG, "Skipping INIT-REBOOT: " + mRememberedProfile);
+                mSkippedInitReboot = true;
+                transitionTo(mDhcpInitState);
+                return;
+            }
+            mLastAssignedIpv4Address = attributes.assignedV4Address;
+            mLastAssignedIpv4AddressExpiry = attributes.assignedV4AddressExpiry;
+            transitionTo(isDhcpInitRebootRaceEnabled()
+                    ? mDhcpInitRebootRaceState : mDhcpInitRebootState);
+        }
+
         @Override
         public void exit() {
             super.exit();
             removeMessages(EVENT_CONFIGURATION_INVALID);
             removeMessages(EVENT_CONFIGURATION_TIMEOUT);
             removeMessages(EVENT_CONFIGURATION_OBTAINED);
+            mAttributes = null;
         }
     }
 
@@ -1310,6 +1735,8 @@ public class DhcpClient extends StateMachine {
         // 2. received the DHCPACK packet from DHCP Servers that support Rapid
         //    Commit option, process it by following RFC4039.
         if (packet instanceof DhcpOfferPacket) {
+            // The server supports rapid commit if it replied to the DISCOVER with a DHCPACK.
+            if (mTxRapidCommit) observeProfileFlags(DhcpNetworkProfile.FLAG_RAPID_COMMIT, 0);
             if (maybeTransitionToIpv6OnlyWaitState(packet)) {
                 return;
             }
@@ -1326,6 +1753,8 @@ public class DhcpClient extends StateMachine {
 
             final DhcpResults results = packet.toDhcpResults();
             if (results != null) {
+                observeProfileFlags(DhcpNetworkProfile.FLAG_RAPID_COMMIT,
+                        DhcpNetworkProfile.FLAG_RAPID_COMMIT);
                 confirmDhcpLease(packet, results);
                 transitionTo(isDhcpIpConflictDetectEnabled()
                         ? mIpAddressConflictDetectingState : mConfiguringInterfaceState);
@@ -1349,6 +1778,11 @@ public class DhcpClient extends StateMachine {
             return sendDiscoverPacket();
         }
 
+        @Override
+        protected boolean canRetransmitPacket() {
+            return mTxRapidCommit == shouldRequestRapidCommit();
+        }
+
         protected void receivePacket(DhcpPacket packet) {
             receiveOfferOrAckPacket(packet, isDhcpRapidCommitEnabled());
         }
@@ -1498,13 +1932,7 @@ public class DhcpClient extends StateMachine {
         @Override
         public void enter() {
             super.enter();
-            // We must call notifySuccess to apply the rest of the DHCP configuration (e.g., DNS
-            // servers) before adding the IP address to the interface. Otherwise, as soon as
-            // IpClient sees the IP address appear, it will enter provisioned state without any
-            // configuration information from DHCP. http://b/146850745.
-            notifySuccess();
-            mController.sendMessage(CMD_CONFIGURE_LINKADDRESS, mDhcpLease.leaseDuration, 0,
-                    mDhcpLease.ipAddress);
+            notifySuccessAndConfigureLinkAddress();
         }
 
         @Override
@@ -1632,12 +2060,22 @@ public class DhcpClient extends StateMachine {
         private int mArpFirstAnnounceDelayMs;
         private int mArpAnnounceIntervalMs;
 
+        // In optimistic mode, the address is configured when entering this state, similarly to
+        // optimistic DAD for IPv6 (RFC 4429), and the state waits for both the detection and the
+        // configuration to complete before moving to DhcpBoundState.
+        private boolean mOptimistic;
+        private boolean mDetectionComplete;
+        private boolean mLinkAddressConfigured;
+
         @Override
         public void enter() {
             super.enter();
 
             mArpProbeCount = 0;
             mArpAnnounceCount = 0;
+            mDetectionComplete = false;
+            mLinkAddressConfigured = false;
+            mOptimistic = isDhcpOptimisticIpConflictDetectEnabled();
 
             // IP address conflict detection occurs after receiving DHCPACK
             // message every time, i.e. we already get an available lease from
@@ -1653,6 +2091,8 @@ public class DhcpClient extends StateMachine {
                 return;
             }
 
+            if (mOptimistic) notifySuccessAndConfigureLinkAddress();
+
             // Read the customized parameters from DeviceConfig.
             readIpConflictParametersFromDeviceConfig();
             if (VDBG) {
@@ -1698,11 +2138,31 @@ public class DhcpClient extends StateMachine {
                     sendArpAnnounce();
                     if (++mArpAnnounceCount < IPV4_CONFLICT_ANNOUNCE_NUM) {
                         scheduleAnnounce(mArpAnnounceIntervalMs);
-                    } else {
+                    } else if (!mOptimistic) {
                         transitionTo(mConfiguringInterfaceState);
+                    } else {
+                        mDetectionComplete = true;
+                        maybeTransitionToBoundState();
                     }
                     return HANDLED;
+                case EVENT_LINKADDRESS_CONFIGURED:
+                    if (!mOptimistic) return NOT_HANDLED;
+                    mLinkAddressConfigured = true;
+                    maybeTransitionToBoundState();
+                    return HANDLED;
+                case CMD_REFRESH_LINKADDRESS:
+                    if (!mOptimistic) return NOT_HANDLED;
+                    // IpClient already considers the address usable; refresh it once bound.
+                    deferMessage(message);
+                    return HANDLED;
                 case EVENT_IP_CONFLICT:
+                    if (mOptimistic) {
+                        // Withdraw the address and the configuration already sent to IpClient
+                        // without failing provisioning: a new lease is obtained after the
+                        // DHCPDECLINE, as when the conflict is detected before configuration.
+                        Log.d(TAG, "IP address conflict detected after optimistic configuration");
+                        notifyAddressWithdrawn();
+                    }
                     transitionTo(mDhcpDecliningState);
                     return HANDLED;
                 default:
@@ -1710,6 +2170,10 @@ public class DhcpClient extends StateMachine {
             }
         }
 
+        private void maybeTransitionToBoundState() {
+            if (mDetectionComplete && mLinkAddressConfigured) transitionTo(mDhcpBoundState);
+        }
+
         // Because the timing parameters used in IP Address detection mechanism are in
         // milliseconds, WakeupMessage would be too imprecise for small timeouts.
         private void scheduleProbe() {
@@ -1876,6 +2340,7 @@ public class DhcpClient extends StateMachine {
                         return;
                     }
                     setDhcpLeaseExpiry(packet);
+                    mLastAckOptionTypes = packet.getOptionTypes();
                     // Updating our notion of DhcpResults here only causes the
                     // DNS servers and routes to be updated in LinkProperties
                     // in IpManager and by any overridden relevant handlers of
@@ -2019,8 +2484,111 @@ public class DhcpClient extends StateMachine {
                     INADDR_BROADCAST);                                 // packet destination address
         }
 
+        @Override
+        protected void receivePacket(DhcpPacket packet) {
+            if (isValidPacket(packet)) observeInitRebootReply(packet);
+            super.receivePacket(packet);
+        }
+
+        @Override
+        protected void timeout() {
+            observeProfileFlags(DhcpNetworkProfile.FLAGS_INIT_REBOOT,
+                    DhcpNetworkProfile.FLAG_INIT_REBOOT_FAILED);
+            super.timeout();
+        }
+
+        @Override
+        public void exit() {
+            super.exit();
+            mLastAssignedIpv4Address = null;
+            mLastAssignedIpv4AddressExpiry = 0;
+        }
+    }
+
+    /**
+     * Sends the INIT-REBOOT DHCPREQUEST for the last assigned address in parallel with DHCPDISCOVER,
+     * so that networks ignoring INIT-REBOOT do not delay provisioning by the INIT-REBOOT timeout.
+     *
+     * Each exchange has its own transaction ID. The first DHCPACK to the DHCPREQUEST, or DHCPOFFER
+     * or rapid commit DHCPACK to the DHCPDISCOVER wins, and late replies to the other exchange are
+     * ignored as their transaction ID no longer matches. A DHCPNAK or a timeout only stops the
+     * INIT-REBOOT exchange, while DHCPDISCOVER continues as in DhcpInitState.
+     */
+    class DhcpInitRebootRaceState extends PacketRetransmittingState {
+        @Override
+        public void enter() {
+            mTimeout = DHCP_INITREBOOT_TIMEOUT_MS;
+            super.enter();
+            startNewTransaction();
+            mLastInitEnterTime = SystemClock.elapsedRealtime();
+            do {
+                mInitRebootTransactionId = mRandom.nextInt();
+            } while (mInitRebootTransactionId == mTransactionId);
+            mRacingInitReboot = true;
+        }
+
+        @Override
+        protected boolean sendPacket() {
+            final boolean discoverSent = sendDiscoverPacket();
+            if (!mRacingInitReboot) return discoverSent;
+            // See DhcpInitRebootState#sendPacket.
+            final boolean requestSent = sendRequestPacket(
+                    mInitRebootTransactionId,
+                    INADDR_ANY,                                        // ciaddr
+                    mLastAssignedIpv4Address,                          // DHCP_REQUESTED_IP
+                    null,                                              // DHCP_SERVER_IDENTIFIER
+                    INADDR_BROADCAST);                                 // packet destination address
+            return discoverSent && requestSent;
+        }
+
+        @Override
+        protected boolean canRetransmitPacket() {
+            // mTxBuffer only contains the last of the two packets sent on each kick.
+            return false;
+        }
+
+        @Override
+        protected void receivePacket(DhcpPacket packet) {
+            if (packet.getTransactionId() != mInitRebootTransactionId) {
+                receiveOfferOrAckPacket(packet, isDhcpRapidCommitEnabled());
+                return;
+            }
+            if (!mRacingInitReboot || !isValidPacket(packet, mInitRebootTransactionId)) return;
+
+            observeInitRebootReply(packet);
+            if (packet instanceof DhcpAckPacket) {
+                if (maybeTransitionToIpv6OnlyWaitState(packet)) {
+                    return;
+                }
+                final DhcpResults results = packet.toDhcpResults();
+                if (results != null) {
+                    // Continue with the transaction of the INIT-REBOOT exchange, e.g. to decline
+                    // the address.
+                    mTransactionId = mInitRebootTransactionId;
+                    confirmDhcpLease(packet, results);
+                    transitionTo(isDhcpIpConflictDetectEnabled()
+                            ? mIpAddressConflictDetectingState : mConfiguringInterfaceState);
+                }
+            } else if (packet instanceof DhcpNakPacket) {
+                Log.d(TAG, "Received NAK for INIT-REBOOT, continuing with DISCOVER");
+                mRacingInitReboot = false;
+            }
+        }
+
+        @Override
+        protected void timeout() {
+            // The network does not answer INIT-REBOOT: only keep sending DISCOVER.
+            if (mRacingInitReboot) {
+                observeProfileFlags(DhcpNetworkProfile.FLAGS_INIT_REBOOT,
+                        DhcpNetworkProfile.FLAG_INIT_REBOOT_FAILED);
+            }
+            mRacingInitReboot = false;
+        }
+
         @Override
         public void exit() {
+            super.exit();
+            mRacingInitReboot = false;
             mLastAssignedIpv4Address = null;
             mLastAssignedIpv4AddressExpiry = 0;
         }
@@ -42,8 +42,7 @@ public class DhcpDeclinePacket extends DhcpPacket {
     /**
      * Fills in a packet with the requested DECLINE attributes.
      */
-    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp) {
-        ByteBuffer result = ByteBuffer.allocate(MAX_LENGTH);
+    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp, ByteBuffer result) {
 
         fillInPacket(encap, mClientIp, mYourIp, destUdp, srcUdp, result,
             DHCP_BOOTREQUEST, false);
@@ -47,8 +47,7 @@ public class DhcpDiscoverPacket extends DhcpPacket {
     /**
      * Fills in a packet with the requested DISCOVER parameters.
      */
-    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp) {
-        ByteBuffer result = ByteBuffer.allocate(MAX_LENGTH);
+    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp, ByteBuffer result) {
         fillInPacket(encap, INADDR_BROADCAST, mSrcIp, destUdp, srcUdp, result, DHCP_BOOTREQUEST,
                 mBroadcast);
         result.flip();
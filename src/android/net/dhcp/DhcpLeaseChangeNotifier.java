@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp;
+
+import android.os.Handler;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.net.module.util.SharedLog;
+
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Notifies {@link IDhcpEventCallbacks} of changes to the leases committed in a
+ * {@link DhcpLeaseRepository}.
+ *
+ * <p>Callbacks that support {@link IDhcpEventCallbacks#onLeasesChangedDelta} only receive the
+ * leases that changed, and older callbacks receive the full list of leases. If a batching window
+ * is set, notifications requested within the window are coalesced into one, so that a burst of N
+ * lease changes costs one binder call per callback instead of N.
+ *
+ * <p>This class is not thread-safe. It must be used on the thread of the repository, which must
+ * also be the thread of the batching handler if any.
+ * @hide
+ */
+class DhcpLeaseChangeNotifier {
+    /**
+     * First version of {@link IDhcpEventCallbacks} that has
+     * {@link IDhcpEventCallbacks#onLeasesChangedDelta}.
+     */
+    @VisibleForTesting
+    static final int VERSION_ADDED_LEASES_DELTA = 22;
+
+    @NonNull
+    private final Map<Inet4Address, DhcpLease> mLeases;
+    @NonNull
+    private final SharedLog mLog;
+
+    // The cookie of each callback is its interface version.
+    private final RemoteCallbackList<IDhcpEventCallbacks> mCallbacks = new RemoteCallbackList<>();
+
+    /**
+     * Addresses whose lease changed since the last notification, with the lease that was
+     * committed for the address at the time of the last notification, or null if there was none.
+     */
+    private final ArrayMap<Inet4Address, DhcpLease> mChangedFrom = new ArrayMap<>();
+
+    private final Runnable mFlushRunnable = this::flush;
+
+    @Nullable
+    private Handler mHandler;
+    private long mWindowMs;
+    // Whether a notification was requested since the last one.
+    private boolean mNotifyPending;
+    // Whether the requested notification must also be sent to callbacks that do not support
+    // deltas.
+    private boolean mNotifyLegacyPending;
+    private boolean mFlushScheduled;
+
+    /**
+     * Create a notifier for a map of committed leases.
+     * @param leases Committed leases by address. Changes to the map must be reported through
+     *               {@link #onLeaseChanged(Inet4Address, DhcpLease)}.
+     */
+    DhcpLeaseChangeNotifier(@NonNull Map<Inet4Address, DhcpLease> leases,
+            @NonNull SharedLog log) {
+        mLeases = leases;
+        mLog = log;
+    }
+
+    /**
+     * Coalesce notifications that are requested within the specified window after a first one.
+     * @param handler Handler to send the batched notifications on, or null to send them
+     *                immediately.
+     * @param windowMs Delay before sending a batched notification, or 0 to send it immediately.
+     */
+    public void setBatching(@Nullable Handler handler, long windowMs) {
+        flush();
+        mHandler = handler;
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Add callbacks to be notified of changes. If they support
+     * {@link IDhcpEventCallbacks#onLeasesChangedDelta}, the current leases are reported to them
+     * as added.
+     */
+    public void addCallbacks(@NonNull IDhcpEventCallbacks cb) {
+        Objects.requireNonNull(cb, "Callbacks must be non-null");
+        int version;
+        try {
+            version = cb.getInterfaceVersion();
+        } catch (RemoteException e) {
+            mLog.e("Could not get callbacks version", e);
+            version = 0;
+        }
+        // Report pending changes to existing callbacks, so the new callbacks start from the
+        // current leases.
+        flush();
+        mCallbacks.register(cb, version);
+        if (version < VERSION_ADDED_LEASES_DELTA || mLeases.isEmpty()) return;
+        try {
+            cb.onLeasesChangedDelta(toParcelables(mLeases.values()), Collections.emptyList(),
+                    Collections.emptyList());
+        } catch (RemoteException e) {
+            mLog.e("Could not send lease callback", e);
+        }
+    }
+
+    /**
+     * Record that the lease for an address changed. This must be called for every change to the
+     * leases, even if no notification is requested for the change.
+     * @param previous The lease that was committed for the address before the change, if any.
+     */
+    public void onLeaseChanged(@NonNull Inet4Address addr, @Nullable DhcpLease previous) {
+        if (!mChangedFrom.containsKey(addr)) {
+            mChangedFrom.put(addr, previous);
+        }
+    }
+
+    /**
+     * Request a notification of the changes to the leases, to be sent now or at the end of the
+     * batching window.
+     */
+    public void notifyChanged() {
+        mNotifyLegacyPending = true;
+        requestNotification();
+    }
+
+    /**
+     * Request a notification of leases that expired, to be sent now or at the end of the batching
+     * window. Callbacks that do not support {@link IDhcpEventCallbacks#onLeasesChangedDelta} are
+     * not notified of expirations, unless other changes are notified in the same batch.
+     */
+    public void notifyExpired() {
+        requestNotification();
+    }
+
+    private void requestNotification() {
+        mNotifyPending = true;
+        if (mHandler == null || mWindowMs <= 0) {
+            flush();
+            return;
+        }
+        if (!mFlushScheduled) {
+            mHandler.postDelayed(mFlushRunnable, mWindowMs);
+            mFlushScheduled = true;
+        }
+    }
+
+    /**
+     * Send the requested notification now, if any.
+     */
+    public void flush() {
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+        }
+        if (!mNotifyPending) return;
+        final boolean notifyLegacy = mNotifyLegacyPending;
+        mNotifyPending = false;
+        mNotifyLegacyPending = false;
+
+        final List<DhcpLeaseParcelable> added = new ArrayList<>();
+        final List<DhcpLeaseParcelable> removed = new ArrayList<>();
+        final List<DhcpLeaseParcelable> renewed = new ArrayList<>();
+        for (int i = 0; i < mChangedFrom.size(); i++) {
+            final DhcpLease before = mChangedFrom.valueAt(i);
+            final DhcpLease after = mLeases.get(mChangedFrom.keyAt(i));
+            if (Objects.equals(before, after)) continue;
+            if (before != null && after != null
+                    && before.matchesClient(after.getClientId(), after.getHwAddr())) {
+                renewed.add(after.toParcelable());
+                continue;
+            }
+            if (before != null) removed.add(before.toParcelable());
+            if (after != null) added.add(after.toParcelable());
+        }
+        mChangedFrom.clear();
+        final boolean hasChanges = !added.isEmpty() || !removed.isEmpty() || !renewed.isEmpty();
+
+        // Only built if there are callbacks that do not support deltas.
+        List<DhcpLeaseParcelable> allLeases = null;
+        final int cbCount = mCallbacks.beginBroadcast();
+        for (int i = 0; i < cbCount; i++) {
+            final IDhcpEventCallbacks cb = mCallbacks.getBroadcastItem(i);
+            try {
+                if ((int) mCallbacks.getBroadcastCookie(i) >= VERSION_ADDED_LEASES_DELTA) {
+                    if (hasChanges) cb.onLeasesChangedDelta(added, removed, renewed);
+                } else if (notifyLegacy) {
+                    if (allLeases == null) allLeases = toParcelables(mLeases.values());
+                    cb.onLeasesChanged(allLeases);
+                }
+            } catch (RemoteException e) {
+                mLog.e("Could not send lease callback", e);
+            }
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    @NonNull
+    private static List<DhcpLeaseParcelable> toParcelables(@NonNull Collection<DhcpLease> leases) {
+        final List<DhcpLeaseParcelable> parcelables = new ArrayList<>(leases.size());
+        for (DhcpLease lease : leases) {
+            parcelables.add(lease.toParcelable());
+        }
+        return parcelables;
+    }
+}
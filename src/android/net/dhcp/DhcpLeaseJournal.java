@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp;
+
+import android.net.IpPrefix;
+import android.net.MacAddress;
+import android.util.ArrayMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.net.module.util.SharedLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the leases committed by a {@link DhcpServer}, used to restore them
+ * when the server is restarted on the same interface, or after the network stack process crashed.
+ *
+ * <p>The journal is a fixed-size file mapped in memory. It starts with a header identifying the
+ * boot and the server prefix it was written for, followed by records of committed and removed
+ * leases. Lease expiration times are based on {@link android.os.SystemClock#elapsedRealtime()},
+ * so a journal written during a previous boot is ignored. Records are appended by writing their
+ * content and checksum before their length: a record that was only partially written when the
+ * process crashed reads as the end of the journal.
+ *
+ * <p>When there is no space left for a record, the journal is compacted by writing the current
+ * leases to a new file that atomically replaces the journal. If the current leases do not fit in
+ * the journal, it is deleted and no further changes are recorded.
+ *
+ * <p>This class is not thread-safe; it is used on the {@link DhcpServer} handler thread.
+ * @hide
+ */
+class DhcpLeaseJournal {
+    @VisibleForTesting
+    static final int JOURNAL_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x44484c4a; // "DHLJ"
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_COMMIT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final byte FLAG_CLIENT_ID = 1;
+    private static final byte FLAG_HOSTNAME = 2;
+
+    private static final int MAX_FIELD_LENGTH = 0xff;
+    // Type, address, expiration, hardware address, flags, and two length-prefixed fields.
+    private static final int MAX_PAYLOAD_SIZE = 1 + 4 + 8 + 6 + 1 + 2 * (1 + MAX_FIELD_LENGTH);
+    // Payload length before the payload, and CRC32 after it.
+    private static final int RECORD_OVERHEAD = 2 + 4;
+
+    @NonNull
+    private final File mFile;
+    @NonNull
+    private final String mBootId;
+    @NonNull
+    private final SharedLog mLog;
+
+    // Leases recorded in the journal, by address, used for compaction.
+    private final ArrayMap<Inet4Address, DhcpLease> mLeases = new ArrayMap<>();
+    private final ByteBuffer mPayload = ByteBuffer.allocate(MAX_PAYLOAD_SIZE);
+    private final CRC32 mCrc = new CRC32();
+
+    @Nullable
+    private IpPrefix mPrefix;
+    // Null if the journal was not reset yet, or if it could not be written.
+    @Nullable
+    private MappedByteBuffer mBuffer;
+    private int mWritePos;
+
+    DhcpLeaseJournal(@NonNull File file, @NonNull String bootId, @NonNull SharedLog log) {
+        mFile = file;
+        mBootId = bootId;
+        mLog = log;
+    }
+
+    /**
+     * Read the leases recorded in the journal for the specified prefix.
+     *
+     * <p>The returned leases may have expired. No lease is returned if the journal does not exist,
+     * is invalid, or was written during another boot or for another prefix.
+     */
+    @NonNull
+    public List<DhcpLease> restore(@NonNull IpPrefix prefix) {
+        final ArrayMap<Inet4Address, DhcpLease> leases = new ArrayMap<>();
+        if (!mFile.exists()) return new ArrayList<>();
+
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            final ByteBuffer buf = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, Math.min(raf.length(), JOURNAL_SIZE));
+            if (!readHeader(buf, prefix)) {
+                mLog.log("Ignoring lease journal from another boot or prefix");
+                return new ArrayList<>();
+            }
+            int numRecords = 0;
+            while (readRecord(buf, prefix.getPrefixLength(), leases)) numRecords++;
+            mLog.logf("Restored %d leases from %d journal records", leases.size(), numRecords);
+        } catch (IOException | BufferUnderflowException e) {
+            mLog.e("Could not read lease journal", e);
+        }
+        return new ArrayList<>(leases.values());
+    }
+
+    /**
+     * Replace the content of the journal with the specified leases, for the specified prefix.
+     *
+     * <p>This must be called before any change is recorded, and when the prefix changes.
+     */
+    public void reset(@NonNull IpPrefix prefix, @NonNull Collection<DhcpLease> leases) {
+        mPrefix = prefix;
+        mLeases.clear();
+        for (DhcpLease lease : leases) {
+            mLeases.put(lease.getNetAddr(), lease);
+        }
+        rewrite();
+    }
+
+    /**
+     * Record a lease that was committed, or renewed.
+     */
+    public void onLeaseCommitted(@NonNull DhcpLease lease) {
+        if (mBuffer == null) return;
+        mLeases.put(lease.getNetAddr(), lease);
+        putCommitPayload(lease);
+        append();
+    }
+
+    /**
+     * Record a lease that was released, declined, expired or dropped.
+     */
+    public void onLeaseRemoved(@NonNull Inet4Address addr) {
+        if (mBuffer == null || mLeases.remove(addr) == null) return;
+        mPayload.clear();
+        mPayload.put(RECORD_REMOVE);
+        mPayload.put(addr.getAddress());
+        mPayload.flip();
+        append();
+    }
+
+    /**
+     * Stop recording changes. The journal is kept so that leases can be restored later.
+     */
+    public void close() {
+        if (mBuffer != null) mBuffer.force();
+        mBuffer = null;
+        mLeases.clear();
+    }
+
+    private boolean readHeader(@NonNull ByteBuffer buf, @NonNull IpPrefix prefix)
+            throws UnknownHostException {
+        if (buf.remaining() < 9 || buf.getInt() != MAGIC || buf.getInt() != VERSION) return false;
+        final byte[] bootId = new byte[buf.get() & 0xff];
+        buf.get(bootId);
+        final byte[] prefixAddr = new byte[4];
+        buf.get(prefixAddr);
+        final int prefixLength = buf.get() & 0xff;
+        return mBootId.equals(new String(bootId, StandardCharsets.UTF_8))
+                && prefix.getPrefixLength() == prefixLength
+                && prefix.getAddress().equals(toInet4Address(prefixAddr));
+    }
+
+    private void putHeader(@NonNull ByteBuffer buf) {
+        final byte[] bootId = mBootId.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.put((byte) Math.min(bootId.length, MAX_FIELD_LENGTH));
+        buf.put(bootId, 0, Math.min(bootId.length, MAX_FIELD_LENGTH));
+        buf.put(mPrefix.getAddress().getAddress());
+        buf.put((byte) mPrefix.getPrefixLength());
+    }
+
+    /**
+     * Read the record at the current position of the buffer and apply it to the leases.
+     *
+     * @return false if there was no valid record to read.
+     */
+    private boolean readRecord(@NonNull ByteBuffer buf, int prefixLength,
+            @NonNull ArrayMap<Inet4Address, DhcpLease> leases) throws UnknownHostException {
+        if (buf.remaining() < RECORD_OVERHEAD) return false;
+        final int length = buf.getShort() & 0xffff;
+        if (length == 0 || length > MAX_PAYLOAD_SIZE || buf.remaining() < length + 4) return false;
+
+        final ByteBuffer payload = buf.slice();
+        payload.limit(length);
+        mCrc.reset();
+        mCrc.update(payload.duplicate());
+        buf.position(buf.position() + length);
+        if ((int) mCrc.getValue() != buf.getInt()) return false;
+
+        final byte type = payload.get();
+        final byte[] addrBytes = new byte[4];
+        payload.get(addrBytes);
+        final Inet4Address addr = toInet4Address(addrBytes);
+        if (type == RECORD_REMOVE) {
+            leases.remove(addr);
+            return true;
+        }
+        if (type != RECORD_COMMIT) return false;
+
+        final long expTime = payload.getLong();
+        final byte[] hwAddr = new byte[6];
+        payload.get(hwAddr);
+        final byte flags = payload.get();
+        final byte[] clientId = (flags & FLAG_CLIENT_ID) != 0 ? getField(payload) : null;
+        final byte[] hostname = (flags & FLAG_HOSTNAME) != 0 ? getField(payload) : null;
+        leases.put(addr, new DhcpLease(clientId, MacAddress.fromBytes(hwAddr), addr, prefixLength,
+                expTime, hostname == null ? null : new String(hostname, StandardCharsets.UTF_8)));
+        return true;
+    }
+
+    private void putCommitPayload(@NonNull DhcpLease lease) {
+        final byte[] clientId = lease.getClientId();
+        final byte[] hostname = lease.getHostname() == null
+                ? null : lease.getHostname().getBytes(StandardCharsets.UTF_8);
+        byte flags = 0;
+        // Client IDs come from a DHCP option so always fit. Hostnames that do not fit are dropped:
+        // the client sends its hostname again when renewing.
+        if (clientId != null && clientId.length <= MAX_FIELD_LENGTH) flags |= FLAG_CLIENT_ID;
+        if (hostname != null && hostname.length <= MAX_FIELD_LENGTH) flags |= FLAG_HOSTNAME;
+
+        mPayload.clear();
+        mPayload.put(RECORD_COMMIT);
+        mPayload.put(lease.getNetAddr().getAddress());
+        mPayload.putLong(lease.getExpTime());
+        mPayload.put(lease.getHwAddr().toByteArray());
+        mPayload.put(flags);
+        if ((flags & FLAG_CLIENT_ID) != 0) putField(mPayload, clientId);
+        if ((flags & FLAG_HOSTNAME) != 0) putField(mPayload, hostname);
+        mPayload.flip();
+    }
+
+    /**
+     * Write the record in {@link #mPayload} at the specified position of the buffer. The length
+     * of the record is written last, so that the record is only valid once fully written.
+     *
+     * @return the position after the record.
+     */
+    private int putRecord(@NonNull ByteBuffer buf, int pos) {
+        final int length = mPayload.remaining();
+        mCrc.reset();
+        mCrc.update(mPayload.duplicate());
+        buf.position(pos + 2);
+        buf.put(mPayload);
+        buf.putInt((int) mCrc.getValue());
+        buf.putShort(pos, (short) length);
+        return buf.position();
+    }
+
+    private void append() {
+        if (JOURNAL_SIZE - mWritePos < mPayload.remaining() + RECORD_OVERHEAD) {
+            // mLeases already includes the change, so compacting records it.
+            rewrite();
+            return;
+        }
+        mWritePos = putRecord(mBuffer, mWritePos);
+    }
+
+    /**
+     * Atomically replace the journal with one containing only the records for {@link #mLeases}.
+     */
+    private void rewrite() {
+        mBuffer = null;
+        final ByteBuffer image = ByteBuffer.allocate(JOURNAL_SIZE);
+        putHeader(image);
+        int pos = image.position();
+        for (DhcpLease lease : mLeases.values()) {
+            putCommitPayload(lease);
+            if (JOURNAL_SIZE - pos < mPayload.remaining() + RECORD_OVERHEAD) {
+                mLog.e("Too many leases for the lease journal: " + mLeases.size());
+                mFile.delete();
+                return;
+            }
+            pos = putRecord(image, pos);
+        }
+
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                out.write(image.array());
+                out.getFD().sync();
+            }
+            if (!tmpFile.renameTo(mFile)) {
+                throw new IOException("Could not rename " + tmpFile + " to " + mFile);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SIZE);
+            }
+            mWritePos = pos;
+        } catch (IOException e) {
+            mLog.e("Could not write lease journal", e);
+            mFile.delete();
+            tmpFile.delete();
+        }
+    }
+
+    private static void putField(@NonNull ByteBuffer buf, @NonNull byte[] field) {
+        buf.put((byte) field.length);
+        buf.put(field);
+    }
+
+    @NonNull
+    private static byte[] getField(@NonNull ByteBuffer buf) {
+        final byte[] field = new byte[buf.get() & 0xff];
+        buf.get(field);
+        return field;
+    }
+
+    @NonNull
+    private static Inet4Address toInet4Address(@NonNull byte[] addr) throws UnknownHostException {
+        return (Inet4Address) InetAddress.getByAddress(addr);
+    }
+}
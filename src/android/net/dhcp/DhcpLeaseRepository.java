@@ -25,13 +25,10 @@ import static com.android.net.module.util.Inet4AddressUtils.prefixLengthToV4Netm
 import static com.android.net.module.util.NetworkStackConstants.IPV4_ADDR_ANY;
 import static com.android.net.module.util.NetworkStackConstants.IPV4_ADDR_BITS;
 
-import static java.lang.Math.min;
-
 import android.net.IpPrefix;
 import android.net.MacAddress;
 import android.net.dhcp.DhcpServer.Clock;
-import android.os.RemoteCallbackList;
-import android.os.RemoteException;
+import android.os.Handler;
 import android.util.ArrayMap;
 
 import androidx.annotation.NonNull;
@@ -41,17 +38,21 @@ import androidx.annotation.VisibleForTesting;
 import com.android.net.module.util.SharedLog;
 
 import java.net.Inet4Address;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.function.Consumer;
 
 /**
  * A repository managing IPv4 address assignments through DHCPv4.
@@ -62,12 +63,17 @@ import java.util.function.Function;
  * <p>Methods are optimized for a small number of allocated leases, assuming that most of the time
  * only 2~10 addresses will be allocated, which is the common case. Managing a large number of
  * addresses is supported but will be slower: some operations have complexity in O(num_leases).
+ * Looking up the lease of a client, which is done for every DISCOVER and REQUEST, uses hash
+ * indexes and does not depend on the number of leases.
  * @hide
  */
 class DhcpLeaseRepository {
     public static final byte[] CLIENTID_UNSPEC = null;
     public static final Inet4Address INETADDR_UNSPEC = null;
 
+    // Number of stale expirations that are always tolerated before rebuilding mExpirations.
+    private static final int MIN_EXPIRATIONS_TO_COMPACT = 16;
+
     @NonNull
     private final SharedLog mLog;
     @NonNull
@@ -86,14 +92,38 @@ class DhcpLeaseRepository {
     private Inet4Address mClientAddr;
 
     /**
-     * Next timestamp when committed or declined leases should be checked for expired ones. This
-     * will always be lower than or equal to the time for the first lease to expire: it's OK not to
-     * update this when removing entries, but it must always be updated when adding/updating.
+     * Expiration times of committed leases and declined addresses, earliest first.
+     *
+     * <p>Entries are not removed when a lease is renewed or released, or when a declined address is
+     * reused: an entry is stale if the lease or declined address it refers to no longer expires at
+     * that time, and stale entries are skipped when they reach the head of the queue. The queue is
+     * rebuilt if stale entries make up most of it, so it stays in O(num_leases).
      */
-    private long mNextExpirationCheck = EXPIRATION_NEVER;
+    private final PriorityQueue<Expiration> mExpirations =
+            new PriorityQueue<>(Comparator.comparingLong(e -> e.mExpTime));
+
+    private static class Expiration {
+        final long mExpTime;
+        @NonNull
+        final Inet4Address mAddr;
+        // Whether this is the expiration of a declined address, or of a committed lease.
+        final boolean mDeclined;
+
+        Expiration(long expTime, @NonNull Inet4Address addr, boolean declined) {
+            mExpTime = expTime;
+            mAddr = addr;
+            mDeclined = declined;
+        }
+    }
 
     @NonNull
-    private RemoteCallbackList<IDhcpEventCallbacks> mEventCallbacks = new RemoteCallbackList<>();
+    private final DhcpLeaseChangeNotifier mNotifier;
+
+    /**
+     * Journal recording changes to {@link #mCommittedLeases}, if leases are persisted.
+     */
+    @Nullable
+    private DhcpLeaseJournal mJournal;
 
     static class DhcpLeaseException extends Exception {
         DhcpLeaseException(String message) {
@@ -124,6 +154,20 @@ class DhcpLeaseRepository {
      */
     private final ArrayMap<Inet4Address, DhcpLease> mCommittedLeases = new ArrayMap<>();
 
+    /**
+     * Committed leases that have a client ID, by client ID. Together with
+     * {@link #mLeasesByHwAddr}, contains exactly the leases in {@link #mCommittedLeases}: these
+     * indexes must be updated whenever a lease is added to or removed from it.
+     */
+    private final HashMap<ByteBuffer, DhcpLease> mLeasesByClientId = new HashMap<>();
+
+    /**
+     * Committed leases that do not have a client ID, by hardware address. As per
+     * {@link DhcpLease#matchesClient}, a lease with a client ID never matches a client by its
+     * hardware address only, so such leases are not in this index.
+     */
+    private final HashMap<MacAddress, DhcpLease> mLeasesByHwAddr = new HashMap<>();
+
     /**
      * Map address -> expiration timestamp in ms. Addresses are guaranteed to be valid as defined
      * by {@link #isValidAddress(Inet4Address)}, but are not necessarily otherwise available for
@@ -131,12 +175,21 @@ class DhcpLeaseRepository {
      */
     private final LinkedHashMap<Inet4Address, Long> mDeclinedAddrs = new LinkedHashMap<>();
 
+    /**
+     * Addresses that cannot be offered to a new client, by index in the subnet as defined by
+     * {@link #getAddrIndex(int)}: invalid, reserved, committed or declined addresses. Used to find
+     * a free address without probing every address in the subnet. Not used when a static client
+     * address is configured, as there is only one address to offer.
+     */
+    private final BitSet mUnavailableAddrs = new BitSet();
+
     DhcpLeaseRepository(@NonNull IpPrefix prefix, @NonNull Set<Inet4Address> reservedAddrs,
             long leaseTimeMs, @Nullable Inet4Address clientAddr, int leasesSubnetPrefixLength,
             @NonNull SharedLog log, @NonNull Clock clock) {
         mLog = log;
         mClock = clock;
         mClientAddr = clientAddr;
+        mNotifier = new DhcpLeaseChangeNotifier(mCommittedLeases, log);
         updateParams(prefix, reservedAddrs, leaseTimeMs, clientAddr, leasesSubnetPrefixLength);
     }
 
@@ -154,23 +207,97 @@ class DhcpLeaseRepository {
         mLeaseTimeMs = leaseTimeMs;
         mClientAddr = clientAddr;
 
-        cleanMap(mDeclinedAddrs);
-        if (cleanMap(mCommittedLeases)) {
+        cleanMap(mDeclinedAddrs, null /* onRemove */);
+        final boolean leasesChanged = cleanMap(mCommittedLeases, lease -> {
+            removeFromIndexes(lease);
+            mNotifier.onLeaseChanged(lease.getNetAddr(), lease);
+        });
+        rebuildUnavailableAddrs();
+        if (mJournal != null) {
+            // The prefix may have changed, and leases may have been dropped.
+            mJournal.reset(mPrefix, mCommittedLeases.values());
+        }
+        if (leasesChanged) {
+            notifyLeasesChanged();
+        }
+    }
+
+    /**
+     * Restore the unexpired leases recorded in the journal, and record all further changes to
+     * committed leases in it.
+     *
+     * <p>Leases that are no longer valid for the current parameters, or that conflict with a
+     * committed lease, are not restored.
+     */
+    public void setLeaseJournal(@NonNull DhcpLeaseJournal journal) {
+        final long currentTime = mClock.elapsedRealtime();
+        int restoredCount = 0;
+        for (DhcpLease lease : journal.restore(mPrefix)) {
+            final Inet4Address addr = lease.getNetAddr();
+            if (lease.getExpTime() <= currentTime || !isValidAddress(addr) || !isAvailable(addr)
+                    || findByClient(lease.getClientId(), lease.getHwAddr()) != null) {
+                continue;
+            }
+            mCommittedLeases.put(addr, lease);
+            mNotifier.onLeaseChanged(addr, null /* previous */);
+            addToIndexes(lease);
+            updateUnavailable(addr);
+            addExpiration(new Expiration(lease.getExpTime(), addr, false /* declined */));
+            restoredCount++;
+        }
+        mJournal = journal;
+        journal.reset(mPrefix, mCommittedLeases.values());
+        if (restoredCount > 0) {
+            mLog.logf("Restored %d leases from journal", restoredCount);
             notifyLeasesChanged();
         }
     }
 
+    /**
+     * Stop recording changes to committed leases in the journal, if any.
+     */
+    public void closeLeaseJournal() {
+        if (mJournal == null) return;
+        mJournal.close();
+        mJournal = null;
+    }
+
+    private void rebuildUnavailableAddrs() {
+        mUnavailableAddrs.clear();
+        if (mClientAddr != null) return;
+        for (int i = 0; i < mNumAddresses; i++) {
+            final int addr = getAddrByIndex(i);
+            if (getValidAddress(addr) != addr) mUnavailableAddrs.set(i);
+        }
+        for (Inet4Address addr : mReservedAddrs) updateUnavailable(addr);
+        for (Inet4Address addr : mCommittedLeases.keySet()) updateUnavailable(addr);
+        for (Inet4Address addr : mDeclinedAddrs.keySet()) updateUnavailable(addr);
+    }
+
+    /**
+     * Update {@link #mUnavailableAddrs} for an address that was added to or removed from the
+     * reserved, committed or declined addresses.
+     */
+    private void updateUnavailable(@NonNull Inet4Address addr) {
+        if (mClientAddr != null || !isValidAddress(addr)) return;
+        final int index = getAddrIndex(inet4AddressToIntHTH(addr));
+        mUnavailableAddrs.set(index, !isAvailable(addr) || mDeclinedAddrs.containsKey(addr));
+    }
+
     /**
      * From a map keyed by {@link Inet4Address}, remove entries where the key is invalid (as
      * specified by {@link #isValidAddress(Inet4Address)}), or is a reserved address.
+     * @param onRemove Called with the value of each removed entry, if not null.
      * @return true if and only if at least one entry was removed.
      */
-    private <T> boolean cleanMap(Map<Inet4Address, T> map) {
+    private <T> boolean cleanMap(Map<Inet4Address, T> map, @Nullable Consumer<T> onRemove) {
         final Iterator<Entry<Inet4Address, T>> it = map.entrySet().iterator();
         boolean removed = false;
         while (it.hasNext()) {
-            final Inet4Address addr = it.next().getKey();
+            final Entry<Inet4Address, T> entry = it.next();
+            final Inet4Address addr = entry.getKey();
             if (!isValidAddress(addr) || mReservedAddrs.contains(addr)) {
+                if (onRemove != null) onRemove.accept(entry.getValue());
                 it.remove();
                 removed = true;
             }
@@ -251,16 +378,42 @@ class DhcpLeaseRepository {
 
     @Nullable
     private DhcpLease findByClient(@Nullable byte[] clientId, @NonNull MacAddress hwAddr) {
-        for (DhcpLease lease : mCommittedLeases.values()) {
-            if (lease.matchesClient(clientId, hwAddr)) {
-                return lease;
-            }
-        }
-
+        // Equivalent to finding the committed lease for which DhcpLease#matchesClient is true.
         // Note this differs from dnsmasq behavior, which would match by hwAddr if clientId was
         // given but no lease keyed on clientId matched. This would prevent one interface from
         // obtaining multiple leases with different clientId.
-        return null;
+        if (clientId != null) {
+            return mLeasesByClientId.get(ByteBuffer.wrap(clientId));
+        }
+        return mLeasesByHwAddr.get(hwAddr);
+    }
+
+    private void addToIndexes(@NonNull DhcpLease lease) {
+        final byte[] clientId = lease.getClientId();
+        if (clientId != null) {
+            mLeasesByClientId.put(ByteBuffer.wrap(clientId), lease);
+        } else {
+            mLeasesByHwAddr.put(lease.getHwAddr(), lease);
+        }
+    }
+
+    private void removeFromIndexes(@NonNull DhcpLease lease) {
+        final byte[] clientId = lease.getClientId();
+        final Map<?, DhcpLease> index;
+        final Object key;
+        if (clientId != null) {
+            index = mLeasesByClientId;
+            key = ByteBuffer.wrap(clientId);
+        } else {
+            index = mLeasesByHwAddr;
+            key = lease.getHwAddr();
+        }
+        // Only remove the entry if it is for the same address: it may have been replaced by a
+        // newer lease of the same client.
+        final DhcpLease indexed = index.get(key);
+        if (indexed != null && indexed.getNetAddr().equals(lease.getNetAddr())) {
+            index.remove(key);
+        }
     }
 
     /**
@@ -351,14 +504,28 @@ class DhcpLeaseRepository {
     }
 
     private void commitLease(@NonNull DhcpLease lease) {
-        mCommittedLeases.put(lease.getNetAddr(), lease);
-        maybeUpdateEarliestExpiration(lease.getExpTime());
+        final DhcpLease previous = mCommittedLeases.put(lease.getNetAddr(), lease);
+        mNotifier.onLeaseChanged(lease.getNetAddr(), previous);
+        if (previous != null) removeFromIndexes(previous);
+        addToIndexes(lease);
+        updateUnavailable(lease.getNetAddr());
+        if (previous == null || previous.getExpTime() != lease.getExpTime()) {
+            addExpiration(new Expiration(lease.getExpTime(), lease.getNetAddr(),
+                    false /* declined */));
+        }
+        if (mJournal != null) mJournal.onLeaseCommitted(lease);
         notifyLeasesChanged();
     }
 
     private void removeLease(@NonNull Inet4Address address, boolean notifyChange) {
-        // Earliest expiration remains <= the first expiry time on remove, so no need to update it.
-        mCommittedLeases.remove(address);
+        // The expiration of the lease becomes stale, and is skipped when it is reached.
+        final DhcpLease removed = mCommittedLeases.remove(address);
+        if (removed != null) {
+            mNotifier.onLeaseChanged(address, removed);
+            removeFromIndexes(removed);
+            if (mJournal != null) mJournal.onLeaseRemoved(address);
+        }
+        updateUnavailable(address);
         if (notifyChange) notifyLeasesChanged();
     }
 
@@ -385,21 +552,7 @@ class DhcpLeaseRepository {
     }
 
     private void notifyLeasesChanged() {
-        final List<DhcpLeaseParcelable> leaseParcelables =
-                new ArrayList<>(mCommittedLeases.size());
-        for (DhcpLease committedLease : mCommittedLeases.values()) {
-            leaseParcelables.add(committedLease.toParcelable());
-        }
-
-        final int cbCount = mEventCallbacks.beginBroadcast();
-        for (int i = 0; i < cbCount; i++) {
-            try {
-                mEventCallbacks.getBroadcastItem(i).onLeasesChanged(leaseParcelables);
-            } catch (RemoteException e) {
-                mLog.e("Could not send lease callback", e);
-            }
-        }
-        mEventCallbacks.finishBroadcast();
+        mNotifier.notifyChanged();
     }
 
     @VisibleForTesting
@@ -411,8 +564,9 @@ class DhcpLeaseRepository {
         }
         final long expTime = mClock.elapsedRealtime() + mLeaseTimeMs;
         mDeclinedAddrs.put(addr, expTime);
+        updateUnavailable(addr);
         mLog.logf("Marked %s as declined expiring %d", inet4AddrToString(addr), expTime);
-        maybeUpdateEarliestExpiration(expTime);
+        addExpiration(new Expiration(expTime, addr, true /* declined */));
     }
 
     /**
@@ -440,6 +594,24 @@ class DhcpLeaseRepository {
         return new ArrayList<>(mCommittedLeases.values());
     }
 
+    /**
+     * Get the number of committed leases in the repository, including leases that expired but
+     * were not removed yet.
+     */
+    public int getNumCommittedLeases() {
+        return mCommittedLeases.size();
+    }
+
+    /**
+     * Get the number of addresses that can still be offered to new clients.
+     */
+    public int getNumAvailableAddresses() {
+        if (mClientAddr != null) {
+            return isAvailable(mClientAddr) && !mDeclinedAddrs.containsKey(mClientAddr) ? 1 : 0;
+        }
+        return mNumAddresses - mUnavailableAddrs.cardinality();
+    }
+
     /**
      * Get the set of addresses that have been marked as declined in the repository.
      */
@@ -453,61 +625,109 @@ class DhcpLeaseRepository {
      * Add callbacks that will be called on leases update.
      */
     public void addLeaseCallbacks(@NonNull IDhcpEventCallbacks cb) {
-        Objects.requireNonNull(cb, "Callbacks must be non-null");
-        mEventCallbacks.register(cb);
+        mNotifier.addCallbacks(cb);
     }
 
     /**
-     * Given the expiration time of a new committed lease or declined address, update
-     * {@link #mNextExpirationCheck} so it stays lower than or equal to the time for the first lease
-     * to expire.
+     * Coalesce lease callbacks that happen within the specified window after a first one.
+     * @param handler Handler of the thread of the repository, to send batched callbacks on.
+     * @param windowMs Delay before sending batched callbacks, or 0 to send them immediately.
      */
-    private void maybeUpdateEarliestExpiration(long expTime) {
-        if (expTime < mNextExpirationCheck) {
-            mNextExpirationCheck = expTime;
-        }
+    public void setLeaseCallbacksBatching(@NonNull Handler handler, long windowMs) {
+        mNotifier.setBatching(handler, windowMs);
     }
 
     /**
-     * Remove expired entries from a map keyed by {@link Inet4Address}.
-     *
-     * @param tag Type of lease in the map, for logging
-     * @param getExpTime Functor returning the expiration time for an object in the map.
-     *                   Must not return null.
-     * @return The lowest expiration time among entries remaining in the map
+     * Send batched lease callbacks now, if any.
      */
-    private <T> long removeExpired(long currentTime, @NonNull Map<Inet4Address, T> map,
-            @NonNull String tag, @NonNull Function<T, Long> getExpTime) {
-        final Iterator<Entry<Inet4Address, T>> it = map.entrySet().iterator();
-        long firstExpiration = EXPIRATION_NEVER;
-        while (it.hasNext()) {
-            final Entry<Inet4Address, T> lease = it.next();
-            final long expTime = getExpTime.apply(lease.getValue());
-            if (expTime <= currentTime) {
-                mLog.logf("Removing expired %s lease for %s (expTime=%s, currentTime=%s)",
-                        tag, lease.getKey(), expTime, currentTime);
-                it.remove();
-            } else {
-                firstExpiration = min(firstExpiration, expTime);
-            }
-        }
-        return firstExpiration;
+    public void flushLeaseCallbacks() {
+        mNotifier.flush();
     }
 
     /**
-     * Go through committed and declined leases and remove the expired ones.
+     * Get the time at which the next committed lease or declined address expires, to compare with
+     * {@link Clock#elapsedRealtime()}, or {@link DhcpLease#EXPIRATION_NEVER} if there is none.
      */
-    private void removeExpiredLeases(long currentTime) {
-        if (currentTime < mNextExpirationCheck) {
-            return;
+    public long getNextExpirationTime() {
+        final Expiration next = peekExpiration();
+        return next == null ? EXPIRATION_NEVER : next.mExpTime;
+    }
+
+    /**
+     * Remove the committed leases and declined addresses that have expired, and notify callbacks
+     * that support {@link IDhcpEventCallbacks#onLeasesChangedDelta} if any committed lease was
+     * removed. As before deltas were added, {@link IDhcpEventCallbacks#onLeasesChanged} is not
+     * called for expirations.
+     */
+    public void expireLeases() {
+        if (removeExpiredLeases(mClock.elapsedRealtime())) {
+            mNotifier.notifyExpired();
+        }
+    }
+
+    private void addExpiration(@NonNull Expiration expiration) {
+        if (expiration.mExpTime == EXPIRATION_NEVER) return;
+        mExpirations.add(expiration);
+        final int numLive = mCommittedLeases.size() + mDeclinedAddrs.size();
+        if (mExpirations.size() <= 2 * numLive + MIN_EXPIRATIONS_TO_COMPACT) return;
+
+        mExpirations.clear();
+        for (DhcpLease lease : mCommittedLeases.values()) {
+            if (lease.getExpTime() == EXPIRATION_NEVER) continue;
+            mExpirations.add(new Expiration(lease.getExpTime(), lease.getNetAddr(),
+                    false /* declined */));
+        }
+        for (Entry<Inet4Address, Long> declined : mDeclinedAddrs.entrySet()) {
+            mExpirations.add(new Expiration(declined.getValue(), declined.getKey(),
+                    true /* declined */));
         }
+    }
 
-        final long commExp = removeExpired(
-                currentTime, mCommittedLeases, "committed", DhcpLease::getExpTime);
-        final long declExp = removeExpired(
-                currentTime, mDeclinedAddrs, "declined", Function.identity());
+    private boolean isStale(@NonNull Expiration expiration) {
+        if (expiration.mDeclined) {
+            final Long expTime = mDeclinedAddrs.get(expiration.mAddr);
+            return expTime == null || expTime != expiration.mExpTime;
+        }
+        final DhcpLease lease = mCommittedLeases.get(expiration.mAddr);
+        return lease == null || lease.getExpTime() != expiration.mExpTime;
+    }
+
+    /**
+     * Get the earliest expiration that is not stale, dropping stale ones before it.
+     */
+    @Nullable
+    private Expiration peekExpiration() {
+        Expiration next = mExpirations.peek();
+        while (next != null && isStale(next)) {
+            mExpirations.poll();
+            next = mExpirations.peek();
+        }
+        return next;
+    }
 
-        mNextExpirationCheck = min(commExp, declExp);
+    /**
+     * Remove the committed leases and declined addresses that expire at or before the specified
+     * time. Each expiration costs O(log(num_leases)), and this is O(1) if nothing expired.
+     *
+     * @return true if any committed lease was removed.
+     */
+    private boolean removeExpiredLeases(long currentTime) {
+        boolean removedLeases = false;
+        Expiration next;
+        while ((next = peekExpiration()) != null && next.mExpTime <= currentTime) {
+            mExpirations.poll();
+            mLog.logf("Removing expired %s lease for %s (expTime=%s, currentTime=%s)",
+                    next.mDeclined ? "declined" : "committed", next.mAddr, next.mExpTime,
+                    currentTime);
+            if (next.mDeclined) {
+                mDeclinedAddrs.remove(next.mAddr);
+                updateUnavailable(next.mAddr);
+            } else {
+                removeLease(next.mAddr, false /* notifyChange */);
+                removedLeases = true;
+            }
+        }
+        return removedLeases;
     }
 
     private boolean isAvailable(@NonNull Inet4Address addr) {
@@ -573,10 +793,26 @@ class DhcpLeaseRepository {
         return getValidAddress(intAddr) == intAddr;
     }
 
-    private int getNextAddress(int addr) {
-        final int addrIndex = getAddrIndex(addr);
-        final int nextAddress = getAddrByIndex((addrIndex + 1) % mNumAddresses);
-        return getValidAddress(nextAddress);
+    @Nullable
+    private Inet4Address checkFreeAddress(@NonNull Inet4Address addr) {
+        return isAvailable(addr) && !mDeclinedAddrs.containsKey(addr) ? addr : null;
+    }
+
+    /**
+     * Find the first address that is valid, available and not declined, starting from the address
+     * at the specified index and wrapping around at the end of the subnet.
+     *
+     * <p>This returns the same address as trying each valid address in turn, but skips unavailable
+     * addresses 64 at a time using {@link #mUnavailableAddrs}.
+     */
+    @Nullable
+    private Inet4Address findFreeAddress(int startIndex) {
+        int index = mUnavailableAddrs.nextClearBit(startIndex);
+        if (index >= mNumAddresses) {
+            index = mUnavailableAddrs.nextClearBit(0);
+            if (index >= startIndex) return null;
+        }
+        return intToInet4AddressHTH(getAddrByIndex(index));
     }
 
     /**
@@ -613,15 +849,12 @@ class DhcpLeaseRepository {
      */
     private DhcpLease makeNewOffer(@Nullable byte[] clientId, @NonNull MacAddress hwAddr,
             long expTime, @Nullable String hostname) throws OutOfAddressesException {
-        int intAddr = getFirstClientAddress(hwAddr);
-        // Loop until a free address is found, or there are no more addresses.
-        // There is slightly less than this many usable addresses, but some extra looping is OK
-        for (int i = 0; i < mNumAddresses; i++) {
-            final Inet4Address addr = intToInet4AddressHTH(intAddr);
-            if (isAvailable(addr) && !mDeclinedAddrs.containsKey(addr)) {
-                return new DhcpLease(clientId, hwAddr, addr, mPrefixLength, expTime, hostname);
-            }
-            intAddr = getNextAddress(intAddr);
+        final int firstAddr = getFirstClientAddress(hwAddr);
+        final Inet4Address freeAddr = mClientAddr != null
+                ? checkFreeAddress(intToInet4AddressHTH(firstAddr))
+                : findFreeAddress(getAddrIndex(firstAddr));
+        if (freeAddr != null) {
+            return new DhcpLease(clientId, hwAddr, freeAddr, mPrefixLength, expTime, hostname);
         }
 
         // Try freeing DECLINEd addresses if out of addresses.
@@ -629,6 +862,7 @@ class DhcpLeaseRepository {
         while (it.hasNext()) {
             final Inet4Address addr = it.next();
             it.remove();
+            updateUnavailable(addr);
             mLog.logf("Out of addresses in address pool: dropped declined addr %s",
                     inet4AddrToString(addr));
             // isValidAddress() is always verified for entries in mDeclinedAddrs.
@@ -40,8 +40,7 @@ public class DhcpNakPacket extends DhcpPacket {
     /**
      * Fills in a packet with the requested NAK attributes.
      */
-    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp) {
-        ByteBuffer result = ByteBuffer.allocate(MAX_LENGTH);
+    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp, ByteBuffer result) {
         // Constructor does not set values for layers <= 3: use empty values
         Inet4Address destIp = INADDR_ANY;
         Inet4Address srcIp = INADDR_ANY;
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp;
+
+import static com.android.net.module.util.Inet4AddressUtils.inet4AddressToIntHTH;
+import static com.android.net.module.util.Inet4AddressUtils.intToInet4AddressHTH;
+import static com.android.net.module.util.NetworkStackConstants.IPV4_ADDR_ANY;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.internal.util.HexDump;
+
+import java.net.Inet4Address;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * What {@link DhcpClient} learned about the DHCP server of a network, stored in the IpMemoryStore
+ * so that the fastest exchange that worked on the network can be used when it is joined again.
+ *
+ * <p>The profile holds the server identifier and the set of options in the last DHCPACK, which
+ * identify the server configuration the flags were observed with, the serialized
+ * {@link DhcpRttEstimator} of the network, and whether INIT-REBOOT and rapid commit worked.
+ *
+ * <p>Instances are immutable.
+ * @hide
+ */
+class DhcpNetworkProfile {
+    /** The server answered an INIT-REBOOT DHCPREQUEST with a DHCPACK. */
+    static final int FLAG_INIT_REBOOT_ACKED = 1 << 0;
+    /** The server answered an INIT-REBOOT DHCPREQUEST with a DHCPNAK, or did not answer it. */
+    static final int FLAG_INIT_REBOOT_FAILED = 1 << 1;
+    /** The server answered a DHCPDISCOVER with a rapid commit DHCPACK. */
+    static final int FLAG_RAPID_COMMIT = 1 << 2;
+
+    static final int FLAGS_INIT_REBOOT = FLAG_INIT_REBOOT_ACKED | FLAG_INIT_REBOOT_FAILED;
+    private static final int ALL_FLAGS = FLAGS_INIT_REBOOT | FLAG_RAPID_COMMIT;
+
+    private static final byte VERSION = 1;
+    // Lengths of the variable-size fields are serialized as unsigned bytes.
+    private static final int MAX_FIELD_LENGTH = 0xff;
+
+    @Nullable
+    private final Inet4Address mServerId;
+    // Sorted and without duplicates, so that profiles can be compared regardless of the order in
+    // which the server sent the options.
+    @NonNull
+    private final byte[] mAckOptionTypes;
+    @Nullable
+    private final byte[] mRttEstimate;
+    private final int mFlags;
+
+    DhcpNetworkProfile(@Nullable Inet4Address serverId, @Nullable byte[] ackOptionTypes,
+            @Nullable byte[] rttEstimate, int flags) {
+        mServerId = IPV4_ADDR_ANY.equals(serverId) ? null : serverId;
+        mAckOptionTypes = normalizeOptionTypes(ackOptionTypes);
+        mRttEstimate = (rttEstimate == null || rttEstimate.length > MAX_FIELD_LENGTH)
+                ? null : rttEstimate.clone();
+        mFlags = flags & ALL_FLAGS;
+    }
+
+    @NonNull
+    private static byte[] normalizeOptionTypes(@Nullable byte[] optionTypes) {
+        if (optionTypes == null) return new byte[0];
+        final boolean[] present = new boolean[256];
+        int count = 0;
+        for (byte type : optionTypes) {
+            if (!present[type & 0xff]) count++;
+            present[type & 0xff] = true;
+        }
+        final byte[] normalized = new byte[count];
+        int i = 0;
+        for (int type = 0; type < present.length; type++) {
+            if (present[type]) normalized[i++] = (byte) type;
+        }
+        return normalized;
+    }
+
+    @Nullable
+    public Inet4Address getServerId() {
+        return mServerId;
+    }
+
+    @Nullable
+    public byte[] getRttEstimate() {
+        return mRttEstimate == null ? null : mRttEstimate.clone();
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    /**
+     * Returns whether a DHCPACK from the specified server with the specified options indicates
+     * that the server is configured as when this profile was stored.
+     */
+    public boolean isSameServerConfiguration(@Nullable Inet4Address serverId,
+            @Nullable byte[] ackOptionTypes) {
+        return Objects.equals(mServerId, IPV4_ADDR_ANY.equals(serverId) ? null : serverId)
+                && Arrays.equals(mAckOptionTypes, normalizeOptionTypes(ackOptionTypes));
+    }
+
+    /**
+     * Serialize the profile to store it in the IpMemoryStore.
+     */
+    @NonNull
+    public byte[] toBytes() {
+        final byte[] rttEstimate = mRttEstimate == null ? new byte[0] : mRttEstimate;
+        final Inet4Address serverId = mServerId == null ? IPV4_ADDR_ANY : mServerId;
+        // Version, flags, server ID, then each variable-size field preceded by its length.
+        final int size = 1 + 1 + 4 + 1 + rttEstimate.length + 1 + mAckOptionTypes.length;
+        return ByteBuffer.allocate(size)
+                .put(VERSION)
+                .put((byte) mFlags)
+                .putInt(inet4AddressToIntHTH(serverId))
+                .put((byte) rttEstimate.length)
+                .put(rttEstimate)
+                .put((byte) mAckOptionTypes.length)
+                .put(mAckOptionTypes)
+                .array();
+    }
+
+    /**
+     * Deserialize a profile serialized by {@link #toBytes}.
+     *
+     * @return the profile, or null if the data is malformed or has an unknown version.
+     */
+    @Nullable
+    public static DhcpNetworkProfile fromBytes(@Nullable byte[] data) {
+        if (data == null) return null;
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            if (buf.get() != VERSION) return null;
+            final int flags = buf.get() & 0xff;
+            final Inet4Address serverId = intToInet4AddressHTH(buf.getInt());
+            final byte[] rttEstimate = new byte[buf.get() & 0xff];
+            buf.get(rttEstimate);
+            final byte[] ackOptionTypes = new byte[buf.get() & 0xff];
+            buf.get(ackOptionTypes);
+            if (buf.hasRemaining()) return null;
+            return new DhcpNetworkProfile(serverId, ackOptionTypes,
+                    rttEstimate.length == 0 ? null : rttEstimate, flags);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof DhcpNetworkProfile)) return false;
+        final DhcpNetworkProfile other = (DhcpNetworkProfile) obj;
+        return Objects.equals(mServerId, other.mServerId)
+                && Arrays.equals(mAckOptionTypes, other.mAckOptionTypes)
+                && Arrays.equals(mRttEstimate, other.mRttEstimate)
+                && mFlags == other.mFlags;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mServerId, Arrays.hashCode(mAckOptionTypes),
+                Arrays.hashCode(mRttEstimate), mFlags);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "DhcpNetworkProfile{serverId=" + mServerId
+                + ", ackOptions=" + HexDump.toHexString(mAckOptionTypes)
+                + ", flags=0x" + Integer.toHexString(mFlags) + "}";
+    }
+}
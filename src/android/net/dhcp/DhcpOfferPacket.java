@@ -58,8 +58,7 @@ public class DhcpOfferPacket extends DhcpPacket {
     /**
      * Fills in a packet with the specified OFFER attributes.
      */
-    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp) {
-        ByteBuffer result = ByteBuffer.allocate(MAX_LENGTH);
+    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp, ByteBuffer result) {
         Inet4Address destIp = mBroadcast ? INADDR_BROADCAST : mYourIp;
         Inet4Address srcIp = mBroadcast ? INADDR_ANY : mSrcIp;
 
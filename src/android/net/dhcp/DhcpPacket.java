@@ -42,7 +42,6 @@ import java.net.UnknownHostException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -88,6 +87,9 @@ public abstract class DhcpPacket {
     public static final int MIN_PACKET_LENGTH_L3 = MIN_PACKET_LENGTH_BOOTP + 20 + 8;
     public static final int MIN_PACKET_LENGTH_L2 = MIN_PACKET_LENGTH_L3 + 14;
 
+    // Offset of the elapsed seconds field from the start of the BOOTP header.
+    private static final int BOOTP_SECS_OFFSET = 8;
+
     public static final int HWADDR_LEN = 16;
     public static final int MAX_OPTION_LEN = 255;
 
@@ -108,7 +110,7 @@ public abstract class DhcpPacket {
     /**
      * IP layer definitions.
      */
-    private static final byte IP_TYPE_UDP = (byte) 0x11;
+    static final byte IP_TYPE_UDP = (byte) 0x11;
 
     /**
      * IP: Version 4, Header Length 20 bytes
@@ -396,12 +398,28 @@ public abstract class DhcpPacket {
     @Nullable
     protected List<DhcpOption> mCustomizedClientOptions;
 
+    /**
+     * The types of the options of a received packet, in the order they appear, if it was decoded
+     * from a {@link DhcpRawPacket}.
+     */
+    @Nullable
+    byte[] mOptionTypes;
+
     /**
      * Asks the packet object to create a ByteBuffer serialization of
      * the packet for transmission.
      */
-    public abstract ByteBuffer buildPacket(int encap, short destUdp,
-        short srcUdp);
+    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp) {
+        return buildPacket(encap, destUdp, srcUdp, ByteBuffer.allocate(MAX_LENGTH));
+    }
+
+    /**
+     * Serializes the packet for transmission into the specified buffer, which is cleared first
+     * and must have a capacity of at least {@link #MAX_LENGTH}. Returns the buffer, flipped so
+     * that it contains the packet from its position to its limit.
+     */
+    public abstract ByteBuffer buildPacket(int encap, short destUdp, short srcUdp,
+            ByteBuffer buf);
 
     /**
      * Allows the concrete class to fill in packet-type-specific details,
@@ -426,6 +444,15 @@ public abstract class DhcpPacket {
         mBroadcast = broadcast;
     }
 
+    /**
+     * Returns the types of the options of a received packet, in the order they appear, or null if
+     * the packet was not decoded from a {@link DhcpRawPacket}.
+     */
+    @Nullable
+    public byte[] getOptionTypes() {
+        return mOptionTypes;
+    }
+
     /**
      * Returns the transaction ID.
      */
@@ -569,10 +596,13 @@ public abstract class DhcpPacket {
         buf.put(mNextIp.getAddress());
         buf.put(mRelayIp.getAddress());
         buf.put(mClientMac);
-        buf.position(buf.position() +
-                     (HWADDR_LEN - mClientMac.length) // pad addr to 16 bytes
-                     + 64     // empty server host name (64 bytes)
-                     + 128);  // empty boot file name (128 bytes)
+        // Write the padding explicitly, as the buffer may be reused and contain a previous packet.
+        final int paddingLen = (HWADDR_LEN - mClientMac.length) // pad addr to 16 bytes
+                + 64     // empty server host name (64 bytes)
+                + 128;   // empty boot file name (128 bytes)
+        for (int i = 0; i < paddingLen; i++) {
+            buf.put((byte) 0);
+        }
         buf.putInt(DHCP_MAGIC_COOKIE); // magic number
         finishPacket(buf);
 
@@ -626,37 +656,16 @@ public abstract class DhcpPacket {
      * payload) on the specified portion of a ByteBuffer.  The seed
      * allows the checksum to commence with a specified value.
      */
-    private int checksum(ByteBuffer buf, int seed, int start, int end) {
+    private static int checksum(ByteBuffer buf, int seed, int start, int end) {
         int sum = seed;
-        int bufPosition = buf.position();
-
-        // set position of original ByteBuffer, so that the ShortBuffer
-        // will be correctly initialized
-        buf.position(start);
-        ShortBuffer shortBuf = buf.asShortBuffer();
-
-        // re-set ByteBuffer position
-        buf.position(bufPosition);
-
-        short[] shortArray = new short[(end - start) / 2];
-        shortBuf.get(shortArray);
-
-        for (short s : shortArray) {
-            sum += intAbs(s);
+        int pos = start;
+        for (; pos + 1 < end; pos += 2) {
+            sum += intAbs(buf.getShort(pos));
         }
 
-        start += shortArray.length * 2;
-
         // see if a singleton byte remains
-        if (end != start) {
-            short b = buf.get(start);
-
-            // make it unsigned
-            if (b < 0) {
-                b += 256;
-            }
-
-            sum += b * 256;
+        if (pos != end) {
+            sum += (buf.get(pos) & 0xFF) * 256;
         }
 
         sum = ((sum >> 16) & 0xFFFF) + (sum & 0xFFFF);
@@ -665,6 +674,36 @@ public abstract class DhcpPacket {
         return intAbs((short) negated);
     }
 
+    /**
+     * Updates the elapsed seconds field of a packet previously built with {@link #buildPacket},
+     * and adjusts the UDP checksum accordingly (RFC 1624), without rebuilding the packet.
+     *
+     * <p>This allows retransmitting the same packet without reallocating or reserializing it. The
+     * position and limit of the buffer are not modified.
+     */
+    public static void updateSecs(@NonNull ByteBuffer packet, int encap, short secs) {
+        final int bootpOffset;
+        if (encap == ENCAP_L2) {
+            bootpOffset = MIN_PACKET_LENGTH_L2 - MIN_PACKET_LENGTH_BOOTP;
+        } else if (encap == ENCAP_L3) {
+            bootpOffset = MIN_PACKET_LENGTH_L3 - MIN_PACKET_LENGTH_BOOTP;
+        } else {
+            bootpOffset = 0;
+        }
+        final int secsOffset = bootpOffset + BOOTP_SECS_OFFSET;
+        final short oldSecs = packet.getShort(secsOffset);
+        packet.putShort(secsOffset, secs);
+        if (encap > ENCAP_L3) return;
+
+        // The UDP checksum is the last field of the UDP header, just before the BOOTP header.
+        final int udpChecksumOffset = bootpOffset - 2;
+        int sum = intAbs((short) ~packet.getShort(udpChecksumOffset))
+                + intAbs((short) ~oldSecs) + intAbs(secs);
+        sum = ((sum >> 16) & 0xFFFF) + (sum & 0xFFFF);
+        sum = ((sum + ((sum >> 16) & 0xFFFF)) & 0xFFFF);
+        packet.putShort(udpChecksumOffset, (short) ~sum);
+    }
+
     /**
      * Adds an optional parameter containing a single byte value.
      */
@@ -948,11 +987,11 @@ public abstract class DhcpPacket {
         return new String(bytes, 0, length, StandardCharsets.US_ASCII);
     }
 
-    private static boolean isPacketToOrFromClient(short udpSrcPort, short udpDstPort) {
+    static boolean isPacketToOrFromClient(short udpSrcPort, short udpDstPort) {
         return (udpSrcPort == DHCP_CLIENT) || (udpDstPort == DHCP_CLIENT);
     }
 
-    private static boolean isPacketServerToServer(short udpSrcPort, short udpDstPort) {
+    static boolean isPacketServerToServer(short udpSrcPort, short udpDstPort) {
         return (udpSrcPort == DHCP_SERVER) && (udpDstPort == DHCP_SERVER);
     }
 
@@ -1515,13 +1554,25 @@ public abstract class DhcpPacket {
     public static ByteBuffer buildDiscoverPacket(int encap, int transactionId,
             short secs, byte[] clientMac, boolean broadcast, byte[] expectedParams,
             boolean rapidCommit, String hostname, List<DhcpOption> options) {
+        return buildDiscoverPacket(encap, transactionId, secs, clientMac, broadcast,
+                expectedParams, rapidCommit, hostname, options, ByteBuffer.allocate(MAX_LENGTH));
+    }
+
+    /**
+     * Builds a DHCP-DISCOVER packet from the required specified parameters into the specified
+     * buffer, which must have a capacity of at least {@link #MAX_LENGTH}.
+     */
+    public static ByteBuffer buildDiscoverPacket(int encap, int transactionId,
+            short secs, byte[] clientMac, boolean broadcast, byte[] expectedParams,
+            boolean rapidCommit, String hostname, List<DhcpOption> options,
+            @NonNull ByteBuffer buf) {
         DhcpPacket pkt = new DhcpDiscoverPacket(transactionId, secs, INADDR_ANY /* relayIp */,
                 clientMac, broadcast, INADDR_ANY /* srcIp */, rapidCommit);
         pkt.mRequestedParams = expectedParams;
         pkt.mHostName = hostname;
         pkt.mCustomizedClientOptions = options;
         pkt.mVendorId = getVendorId(options);
-        return pkt.buildPacket(encap, DHCP_SERVER, DHCP_CLIENT);
+        return pkt.buildPacket(encap, DHCP_SERVER, DHCP_CLIENT, buf);
     }
 
     /**
@@ -1546,6 +1597,23 @@ public abstract class DhcpPacket {
             Inet4Address dhcpServerIdentifier, String domainName, String hostname, boolean metered,
             short mtu, String captivePortalUrl, Integer ipv6OnlyWaitTime,
             List<String> domainSearchList) {
+        return buildOfferPacket(encap, transactionId, broadcast, serverIpAddr, relayIp, yourIp,
+                mac, timeout, netMask, bcAddr, gateways, dnsServers, dhcpServerIdentifier,
+                domainName, hostname, metered, mtu, captivePortalUrl, ipv6OnlyWaitTime,
+                domainSearchList, ByteBuffer.allocate(MAX_LENGTH));
+    }
+
+    /**
+     * Builds a DHCP-OFFER packet from the required specified parameters into the specified
+     * buffer, which must have a capacity of at least {@link #MAX_LENGTH}.
+     */
+    public static ByteBuffer buildOfferPacket(int encap, int transactionId,
+            boolean broadcast, Inet4Address serverIpAddr, Inet4Address relayIp,
+            Inet4Address yourIp, byte[] mac, Integer timeout, Inet4Address netMask,
+            Inet4Address bcAddr, List<Inet4Address> gateways, List<Inet4Address> dnsServers,
+            Inet4Address dhcpServerIdentifier, String domainName, String hostname, boolean metered,
+            short mtu, String captivePortalUrl, Integer ipv6OnlyWaitTime,
+            List<String> domainSearchList, @NonNull ByteBuffer buf) {
         DhcpPacket pkt = new DhcpOfferPacket(
                 transactionId, (short) 0, broadcast, serverIpAddr, relayIp,
                 INADDR_ANY /* clientIp */, yourIp, mac);
@@ -1568,7 +1636,7 @@ public abstract class DhcpPacket {
         if (ipv6OnlyWaitTime != null) {
             pkt.mIpv6OnlyWaitTime = ipv6OnlyWaitTime;
         }
-        return pkt.buildPacket(encap, DHCP_CLIENT, DHCP_SERVER);
+        return pkt.buildPacket(encap, DHCP_CLIENT, DHCP_SERVER, buf);
     }
 
     /**
@@ -1596,6 +1664,24 @@ public abstract class DhcpPacket {
             Inet4Address dhcpServerIdentifier, String domainName, String hostname, boolean metered,
             short mtu, boolean rapidCommit, String captivePortalUrl, Integer ipv6OnlyWaitTime,
             List<String> domainSearchList) {
+        return buildAckPacket(encap, transactionId, broadcast, serverIpAddr, relayIp, yourIp,
+                requestClientIp, mac, timeout, netMask, bcAddr, gateways, dnsServers,
+                dhcpServerIdentifier, domainName, hostname, metered, mtu, rapidCommit,
+                captivePortalUrl, ipv6OnlyWaitTime, domainSearchList,
+                ByteBuffer.allocate(MAX_LENGTH));
+    }
+
+    /**
+     * Builds a DHCP-ACK packet from the required specified parameters into the specified buffer,
+     * which must have a capacity of at least {@link #MAX_LENGTH}.
+     */
+    public static ByteBuffer buildAckPacket(int encap, int transactionId,
+            boolean broadcast, Inet4Address serverIpAddr, Inet4Address relayIp, Inet4Address yourIp,
+            Inet4Address requestClientIp, byte[] mac, Integer timeout, Inet4Address netMask,
+            Inet4Address bcAddr, List<Inet4Address> gateways, List<Inet4Address> dnsServers,
+            Inet4Address dhcpServerIdentifier, String domainName, String hostname, boolean metered,
+            short mtu, boolean rapidCommit, String captivePortalUrl, Integer ipv6OnlyWaitTime,
+            List<String> domainSearchList, @NonNull ByteBuffer buf) {
         DhcpPacket pkt = new DhcpAckPacket(
                 transactionId, (short) 0, broadcast, serverIpAddr, relayIp, requestClientIp, yourIp,
                 mac, rapidCommit);
@@ -1618,7 +1704,7 @@ public abstract class DhcpPacket {
         if (ipv6OnlyWaitTime != null) {
             pkt.mIpv6OnlyWaitTime = ipv6OnlyWaitTime;
         }
-        return pkt.buildPacket(encap, DHCP_CLIENT, DHCP_SERVER);
+        return pkt.buildPacket(encap, DHCP_CLIENT, DHCP_SERVER, buf);
     }
 
     /**
@@ -1656,6 +1742,20 @@ public abstract class DhcpPacket {
             byte[] clientMac, Inet4Address requestedIpAddress,
             Inet4Address serverIdentifier, byte[] requestedParams, String hostName,
             List<DhcpOption> options) {
+        return buildRequestPacket(encap, transactionId, secs, clientIp, broadcast, clientMac,
+                requestedIpAddress, serverIdentifier, requestedParams, hostName, options,
+                ByteBuffer.allocate(MAX_LENGTH));
+    }
+
+    /**
+     * Builds a DHCP-REQUEST packet from the required specified parameters into the specified
+     * buffer, which must have a capacity of at least {@link #MAX_LENGTH}.
+     */
+    public static ByteBuffer buildRequestPacket(int encap,
+            int transactionId, short secs, Inet4Address clientIp, boolean broadcast,
+            byte[] clientMac, Inet4Address requestedIpAddress,
+            Inet4Address serverIdentifier, byte[] requestedParams, String hostName,
+            List<DhcpOption> options, @NonNull ByteBuffer buf) {
         DhcpPacket pkt = new DhcpRequestPacket(transactionId, secs, clientIp,
                 INADDR_ANY /* relayIp */, clientMac, broadcast);
         pkt.mRequestedIp = requestedIpAddress;
@@ -1664,8 +1764,7 @@ public abstract class DhcpPacket {
         pkt.mRequestedParams = requestedParams;
         pkt.mCustomizedClientOptions = options;
         pkt.mVendorId = getVendorId(options);
-        ByteBuffer result = pkt.buildPacket(encap, DHCP_SERVER, DHCP_CLIENT);
-        return result;
+        return pkt.buildPacket(encap, DHCP_SERVER, DHCP_CLIENT, buf);
     }
 
     /**
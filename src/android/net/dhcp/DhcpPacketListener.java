@@ -56,8 +56,10 @@ abstract class DhcpPacketListener extends FdEventsReader<DhcpPacketListener.Payl
         }
 
         try {
-            final DhcpPacket packet = DhcpPacket.decodeFullPacket(recvbuf.mBytes, length,
-                    DhcpPacket.ENCAP_BOOTP);
+            final DhcpRawPacket rawPacket =
+                    DhcpRawPacket.parse(recvbuf.mBytes, length, DhcpPacket.ENCAP_BOOTP);
+            if (!shouldDecode(rawPacket)) return;
+            final DhcpPacket packet = rawPacket.decode(new byte[0] /* optionsToSkip */);
             onReceive(packet, recvbuf.mSrcAddr, recvbuf.mSrcPort);
         } catch (DhcpPacket.ParseException e) {
             logParseError(recvbuf.mBytes, length, e);
@@ -94,6 +96,15 @@ abstract class DhcpPacketListener extends FdEventsReader<DhcpPacketListener.Payl
                 : null;
     }
 
+    /**
+     * Check whether a received packet should be decoded and passed to {@link #onReceive}. Packets
+     * that are not are dropped silently. This allows dropping unwanted packets before their
+     * options are decoded.
+     */
+    protected boolean shouldDecode(@NonNull DhcpRawPacket packet) {
+        return true;
+    }
+
     protected abstract void onReceive(@NonNull DhcpPacket packet, @NonNull Inet4Address srcAddr,
             int srcPort);
     protected abstract void logParseError(@NonNull byte[] packet, int length,
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp;
+
+import static android.net.dhcp.DhcpPacket.DHCP_MAGIC_COOKIE;
+import static android.net.dhcp.DhcpPacket.DHCP_MESSAGE_TYPE;
+import static android.net.dhcp.DhcpPacket.DHCP_OPTION_END;
+import static android.net.dhcp.DhcpPacket.DHCP_OPTION_PAD;
+import static android.net.dhcp.DhcpPacket.ENCAP_BOOTP;
+import static android.net.dhcp.DhcpPacket.ENCAP_L2;
+import static android.net.dhcp.DhcpPacket.ENCAP_L3;
+import static android.net.dhcp.DhcpPacket.ETHER_BROADCAST;
+import static android.net.dhcp.DhcpPacket.HWADDR_LEN;
+import static android.net.dhcp.DhcpPacket.IP_TYPE_UDP;
+import static android.net.dhcp.DhcpPacket.MIN_PACKET_LENGTH_BOOTP;
+import static android.net.dhcp.DhcpPacket.MIN_PACKET_LENGTH_L2;
+import static android.net.dhcp.DhcpPacket.MIN_PACKET_LENGTH_L3;
+import static android.net.dhcp.DhcpPacket.isPacketServerToServer;
+import static android.net.dhcp.DhcpPacket.isPacketToOrFromClient;
+
+import static com.android.net.module.util.Inet4AddressUtils.intToInet4AddressHTH;
+
+import android.net.dhcp.DhcpPacket.ParseException;
+import android.net.metrics.DhcpErrorEvent;
+import android.system.OsConstants;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.net.Inet4Address;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A received DHCP packet whose headers were validated, with an index of its options.
+ *
+ * <p>Unlike {@link DhcpPacket#decodeFullPacket}, parsing does not decode the options: it only
+ * records where each option starts in the original buffer. Header fields and options are read from
+ * the buffer when accessed, so receivers can check the transaction ID, op or message type of a
+ * packet and drop it without allocating more than this object. Packets that are kept can then be
+ * decoded with {@link #decode(byte[])}.
+ *
+ * <p>Instances read from the buffer they were parsed from, which must not be modified while they
+ * are in use.
+ * @hide
+ */
+public class DhcpRawPacket {
+    // Offsets of BOOTP fields, from the start of the BOOTP header. See RFC2131 section 2.
+    private static final int BOOTP_OP_OFFSET = 0;
+    private static final int BOOTP_HLEN_OFFSET = 2;
+    private static final int BOOTP_XID_OFFSET = 4;
+    private static final int BOOTP_CIADDR_OFFSET = 12;
+    private static final int BOOTP_YIADDR_OFFSET = 16;
+    private static final int BOOTP_GIADDR_OFFSET = 24;
+    private static final int BOOTP_CHADDR_OFFSET = 28;
+    private static final int BOOTP_COOKIE_OFFSET = MIN_PACKET_LENGTH_BOOTP;
+    private static final int BOOTP_OPTIONS_OFFSET = BOOTP_COOKIE_OFFSET + 4;
+
+    private static final int ETHER_TYPE_OFFSET = 12;
+    private static final int ETHER_HEADER_LEN = 14;
+    private static final int IPV4_PROTOCOL_OFFSET = 9;
+    private static final int IPV4_MIN_HEADER_LEN = 20;
+    private static final int UDP_HEADER_LEN = 8;
+
+    private static final int INITIAL_OPTIONS_CAPACITY = 16;
+
+    @NonNull
+    private final ByteBuffer mBuffer;
+    private final int mPktType;
+    // Position of the start of the packet in mBuffer, including encapsulation.
+    private final int mStart;
+    private final int mLimit;
+    // Position of the BOOTP header in mBuffer.
+    private final int mBootp;
+    private final byte mMessageType;
+    // Options in the order they appear in the packet. Each entry has the option type in the upper
+    // 16 bits, and the position of the option length byte, relative to mBootp, in the lower 16 bits.
+    @NonNull
+    private final int[] mOptions;
+    private final int mNumOptions;
+
+    private DhcpRawPacket(@NonNull ByteBuffer buffer, int pktType, int start, int bootp,
+            byte messageType, @NonNull int[] options, int numOptions) {
+        mBuffer = buffer;
+        mPktType = pktType;
+        mStart = start;
+        mLimit = buffer.limit();
+        mBootp = bootp;
+        mMessageType = messageType;
+        mOptions = options;
+        mNumOptions = numOptions;
+    }
+
+    /**
+     * Parse a packet from the position to the limit of a buffer, and index its options.
+     *
+     * <p>This validates the encapsulation headers, the BOOTP header, the DHCP magic cookie, the
+     * framing of options and the message type option, and throws the same errors as
+     * {@link DhcpPacket#decodeFullPacket} for them. The contents of other options are only
+     * validated when the packet is decoded. The position of the buffer is not modified.
+     * @param pktType One of {@link DhcpPacket#ENCAP_L2}, {@link DhcpPacket#ENCAP_L3} or
+     *                {@link DhcpPacket#ENCAP_BOOTP}.
+     */
+    @NonNull
+    public static DhcpRawPacket parse(@NonNull ByteBuffer buffer, int pktType)
+            throws ParseException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        final int start = buffer.position();
+        final int limit = buffer.limit();
+        int pos = start;
+
+        if (pktType == ENCAP_L2) {
+            if (limit - pos < MIN_PACKET_LENGTH_L2) {
+                throw new ParseException(DhcpErrorEvent.L2_TOO_SHORT,
+                        "L2 packet too short, %d < %d", limit - pos, MIN_PACKET_LENGTH_L2);
+            }
+            final short l2type = buffer.getShort(pos + ETHER_TYPE_OFFSET);
+            if (l2type != OsConstants.ETH_P_IP) {
+                throw new ParseException(DhcpErrorEvent.L2_WRONG_ETH_TYPE,
+                        "Unexpected L2 type 0x%04x, expected 0x%04x", l2type, OsConstants.ETH_P_IP);
+            }
+            pos += ETHER_HEADER_LEN;
+        }
+
+        if (pktType <= ENCAP_L3) {
+            if (limit - pos < MIN_PACKET_LENGTH_L3) {
+                throw new ParseException(DhcpErrorEvent.L3_TOO_SHORT,
+                        "L3 packet too short, %d < %d", limit - pos, MIN_PACKET_LENGTH_L3);
+            }
+            final byte ipTypeAndLength = buffer.get(pos);
+            final int ipVersion = (ipTypeAndLength & 0xf0) >> 4;
+            if (ipVersion != 4) {
+                throw new ParseException(
+                        DhcpErrorEvent.L3_NOT_IPV4, "Invalid IP version %d", ipVersion);
+            }
+            final byte ipProto = buffer.get(pos + IPV4_PROTOCOL_OFFSET);
+            if (ipProto != IP_TYPE_UDP) {
+                throw new ParseException(
+                        DhcpErrorEvent.L4_NOT_UDP, "Protocol not UDP: %d", ipProto);
+            }
+            // Skip options like decodeFullPacket. The IPv4 header is at most 60 bytes, which is
+            // less than MIN_PACKET_LENGTH_L3.
+            pos += IPV4_MIN_HEADER_LEN + Math.max(0, (ipTypeAndLength & 0x0f) - 5) * 4;
+            final short udpSrcPort = buffer.getShort(pos);
+            final short udpDstPort = buffer.getShort(pos + 2);
+            if (!isPacketToOrFromClient(udpSrcPort, udpDstPort)
+                    && !isPacketServerToServer(udpSrcPort, udpDstPort)) {
+                throw new ParseException(DhcpErrorEvent.L4_WRONG_PORT,
+                        "Unexpected UDP ports %d->%d", udpSrcPort, udpDstPort);
+            }
+            pos += UDP_HEADER_LEN;
+        }
+
+        if (pktType > ENCAP_BOOTP || limit - pos < MIN_PACKET_LENGTH_BOOTP) {
+            throw new ParseException(DhcpErrorEvent.BOOTP_TOO_SHORT,
+                    "Invalid type or BOOTP packet too short, %d < %d",
+                    limit - pos, MIN_PACKET_LENGTH_BOOTP);
+        }
+        final int bootp = pos;
+
+        if (limit - bootp < BOOTP_OPTIONS_OFFSET) {
+            throw new ParseException(DhcpErrorEvent.DHCP_NO_COOKIE, "not a DHCP message");
+        }
+        final int dhcpMagicCookie = buffer.getInt(bootp + BOOTP_COOKIE_OFFSET);
+        if (dhcpMagicCookie != DHCP_MAGIC_COOKIE) {
+            throw new ParseException(DhcpErrorEvent.DHCP_BAD_MAGIC_COOKIE,
+                    "Bad magic cookie 0x%08x, should be 0x%08x",
+                    dhcpMagicCookie, DHCP_MAGIC_COOKIE);
+        }
+
+        int[] options = new int[INITIAL_OPTIONS_CAPACITY];
+        int numOptions = 0;
+        byte messageType = (byte) 0xFF;
+        pos = bootp + BOOTP_OPTIONS_OFFSET;
+        while (pos < limit) {
+            final byte optionType = buffer.get(pos);
+            if (optionType == DHCP_OPTION_END) break;
+            pos++;
+            // The pad option doesn't have a length field.
+            if (optionType == DHCP_OPTION_PAD) continue;
+
+            if (pos >= limit || pos + 1 + (buffer.get(pos) & 0xff) > limit) {
+                final int errorCode = DhcpErrorEvent.errorCodeWithOption(
+                        DhcpErrorEvent.BUFFER_UNDERFLOW, optionType);
+                throw new ParseException(errorCode, "BufferUnderflowException");
+            }
+            final int optionLen = buffer.get(pos) & 0xff;
+            if (optionType == DHCP_MESSAGE_TYPE) {
+                if (optionLen != 1) {
+                    final int errorCode = DhcpErrorEvent.errorCodeWithOption(
+                            DhcpErrorEvent.DHCP_INVALID_OPTION_LENGTH, optionType);
+                    throw new ParseException(errorCode,
+                            "Invalid length %d for option %d, expected %d",
+                            optionLen, optionType, 1);
+                }
+                messageType = buffer.get(pos + 1);
+            }
+            if (numOptions == options.length) {
+                options = Arrays.copyOf(options, options.length * 2);
+            }
+            options[numOptions++] = ((optionType & 0xff) << 16) | (pos - bootp);
+            pos += 1 + optionLen;
+        }
+
+        if (messageType == (byte) 0xFF) {
+            throw new ParseException(DhcpErrorEvent.DHCP_NO_MSG_TYPE,
+                    "No DHCP message type option");
+        }
+        return new DhcpRawPacket(buffer, pktType, start, bootp, messageType, options, numOptions);
+    }
+
+    /**
+     * Parse a packet from an array of bytes, stopping at the given length.
+     * @see #parse(ByteBuffer, int)
+     */
+    @NonNull
+    public static DhcpRawPacket parse(@NonNull byte[] packet, int length, int pktType)
+            throws ParseException {
+        return parse(ByteBuffer.wrap(packet, 0, length), pktType);
+    }
+
+    /**
+     * Get the BOOTP op of the packet, {@link DhcpPacket#DHCP_BOOTREQUEST} or
+     * {@link DhcpPacket#DHCP_BOOTREPLY}.
+     */
+    public byte getOp() {
+        return mBuffer.get(mBootp + BOOTP_OP_OFFSET);
+    }
+
+    public int getTransactionId() {
+        return mBuffer.getInt(mBootp + BOOTP_XID_OFFSET);
+    }
+
+    /**
+     * Get the DHCP message type of the packet, such as
+     * {@link DhcpPacket#DHCP_MESSAGE_TYPE_OFFER}.
+     */
+    public byte getMessageType() {
+        return mMessageType;
+    }
+
+    /**
+     * Get the client address (ciaddr) of the packet, as an int in host byte order.
+     */
+    public int getClientIpAsInt() {
+        return mBuffer.getInt(mBootp + BOOTP_CIADDR_OFFSET);
+    }
+
+    /**
+     * Get the address assigned to the client (yiaddr) in the packet, as an int in host byte order.
+     */
+    public int getYourIpAsInt() {
+        return mBuffer.getInt(mBootp + BOOTP_YIADDR_OFFSET);
+    }
+
+    /**
+     * Get the relay agent address (giaddr) of the packet, as an int in host byte order.
+     */
+    public int getRelayIpAsInt() {
+        return mBuffer.getInt(mBootp + BOOTP_GIADDR_OFFSET);
+    }
+
+    /**
+     * Check whether the client hardware address of the packet is equal to the specified address,
+     * as compared by {@link DhcpPacket#getClientMac()}.
+     */
+    public boolean clientMacEquals(@NonNull byte[] mac) {
+        int addrLen = mBuffer.get(mBootp + BOOTP_HLEN_OFFSET) & 0xff;
+        // Same as decodeFullPacket for invalid lengths.
+        if (addrLen > HWADDR_LEN) addrLen = ETHER_BROADCAST.length;
+        if (addrLen != mac.length) return false;
+        for (int i = 0; i < addrLen; i++) {
+            if (mBuffer.get(mBootp + BOOTP_CHADDR_OFFSET + i) != mac[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the position of the length byte of the last option of the specified type, or -1 if
+     * there is none.
+     */
+    private int findOption(byte type) {
+        for (int i = mNumOptions - 1; i >= 0; i--) {
+            if ((mOptions[i] >>> 16) == (type & 0xff)) {
+                return mBootp + (mOptions[i] & 0xffff);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the types of the options in the packet, in the order they appear.
+     */
+    @NonNull
+    public byte[] getOptionTypes() {
+        final byte[] types = new byte[mNumOptions];
+        for (int i = 0; i < mNumOptions; i++) {
+            types[i] = (byte) (mOptions[i] >>> 16);
+        }
+        return types;
+    }
+
+    /**
+     * Check whether the packet has an option of the specified type.
+     */
+    public boolean hasOption(byte type) {
+        return findOption(type) >= 0;
+    }
+
+    /**
+     * Get the length of the value of the last option of the specified type, or -1 if there is
+     * none.
+     */
+    public int getOptionLength(byte type) {
+        final int pos = findOption(type);
+        return pos < 0 ? -1 : mBuffer.get(pos) & 0xff;
+    }
+
+    /**
+     * Get a copy of the value of the last option of the specified type, or null if there is none.
+     */
+    @Nullable
+    public byte[] getOptionValue(byte type) {
+        final int pos = findOption(type);
+        if (pos < 0) return null;
+        final byte[] value = new byte[mBuffer.get(pos) & 0xff];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = mBuffer.get(pos + 1 + i);
+        }
+        return value;
+    }
+
+    /**
+     * Get the value of the last option of the specified type as an IPv4 address, or null if
+     * there is none or its length is not 4.
+     */
+    @Nullable
+    public Inet4Address getOptionInet4Address(byte type) {
+        final int pos = findOption(type);
+        if (pos < 0 || (mBuffer.get(pos) & 0xff) != 4) return null;
+        return intToInet4AddressHTH(mBuffer.getInt(pos + 1));
+    }
+
+    /**
+     * Decode the packet into a {@link DhcpPacket}, as per {@link DhcpPacket#decodeFullPacket}.
+     * The types of all options of the packet, including skipped ones, are available from
+     * {@link DhcpPacket#getOptionTypes}.
+     * @param optionsToSkip Types of the options that should not be decoded.
+     */
+    @NonNull
+    public DhcpPacket decode(@NonNull byte[] optionsToSkip) throws ParseException {
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.limit(mLimit).position(mStart);
+        try {
+            final DhcpPacket packet = DhcpPacket.decodeFullPacket(buffer, mPktType, optionsToSkip);
+            packet.mOptionTypes = getOptionTypes();
+            return packet;
+        } catch (ParseException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ParseException(DhcpErrorEvent.PARSING_ERROR, e.getMessage());
+        }
+    }
+}
@@ -39,8 +39,7 @@ public class DhcpReleasePacket extends DhcpPacket {
 
 
     @Override
-    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp) {
-        ByteBuffer result = ByteBuffer.allocate(MAX_LENGTH);
+    public ByteBuffer buildPacket(int encap, short destUdp, short srcUdp, ByteBuffer result) {
         fillInPacket(encap, mServerIdentifier /* destIp */, mClientIp /* srcIp */, destUdp, srcUdp,
                 result, DHCP_BOOTREPLY, mBroadcast);
         result.flip();
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates the round-trip time of DHCP exchanges on a network, to compute how long
+ * {@link DhcpClient} waits for a reply before retransmitting.
+ *
+ * <p>The smoothed RTT and its variance are computed as described for TCP in RFC 6298, from the
+ * time between sending a DHCPDISCOVER or DHCPREQUEST and receiving the reply. As in Karn's
+ * algorithm, the caller must not add samples for packets that were retransmitted, as the reply
+ * may be to any of the transmissions. Instead, the caller must call {@link #backOff} when a reply
+ * arrives after a retransmission that the estimate scheduled too early, so that the estimate that
+ * is stored for the network does not stay too low.
+ *
+ * <p>The estimate is serialized to be stored in the IpMemoryStore for the network.
+ *
+ * <p>This class is not thread-safe; it is used on the {@link DhcpClient} handler thread.
+ * @hide
+ */
+class DhcpRttEstimator {
+    private static final byte VERSION = 1;
+    // Version, smoothed RTT and RTT variance.
+    private static final int SERIALIZED_SIZE = 1 + 4 + 4;
+
+    // Samples are capped so that the estimate does not overflow if the clock jumps.
+    private static final int MAX_SAMPLE_MS = 60_000;
+
+    private int mSrttMs;
+    private int mRttVarMs;
+    private boolean mHasEstimate;
+    private int mSampleCount;
+
+    /**
+     * Add a sample of the time between sending a packet that was not retransmitted and receiving
+     * its reply.
+     */
+    public void addSample(long rttMs) {
+        final int sample = (int) Math.max(0, Math.min(rttMs, MAX_SAMPLE_MS));
+        if (!mHasEstimate) {
+            mSrttMs = sample;
+            mRttVarMs = sample / 2;
+            mHasEstimate = true;
+        } else {
+            // RTTVAR <- (1 - 1/4) * RTTVAR + 1/4 * |SRTT - R'|
+            // SRTT <- (1 - 1/8) * SRTT + 1/8 * R'
+            mRttVarMs = (3 * mRttVarMs + Math.abs(mSrttMs - sample)) / 4;
+            mSrttMs = (7 * mSrttMs + sample) / 8;
+        }
+        mSampleCount++;
+    }
+
+    /**
+     * Raise the estimate after a packet was retransmitted before its reply arrived, because the
+     * timeout computed from the estimate was too short. As in RFC 6298 #5.5, the timeout is at
+     * least doubled; it is also raised above the time the reply took, since the estimate persists
+     * across connections while a timeout backed off by TCP does not.
+     *
+     * @param elapsedMs the time between the first transmission of the packet and the reply.
+     */
+    public void backOff(long elapsedMs) {
+        if (!mHasEstimate) return;
+        final int elapsed = (int) Math.max(0, Math.min(elapsedMs, MAX_SAMPLE_MS));
+        // With RTTVAR >= SRTT / 2, the timeout SRTT + 4 * RTTVAR is at least 3 * SRTT.
+        mSrttMs = Math.min(Math.max(2 * mSrttMs, elapsed), MAX_SAMPLE_MS);
+        mRttVarMs = Math.min(Math.max(2 * mRttVarMs, mSrttMs / 2), MAX_SAMPLE_MS);
+    }
+
+    /**
+     * Returns the number of samples added since this estimator was created or restored.
+     */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public boolean hasEstimate() {
+        return mHasEstimate;
+    }
+
+    /**
+     * Returns the retransmission timeout computed from the estimate, SRTT + 4 * RTTVAR, clamped to
+     * [minMs, maxMs]. Returns maxMs if there is no estimate.
+     */
+    public int getTimeoutMs(int minMs, int maxMs) {
+        if (!mHasEstimate) return maxMs;
+        final long timeout = (long) mSrttMs + 4L * mRttVarMs;
+        return (int) Math.max(minMs, Math.min(timeout, maxMs));
+    }
+
+    /**
+     * Replace the estimate with one previously serialized by {@link #toBytes}, unless samples were
+     * already added to this estimator.
+     *
+     * @return whether the estimate was restored.
+     */
+    public boolean restore(@Nullable byte[] data) {
+        if (mSampleCount > 0 || data == null || data.length != SERIALIZED_SIZE) return false;
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            if (buf.get() != VERSION) return false;
+            final int srttMs = buf.getInt();
+            final int rttVarMs = buf.getInt();
+            if (srttMs < 0 || srttMs > MAX_SAMPLE_MS || rttVarMs < 0 || rttVarMs > MAX_SAMPLE_MS) {
+                return false;
+            }
+            mSrttMs = srttMs;
+            mRttVarMs = rttVarMs;
+            mHasEstimate = true;
+            return true;
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Serialize the estimate, or return null if there is none.
+     */
+    @Nullable
+    public byte[] toBytes() {
+        if (!mHasEstimate) return null;
+        return ByteBuffer.allocate(SERIALIZED_SIZE)
+                .put(VERSION)
+                .putInt(mSrttMs)
+                .putInt(mRttVarMs)
+                .array();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        if (!mHasEstimate) return "DhcpRttEstimator{no estimate}";
+        return "DhcpRttEstimator{srtt=" + mSrttMs + "ms, rttvar=" + mRttVarMs + "ms, samples="
+                + mSampleCount + "}";
+    }
+}
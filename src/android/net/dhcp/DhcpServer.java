@@ -16,13 +16,20 @@
 
 package android.net.dhcp;
 
+import static android.net.dhcp.DhcpLease.EXPIRATION_NEVER;
+import static android.net.dhcp.DhcpPacket.DHCP_BOOTREQUEST;
 import static android.net.dhcp.DhcpPacket.DHCP_CLIENT;
 import static android.net.dhcp.DhcpPacket.DHCP_HOST_NAME;
+import static android.net.dhcp.DhcpPacket.DHCP_MESSAGE_TYPE_DECLINE;
+import static android.net.dhcp.DhcpPacket.DHCP_MESSAGE_TYPE_DISCOVER;
+import static android.net.dhcp.DhcpPacket.DHCP_MESSAGE_TYPE_RELEASE;
+import static android.net.dhcp.DhcpPacket.DHCP_MESSAGE_TYPE_REQUEST;
 import static android.net.dhcp.DhcpPacket.DHCP_SERVER;
 import static android.net.dhcp.DhcpPacket.ENCAP_BOOTP;
 import static android.net.dhcp.IDhcpServer.STATUS_INVALID_ARGUMENT;
 import static android.net.dhcp.IDhcpServer.STATUS_SUCCESS;
 import static android.net.dhcp.IDhcpServer.STATUS_UNKNOWN_ERROR;
+import static android.provider.DeviceConfig.NAMESPACE_CONNECTIVITY;
 import static android.system.OsConstants.AF_INET;
 import static android.system.OsConstants.IPPROTO_UDP;
 import static android.system.OsConstants.SOCK_DGRAM;
@@ -31,13 +38,12 @@ import static android.system.OsConstants.SOL_SOCKET;
 import static android.system.OsConstants.SO_BROADCAST;
 import static android.system.OsConstants.SO_REUSEADDR;
 
-import static com.android.net.module.util.Inet4AddressUtils.getBroadcastAddress;
-import static com.android.net.module.util.Inet4AddressUtils.getPrefixMaskAsInet4Address;
 import static com.android.net.module.util.NetworkStackConstants.INFINITE_LEASE;
 import static com.android.net.module.util.NetworkStackConstants.IPV4_ADDR_ALL;
 import static com.android.net.module.util.NetworkStackConstants.IPV4_ADDR_ANY;
 import static com.android.net.module.util.NetworkStackConstants.TAG_SYSTEM_DHCP_SERVER;
 import static com.android.networkstack.util.NetworkStackUtils.DHCP_RAPID_COMMIT_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.DHCP_SERVER_LEASE_JOURNAL_VERSION;
 import static com.android.server.util.PermissionUtil.enforceNetworkStackCallingPermission;
 
 import static java.lang.Integer.toUnsignedLong;
@@ -47,6 +53,7 @@ import android.net.INetworkStackStatusCallback;
 import android.net.IpPrefix;
 import android.net.MacAddress;
 import android.net.TrafficStats;
+import android.net.dhcp.DhcpServingParams.RelaySubnet;
 import android.net.util.SocketUtils;
 import android.os.Handler;
 import android.os.Message;
@@ -55,32 +62,44 @@ import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.HexDump;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import com.android.net.module.util.DeviceConfigUtils;
 import com.android.net.module.util.SharedLog;
 import com.android.networkstack.util.NetworkStackUtils;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * A DHCPv4 server.
  *
  * <p>This server listens for and responds to packets on a single interface. It considers itself
  * authoritative for all leases on the subnet, which means that DHCP requests for unknown leases of
- * unknown hosts receive a reply instead of being ignored.
+ * unknown hosts receive a reply instead of being ignored. It can also serve remote subnets through
+ * relay agents, each with its own lease repository.
  *
  * <p>The server relies on StateMachine's handler (including send/receive operations): all internal
  * operations are done in StateMachine's looper. Public methods are thread-safe and will schedule
@@ -89,6 +108,20 @@ import java.util.ArrayList;
  */
 public class DhcpServer extends StateMachine {
     private static final String REPO_TAG = "Repository";
+    private static final String RELAY_REPO_TAG = "RelayRepository";
+    private static final String JOURNAL_TAG = "Journal";
+
+    // Unique ID of the current boot, used to ignore lease journals written during another boot.
+    private static final String BOOT_ID_PATH = "/proc/sys/kernel/random/boot_id";
+    private static final String LEASE_JOURNAL_DIR = "dhcp_server";
+
+    /**
+     * DeviceConfig property for the window within which lease callbacks are coalesced, in ms.
+     * Lease callbacks are sent immediately if 0.
+     */
+    @VisibleForTesting
+    static final String LEASE_CALLBACKS_BATCHING_MS = "dhcp_server_lease_callbacks_batching_ms";
+    private static final int MAX_LEASE_CALLBACKS_BATCHING_MS = 10_000;
 
     // Lease time to transmit to client instead of a negative time in case a lease expired before
     // the server could send it (if the server process is suspended for example).
@@ -100,13 +133,23 @@ public class DhcpServer extends StateMachine {
     @VisibleForTesting
     protected static final int CMD_RECEIVE_PACKET = 4;
     private static final int CMD_TERMINATE_AFTER_STOP = 5;
+    private static final int CMD_EXPIRE_LEASES = 6;
 
     @NonNull
     private final Context mContext;
     @NonNull
     private final String mIfName;
+    // Repository of leases in the prefix of the server address. Only this repository notifies
+    // lease callbacks and is persisted in the lease journal.
     @NonNull
     private final DhcpLeaseRepository mLeaseRepo;
+    // Repositories of leases in the relay subnets of the serving params, by subnet prefix.
+    @NonNull
+    private final ArrayMap<IpPrefix, DhcpLeaseRepository> mRelayLeaseRepos = new ArrayMap<>();
+    // Counters of the relay subnets, by subnet prefix. Updated on the handler thread, and read by
+    // dump() on binder threads.
+    @GuardedBy("mRelaySubnetStats")
+    private final ArrayMap<IpPrefix, RelaySubnetStats> mRelaySubnetStats = new ArrayMap<>();
     @NonNull
     private final SharedLog mLog;
     @NonNull
@@ -115,6 +158,10 @@ public class DhcpServer extends StateMachine {
     private final Clock mClock;
     @NonNull
     private DhcpServingParams mServingParams;
+    // Buffer reused to build OFFER and ACK packets. Packets are sent synchronously on the handler
+    // thread, so the buffer is never in use by more than one packet.
+    @NonNull
+    private final ByteBuffer mTxBuffer = ByteBuffer.allocate(DhcpPacket.MAX_LENGTH);
 
     @Nullable
     private DhcpPacketListener mPacketListener;
@@ -125,6 +172,9 @@ public class DhcpServer extends StateMachine {
 
     private final boolean mDhcpRapidCommitEnabled;
 
+    // Time of the lease expiration for which CMD_EXPIRE_LEASES is scheduled, if any.
+    private long mScheduledExpirationTime = EXPIRATION_NEVER;
+
     // States.
     private final StoppedState mStoppedState = new StoppedState();
     private final StartedState mStartedState = new StartedState();
@@ -158,9 +208,10 @@ public class DhcpServer extends StateMachine {
          * @param fd File descriptor of the socket.
          * @param buffer Data to be sent.
          * @param dst Destination address of the packet.
+         * @param dstPort Destination UDP port of the packet.
          */
         void sendPacket(@NonNull FileDescriptor fd, @NonNull ByteBuffer buffer,
-                @NonNull InetAddress dst) throws ErrnoException, IOException;
+                @NonNull InetAddress dst, int dstPort) throws ErrnoException, IOException;
 
         /**
          * Create a DhcpLeaseRepository for the server.
@@ -171,6 +222,25 @@ public class DhcpServer extends StateMachine {
         DhcpLeaseRepository makeLeaseRepository(@NonNull DhcpServingParams servingParams,
                 @NonNull SharedLog log, @NonNull Clock clock);
 
+        /**
+         * Create a DhcpLeaseRepository for a subnet served through relay agents.
+         * @param subnet The relay subnet.
+         * @param leaseTimeMs Lease time of leases assigned in the subnet.
+         * @param log Log to be used by the repository.
+         * @param clock Clock that the repository must use to track time.
+         */
+        DhcpLeaseRepository makeRelayLeaseRepository(@NonNull RelaySubnet subnet,
+                long leaseTimeMs, @NonNull SharedLog log, @NonNull Clock clock);
+
+        /**
+         * Create a journal to persist the leases committed by the server on an interface.
+         * @param ifName Interface that the server is serving.
+         * @param log Log to be used by the journal.
+         * @return The journal, or null if leases cannot be persisted.
+         */
+        @Nullable
+        DhcpLeaseJournal makeLeaseJournal(@NonNull String ifName, @NonNull SharedLog log);
+
         /**
          * Create a packet listener that will send packets to be processed.
          */
@@ -203,13 +273,19 @@ public class DhcpServer extends StateMachine {
          * @param name Specific experimental flag name.
          */
         boolean isFeatureNotChickenedOut(@NonNull Context context, @NonNull String name);
+
+        /**
+         * Get the Integer value of relevant DeviceConfig properties of Connectivity namespace.
+         */
+        int getIntDeviceConfig(@NonNull String name, int minimumValue, int maximumValue,
+                int defaultValue);
     }
 
     private class DependenciesImpl implements Dependencies {
         @Override
         public void sendPacket(@NonNull FileDescriptor fd, @NonNull ByteBuffer buffer,
-                @NonNull InetAddress dst) throws ErrnoException, IOException {
-            Os.sendto(fd, buffer, 0, dst, DhcpPacket.DHCP_CLIENT);
+                @NonNull InetAddress dst, int dstPort) throws ErrnoException, IOException {
+            Os.sendto(fd, buffer, 0, dst, dstPort);
         }
 
         @Override
@@ -222,6 +298,34 @@ public class DhcpServer extends StateMachine {
                     log.forSubComponent(REPO_TAG), clock);
         }
 
+        @Override
+        public DhcpLeaseRepository makeRelayLeaseRepository(@NonNull RelaySubnet subnet,
+                long leaseTimeMs, @NonNull SharedLog log, @NonNull Clock clock) {
+            return new DhcpLeaseRepository(subnet.prefix, subnet.excludedAddrs, leaseTimeMs,
+                    null /* clientAddr */, subnet.prefix.getPrefixLength(),
+                    log.forSubComponent(RELAY_REPO_TAG + "/" + subnet.prefix), clock);
+        }
+
+        @Override
+        public DhcpLeaseJournal makeLeaseJournal(@NonNull String ifName,
+                @NonNull SharedLog log) {
+            final String bootId;
+            try {
+                bootId = new String(Files.readAllBytes(Paths.get(BOOT_ID_PATH)),
+                        StandardCharsets.UTF_8).trim();
+            } catch (IOException e) {
+                log.e("Could not read boot ID, not persisting leases", e);
+                return null;
+            }
+            final File dir = new File(mContext.getFilesDir(), LEASE_JOURNAL_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                log.e("Could not create lease journal directory " + dir);
+                return null;
+            }
+            return new DhcpLeaseJournal(new File(dir, ifName + ".leases"), bootId,
+                    log.forSubComponent(JOURNAL_TAG));
+        }
+
         @Override
         public DhcpPacketListener makePacketListener(@NonNull Handler handler) {
             return new PacketListener(handler);
@@ -247,6 +351,13 @@ public class DhcpServer extends StateMachine {
         public boolean isFeatureNotChickenedOut(final Context context, final String name) {
             return DeviceConfigUtils.isNetworkStackFeatureNotChickenedOut(context, name);
         }
+
+        @Override
+        public int getIntDeviceConfig(@NonNull String name, int minimumValue, int maximumValue,
+                int defaultValue) {
+            return DeviceConfigUtils.getDeviceConfigPropertyInt(NAMESPACE_CONNECTIVITY,
+                    name, minimumValue, maximumValue, defaultValue);
+        }
     }
 
     private static class MalformedPacketException extends Exception {
@@ -275,6 +386,7 @@ public class DhcpServer extends StateMachine {
         mDeps = deps;
         mClock = deps.makeClock();
         mLeaseRepo = deps.makeLeaseRepository(mServingParams, mLog, mClock);
+        updateRelayLeaseRepos();
         mDhcpRapidCommitEnabled =
                 deps.isFeatureNotChickenedOut(context, DHCP_RAPID_COMMIT_VERSION);
 
@@ -297,6 +409,25 @@ public class DhcpServer extends StateMachine {
         return new DhcpServerConnector();
     }
 
+    /**
+     * Dump the state machine logs, followed by the counters of each relay subnet.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        pw.println("Relay subnets:");
+        pw.increaseIndent();
+        synchronized (mRelaySubnetStats) {
+            if (mRelaySubnetStats.isEmpty()) pw.println("None");
+            for (int i = 0; i < mRelaySubnetStats.size(); i++) {
+                pw.println(mRelaySubnetStats.keyAt(i) + ": " + mRelaySubnetStats.valueAt(i));
+            }
+        }
+        pw.decreaseIndent();
+        pw.flush();
+    }
+
     private class DhcpServerConnector extends IDhcpServer.Stub {
         @Override
         public void start(@Nullable INetworkStackStatusCallback cb) {
@@ -404,9 +535,135 @@ public class DhcpServer extends StateMachine {
                 params.dhcpLeaseTimeSecs * 1000,
                 params.singleClientAddr,
                 params.leasesSubnetPrefixLength);
+        updateRelayLeaseRepos();
+        maybeScheduleLeaseExpiration();
         maybeNotifyStatus(cb, STATUS_SUCCESS);
     }
 
+    /**
+     * Counters of the replies sent to the clients of a relay subnet, and the state of its address
+     * pool as of the last change.
+     */
+    private static class RelaySubnetStats {
+        public int offers;
+        public int acks;
+        public int naks;
+        public int leasesInUse;
+        public int availableAddresses;
+
+        @Override
+        public String toString() {
+            return String.format("offers=%d acks=%d naks=%d leasesInUse=%d availableAddresses=%d",
+                    offers, acks, naks, leasesInUse, availableAddresses);
+        }
+    }
+
+    /**
+     * Create or update the repositories of the relay subnets in the serving params, and drop the
+     * repositories of subnets that are no longer served.
+     */
+    private void updateRelayLeaseRepos() {
+        final long leaseTimeMs = mServingParams.dhcpLeaseTimeSecs * 1000;
+        final ArraySet<IpPrefix> prefixes = new ArraySet<>(mServingParams.relaySubnets.size());
+        for (RelaySubnet subnet : mServingParams.relaySubnets) {
+            prefixes.add(subnet.prefix);
+            final DhcpLeaseRepository repo = mRelayLeaseRepos.get(subnet.prefix);
+            if (repo == null) {
+                mRelayLeaseRepos.put(subnet.prefix,
+                        mDeps.makeRelayLeaseRepository(subnet, leaseTimeMs, mLog, mClock));
+            } else {
+                repo.updateParams(subnet.prefix, subnet.excludedAddrs, leaseTimeMs,
+                        null /* clientAddr */, subnet.prefix.getPrefixLength());
+            }
+        }
+        mRelayLeaseRepos.keySet().retainAll(prefixes);
+        synchronized (mRelaySubnetStats) {
+            mRelaySubnetStats.keySet().retainAll(prefixes);
+            for (int i = 0; i < prefixes.size(); i++) {
+                if (!mRelaySubnetStats.containsKey(prefixes.valueAt(i))) {
+                    mRelaySubnetStats.put(prefixes.valueAt(i), new RelaySubnetStats());
+                }
+            }
+        }
+        updateAllRelaySubnetStats();
+    }
+
+    /**
+     * Update the counters of a relay subnet after a packet was processed.
+     * @param subnet The relay subnet the packet was served from, or null if it was served from the
+     *               prefix of the server address.
+     * @param update Updates the reply counters, or null if no reply was sent.
+     */
+    private void updateRelaySubnetStats(@Nullable RelaySubnet subnet,
+            @Nullable Consumer<RelaySubnetStats> update) {
+        if (subnet == null) return;
+        final DhcpLeaseRepository repo = mRelayLeaseRepos.get(subnet.prefix);
+        synchronized (mRelaySubnetStats) {
+            final RelaySubnetStats stats = mRelaySubnetStats.get(subnet.prefix);
+            if (repo == null || stats == null) return;
+            if (update != null) update.accept(stats);
+            stats.leasesInUse = repo.getNumCommittedLeases();
+            stats.availableAddresses = repo.getNumAvailableAddresses();
+        }
+    }
+
+    private void updateAllRelaySubnetStats() {
+        for (RelaySubnet subnet : mServingParams.relaySubnets) {
+            updateRelaySubnetStats(subnet, null /* update */);
+        }
+    }
+
+    /**
+     * Get the relay subnet that a packet must be served from, or null if it must be served from
+     * the prefix of the server address.
+     *
+     * <p>Relayed packets are matched by the relay agent address (giaddr). Packets that are not
+     * relayed are always served from the server prefix: their client address (ciaddr) is set by
+     * the client and cannot be trusted to select a relay subnet. Clients in relay subnets that
+     * unicast requests in RENEWING state are therefore not served, and renew their lease through
+     * the relay agent once they reach REBINDING state.
+     */
+    @Nullable
+    private RelaySubnet getRelaySubnet(@NonNull DhcpPacket packet) {
+        final List<RelaySubnet> subnets = mServingParams.relaySubnets;
+        final Inet4Address addr = packet.mRelayIp;
+        if (subnets.isEmpty() || isEmpty(addr)) return null;
+        for (int i = 0; i < subnets.size(); i++) {
+            if (subnets.get(i).prefix.contains(addr)) return subnets.get(i);
+        }
+        return null;
+    }
+
+    @NonNull
+    private DhcpLeaseRepository getLeaseRepo(@Nullable RelaySubnet subnet) {
+        return subnet == null ? mLeaseRepo : mRelayLeaseRepos.get(subnet.prefix);
+    }
+
+    /**
+     * Make sure that a single CMD_EXPIRE_LEASES is scheduled for the next lease or declined address
+     * expiration, if any.
+     */
+    private void maybeScheduleLeaseExpiration() {
+        long nextExpiration = mLeaseRepo.getNextExpirationTime();
+        for (int i = 0; i < mRelayLeaseRepos.size(); i++) {
+            nextExpiration = Math.min(nextExpiration,
+                    mRelayLeaseRepos.valueAt(i).getNextExpirationTime());
+        }
+        if (nextExpiration == mScheduledExpirationTime) return;
+        removeMessages(CMD_EXPIRE_LEASES);
+        mScheduledExpirationTime = nextExpiration;
+        if (nextExpiration == EXPIRATION_NEVER) return;
+        // Messages are scheduled in uptime, which does not advance in deep sleep, so this may run
+        // late. This is fine as the repository also removes expired leases when it is queried.
+        sendMessageDelayed(CMD_EXPIRE_LEASES,
+                Math.max(0, nextExpiration - mClock.elapsedRealtime()));
+    }
+
+    private void cancelLeaseExpiration() {
+        removeMessages(CMD_EXPIRE_LEASES);
+        mScheduledExpirationTime = EXPIRATION_NEVER;
+    }
+
     class StoppedState extends State {
         private INetworkStackStatusCallback mOnStopCallback;
 
@@ -456,9 +713,20 @@ public class DhcpServer extends StateMachine {
                 return;
             }
 
+            final int batchingMs = mDeps.getIntDeviceConfig(LEASE_CALLBACKS_BATCHING_MS,
+                    0 /* minimumValue */, MAX_LEASE_CALLBACKS_BATCHING_MS, 0 /* defaultValue */);
+            if (batchingMs > 0) {
+                mLeaseRepo.setLeaseCallbacksBatching(getHandler(), batchingMs);
+            }
             if (mEventCallbacks != null) {
                 mLeaseRepo.addLeaseCallbacks(mEventCallbacks);
             }
+            // Restore leases after adding callbacks, so that callbacks are notified of them.
+            if (mDeps.isFeatureEnabled(mContext, DHCP_SERVER_LEASE_JOURNAL_VERSION)) {
+                final DhcpLeaseJournal journal = mDeps.makeLeaseJournal(mIfName, mLog);
+                if (journal != null) mLeaseRepo.setLeaseJournal(journal);
+            }
+            maybeScheduleLeaseExpiration();
             maybeNotifyStatus(mOnStartCallback, STATUS_SUCCESS);
             // Clear INetworkStackStatusCallback binder token, so that it's freed
             // on the other side.
@@ -483,6 +751,16 @@ public class DhcpServer extends StateMachine {
                     transitionTo(mStoppedState);
                     return HANDLED;
 
+                case CMD_EXPIRE_LEASES:
+                    mScheduledExpirationTime = EXPIRATION_NEVER;
+                    mLeaseRepo.expireLeases();
+                    for (int i = 0; i < mRelayLeaseRepos.size(); i++) {
+                        mRelayLeaseRepos.valueAt(i).expireLeases();
+                    }
+                    updateAllRelaySubnetStats();
+                    maybeScheduleLeaseExpiration();
+                    return HANDLED;
+
                 default:
                     return NOT_HANDLED;
             }
@@ -490,6 +768,9 @@ public class DhcpServer extends StateMachine {
 
         @Override
         public void exit() {
+            cancelLeaseExpiration();
+            mLeaseRepo.flushLeaseCallbacks();
+            mLeaseRepo.closeLeaseJournal();
             mPacketListener.stop();
             mLog.logf("DHCP Packet Listener stopped");
         }
@@ -501,6 +782,7 @@ public class DhcpServer extends StateMachine {
             switch (msg.what) {
                 case CMD_RECEIVE_PACKET:
                     processPacket((DhcpPacket) msg.obj);
+                    maybeScheduleLeaseExpiration();
                     return HANDLED;
 
                 default:
@@ -518,15 +800,16 @@ public class DhcpServer extends StateMachine {
                 return;
             }
 
+            final RelaySubnet subnet = getRelaySubnet(packet);
             try {
                 if (packet instanceof DhcpDiscoverPacket) {
-                    processDiscover((DhcpDiscoverPacket) packet);
+                    processDiscover((DhcpDiscoverPacket) packet, subnet);
                 } else if (packet instanceof DhcpRequestPacket) {
-                    processRequest((DhcpRequestPacket) packet);
+                    processRequest((DhcpRequestPacket) packet, subnet);
                 } else if (packet instanceof DhcpReleasePacket) {
-                    processRelease((DhcpReleasePacket) packet);
+                    processRelease((DhcpReleasePacket) packet, subnet);
                 } else if (packet instanceof DhcpDeclinePacket) {
-                    processDecline((DhcpDeclinePacket) packet);
+                    processDecline((DhcpDeclinePacket) packet, subnet);
                 } else {
                     mLog.e("Unknown packet type: " + packet.getClass().getSimpleName());
                 }
@@ -541,65 +824,84 @@ public class DhcpServer extends StateMachine {
             mLog.e("Ignored packet from invalid subnet: " + e.getMessage());
         }
 
-        private void processDiscover(@NonNull DhcpDiscoverPacket packet)
-                throws MalformedPacketException {
+        private void processDiscover(@NonNull DhcpDiscoverPacket packet,
+                @Nullable RelaySubnet subnet) throws MalformedPacketException {
+            final DhcpLeaseRepository leaseRepo = getLeaseRepo(subnet);
             final DhcpLease lease;
             final MacAddress clientMac = getMacAddr(packet);
             try {
                 if (mDhcpRapidCommitEnabled && packet.mRapidCommit) {
-                    lease = mLeaseRepo.getCommittedLease(packet.getExplicitClientIdOrNull(),
+                    lease = leaseRepo.getCommittedLease(packet.getExplicitClientIdOrNull(),
                             clientMac, packet.mRelayIp, packet.mHostName);
-                    transmitAck(packet, lease, clientMac);
+                    if (transmitAck(packet, lease, clientMac, subnet)) {
+                        updateRelaySubnetStats(subnet, stats -> stats.acks++);
+                    }
                 } else {
-                    lease = mLeaseRepo.getOffer(packet.getExplicitClientIdOrNull(), clientMac,
+                    lease = leaseRepo.getOffer(packet.getExplicitClientIdOrNull(), clientMac,
                             packet.mRelayIp, packet.mRequestedIp, packet.mHostName);
-                    transmitOffer(packet, lease, clientMac);
+                    if (transmitOffer(packet, lease, clientMac, subnet)) {
+                        updateRelaySubnetStats(subnet, stats -> stats.offers++);
+                    }
                 }
             } catch (DhcpLeaseRepository.OutOfAddressesException e) {
-                transmitNak(packet, "Out of addresses to offer");
+                if (transmitNak(packet, "Out of addresses to offer")) {
+                    updateRelaySubnetStats(subnet, stats -> stats.naks++);
+                }
             } catch (DhcpLeaseRepository.InvalidSubnetException e) {
                 logIgnoredPacketInvalidSubnet(e);
             }
         }
 
-        private void processRequest(@NonNull DhcpRequestPacket packet)
-                throws MalformedPacketException {
+        private void processRequest(@NonNull DhcpRequestPacket packet,
+                @Nullable RelaySubnet subnet) throws MalformedPacketException {
             // If set, packet SID matches with this server's ID as checked in processPacket().
             final boolean sidSet = packet.mServerIdentifier != null;
             final DhcpLease lease;
             final MacAddress clientMac = getMacAddr(packet);
             try {
-                lease = mLeaseRepo.requestLease(packet.getExplicitClientIdOrNull(), clientMac,
-                        packet.mClientIp, packet.mRelayIp, packet.mRequestedIp, sidSet,
+                lease = getLeaseRepo(subnet).requestLease(packet.getExplicitClientIdOrNull(),
+                        clientMac, packet.mClientIp, packet.mRelayIp, packet.mRequestedIp, sidSet,
                         packet.mHostName);
             } catch (DhcpLeaseRepository.InvalidAddressException e) {
-                transmitNak(packet, "Invalid requested address");
+                if (transmitNak(packet, "Invalid requested address")) {
+                    updateRelaySubnetStats(subnet, stats -> stats.naks++);
+                }
                 return;
             } catch (DhcpLeaseRepository.InvalidSubnetException e) {
                 logIgnoredPacketInvalidSubnet(e);
                 return;
             }
 
-            transmitAck(packet, lease, clientMac);
+            if (transmitAck(packet, lease, clientMac, subnet)) {
+                updateRelaySubnetStats(subnet, stats -> stats.acks++);
+            }
         }
 
-        private void processRelease(@NonNull DhcpReleasePacket packet)
-                throws MalformedPacketException {
+        private void processRelease(@NonNull DhcpReleasePacket packet,
+                @Nullable RelaySubnet subnet) throws MalformedPacketException {
             final byte[] clientId = packet.getExplicitClientIdOrNull();
             final MacAddress macAddr = getMacAddr(packet);
             // Don't care about success (there is no ACK/NAK); logging is already done
             // in the repository.
-            mLeaseRepo.releaseLease(clientId, macAddr, packet.mClientIp);
+            getLeaseRepo(subnet).releaseLease(clientId, macAddr, packet.mClientIp);
+            updateRelaySubnetStats(subnet, null /* update */);
         }
 
-        private void processDecline(@NonNull DhcpDeclinePacket packet)
-                throws MalformedPacketException {
+        private void processDecline(@NonNull DhcpDeclinePacket packet,
+                @Nullable RelaySubnet subnet) throws MalformedPacketException {
             final byte[] clientId = packet.getExplicitClientIdOrNull();
             final MacAddress macAddr = getMacAddr(packet);
-            int committedLeasesCount = mLeaseRepo.getCommittedLeases().size();
+            final DhcpLeaseRepository leaseRepo = getLeaseRepo(subnet);
+            int committedLeasesCount = leaseRepo.getCommittedLeases().size();
 
             // If peer's clientID and macAddr doesn't match with any issued lease, nothing to do.
-            if (!mLeaseRepo.markAndReleaseDeclinedLease(clientId, macAddr, packet.mRequestedIp)) {
+            if (!leaseRepo.markAndReleaseDeclinedLease(clientId, macAddr, packet.mRequestedIp)) {
+                return;
+            }
+
+            // The prefix of relay subnets is not managed by the caller.
+            if (subnet != null) {
+                updateRelaySubnetStats(subnet, null /* update */);
                 return;
             }
 
@@ -696,31 +998,49 @@ public class DhcpServer extends StateMachine {
                 : null;
     }
 
+    @NonNull
+    private Inet4Address getPrefixMask(@Nullable RelaySubnet subnet) {
+        return subnet == null
+                ? mServingParams.getPrefixMaskAsAddress()
+                : subnet.getPrefixMaskAsAddress();
+    }
+
+    @NonNull
+    private Inet4Address getBroadcastAddr(@Nullable RelaySubnet subnet) {
+        return subnet == null
+                ? mServingParams.getBroadcastAddress()
+                : subnet.getBroadcastAddress();
+    }
+
+    @NonNull
+    private ArrayList<Inet4Address> getDefaultRouters(@Nullable RelaySubnet subnet) {
+        return new ArrayList<>(subnet == null
+                ? mServingParams.defaultRouters
+                : subnet.defaultRouters);
+    }
+
     private boolean transmitOffer(@NonNull DhcpPacket request, @NonNull DhcpLease lease,
-            @NonNull MacAddress clientMac) {
+            @NonNull MacAddress clientMac, @Nullable RelaySubnet subnet) {
         final boolean broadcastFlag = getBroadcastFlag(request, lease);
         final int timeout = getLeaseTimeout(lease);
-        final Inet4Address prefixMask =
-                getPrefixMaskAsInet4Address(mServingParams.serverAddr.getPrefixLength());
-        final Inet4Address broadcastAddr = getBroadcastAddress(
-                mServingParams.getServerInet4Addr(), mServingParams.serverAddr.getPrefixLength());
         final String hostname = getHostnameIfRequested(request, lease);
         final ByteBuffer offerPacket = DhcpPacket.buildOfferPacket(
                 ENCAP_BOOTP, request.mTransId, broadcastFlag, mServingParams.getServerInet4Addr(),
-                request.mRelayIp, lease.getNetAddr(), request.mClientMac, timeout, prefixMask,
-                broadcastAddr, new ArrayList<>(mServingParams.defaultRouters),
+                request.mRelayIp, lease.getNetAddr(), request.mClientMac, timeout,
+                getPrefixMask(subnet), getBroadcastAddr(subnet), getDefaultRouters(subnet),
                 new ArrayList<>(mServingParams.dnsServers),
                 mServingParams.getServerInet4Addr(), null /* domainName */, hostname,
                 mServingParams.metered, (short) mServingParams.linkMtu,
                 // TODO (b/144402437): advertise the URL if known
-                null /* captivePortalApiUrl */);
+                null /* captivePortalApiUrl */, null /* ipv6OnlyWaitTime */,
+                null /* domainSearchList */, mTxBuffer);
 
         return transmitOfferOrAckPacket(offerPacket, DhcpOfferPacket.class.getSimpleName(), request,
-                lease, clientMac, broadcastFlag);
+                lease, clientMac, broadcastFlag, subnet);
     }
 
     private boolean transmitAck(@NonNull DhcpPacket packet, @NonNull DhcpLease lease,
-            @NonNull MacAddress clientMac) {
+            @NonNull MacAddress clientMac, @Nullable RelaySubnet subnet) {
         // TODO: replace DhcpPacket's build methods with real builders and use common code with
         // transmitOffer above
         final boolean broadcastFlag = getBroadcastFlag(packet, lease);
@@ -729,16 +1049,16 @@ public class DhcpServer extends StateMachine {
         final ByteBuffer ackPacket = DhcpPacket.buildAckPacket(ENCAP_BOOTP, packet.mTransId,
                 broadcastFlag, mServingParams.getServerInet4Addr(), packet.mRelayIp,
                 lease.getNetAddr(), packet.mClientIp, packet.mClientMac, timeout,
-                mServingParams.getPrefixMaskAsAddress(), mServingParams.getBroadcastAddress(),
-                new ArrayList<>(mServingParams.defaultRouters),
+                getPrefixMask(subnet), getBroadcastAddr(subnet), getDefaultRouters(subnet),
                 new ArrayList<>(mServingParams.dnsServers),
                 mServingParams.getServerInet4Addr(), null /* domainName */, hostname,
                 mServingParams.metered, (short) mServingParams.linkMtu,
                 // TODO (b/144402437): advertise the URL if known
-                packet.mRapidCommit && mDhcpRapidCommitEnabled, null /* captivePortalApiUrl */);
+                packet.mRapidCommit && mDhcpRapidCommitEnabled, null /* captivePortalApiUrl */,
+                null /* ipv6OnlyWaitTime */, null /* domainSearchList */, mTxBuffer);
 
         return transmitOfferOrAckPacket(ackPacket, DhcpAckPacket.class.getSimpleName(), packet,
-                lease, clientMac, broadcastFlag);
+                lease, clientMac, broadcastFlag, subnet);
     }
 
     private boolean transmitNak(DhcpPacket request, String message) {
@@ -751,28 +1071,37 @@ public class DhcpServer extends StateMachine {
         final Inet4Address dst = isEmpty(request.mRelayIp)
                 ? IPV4_ADDR_ALL
                 : request.mRelayIp;
-        return transmitPacket(nakPacket, DhcpNakPacket.class.getSimpleName(), dst);
+        return transmitPacket(nakPacket, DhcpNakPacket.class.getSimpleName(), dst,
+                getReplyPort(request));
     }
 
     private boolean transmitOfferOrAckPacket(@NonNull ByteBuffer buf, @NonNull String packetTypeTag,
             @NonNull DhcpPacket request, @NonNull DhcpLease lease, @NonNull MacAddress clientMac,
-            boolean broadcastFlag) {
+            boolean broadcastFlag, @Nullable RelaySubnet subnet) {
         mLog.logf("Transmitting %s with lease %s", packetTypeTag, lease);
         // Client may not yet respond to ARP for the lease address, which may be the destination
         // address. Add an entry to the ARP cache to save future ARP probes and make sure the
-        // packet reaches its destination.
-        if (!addArpEntry(clientMac, lease.getNetAddr())) {
+        // packet reaches its destination. Clients in relay subnets are not on the link.
+        if (subnet == null && !addArpEntry(clientMac, lease.getNetAddr())) {
             // Logging for error already done
             return false;
         }
         final Inet4Address dst = getAckOrOfferDst(request, lease, broadcastFlag);
-        return transmitPacket(buf, packetTypeTag, dst);
+        return transmitPacket(buf, packetTypeTag, dst, getReplyPort(request));
+    }
+
+    /**
+     * Get the UDP port that replies to a request must be sent to: replies to relayed requests are
+     * sent to the server port of the relay agent (RFC 2131 #4.1).
+     */
+    private static int getReplyPort(@NonNull DhcpPacket request) {
+        return isEmpty(request.mRelayIp) ? DHCP_CLIENT : DHCP_SERVER;
     }
 
     private boolean transmitPacket(@NonNull ByteBuffer buf, @NonNull String packetTypeTag,
-            @NonNull Inet4Address dst) {
+            @NonNull Inet4Address dst, int dstPort) {
         try {
-            mDeps.sendPacket(mSocket, buf, dst);
+            mDeps.sendPacket(mSocket, buf, dst, dstPort);
         } catch (ErrnoException | IOException e) {
             mLog.e("Can't send packet " + packetTypeTag, e);
             return false;
@@ -834,15 +1163,33 @@ public class DhcpServer extends StateMachine {
         return address == null || IPV4_ADDR_ANY.equals(address);
     }
 
-    private class PacketListener extends DhcpPacketListener {
+    @VisibleForTesting
+    class PacketListener extends DhcpPacketListener {
         PacketListener(Handler handler) {
             super(handler);
         }
 
+        @Override
+        protected boolean shouldDecode(@NonNull DhcpRawPacket packet) {
+            if (packet.getOp() != DHCP_BOOTREQUEST) return false;
+            switch (packet.getMessageType()) {
+                case DHCP_MESSAGE_TYPE_DISCOVER:
+                case DHCP_MESSAGE_TYPE_REQUEST:
+                case DHCP_MESSAGE_TYPE_DECLINE:
+                case DHCP_MESSAGE_TYPE_RELEASE:
+                    return true;
+                default:
+                    mLog.logf("Ignored packet with message type %d", packet.getMessageType());
+                    return false;
+            }
+        }
+
         @Override
         protected void onReceive(@NonNull DhcpPacket packet, @NonNull Inet4Address srcAddr,
                 int srcPort) {
-            if (srcPort != DHCP_CLIENT) {
+            // Relay agents send from the server port (RFC 2131 #4.1).
+            final boolean fromRelay = srcPort == DHCP_SERVER && !isEmpty(packet.mRelayIp);
+            if (srcPort != DHCP_CLIENT && !fromRelay) {
                 final String packetType = packet.getClass().getSimpleName();
                 mLog.logf("Ignored packet of type %s sent from client port %d",
                         packetType, srcPort);
@@ -27,6 +27,7 @@ import static java.lang.Integer.toUnsignedLong;
 import android.annotation.SuppressLint;
 import android.net.IpPrefix;
 import android.net.LinkAddress;
+import android.net.networkstack.aidl.dhcp.DhcpRelaySubnetParcel;
 import android.util.ArraySet;
 
 import androidx.annotation.NonNull;
@@ -35,9 +36,11 @@ import androidx.annotation.Nullable;
 import com.android.net.module.util.Inet4AddressUtils;
 
 import java.net.Inet4Address;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -106,6 +109,70 @@ public class DhcpServingParams {
      */
     public final int leasesSubnetPrefixLength;
 
+    /**
+     * Remote subnets served through relay agents, in addition to the prefix of
+     * {@link #serverAddr}. May be empty.
+     * This list is provided by {@link DhcpServingParams.Builder} and is immutable.
+     */
+    @NonNull
+    public final List<RelaySubnet> relaySubnets;
+
+    /**
+     * A remote subnet served through relay agents. Packets relayed by an agent whose address
+     * (giaddr) is inside {@link #prefix} are served from this subnet.
+     *
+     * <p>Instances are immutable. DNS servers, lease time and MTU are the same as for the prefix of
+     * {@link #serverAddr}.
+     */
+    public static class RelaySubnet {
+        /** Prefix of the subnet, in which addresses are assigned */
+        @NonNull
+        public final IpPrefix prefix;
+
+        /**
+         * Default routers to be advertised to DHCP clients in the subnet. May be empty.
+         */
+        @NonNull
+        public final Set<Inet4Address> defaultRouters;
+
+        /**
+         * Excluded addresses that the DHCP server is not allowed to assign to clients in the
+         * subnet. When built by {@link DhcpServingParams.Builder}, this includes the default
+         * routers and DNS servers.
+         */
+        @NonNull
+        public final Set<Inet4Address> excludedAddrs;
+
+        public RelaySubnet(@NonNull IpPrefix prefix, @NonNull Set<Inet4Address> defaultRouters,
+                @NonNull Set<Inet4Address> excludedAddrs) {
+            this.prefix = prefix;
+            this.defaultRouters = Collections.unmodifiableSet(new HashSet<>(defaultRouters));
+            this.excludedAddrs = Collections.unmodifiableSet(new HashSet<>(excludedAddrs));
+        }
+
+        /**
+         * Get the subnet prefix mask as an IPv4 address.
+         */
+        @NonNull
+        public Inet4Address getPrefixMaskAsAddress() {
+            return getPrefixMaskAsInet4Address(prefix.getPrefixLength());
+        }
+
+        /**
+         * Get the broadcast address of the subnet.
+         */
+        @NonNull
+        public Inet4Address getBroadcastAddress() {
+            return Inet4AddressUtils.getBroadcastAddress(
+                    (Inet4Address) prefix.getAddress(), prefix.getPrefixLength());
+        }
+
+        @Override
+        public String toString() {
+            return "RelaySubnet{prefix=" + prefix + ", defaultRouters=" + defaultRouters + "}";
+        }
+    }
+
     /**
      * Checked exception thrown when some parameters used to build {@link DhcpServingParams} are
      * missing or invalid.
@@ -120,7 +187,8 @@ public class DhcpServingParams {
             @NonNull Set<Inet4Address> defaultRouters,
             @NonNull Set<Inet4Address> dnsServers, @NonNull Set<Inet4Address> excludedAddrs,
             long dhcpLeaseTimeSecs, int linkMtu, boolean metered, Inet4Address singleClientAddr,
-            boolean changePrefixOnDecline, int leasesSubnetPrefixLength) {
+            boolean changePrefixOnDecline, int leasesSubnetPrefixLength,
+            @NonNull List<RelaySubnet> relaySubnets) {
         this.serverAddr = serverAddr;
         this.defaultRouters = defaultRouters;
         this.dnsServers = dnsServers;
@@ -131,6 +199,7 @@ public class DhcpServingParams {
         this.singleClientAddr = singleClientAddr;
         this.changePrefixOnDecline = changePrefixOnDecline;
         this.leasesSubnetPrefixLength = leasesSubnetPrefixLength;
+        this.relaySubnets = relaySubnets;
     }
 
     /**
@@ -161,9 +230,33 @@ public class DhcpServingParams {
                 .setSingleClientAddr(clientAddr)
                 .setChangePrefixOnDecline(parcel.changePrefixOnDecline)
                 .setLeasesSubnetPrefixLength(parcel.leasesSubnetPrefixLength)
+                .setRelaySubnets(toRelaySubnets(parcel.relaySubnets))
                 .build();
     }
 
+    private static List<RelaySubnet> toRelaySubnets(
+            @Nullable List<DhcpRelaySubnetParcel> parcels) throws InvalidParameterException {
+        if (parcels == null) {
+            return Collections.emptyList();
+        }
+
+        final ArrayList<RelaySubnet> res = new ArrayList<>(parcels.size());
+        for (DhcpRelaySubnetParcel parcel : parcels) {
+            if (parcel == null) {
+                throw new InvalidParameterException("Null relay subnet");
+            }
+            if (parcel.prefixLength < 0 || parcel.prefixLength > 32) {
+                throw new InvalidParameterException(
+                        "Invalid relay subnet prefix length: " + parcel.prefixLength);
+            }
+            res.add(new RelaySubnet(
+                    makeIpPrefix(intToInet4AddressHTH(parcel.subnetAddr), parcel.prefixLength),
+                    toInet4AddressSet(parcel.defaultRouters),
+                    toInet4AddressSet(parcel.excludedAddrs)));
+        }
+        return res;
+    }
+
     private static Set<Inet4Address> toInet4AddressSet(@Nullable int[] addrs) {
         if (addrs == null) {
             return new HashSet<>(0);
@@ -218,6 +311,7 @@ public class DhcpServingParams {
         private Inet4Address mClientAddr;
         private boolean mChangePrefixOnDecline;
         private int mLeasesSubnetPrefixLength;
+        private List<RelaySubnet> mRelaySubnets;
 
         /**
          * Set the server address and served prefix for the DHCP server.
@@ -372,6 +466,18 @@ public class DhcpServingParams {
             return this;
         }
 
+        /**
+         * Set remote subnets to serve through relay agents.
+         *
+         * <p>Subnets must not overlap with each other or with the served prefix, and their default
+         * routers must be inside the subnet. DNS servers and default routers are always excluded
+         * from each subnet. This parameter is optional and defaults to no relay subnet.
+         */
+        public Builder setRelaySubnets(@NonNull List<RelaySubnet> relaySubnets) {
+            this.mRelaySubnets = relaySubnets;
+            return this;
+        }
+
         /**
          * Create a new {@link DhcpServingParams} instance based on parameters set in the builder.
          *
@@ -423,6 +529,8 @@ public class DhcpServingParams {
                          "LeasesSubnetPrefix " + mLeasesSubnetPrefixLength + " is out of range");
             }
 
+            final List<RelaySubnet> relaySubnets = buildRelaySubnets(prefix);
+
             final Set<Inet4Address> excl = new HashSet<>();
             if (mExcludedAddrs != null) {
                 excl.addAll(mExcludedAddrs);
@@ -436,7 +544,55 @@ public class DhcpServingParams {
                     Collections.unmodifiableSet(new HashSet<>(mDnsServers)),
                     Collections.unmodifiableSet(excl),
                     mDhcpLeaseTimeSecs, mLinkMtu, mMetered, mClientAddr, mChangePrefixOnDecline,
-                    mLeasesSubnetPrefixLength);
+                    mLeasesSubnetPrefixLength, Collections.unmodifiableList(relaySubnets));
+        }
+
+        @NonNull
+        private List<RelaySubnet> buildRelaySubnets(@NonNull IpPrefix serverPrefix)
+                throws InvalidParameterException {
+            if (mRelaySubnets == null) {
+                return new ArrayList<>(0);
+            }
+
+            final ArrayList<RelaySubnet> res = new ArrayList<>(mRelaySubnets.size());
+            for (RelaySubnet subnet : mRelaySubnets) {
+                if (!subnet.prefix.isIPv4()) {
+                    throw new InvalidParameterException("Relay subnet must be IPv4");
+                }
+                if (subnet.prefix.getPrefixLength() < MIN_PREFIX_LENGTH
+                        || subnet.prefix.getPrefixLength() > MAX_PREFIX_LENGTH) {
+                    throw new InvalidParameterException(
+                            "Relay subnet prefix length is not in supported range");
+                }
+                if (overlaps(subnet.prefix, serverPrefix)) {
+                    throw new InvalidParameterException(String.format(
+                            "Relay subnet %s overlaps with server prefix %s", subnet.prefix,
+                            serverPrefix));
+                }
+                for (RelaySubnet other : res) {
+                    if (overlaps(subnet.prefix, other.prefix)) {
+                        throw new InvalidParameterException(String.format(
+                                "Relay subnets %s and %s overlap", subnet.prefix, other.prefix));
+                    }
+                }
+                for (Inet4Address addr : subnet.defaultRouters) {
+                    if (!subnet.prefix.contains(addr)) {
+                        throw new InvalidParameterException(String.format(
+                                "Default router %s is not in relay subnet %s", addr,
+                                subnet.prefix));
+                    }
+                }
+
+                final Set<Inet4Address> excl = new HashSet<>(subnet.excludedAddrs);
+                excl.addAll(subnet.defaultRouters);
+                excl.addAll(mDnsServers);
+                res.add(new RelaySubnet(subnet.prefix, subnet.defaultRouters, excl));
+            }
+            return res;
+        }
+
+        private static boolean overlaps(@NonNull IpPrefix a, @NonNull IpPrefix b) {
+            return a.contains(b.getAddress()) || b.contains(a.getAddress());
         }
     }
 
@@ -449,6 +605,12 @@ public class DhcpServingParams {
         return new IpPrefix(addr.getAddress(), addr.getPrefixLength());
     }
 
+    @SuppressLint("NewApi")
+    @NonNull
+    private static IpPrefix makeIpPrefix(@NonNull Inet4Address addr, int prefixLength) {
+        return new IpPrefix(addr, prefixLength);
+    }
+
     private static <T> ArraySet<T> makeArraySet(T[] elements) {
         final ArraySet<T> set = new ArraySet<>(elements.length);
         set.addAll(Arrays.asList(elements));
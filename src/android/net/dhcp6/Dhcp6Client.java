@@ -51,6 +51,7 @@ import com.android.net.module.util.DeviceConfigUtils;
 import com.android.net.module.util.InterfaceParams;
 import com.android.net.module.util.PacketReader;
 import com.android.net.module.util.structs.IaPrefixOption;
+import com.android.networkstack.metrics.ProvisioningStateLatencies;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
@@ -127,6 +128,7 @@ public class Dhcp6Client extends StateMachine {
     @NonNull private final InterfaceParams mIface;
     @NonNull private final Dhcp6PacketHandler mDhcp6PacketHandler;
     @NonNull private final byte[] mClientDuid;
+    @NonNull private final ProvisioningStateLatencies mStateLatencies;
 
     // States.
     private State mStoppedState = new StoppedState();
@@ -167,6 +169,7 @@ public class Dhcp6Client extends StateMachine {
         mIface = iface;
         mClientDuid = Dhcp6Packet.createClientDuid(iface.macAddr);
         mDhcp6PacketHandler = new Dhcp6PacketHandler(getHandler());
+        mStateLatencies = ProvisioningStateLatencies.forInterface(iface.name);
 
         addState(mStoppedState);
         addState(mStartedState); {
@@ -218,6 +221,16 @@ public class Dhcp6Client extends StateMachine {
         mController.sendMessage(CMD_ON_QUIT);
     }
 
+    /**
+     * Returns the state of {@link ProvisioningStateLatencies} in which the time spent in a state is
+     * recorded, or {@link ProvisioningStateLatencies#STATE_NONE}.
+     */
+    private int getLatencyState(@NonNull State state) {
+        if (state == mSolicitState) return ProvisioningStateLatencies.STATE_DHCP6_SOLICIT;
+        if (state == mRequestState) return ProvisioningStateLatencies.STATE_DHCP6_REQUEST;
+        return ProvisioningStateLatencies.STATE_NONE;
+    }
+
     /**
      * Retransmits packets per algorithm defined in RFC8415 section 15. Packet transmission is
      * triggered by CMD_KICK, which is sent by an AlarmManager alarm. Kicks are cancelled when
@@ -230,6 +243,7 @@ public class Dhcp6Client extends StateMachine {
     abstract class MessageExchangeState extends State {
         private int mTransId = 0;
         private long mTransStartMs = 0;
+        private long mEnterTimeNs = 0;
         private long mMaxRetransTimeMs = 0;
 
         private long mRetransTimeout = -1;
@@ -249,6 +263,7 @@ public class Dhcp6Client extends StateMachine {
         @Override
         public void enter() {
             super.enter();
+            mEnterTimeNs = SystemClock.elapsedRealtimeNanos();
             mMaxRetransTimeMs = mMaxRetransTimeSupplier.getAsInt();
             // Every message exchange generates a new transaction id.
             mTransId = mRandom.nextInt() & 0xffffff;
@@ -316,6 +331,8 @@ public class Dhcp6Client extends StateMachine {
         @Override
         public void exit() {
             super.exit();
+            mStateLatencies.record(getLatencyState(this),
+                    SystemClock.elapsedRealtimeNanos() - mEnterTimeNs);
             mKickAlarm.cancel();
             mRetransTimeout = -1;
             mRetransCount = 0;
@@ -47,6 +47,7 @@ import static com.android.networkstack.apishim.ConstantsShim.IFA_F_NOPREFIXROUTE
 import static com.android.networkstack.util.NetworkStackUtils.APF_HANDLE_LIGHT_DOZE_FORCE_DISABLE;
 import static com.android.networkstack.util.NetworkStackUtils.APF_NEW_RA_FILTER_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.APF_POLLING_COUNTERS_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.APF_VALUE_BASED_RA_PACKING_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.IPCLIENT_DHCPV6_PREFIX_DELEGATION_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.IPCLIENT_GARP_NA_ROAMING_VERSION;
 import static com.android.networkstack.util.NetworkStackUtils.IPCLIENT_GRATUITOUS_NA_VERSION;
@@ -146,6 +147,7 @@ import com.android.networkstack.apishim.common.NetworkInformationShim;
 import com.android.networkstack.apishim.common.ShimUtils;
 import com.android.networkstack.metrics.IpProvisioningMetrics;
 import com.android.networkstack.metrics.NetworkQuirkMetrics;
+import com.android.networkstack.metrics.ProvisioningStateLatencies;
 import com.android.networkstack.packets.NeighborAdvertisement;
 import com.android.networkstack.packets.NeighborSolicitation;
 import com.android.networkstack.util.NetworkStackUtils;
@@ -571,6 +573,13 @@ public class IpClient extends StateMachine {
     @VisibleForTesting
     static final int DEFAULT_APF_COUNTER_POLLING_INTERVAL_SECS = 300;
 
+    // APF program installs requested within this window of the last install are merged into one.
+    @VisibleForTesting
+    static final String CONFIG_APF_INSTALL_COALESCING_WINDOW_MS =
+            "ipclient_apf_install_coalescing_window_ms";
+    @VisibleForTesting
+    static final int DEFAULT_APF_INSTALL_COALESCING_WINDOW_MS = 1000;
+
     // Used to wait for the provisioning to complete eventually and then decide the target
     // network type, which gives the accurate hint to set DTIM multiplier. Per current IPv6
     // provisioning connection latency metrics, the latency of 95% can go up to 16s, so pick
@@ -705,6 +714,8 @@ public class IpClient extends StateMachine {
     private final boolean mUseNewApfFilter;
     private final boolean mEnableIpClientIgnoreLowRaLifetime;
     private final boolean mApfShouldHandleLightDoze;
+    private final boolean mApfValueBasedRaPacking;
+    private final int mApfInstallCoalescingWindowMs;
     private final boolean mEnableApfPollingCounters;
     private final boolean mPopulateLinkAddressLifetime;
 
@@ -948,6 +959,10 @@ public class IpClient extends StateMachine {
         // Light doze mode status checking API is only available at T or later releases.
         mApfShouldHandleLightDoze = SdkLevel.isAtLeastT() && mDependencies.isFeatureNotChickenedOut(
                 mContext, APF_HANDLE_LIGHT_DOZE_FORCE_DISABLE);
+        mApfValueBasedRaPacking = mDependencies.isFeatureEnabled(context,
+                APF_VALUE_BASED_RA_PACKING_VERSION);
+        mApfInstallCoalescingWindowMs = mDependencies.getDeviceConfigPropertyInt(
+                CONFIG_APF_INSTALL_COALESCING_WINDOW_MS, DEFAULT_APF_INSTALL_COALESCING_WINDOW_MS);
         mPopulateLinkAddressLifetime = mDependencies.isFeatureEnabled(context,
                 IPCLIENT_POPULATE_LINK_ADDRESS_LIFETIME_VERSION);
 
@@ -1204,6 +1219,7 @@ public class IpClient extends StateMachine {
         if (req.mLayer2Info != null) {
             mL2Key = req.mLayer2Info.mL2Key;
             mCluster = req.mLayer2Info.mCluster;
+            maybePrefetchNetworkAttributes();
         }
         sendMessage(CMD_START, new android.net.shared.ProvisioningConfiguration(req));
     }
@@ -1394,6 +1410,12 @@ public class IpClient extends StateMachine {
             pw.decreaseIndent();
         }
 
+        pw.println();
+        pw.println(mTag + " provisioning state latencies of the link type:");
+        pw.increaseIndent();
+        ProvisioningStateLatencies.forInterface(mInterfaceName).dump(pw);
+        pw.decreaseIndent();
+
         pw.println();
         pw.println(mTag + " StateMachine dump:");
         pw.increaseIndent();
@@ -2200,6 +2222,22 @@ public class IpClient extends StateMachine {
         handleProvisioningFailure(DisconnectCode.DC_PROVISIONING_FAIL);
     }
 
+    private void handleIPv4AddressWithdrawn() {
+        // DhcpClient withdraws an address that it configured before IP conflict detection
+        // completed, and obtains a new lease. Report the loss of the address without failing
+        // provisioning, which would disconnect the network while DHCP is still in progress.
+        mInterfaceCtrl.clearIPv4Address();
+        mDhcpResults = null;
+        if (DBG) {
+            Log.d(mTag, "onNewDhcpResults(null)");
+        }
+        mCallback.onNewDhcpResults(null);
+
+        final LinkProperties newLp = assembleLinkProperties();
+        setLinkProperties(newLp);
+        mCallback.onLinkPropertiesChange(newLp);
+    }
+
     private void handleProvisioningFailure(final DisconnectCode code) {
         final LinkProperties newLp = assembleLinkProperties();
         int delta = setLinkProperties(newLp);
@@ -2352,6 +2390,13 @@ public class IpClient extends StateMachine {
         // TODO : implement this
     }
 
+    // Warm up the IpMemoryStore cache as soon as the L2 key is known, so that DhcpClient does not
+    // wait for the database when it starts.
+    private void maybePrefetchNetworkAttributes() {
+        if (mL2Key == null) return;
+        mIpMemoryStore.prefetchNetworkAttributes(mL2Key);
+    }
+
     private void maybeRestoreInterfaceMtu() {
         InterfaceParams params = mDependencies.getInterfaceParams(mInterfaceName);
         if (params == null) {
@@ -2388,6 +2433,7 @@ public class IpClient extends StateMachine {
     private void handleUpdateL2Information(@NonNull Layer2InformationParcelable info) {
         mL2Key = info.l2Key;
         mCluster = info.cluster;
+        maybePrefetchNetworkAttributes();
 
         // Sometimes the wifi code passes in a null BSSID. Don't use Log.wtf in R because
         // it's a known bug that will not be fixed in R.
@@ -2462,6 +2508,8 @@ public class IpClient extends StateMachine {
         }
         apfConfig.shouldHandleLightDoze = mApfShouldHandleLightDoze;
         apfConfig.minMetricsSessionDurationMs = mApfCounterPollingIntervalMs;
+        apfConfig.valueBasedRaPacking = mApfValueBasedRaPacking;
+        apfConfig.installCoalescingWindowMs = mApfInstallCoalescingWindowMs;
         return mDependencies.maybeCreateApfFilter(mContext, apfConfig, mInterfaceParams,
                 mCallback, mNetworkQuirkMetrics, mUseNewApfFilter);
     }
@@ -2537,6 +2585,7 @@ public class IpClient extends StateMachine {
                     final Pair<String, String> args = (Pair<String, String>) msg.obj;
                     mL2Key = args.first;
                     mCluster = args.second;
+                    maybePrefetchNetworkAttributes();
                     break;
                 }
 
@@ -2901,6 +2950,7 @@ public class IpClient extends StateMachine {
                     final Pair<String, String> args = (Pair<String, String>) msg.obj;
                     mL2Key = args.first;
                     mCluster = args.second;
+                    maybePrefetchNetworkAttributes();
                     // TODO : attributes should be saved to the memory store with
                     // these new values if they differ from the previous ones.
                     // If the state machine is in pure StartedState, then the values to input
@@ -3327,6 +3377,9 @@ public class IpClient extends StateMachine {
                             break;
                         case DhcpClient.DHCP_IPV6_ONLY:
                             break;
+                        case DhcpClient.DHCP_ADDRESS_WITHDRAWN:
+                            handleIPv4AddressWithdrawn();
+                            break;
                         case DhcpClient.DHCP_REFRESH_FAILURE:
                             // This case should only happen on the receipt of DHCPNAK when
                             // refreshing IP address post L2 roaming on some specific networks.
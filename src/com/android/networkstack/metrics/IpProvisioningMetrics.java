@@ -113,6 +113,17 @@ public class IpProvisioningMetrics {
         mDhcpSessionBuilder.setConflictCount(mDhcpSessionBuilder.getConflictCount() + 1);
     }
 
+    /**
+     * Write a first retransmission sent earlier than the default timeout into DhcpSession.
+     * @param savedMillis how much earlier the retransmission was sent.
+     */
+    public void addAdaptiveRetransmission(final int savedMillis) {
+        mDhcpSessionBuilder.setAdaptiveRetransmitCount(
+                mDhcpSessionBuilder.getAdaptiveRetransmitCount() + 1);
+        mDhcpSessionBuilder.setAdaptiveRetransmitSavedMillis(
+                mDhcpSessionBuilder.getAdaptiveRetransmitSavedMillis() + savedMillis);
+    }
+
     /**
      * Write the hostname transliteration result into DhcpSession.
      */
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.metrics;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Arrays;
+
+/**
+ * Histograms of the time spent in each state of the DHCP and DHCPv6 clients while provisioning,
+ * aggregated per link type across provisioning attempts.
+ *
+ * <p>The link type is derived from the interface name, so that the number of histograms is
+ * bounded regardless of how many interfaces are created over time.
+ *
+ * <p>Durations are recorded into fixed buckets with exponentially growing bounds, so that
+ * {@link #record} does not allocate and the tail latency of each state can be read from the
+ * dump. Instances are thread-safe: they are updated from the IpClient handler thread and dumped
+ * from binder threads.
+ * @hide
+ */
+public class ProvisioningStateLatencies {
+    public static final int STATE_DHCP_OBTAINING_CONFIGURATION = 0;
+    public static final int STATE_DHCP_INIT = 1;
+    public static final int STATE_DHCP_INIT_REBOOT = 2;
+    public static final int STATE_DHCP_REQUESTING = 3;
+    public static final int STATE_DHCP_IP_CONFLICT_DETECTING = 4;
+    public static final int STATE_DHCP_CONFIGURING_INTERFACE = 5;
+    public static final int STATE_DHCP6_SOLICIT = 6;
+    public static final int STATE_DHCP6_REQUEST = 7;
+    /** Returned by the clients for states whose latency is not recorded. */
+    public static final int STATE_NONE = -1;
+
+    private static final String[] STATE_NAMES = {
+            "DhcpClient.ObtainingConfigurationState",
+            "DhcpClient.DhcpInitState",
+            "DhcpClient.DhcpInitRebootState",
+            "DhcpClient.DhcpRequestingState",
+            "DhcpClient.IpAddressConflictDetectingState",
+            "DhcpClient.ConfiguringInterfaceState",
+            "Dhcp6Client.SolicitState",
+            "Dhcp6Client.RequestState",
+    };
+    private static final int NUM_STATES = STATE_NAMES.length;
+
+    // Upper bounds of the buckets, in milliseconds. The last bucket has no upper bound.
+    @VisibleForTesting
+    static final long[] BUCKET_UPPER_BOUNDS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 20_000, 60_000
+    };
+    private static final int NUM_BUCKETS = BUCKET_UPPER_BOUNDS_MS.length + 1;
+    private static final long NANOS_PER_MS = 1_000_000L;
+
+    public static final int LINK_TYPE_WIFI = 0;
+    public static final int LINK_TYPE_ETHERNET = 1;
+    public static final int LINK_TYPE_BLUETOOTH = 2;
+    public static final int LINK_TYPE_CELLULAR = 3;
+    public static final int LINK_TYPE_OTHER = 4;
+
+    private static final String[] LINK_TYPE_NAMES = {
+            "wifi", "ethernet", "bluetooth", "cellular", "other",
+    };
+    private static final int NUM_LINK_TYPES = LINK_TYPE_NAMES.length;
+
+    // Interface name prefixes of each link type, other than LINK_TYPE_OTHER.
+    private static final String[][] LINK_TYPE_IFACE_PREFIXES = {
+            { "wlan" },
+            { "eth" },
+            { "bt-pan" },
+            { "rmnet", "ccmni" },
+    };
+
+    private static final ProvisioningStateLatencies[] sLatencies =
+            new ProvisioningStateLatencies[NUM_LINK_TYPES];
+    static {
+        for (int i = 0; i < NUM_LINK_TYPES; i++) {
+            sLatencies[i] = new ProvisioningStateLatencies();
+        }
+    }
+
+    @GuardedBy("this")
+    private final long[][] mBucketCounts = new long[NUM_STATES][NUM_BUCKETS];
+    @GuardedBy("this")
+    private final long[] mTotalNs = new long[NUM_STATES];
+    @GuardedBy("this")
+    private final long[] mMaxNs = new long[NUM_STATES];
+
+    /**
+     * Returns the LINK_TYPE_* constant of an interface, derived from its name.
+     */
+    public static int getLinkType(@NonNull String ifaceName) {
+        for (int linkType = 0; linkType < LINK_TYPE_IFACE_PREFIXES.length; linkType++) {
+            for (String prefix : LINK_TYPE_IFACE_PREFIXES[linkType]) {
+                if (ifaceName.startsWith(prefix)) return linkType;
+            }
+        }
+        return LINK_TYPE_OTHER;
+    }
+
+    /**
+     * Get the latencies recorded for the link type of an interface. This does not allocate.
+     */
+    @NonNull
+    public static ProvisioningStateLatencies forInterface(@NonNull String ifaceName) {
+        return sLatencies[getLinkType(ifaceName)];
+    }
+
+    /**
+     * Dump the latencies recorded for all link types.
+     */
+    public static void dumpAll(@NonNull IndentingPrintWriter pw) {
+        for (int linkType = 0; linkType < NUM_LINK_TYPES; linkType++) {
+            pw.println(LINK_TYPE_NAMES[linkType] + ":");
+            pw.increaseIndent();
+            sLatencies[linkType].dump(pw);
+            pw.decreaseIndent();
+        }
+    }
+
+    /**
+     * Clear the latencies recorded for all link types.
+     */
+    public static void resetAll() {
+        for (ProvisioningStateLatencies latencies : sLatencies) {
+            latencies.reset();
+        }
+    }
+
+    @VisibleForTesting
+    ProvisioningStateLatencies() {}
+
+    /**
+     * Record the time spent in a state.
+     *
+     * @param state one of the STATE_* constants, or {@link #STATE_NONE} to ignore the duration.
+     * @param durationNs the time spent in the state, in nanoseconds.
+     */
+    public void record(int state, long durationNs) {
+        if (state < 0 || state >= NUM_STATES || durationNs < 0) return;
+        int bucket = 0;
+        while (bucket < BUCKET_UPPER_BOUNDS_MS.length
+                && durationNs > BUCKET_UPPER_BOUNDS_MS[bucket] * NANOS_PER_MS) {
+            bucket++;
+        }
+        synchronized (this) {
+            mBucketCounts[state][bucket]++;
+            mTotalNs[state] += durationNs;
+            mMaxNs[state] = Math.max(mMaxNs[state], durationNs);
+        }
+    }
+
+    /**
+     * Returns the number of durations recorded for a state.
+     */
+    public synchronized long getCount(int state) {
+        long count = 0;
+        for (long bucketCount : mBucketCounts[state]) count += bucketCount;
+        return count;
+    }
+
+    /**
+     * Returns the upper bound, in milliseconds, of the bucket containing the specified percentile
+     * of the durations recorded for a state, or -1 if nothing was recorded. Durations beyond the
+     * last bound are reported as the maximum recorded duration.
+     */
+    public synchronized long getPercentileUpperBoundMs(int state, int percentile) {
+        final long count = getCount(state);
+        if (count == 0) return -1;
+        // Rank of the percentile, rounded up, e.g. the 90th percentile of 10 durations is the 9th.
+        final long rank = Math.max(1, (count * percentile + 99) / 100);
+        long cumulative = 0;
+        for (int bucket = 0; bucket < BUCKET_UPPER_BOUNDS_MS.length; bucket++) {
+            cumulative += mBucketCounts[state][bucket];
+            if (cumulative >= rank) return BUCKET_UPPER_BOUNDS_MS[bucket];
+        }
+        return mMaxNs[state] / NANOS_PER_MS;
+    }
+
+    /**
+     * Clear all recorded durations.
+     */
+    public synchronized void reset() {
+        for (long[] counts : mBucketCounts) {
+            Arrays.fill(counts, 0);
+        }
+        Arrays.fill(mTotalNs, 0);
+        Arrays.fill(mMaxNs, 0);
+    }
+
+    /**
+     * Dump the count, mean, maximum and percentiles of the durations of each state in which
+     * durations were recorded, followed by the non-empty buckets.
+     */
+    public synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        boolean empty = true;
+        for (int state = 0; state < NUM_STATES; state++) {
+            final long count = getCount(state);
+            if (count == 0) continue;
+            empty = false;
+            pw.println(String.format("%s: count=%d mean=%.1fms max=%.1fms p50<=%dms p90<=%dms"
+                    + " p99<=%dms", STATE_NAMES[state], count,
+                    (double) mTotalNs[state] / count / NANOS_PER_MS,
+                    (double) mMaxNs[state] / NANOS_PER_MS,
+                    getPercentileUpperBoundMs(state, 50), getPercentileUpperBoundMs(state, 90),
+                    getPercentileUpperBoundMs(state, 99)));
+            final StringBuilder buckets = new StringBuilder();
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                if (mBucketCounts[state][bucket] == 0) continue;
+                if (buckets.length() > 0) buckets.append(' ');
+                buckets.append(bucket < BUCKET_UPPER_BOUNDS_MS.length
+                        ? "<=" + BUCKET_UPPER_BOUNDS_MS[bucket] + "ms"
+                        : ">" + BUCKET_UPPER_BOUNDS_MS[bucket - 1] + "ms")
+                        .append(':').append(mBucketCounts[state][bucket]);
+            }
+            pw.increaseIndent();
+            pw.println(buckets);
+            pw.decreaseIndent();
+        }
+        if (empty) pw.println("No provisioning state latencies recorded.");
+    }
+}
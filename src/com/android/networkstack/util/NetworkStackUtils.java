@@ -167,6 +167,41 @@ public class NetworkStackUtils {
     public static final String DHCP_SLOW_RETRANSMISSION_VERSION =
             "dhcp_slow_retransmission_version";
 
+    /**
+     * Minimum module version at which to configure the leased IPv4 address while IP address
+     * conflict detection is still probing it, instead of after detection completes. Only applies
+     * if {@link #DHCP_IP_CONFLICT_DETECT_VERSION} is enabled.
+     */
+    public static final String DHCP_OPTIMISTIC_IP_CONFLICT_DETECT_VERSION =
+            "dhcp_optimistic_ip_conflict_detect_version";
+
+    /**
+     * Minimum module version at which to send the INIT-REBOOT DHCPREQUEST for a remembered address
+     * in parallel with DHCPDISCOVER, instead of only falling back to DHCPDISCOVER when INIT-REBOOT
+     * times out.
+     */
+    public static final String DHCP_INIT_REBOOT_RACE_VERSION = "dhcp_init_reboot_race_version";
+
+    /**
+     * Minimum module version at which to shorten the first DHCP retransmission timeout according
+     * to the round-trip time previously measured on the network.
+     */
+    public static final String DHCP_ADAPTIVE_RETRANSMISSION_VERSION =
+            "dhcp_adaptive_retransmission_version";
+
+    /**
+     * Minimum module version at which to skip INIT-REBOOT when joining a network whose DHCP server
+     * was previously seen to reject or ignore it, or to support rapid commit instead.
+     */
+    public static final String DHCP_FAST_REJOIN_VERSION = "dhcp_fast_rejoin_version";
+
+    /**
+     * Experiment flag to persist the leases committed by the DHCP server in a journal, so they are
+     * restored when the server is restarted on the same interface.
+     */
+    public static final String DHCP_SERVER_LEASE_JOURNAL_VERSION =
+            "dhcp_server_lease_journal_version";
+
     /**
      * Experiment flag to enable considering DNS probes returning private IP addresses as failed
      * when attempting to detect captive portals.
@@ -255,6 +290,13 @@ public class NetworkStackUtils {
      */
     public static final String APF_POLLING_COUNTERS_VERSION = "apf_polling_counters_version";
 
+    /**
+     * Experiment flag to choose the RA filters installed in the APF program by the number of RAs
+     * they are expected to drop, instead of by how recently the RAs were received.
+     */
+    public static final String APF_VALUE_BASED_RA_PACKING_VERSION =
+            "apf_value_based_ra_packing_version";
+
     /**
      * Experiment flag to enable the feature of ignoring any individual RA section with lifetime
      * below accept_ra_min_lft sysctl.
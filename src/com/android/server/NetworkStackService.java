@@ -71,6 +71,7 @@ import com.android.networkstack.NetworkStackNotifier;
 import com.android.networkstack.R;
 import com.android.networkstack.apishim.common.ShimUtils;
 import com.android.networkstack.ipmemorystore.IpMemoryStoreService;
+import com.android.networkstack.metrics.ProvisioningStateLatencies;
 import com.android.server.connectivity.NetworkMonitor;
 import com.android.server.util.PermissionUtil;
 
@@ -199,6 +200,8 @@ public class NetworkStackService extends Service {
         private final NetworkObserverRegistry mObserverRegistry;
         @GuardedBy("mIpClients")
         private final ArrayList<WeakReference<IpClient>> mIpClients = new ArrayList<>();
+        @GuardedBy("mDhcpServers")
+        private final ArrayList<WeakReference<DhcpServer>> mDhcpServers = new ArrayList<>();
         private final IpMemoryStoreService mIpMemoryStoreService;
         @Nullable
         private final NetworkStackNotifier mNotifier;
@@ -367,6 +370,10 @@ public class NetworkStackService extends Service {
                 cb.onDhcpServerCreated(STATUS_UNKNOWN_ERROR, null);
                 return;
             }
+            synchronized (mDhcpServers) {
+                mDhcpServers.removeIf(ref -> ref.get() == null);
+                mDhcpServers.add(new WeakReference<>(server));
+            }
             cb.onDhcpServerCreated(STATUS_SUCCESS, server.makeConnector());
         }
 
@@ -486,6 +493,23 @@ public class NetworkStackService extends Service {
             pw.println("Other IpClient logs:");
             IpClient.dumpAllLogs(fout, dumpedIpClientIfaces);
 
+            pw.println();
+            pw.println("Recently active DhcpServers:");
+            final ArrayList<DhcpServer> dhcpServers = new ArrayList<>();
+            synchronized (mDhcpServers) {
+                for (WeakReference<DhcpServer> serverRef : mDhcpServers) {
+                    final DhcpServer server = serverRef.get();
+                    if (server != null) {
+                        dhcpServers.add(server);
+                    }
+                }
+            }
+            pw.increaseIndent();
+            for (DhcpServer server : dhcpServers) {
+                server.dump(fd, pw, args);
+            }
+            pw.decreaseIndent();
+
             pw.println();
             pw.println("Validation logs (most recent first):");
             synchronized (mValidationLogs) {
@@ -544,6 +568,19 @@ public class NetworkStackService extends Service {
                             pw.println(cm.isUidNetworkingBlocked(
                                     uid, metered /* isNetworkMetered */));
                             return 0;
+                        case "provisioning-latencies":
+                            // Usage : cmd network_stack provisioning-latencies [reset]
+                            final String arg = getNextArg();
+                            if ("reset".equals(arg)) {
+                                ProvisioningStateLatencies.resetAll();
+                                return 0;
+                            }
+                            if (arg != null) {
+                                onHelp();
+                                return -1;
+                            }
+                            ProvisioningStateLatencies.dumpAll(new IndentingPrintWriter(pw, "  "));
+                            return 0;
                         default:
                             return handleDefaultCommands(cmd);
                     }
@@ -563,6 +600,10 @@ public class NetworkStackService extends Service {
                 pw.println("    Get whether the networking is blocked for given uid and metered.");
                 pw.println("    <uid>: The target uid.");
                 pw.println("    <metered>: [true|false], Whether the target network is metered.");
+                pw.println("  provisioning-latencies [reset]");
+                pw.println("    Print the histograms of time spent in each DHCP and DHCPv6 client");
+                pw.println("    state while provisioning, per link type.");
+                pw.println("    reset: Clear the histograms instead.");
             }
         }
 
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Throughput, latency and allocation benchmarks for {@link DhcpServer}.
+ *
+ * <p>Results are logged and reported as instrumentation status, with keys prefixed by the name of
+ * the scenario. Run with:
+ * <pre>
+ * atest NetworkStackBenchmarks
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class DhcpServerBenchmark {
+    private static final String TAG = DhcpServerBenchmark.class.getSimpleName();
+
+    private static final long LEASE_TIME_SECS = 3600L;
+    private static final long PACKET_INTERVAL_MS = 10L;
+    private static final long SEED = 42L;
+    // Weights of RENEW, REBOOT, RELEASE and DECLINE, as per ChurnOp ordinals.
+    private static final int[] TYPICAL_CHURN = new int[] { 70, 15, 12, 3 };
+
+    private Context mContext;
+    private DhcpServerLoadGenerator mGenerator;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getContext();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mGenerator != null) mGenerator.stop();
+    }
+
+    private DhcpServerLoadGenerator makeGenerator(int numClients, int numChurnOps)
+            throws Exception {
+        return new DhcpServerLoadGenerator(mContext, new DhcpServerLoadGenerator.Workload(
+                numClients, numChurnOps, TYPICAL_CHURN, LEASE_TIME_SECS, PACKET_INTERVAL_MS,
+                SEED));
+    }
+
+    @Test
+    public void testJoin_1000Clients() throws Exception {
+        mGenerator = makeGenerator(1000, 0 /* numChurnOps */);
+        final DhcpServerLoadGenerator.Result result = mGenerator.runJoin();
+        assertEquals(2000, result.numPackets);
+        report("join_1000", result);
+    }
+
+    @Test
+    public void testJoin_4000Clients() throws Exception {
+        mGenerator = makeGenerator(4000, 0 /* numChurnOps */);
+        final DhcpServerLoadGenerator.Result result = mGenerator.runJoin();
+        assertEquals(8000, result.numPackets);
+        report("join_4000", result);
+    }
+
+    @Test
+    public void testChurn_1000Clients() throws Exception {
+        mGenerator = makeGenerator(1000, 10_000 /* numChurnOps */);
+        mGenerator.runJoin();
+        report("churn_1000", mGenerator.runChurn());
+    }
+
+    private static void report(@NonNull String scenario,
+            @NonNull DhcpServerLoadGenerator.Result result) {
+        Log.i(TAG, scenario + ": " + result);
+        final Bundle status = new Bundle();
+        status.putInt(scenario + "_packets", result.numPackets);
+        status.putDouble(scenario + "_packets_per_sec", result.getPacketsPerSecond());
+        status.putDouble(scenario + "_latency_p50_us", result.getLatencyUs(50));
+        status.putDouble(scenario + "_latency_p99_us", result.getLatencyUs(99));
+        status.putDouble(scenario + "_allocs_per_packet", result.getAllocsPerPacket());
+        status.putDouble(scenario + "_alloc_bytes_per_packet", result.getAllocBytesPerPacket());
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+}
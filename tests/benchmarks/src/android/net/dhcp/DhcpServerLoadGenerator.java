@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp;
+
+import static android.net.dhcp.DhcpPacket.DHCP_CLIENT;
+import static android.net.dhcp.DhcpPacket.DHCP_SERVER;
+import static android.net.dhcp.DhcpPacket.ENCAP_BOOTP;
+import static android.net.dhcp.DhcpPacket.INADDR_ANY;
+import static android.net.dhcp.DhcpServer.CMD_RECEIVE_PACKET;
+
+import static com.android.net.module.util.Inet4AddressUtils.intToInet4AddressHTH;
+
+import android.content.Context;
+import android.net.LinkAddress;
+import android.net.MacAddress;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.android.net.module.util.SharedLog;
+import com.android.testutils.HandlerUtils;
+
+import java.io.FileDescriptor;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a {@link DhcpServer} with synthetic clients, and measures how fast it handles their
+ * packets.
+ *
+ * <p>The server runs with a real {@link DhcpLeaseRepository}, but its {@link DhcpServer.Dependencies}
+ * do not use sockets: packets from clients are built in memory, and the responses of the server
+ * are captured by a fake {@code sendPacket}. Each client packet is decoded and sent to the server
+ * on the server thread, as the packet listener would do, and the next packet is only sent once it
+ * was handled. The handling latency of a packet is measured from the time it is posted to the
+ * server thread to the time the server is done handling it, and allocations are counted on the
+ * server thread only.
+ */
+public class DhcpServerLoadGenerator {
+    private static final String IFNAME = "dhcpbench0";
+    private static final LinkAddress SERVER_ADDR = new LinkAddress("10.42.0.1/16");
+    private static final Inet4Address SERVER_INET_ADDR = (Inet4Address) SERVER_ADDR.getAddress();
+    private static final long TIMEOUT_MS = 10_000L;
+
+    /** Kinds of packets sent by clients after they obtained a lease. */
+    public enum ChurnOp {
+        /** DHCPREQUEST in RENEWING state, with ciaddr. */
+        RENEW,
+        /** DHCPREQUEST in INIT-REBOOT state, with a requested address and no server ID. */
+        REBOOT,
+        /** DHCPRELEASE, followed by a new DISCOVER/REQUEST exchange on the next operation. */
+        RELEASE,
+        /** DHCPDECLINE, followed by a new DISCOVER/REQUEST exchange on the next operation. */
+        DECLINE,
+    }
+
+    /** Parameters of a load. */
+    public static class Workload {
+        /** Number of clients that obtain a lease when the load starts. */
+        public final int numClients;
+        /** Number of operations done by random clients after they all obtained a lease. */
+        public final int numChurnOps;
+        /** Relative frequency of each {@link ChurnOp}, indexed by ordinal. */
+        public final int[] churnWeights;
+        /** Lease time configured on the server. */
+        public final long leaseTimeSecs;
+        /** Time elapsed on the server clock between two packets. */
+        public final long packetIntervalMs;
+        public final long seed;
+
+        public Workload(int numClients, int numChurnOps, @NonNull int[] churnWeights,
+                long leaseTimeSecs, long packetIntervalMs, long seed) {
+            if (churnWeights.length != ChurnOp.values().length) {
+                throw new IllegalArgumentException("Expected one weight per ChurnOp");
+            }
+            this.numClients = numClients;
+            this.numChurnOps = numChurnOps;
+            this.churnWeights = churnWeights.clone();
+            this.leaseTimeSecs = leaseTimeSecs;
+            this.packetIntervalMs = packetIntervalMs;
+            this.seed = seed;
+        }
+    }
+
+    /** Measurements for a phase of the load. */
+    public static class Result {
+        public final int numPackets;
+        public final long elapsedNs;
+        // Sorted handling latency of each packet.
+        private final long[] mLatenciesNs;
+        public final long allocCount;
+        public final long allocBytes;
+
+        Result(int numPackets, long elapsedNs, @NonNull long[] latenciesNs, long allocCount,
+                long allocBytes) {
+            this.numPackets = numPackets;
+            this.elapsedNs = elapsedNs;
+            mLatenciesNs = Arrays.copyOf(latenciesNs, numPackets);
+            Arrays.sort(mLatenciesNs);
+            this.allocCount = allocCount;
+            this.allocBytes = allocBytes;
+        }
+
+        public double getPacketsPerSecond() {
+            return numPackets * 1e9 / elapsedNs;
+        }
+
+        /** Get the handling latency at the specified percentile (0-100), in microseconds. */
+        public double getLatencyUs(double percentile) {
+            if (numPackets == 0) return 0;
+            final int index = (int) Math.min(numPackets - 1,
+                    Math.ceil(percentile / 100 * numPackets) - 1);
+            return mLatenciesNs[Math.max(0, index)] / 1000.0;
+        }
+
+        public double getAllocsPerPacket() {
+            return (double) allocCount / numPackets;
+        }
+
+        public double getAllocBytesPerPacket() {
+            return (double) allocBytes / numPackets;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d packets, %.0f packets/s, latency p50 %.1fus p99 %.1fus, "
+                    + "%.1f allocs (%.0f bytes)/packet", numPackets, getPacketsPerSecond(),
+                    getLatencyUs(50), getLatencyUs(99), getAllocsPerPacket(),
+                    getAllocBytesPerPacket());
+        }
+    }
+
+    private static class FakeClock extends DhcpServer.Clock {
+        volatile long mTimeMs = 1_000_000L;
+
+        @Override
+        public long elapsedRealtime() {
+            return mTimeMs;
+        }
+    }
+
+    private static class FakePacketListener extends DhcpPacketListener {
+        FakePacketListener(@NonNull Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public boolean start() {
+            return true;
+        }
+
+        @Override
+        public void stop() {}
+
+        @Override
+        protected FileDescriptor createFd() {
+            return null;
+        }
+
+        @Override
+        protected void onReceive(@NonNull DhcpPacket packet, @NonNull Inet4Address srcAddr,
+                int srcPort) {}
+
+        @Override
+        protected void logParseError(@NonNull byte[] packet, int length,
+                @NonNull DhcpPacket.ParseException e) {}
+    }
+
+    private class FakeDependencies implements DhcpServer.Dependencies {
+        @Override
+        public void sendPacket(@NonNull FileDescriptor fd, @NonNull ByteBuffer buffer,
+                @NonNull InetAddress dst, int dstPort) {
+            // The packet starts with the BOOTP header; yiaddr is at offset 16.
+            mLastYourIp = buffer.getInt(buffer.position() + 16);
+        }
+
+        @Override
+        public DhcpLeaseRepository makeLeaseRepository(@NonNull DhcpServingParams servingParams,
+                @NonNull SharedLog log, @NonNull DhcpServer.Clock clock) {
+            return new DhcpLeaseRepository(
+                    DhcpServingParams.makeIpPrefix(servingParams.serverAddr),
+                    servingParams.excludedAddrs, servingParams.dhcpLeaseTimeSecs * 1000,
+                    servingParams.singleClientAddr, servingParams.leasesSubnetPrefixLength,
+                    log, clock);
+        }
+
+        @Override
+        public DhcpLeaseRepository makeRelayLeaseRepository(
+                @NonNull DhcpServingParams.RelaySubnet subnet, long leaseTimeMs,
+                @NonNull SharedLog log, @NonNull DhcpServer.Clock clock) {
+            return new DhcpLeaseRepository(subnet.prefix, subnet.excludedAddrs, leaseTimeMs,
+                    null /* clientAddr */, subnet.prefix.getPrefixLength(), log, clock);
+        }
+
+        @Override
+        public DhcpLeaseJournal makeLeaseJournal(@NonNull String ifName, @NonNull SharedLog log) {
+            return null;
+        }
+
+        @Override
+        public DhcpPacketListener makePacketListener(@NonNull Handler handler) {
+            return new FakePacketListener(handler);
+        }
+
+        @Override
+        public DhcpServer.Clock makeClock() {
+            return mClock;
+        }
+
+        @Override
+        public void addArpEntry(@NonNull Inet4Address ipv4Addr, @NonNull MacAddress ethAddr,
+                @NonNull String ifname, @NonNull FileDescriptor fd) {}
+
+        @Override
+        public boolean isFeatureEnabled(@NonNull Context context, @NonNull String name) {
+            return false;
+        }
+
+        @Override
+        public boolean isFeatureNotChickenedOut(@NonNull Context context, @NonNull String name) {
+            return true;
+        }
+
+        @Override
+        public int getIntDeviceConfig(@NonNull String name, int minimumValue, int maximumValue,
+                int defaultValue) {
+            return defaultValue;
+        }
+    }
+
+    @NonNull
+    private final Workload mWorkload;
+    @NonNull
+    private final DhcpServer mServer;
+    @NonNull
+    private final Handler mHandler;
+    private final FakeClock mClock = new FakeClock();
+    private final Random mRandom;
+    private final Semaphore mHandled = new Semaphore(0);
+    private final byte[][] mClientMacs;
+    // Address leased by each client as an int in host byte order, or 0 if none.
+    private final int[] mClientAddrs;
+
+    // Written on the server thread, and read after mHandled is released.
+    private volatile int mLastYourIp;
+    private volatile long mHandledTimeNs;
+    private int mTransactionId;
+
+    // Measurements of the current phase.
+    private long[] mLatenciesNs;
+    private int mNumPackets;
+
+    public DhcpServerLoadGenerator(@NonNull Context context, @NonNull Workload workload)
+            throws Exception {
+        mWorkload = workload;
+        mRandom = new Random(workload.seed);
+        mClientMacs = new byte[workload.numClients][];
+        mClientAddrs = new int[workload.numClients];
+        for (int i = 0; i < workload.numClients; i++) {
+            // Locally administered unicast addresses
+            mClientMacs[i] = new byte[] { 0x02, 0x42, (byte) (i >> 24), (byte) (i >> 16),
+                    (byte) (i >> 8), (byte) i };
+        }
+
+        final DhcpServingParams params = new DhcpServingParams.Builder()
+                .setServerAddr(SERVER_ADDR)
+                .setDefaultRouters(SERVER_INET_ADDR)
+                .setDnsServers(SERVER_INET_ADDR)
+                .setDhcpLeaseTimeSecs(workload.leaseTimeSecs)
+                .setLinkMtu(1500)
+                .setExcludedAddrs(SERVER_INET_ADDR)
+                .setChangePrefixOnDecline(false)
+                .build();
+        mServer = new DhcpServer(context, IFNAME, params,
+                new SharedLog(DhcpServerLoadGenerator.class.getSimpleName()),
+                new FakeDependencies());
+        mServer.start(null /* cb */);
+        HandlerUtils.waitForIdle(mServer.getHandler(), TIMEOUT_MS);
+        mHandler = new Handler(mServer.getHandler().getLooper());
+    }
+
+    /**
+     * Have every client obtain a lease through a DISCOVER/REQUEST exchange.
+     */
+    @NonNull
+    public Result runJoin() throws Exception {
+        return measure(2 * mWorkload.numClients, () -> {
+            for (int i = 0; i < mWorkload.numClients; i++) {
+                join(i);
+            }
+        });
+    }
+
+    /**
+     * Have random clients renew, reboot, release or decline their lease, according to the
+     * workload. Clients that released or declined their lease obtain a new one when picked again.
+     */
+    @NonNull
+    public Result runChurn() throws Exception {
+        final int totalWeight = Arrays.stream(mWorkload.churnWeights).sum();
+        // Each operation sends at most 3 packets: a failed REQUEST, then DISCOVER and REQUEST.
+        return measure(3 * mWorkload.numChurnOps, () -> {
+            for (int i = 0; i < mWorkload.numChurnOps; i++) {
+                final int client = mRandom.nextInt(mWorkload.numClients);
+                if (mClientAddrs[client] == 0) {
+                    join(client);
+                    continue;
+                }
+                churn(client, pickOp(totalWeight));
+            }
+        });
+    }
+
+    /**
+     * Stop the server. The generator cannot be used after this.
+     */
+    public void stop() throws Exception {
+        mServer.stop(null /* cb */);
+    }
+
+    private interface Phase {
+        void run() throws Exception;
+    }
+
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private Result measure(int maxPackets, @NonNull Phase phase) throws Exception {
+        mLatenciesNs = new long[maxPackets];
+        mNumPackets = 0;
+        runOnServerThread(DhcpServerLoadGenerator::resetAllocCounts);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        phase.run();
+        final long elapsedNs = SystemClock.elapsedRealtimeNanos() - start;
+        final long[] allocs = new long[2];
+        runOnServerThread(() -> {
+            allocs[0] = Debug.getThreadAllocCount();
+            allocs[1] = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+        });
+        return new Result(mNumPackets, elapsedNs, mLatenciesNs, allocs[0], allocs[1]);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void resetAllocCounts() {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+    }
+
+    @NonNull
+    private ChurnOp pickOp(int totalWeight) {
+        int value = mRandom.nextInt(totalWeight);
+        for (ChurnOp op : ChurnOp.values()) {
+            value -= mWorkload.churnWeights[op.ordinal()];
+            if (value < 0) return op;
+        }
+        throw new AssertionError("Weights changed during the run");
+    }
+
+    private void join(int client) throws Exception {
+        final byte[] mac = mClientMacs[client];
+        final int offered = send(DhcpPacket.buildDiscoverPacket(ENCAP_BOOTP, nextTransactionId(),
+                (short) 0 /* secs */, mac, false /* broadcast */, new byte[0] /* params */,
+                false /* rapidCommit */, null /* hostname */));
+        if (offered == 0) return;
+        final int acked = send(DhcpPacket.buildRequestPacket(ENCAP_BOOTP, nextTransactionId(),
+                (short) 0 /* secs */, INADDR_ANY /* clientIp */, false /* broadcast */, mac,
+                intToInet4AddressHTH(offered), SERVER_INET_ADDR, new byte[0] /* params */,
+                null /* hostname */));
+        mClientAddrs[client] = acked;
+    }
+
+    private void churn(int client, @NonNull ChurnOp op) throws Exception {
+        final byte[] mac = mClientMacs[client];
+        final Inet4Address addr = intToInet4AddressHTH(mClientAddrs[client]);
+        switch (op) {
+            case RENEW:
+                mClientAddrs[client] = send(DhcpPacket.buildRequestPacket(ENCAP_BOOTP,
+                        nextTransactionId(), (short) 0 /* secs */, addr /* clientIp */,
+                        false /* broadcast */, mac, null /* requestedIp */,
+                        null /* serverIdentifier */, new byte[0] /* params */,
+                        null /* hostname */));
+                break;
+            case REBOOT:
+                mClientAddrs[client] = send(DhcpPacket.buildRequestPacket(ENCAP_BOOTP,
+                        nextTransactionId(), (short) 0 /* secs */, INADDR_ANY /* clientIp */,
+                        false /* broadcast */, mac, addr /* requestedIp */,
+                        null /* serverIdentifier */, new byte[0] /* params */,
+                        null /* hostname */));
+                break;
+            case RELEASE:
+                send(new DhcpReleasePacket(nextTransactionId(), SERVER_INET_ADDR, addr,
+                        INADDR_ANY /* relayIp */, mac).buildPacket(ENCAP_BOOTP, DHCP_SERVER,
+                        DHCP_CLIENT));
+                mClientAddrs[client] = 0;
+                break;
+            case DECLINE:
+                send(DhcpPacket.buildDeclinePacket(ENCAP_BOOTP, nextTransactionId(), mac, addr,
+                        SERVER_INET_ADDR));
+                mClientAddrs[client] = 0;
+                break;
+        }
+        // Clients that lost their lease (NAK) obtain a new one immediately.
+        if (mClientAddrs[client] == 0 && (op == ChurnOp.RENEW || op == ChurnOp.REBOOT)) {
+            join(client);
+        }
+    }
+
+    private int nextTransactionId() {
+        return ++mTransactionId;
+    }
+
+    /**
+     * Send a packet to the server and wait until it was handled.
+     *
+     * @return The yiaddr of the response of the server as an int in host byte order, or 0 if there
+     *         was no response or it did not assign an address.
+     */
+    private int send(@NonNull ByteBuffer packet) throws Exception {
+        final byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        mClock.mTimeMs += mWorkload.packetIntervalMs;
+        mLastYourIp = 0;
+
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mHandler.post(() -> {
+            try {
+                mServer.sendMessage(CMD_RECEIVE_PACKET,
+                        DhcpPacket.decodeFullPacket(bytes, bytes.length, ENCAP_BOOTP));
+            } catch (DhcpPacket.ParseException e) {
+                throw new IllegalStateException("Generated invalid packet", e);
+            }
+            // Runs after the server handled the packet, as it is posted on the same looper.
+            mHandler.post(() -> {
+                mHandledTimeNs = SystemClock.elapsedRealtimeNanos();
+                mHandled.release();
+            });
+        });
+        if (!mHandled.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Timed out waiting for the server");
+        }
+        mLatenciesNs[mNumPackets++] = mHandledTimeNs - start;
+        return mLastYourIp;
+    }
+
+    private void runOnServerThread(@NonNull Runnable r) throws InterruptedException {
+        mHandler.post(() -> {
+            r.run();
+            mHandled.release();
+        });
+        if (!mHandled.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Timed out waiting for the server");
+        }
+    }
+}
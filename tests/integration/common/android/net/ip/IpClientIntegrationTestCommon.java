@@ -40,8 +40,10 @@ import static android.net.ip.IIpClientCallbacks.DTIM_MULTIPLIER_RESET;
 import static android.net.ip.IpClient.CONFIG_IPV6_AUTOCONF_TIMEOUT;
 import static android.net.ip.IpClient.CONFIG_ACCEPT_RA_MIN_LFT;
 import static android.net.ip.IpClient.CONFIG_APF_COUNTER_POLLING_INTERVAL_SECS;
+import static android.net.ip.IpClient.CONFIG_APF_INSTALL_COALESCING_WINDOW_MS;
 import static android.net.ip.IpClient.DEFAULT_ACCEPT_RA_MIN_LFT;
 import static android.net.ip.IpClient.DEFAULT_APF_COUNTER_POLLING_INTERVAL_SECS;
+import static android.net.ip.IpClient.DEFAULT_APF_INSTALL_COALESCING_WINDOW_MS;
 import static android.net.ip.IpClientLinkObserver.CLAT_PREFIX;
 import static android.net.ip.IpClientLinkObserver.CONFIG_SOCKET_RECV_BUFSIZE;
 import static android.net.ip.IpReachabilityMonitor.NUD_MCAST_RESOLICIT_NUM;
@@ -159,7 +161,9 @@ import android.net.dhcp6.Dhcp6RebindPacket;
 import android.net.dhcp6.Dhcp6RenewPacket;
 import android.net.dhcp6.Dhcp6RequestPacket;
 import android.net.dhcp6.Dhcp6SolicitPacket;
+import android.net.ipmemorystore.Blob;
 import android.net.ipmemorystore.NetworkAttributes;
+import android.net.ipmemorystore.OnBlobRetrievedListener;
 import android.net.ipmemorystore.OnNetworkAttributesRetrievedListener;
 import android.net.ipmemorystore.Status;
 import android.net.networkstack.TestNetworkStackServiceClient;
@@ -844,6 +848,10 @@ public abstract class IpClientIntegrationTestCommon {
         // Set the polling interval to update APF data snapshot.
         setDeviceConfigProperty(CONFIG_APF_COUNTER_POLLING_INTERVAL_SECS,
                 DEFAULT_APF_COUNTER_POLLING_INTERVAL_SECS);
+
+        // Set the window in which APF program installs are merged.
+        setDeviceConfigProperty(CONFIG_APF_INSTALL_COALESCING_WINDOW_MS,
+                DEFAULT_APF_INSTALL_COALESCING_WINDOW_MS);
     }
 
     private void awaitIpClientShutdown() throws Exception {
@@ -2758,6 +2766,48 @@ public abstract class IpClientIntegrationTestCommon {
                 false /* shouldResponseArpReply */);
     }
 
+    private ArpPacket getNextArpProbe() throws Exception {
+        // Once the address is configured, the interface may also send ARP requests for the router.
+        ArpPacket packet;
+        do {
+            packet = getNextArpPacket();
+        } while (!INADDR_ANY.equals(packet.senderIp));
+        return packet;
+    }
+
+    private void startOptimisticIpAddressConflictDetection() throws Exception {
+        setFeatureEnabled(NetworkStackUtils.DHCP_OPTIMISTIC_IP_CONFLICT_DETECT_VERSION, true);
+        performDhcpHandshake(true /* isSuccessLease */, TEST_LEASE_DURATION_S,
+                false /* shouldReplyRapidCommitAck */, TEST_DEFAULT_MTU,
+                true /* isDhcpIpConflictDetectEnabled */);
+        // The address is configured without waiting for the ARP probes and announcements.
+        verifyIPv4OnlyProvisioningSuccess(Collections.singletonList(CLIENT_ADDR));
+    }
+
+    @Test
+    public void testDhcpDecline_OptimisticWithoutIpConflict() throws Exception {
+        startOptimisticIpAddressConflictDetection();
+        assertArpProbe(getNextArpProbe());
+        verify(mCb, never()).onProvisioningFailure(any());
+    }
+
+    @Test
+    public void testDhcpDecline_OptimisticConflictByArpReply() throws Exception {
+        startOptimisticIpAddressConflictDetection();
+        assertArpProbe(getNextArpProbe());
+
+        sendArpReply(mClientMac /* dstMac */, ROUTER_MAC_BYTES /* srcMac */,
+                INADDR_ANY /* target IP */, CLIENT_ADDR /* sender IP */);
+        final DhcpPacket packet = getNextDhcpPacketWithType(DhcpDeclinePacket.class);
+        assertEquals(packet.mServerIdentifier, SERVER_ADDR);
+        assertEquals(packet.mRequestedIp, CLIENT_ADDR);
+
+        // The address is withdrawn without failing provisioning, and a new lease is obtained.
+        verify(mCb, timeout(TEST_TIMEOUT_MS)).onNewDhcpResults(null);
+        assertNotNull(getNextDhcpPacketWithType(DhcpDiscoverPacket.class));
+        verify(mCb, never()).onProvisioningFailure(any());
+    }
+
     @Test @SignatureRequiredTest(reason = "TODO: evaluate whether signature perms are required")
     public void testHostname_enableConfig() throws Exception {
         mDependencies.setHostnameConfiguration(true /* isHostnameConfigurationEnabled */,
@@ -3398,6 +3448,177 @@ public abstract class IpClientIntegrationTestCommon {
         storeNetworkAttributes(TEST_L2KEY, na);
     }
 
+    private DhcpPacket getNextDhcpPacketWithType(final Class<? extends DhcpPacket> type)
+            throws Exception {
+        DhcpPacket packet;
+        do {
+            packet = getNextDhcpPacket();
+        } while (!type.isInstance(packet));
+        return packet;
+    }
+
+    private void startInitRebootRace() throws Exception {
+        setUpRetrievedNetworkAttributesForInitRebootState();
+        setFeatureEnabled(NetworkStackUtils.DHCP_INIT_REBOOT_RACE_VERSION, true);
+        startIpClientProvisioning(false /* isDhcpRapidCommitEnabled */,
+                false /* isPreconnectionEnabled */, false /* isDhcpIpConflictDetectEnabled */);
+    }
+
+    @Test
+    public void testDhcpInitRebootRace_InitRebootWins() throws Exception {
+        startInitRebootRace();
+        final DhcpPacket discover = getNextDhcpPacketWithType(DhcpDiscoverPacket.class);
+        final DhcpPacket request = getNextDhcpPacketWithType(DhcpRequestPacket.class);
+        assertNotEquals(discover.getTransactionId(), request.getTransactionId());
+        assertEquals(CLIENT_ADDR, request.mRequestedIp);
+        assertNull(request.mServerIdentifier);
+
+        mPacketReader.sendResponse(buildDhcpAckPacket(request, CLIENT_ADDR,
+                TEST_LEASE_DURATION_S, (short) TEST_DEFAULT_MTU, false /* rapidCommit */,
+                null /* captivePortalApiUrl */));
+        verifyIPv4OnlyProvisioningSuccess(Collections.singletonList(CLIENT_ADDR));
+    }
+
+    @Test
+    public void testDhcpInitRebootRace_DiscoverWins() throws Exception {
+        startInitRebootRace();
+        final DhcpPacket discover = getNextDhcpPacketWithType(DhcpDiscoverPacket.class);
+        final DhcpPacket initRebootRequest = getNextDhcpPacketWithType(DhcpRequestPacket.class);
+
+        // A NAK to INIT-REBOOT does not interrupt the DISCOVER exchange.
+        mPacketReader.sendResponse(buildDhcpNakPacket(initRebootRequest, "wrong network"));
+        mPacketReader.sendResponse(buildDhcpOfferPacket(discover, CLIENT_ADDR,
+                TEST_LEASE_DURATION_S, (short) TEST_DEFAULT_MTU, null /* captivePortalUrl */));
+
+        DhcpPacket request;
+        do {
+            request = getNextDhcpPacketWithType(DhcpRequestPacket.class);
+        } while (request.getTransactionId() != discover.getTransactionId());
+        assertEquals(SERVER_ADDR, request.mServerIdentifier);
+
+        mPacketReader.sendResponse(buildDhcpAckPacket(request, CLIENT_ADDR,
+                TEST_LEASE_DURATION_S, (short) TEST_DEFAULT_MTU, false /* rapidCommit */,
+                null /* captivePortalApiUrl */));
+        verifyIPv4OnlyProvisioningSuccess(Collections.singletonList(CLIENT_ADDR));
+        verify(mCb, never()).onProvisioningFailure(any());
+    }
+
+    @Test @SignatureRequiredTest(reason = "Verifies blob calls on the mock IpMemoryStore")
+    public void testDhcpAdaptiveRetransmission_StoresRttEstimate() throws Exception {
+        setFeatureEnabled(NetworkStackUtils.DHCP_ADAPTIVE_RETRANSMISSION_VERSION, true);
+        performDhcpHandshake();
+        verify(mIpMemoryStore, timeout(TEST_TIMEOUT_MS)).retrieveBlob(eq(TEST_L2KEY),
+                eq(DhcpClient.DHCP_PROFILE_CLIENT_ID), eq(DhcpClient.DHCP_PROFILE_BLOB_NAME),
+                any());
+
+        final ArgumentCaptor<Blob> blobCaptor = ArgumentCaptor.forClass(Blob.class);
+        verify(mIpMemoryStore, timeout(TEST_TIMEOUT_MS)).storeBlob(eq(TEST_L2KEY),
+                eq(DhcpClient.DHCP_PROFILE_CLIENT_ID), eq(DhcpClient.DHCP_PROFILE_BLOB_NAME),
+                blobCaptor.capture(), any());
+        assertNotNull(blobCaptor.getValue().data);
+    }
+
+    @Test @SignatureRequiredTest(reason = "Verifies blob calls on the mock IpMemoryStore")
+    public void testDhcpAdaptiveRetransmission_Disabled() throws Exception {
+        setFeatureEnabled(NetworkStackUtils.DHCP_ADAPTIVE_RETRANSMISSION_VERSION, false);
+        performDhcpHandshake();
+        verify(mCb, timeout(TEST_TIMEOUT_MS)).onProvisioningSuccess(any());
+        verify(mIpMemoryStore, never()).retrieveBlob(any(), any(), any(), any());
+        verify(mIpMemoryStore, never()).storeBlob(any(), any(), any(), any(), any());
+    }
+
+    // Serialize a DhcpNetworkProfile without server information, holding the specified RTT
+    // estimate in the format of DhcpRttEstimator.
+    private static byte[] makeDhcpProfileWithRttEstimate(int srttMs, int rttVarMs) {
+        return ByteBuffer.allocate(17)
+                .put((byte) 1 /* version */).put((byte) 0 /* flags */).putInt(0 /* serverId */)
+                .put((byte) 9 /* RTT estimate length */)
+                .put((byte) 1 /* version */).putInt(srttMs).putInt(rttVarMs)
+                .put((byte) 0 /* option types length */)
+                .array();
+    }
+
+    @Test @SignatureRequiredTest(reason = "Mocks blob calls on the mock IpMemoryStore")
+    public void testDhcpAdaptiveRetransmission_BacksOffAfterLateReply() throws Exception {
+        setFeatureEnabled(NetworkStackUtils.DHCP_ADAPTIVE_RETRANSMISSION_VERSION, true);
+        // The remembered estimate is much lower than the time the server takes to reply.
+        final Blob profile = new Blob();
+        profile.data = makeDhcpProfileWithRttEstimate(10 /* srttMs */, 5 /* rttVarMs */);
+        doAnswer(invocation -> {
+            ((OnBlobRetrievedListener) invocation.getArgument(3)).onBlobRetrieved(
+                    new Status(SUCCESS), TEST_L2KEY, DhcpClient.DHCP_PROFILE_BLOB_NAME, profile);
+            return null;
+        }).when(mIpMemoryStore).retrieveBlob(eq(TEST_L2KEY),
+                eq(DhcpClient.DHCP_PROFILE_CLIENT_ID), eq(DhcpClient.DHCP_PROFILE_BLOB_NAME),
+                any());
+        startIpClientProvisioning(false /* isDhcpRapidCommitEnabled */,
+                false /* isPreconnectionEnabled */, false /* isDhcpIpConflictDetectEnabled */);
+
+        // The server only replies after the DISCOVER is retransmitted early.
+        final DhcpPacket discover = getNextDhcpPacketWithType(DhcpDiscoverPacket.class);
+        final DhcpPacket retransmitted = getNextDhcpPacketWithType(DhcpDiscoverPacket.class);
+        assertEquals(discover.getTransactionId(), retransmitted.getTransactionId());
+        mPacketReader.sendResponse(buildDhcpOfferPacket(discover, CLIENT_ADDR,
+                TEST_LEASE_DURATION_S, (short) TEST_DEFAULT_MTU, null /* captivePortalUrl */));
+        final DhcpPacket request = getNextDhcpPacketWithType(DhcpRequestPacket.class);
+        mPacketReader.sendResponse(buildDhcpAckPacket(request, CLIENT_ADDR,
+                TEST_LEASE_DURATION_S, (short) TEST_DEFAULT_MTU, false /* rapidCommit */,
+                null /* captivePortalApiUrl */));
+        verifyIPv4OnlyProvisioningSuccess(Collections.singletonList(CLIENT_ADDR));
+
+        // The stored estimate was backed off above the time the late reply took, instead of
+        // keeping the remembered estimate that retransmits too early.
+        final ArgumentCaptor<Blob> blobCaptor = ArgumentCaptor.forClass(Blob.class);
+        verify(mIpMemoryStore, timeout(TEST_TIMEOUT_MS)).storeBlob(eq(TEST_L2KEY),
+                eq(DhcpClient.DHCP_PROFILE_CLIENT_ID), eq(DhcpClient.DHCP_PROFILE_BLOB_NAME),
+                blobCaptor.capture(), any());
+        // Skip the profile version, flags, server ID, RTT estimate length and version.
+        final int storedSrttMs = ByteBuffer.wrap(blobCaptor.getValue().data).getInt(8);
+        assertTrue("Stored SRTT not backed off: " + storedSrttMs, storedSrttMs > 100);
+    }
+
+    @Test @SignatureRequiredTest(reason = "Mocks blob calls on the mock IpMemoryStore")
+    public void testDhcpFastRejoin_SkipsInitRebootAfterNak() throws Exception {
+        setFeatureEnabled(NetworkStackUtils.DHCP_FAST_REJOIN_VERSION, true);
+        setUpRetrievedNetworkAttributesForInitRebootState();
+        startIpClientProvisioning(false /* isDhcpRapidCommitEnabled */,
+                false /* isPreconnectionEnabled */, false /* isDhcpIpConflictDetectEnabled */);
+
+        // The server rejects INIT-REBOOT, so the lease is obtained with DISCOVER.
+        final DhcpPacket initRebootRequest = getNextDhcpPacketWithType(DhcpRequestPacket.class);
+        mPacketReader.sendResponse(buildDhcpNakPacket(initRebootRequest, "wrong network"));
+        final DhcpPacket discover = getNextDhcpPacketWithType(DhcpDiscoverPacket.class);
+        mPacketReader.sendResponse(buildDhcpOfferPacket(discover, CLIENT_ADDR,
+                TEST_LEASE_DURATION_S, (short) TEST_DEFAULT_MTU, null /* captivePortalUrl */));
+        final DhcpPacket request = getNextDhcpPacketWithType(DhcpRequestPacket.class);
+        mPacketReader.sendResponse(buildDhcpAckPacket(request, CLIENT_ADDR,
+                TEST_LEASE_DURATION_S, (short) TEST_DEFAULT_MTU, false /* rapidCommit */,
+                null /* captivePortalApiUrl */));
+        verifyIPv4OnlyProvisioningSuccess(Collections.singletonList(CLIENT_ADDR));
+
+        final ArgumentCaptor<Blob> blobCaptor = ArgumentCaptor.forClass(Blob.class);
+        verify(mIpMemoryStore, timeout(TEST_TIMEOUT_MS)).storeBlob(eq(TEST_L2KEY),
+                eq(DhcpClient.DHCP_PROFILE_CLIENT_ID), eq(DhcpClient.DHCP_PROFILE_BLOB_NAME),
+                blobCaptor.capture(), any());
+        doAnswer(invocation -> {
+            ((OnBlobRetrievedListener) invocation.getArgument(3)).onBlobRetrieved(
+                    new Status(SUCCESS), TEST_L2KEY, DhcpClient.DHCP_PROFILE_BLOB_NAME,
+                    blobCaptor.getValue());
+            return null;
+        }).when(mIpMemoryStore).retrieveBlob(eq(TEST_L2KEY),
+                eq(DhcpClient.DHCP_PROFILE_CLIENT_ID), eq(DhcpClient.DHCP_PROFILE_BLOB_NAME),
+                any());
+
+        // When the network is joined again, the remembered profile skips INIT-REBOOT even though
+        // the previously assigned address is still valid.
+        mIpc.stop();
+        HandlerUtils.waitForIdle(mIpc.getHandler(), TEST_TIMEOUT_MS);
+        reset(mCb);
+        startIpClientProvisioning(false /* isDhcpRapidCommitEnabled */,
+                false /* isPreconnectionEnabled */, false /* isDhcpIpConflictDetectEnabled */);
+        assertTrue(getNextDhcpPacket() instanceof DhcpDiscoverPacket);
+    }
+
     private void startFromInitRebootStateWithIPv6OnlyPreferredOption(final Integer ipv6OnlyWaitTime,
             final long expectedWaitSecs) throws Exception {
         setUpRetrievedNetworkAttributesForInitRebootState();
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net
+
+import android.content.Context
+import android.net.InetAddresses.parseNumericAddress
+import android.net.ipmemorystore.IOnNetworkAttributesRetrievedListener
+import android.net.ipmemorystore.IOnStatusListener
+import android.net.ipmemorystore.NetworkAttributes
+import android.net.ipmemorystore.OnNetworkAttributesRetrievedListener
+import android.net.ipmemorystore.Status
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentCaptor
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mock
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.MockitoAnnotations
+import java.net.Inet4Address
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class NetworkStackIpMemoryStoreTest {
+    companion object {
+        private const val TEST_L2KEY = "test_l2key"
+        private const val TEST_CLUSTER = "test_cluster"
+        private const val TEST_MTU = 1400
+        private val TEST_ADDRESS = parseNumericAddress("192.168.42.42") as Inet4Address
+        private val TEST_ATTRIBUTES = NetworkAttributes.Builder()
+                .setAssignedV4Address(TEST_ADDRESS)
+                .setAssignedV4AddressExpiry(System.currentTimeMillis() + 3_600_000L)
+                .setCluster(TEST_CLUSTER)
+                .build()
+    }
+
+    @Mock
+    private lateinit var mContext: Context
+    @Mock
+    private lateinit var mService: IIpMemoryStore
+    private lateinit var mStore: NetworkStackIpMemoryStore
+    private var mTimeMs = 1000L
+
+    @Before
+    fun setUp() {
+        MockitoAnnotations.initMocks(this)
+        mStore = NetworkStackIpMemoryStore(mContext, mService) { mTimeMs }
+    }
+
+    private fun mockListener() = mock(OnNetworkAttributesRetrievedListener::class.java)
+
+    private fun captureRetrieval(times: Int = 1): IOnNetworkAttributesRetrievedListener {
+        val captor = ArgumentCaptor.forClass(IOnNetworkAttributesRetrievedListener::class.java)
+        verify(mService, times(times)).retrieveNetworkAttributes(eq(TEST_L2KEY), captor.capture())
+        return captor.value
+    }
+
+    private fun IOnNetworkAttributesRetrievedListener.respond(attributes: NetworkAttributes?) {
+        onNetworkAttributesRetrieved(Status(Status.SUCCESS).toParcelable(), TEST_L2KEY,
+                attributes?.toParcelable())
+    }
+
+    @Test
+    fun testRetrieve_CachedAfterFirstQuery() {
+        val first = mockListener()
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, first)
+        captureRetrieval().respond(TEST_ATTRIBUTES)
+        verify(first).onNetworkAttributesRetrieved(any(), eq(TEST_L2KEY), eq(TEST_ATTRIBUTES))
+
+        val second = mockListener()
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, second)
+        verify(second).onNetworkAttributesRetrieved(any(), eq(TEST_L2KEY), eq(TEST_ATTRIBUTES))
+        verify(mService, times(1)).retrieveNetworkAttributes(any(), any())
+    }
+
+    @Test
+    fun testRetrieve_MissingAttributesCached() {
+        mStore.prefetchNetworkAttributes(TEST_L2KEY)
+        captureRetrieval().respond(null)
+
+        val listener = mockListener()
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, listener)
+        verify(listener).onNetworkAttributesRetrieved(any(), eq(TEST_L2KEY), eq(null))
+        verify(mService, times(1)).retrieveNetworkAttributes(any(), any())
+    }
+
+    @Test
+    fun testRetrieve_ConcurrentQueriesShared() {
+        val first = mockListener()
+        val second = mockListener()
+        mStore.prefetchNetworkAttributes(TEST_L2KEY)
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, first)
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, second)
+        verify(first, never()).onNetworkAttributesRetrieved(any(), any(), any())
+
+        captureRetrieval().respond(TEST_ATTRIBUTES)
+        verify(first).onNetworkAttributesRetrieved(any(), eq(TEST_L2KEY), eq(TEST_ATTRIBUTES))
+        verify(second).onNetworkAttributesRetrieved(any(), eq(TEST_L2KEY), eq(TEST_ATTRIBUTES))
+    }
+
+    @Test
+    fun testStore_MergedIntoCache() {
+        mStore.prefetchNetworkAttributes(TEST_L2KEY)
+        captureRetrieval().respond(TEST_ATTRIBUTES)
+
+        mStore.storeNetworkAttributes(TEST_L2KEY,
+                NetworkAttributes.Builder().setMtu(TEST_MTU).build(), null /* listener */)
+        val listener = mockListener()
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, listener)
+
+        val expected = NetworkAttributes.Builder(TEST_ATTRIBUTES).setMtu(TEST_MTU).build()
+        verify(listener).onNetworkAttributesRetrieved(any(), eq(TEST_L2KEY), eq(expected))
+        verify(mService, times(1)).retrieveNetworkAttributes(any(), any())
+    }
+
+    @Test
+    fun testStore_FailureInvalidatesCache() {
+        mStore.prefetchNetworkAttributes(TEST_L2KEY)
+        captureRetrieval().respond(TEST_ATTRIBUTES)
+
+        mStore.storeNetworkAttributes(TEST_L2KEY,
+                NetworkAttributes.Builder().setMtu(TEST_MTU).build(), null /* listener */)
+        val captor = ArgumentCaptor.forClass(IOnStatusListener::class.java)
+        verify(mService).storeNetworkAttributes(eq(TEST_L2KEY), any(), captor.capture())
+        captor.value.onComplete(Status(Status.ERROR_STORAGE).toParcelable())
+
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, mockListener())
+        captureRetrieval(times = 2)
+    }
+
+    @Test
+    fun testRetrieve_NotCachedIfStoredDuringQuery() {
+        mStore.prefetchNetworkAttributes(TEST_L2KEY)
+        mStore.storeNetworkAttributes(TEST_L2KEY,
+                NetworkAttributes.Builder().setMtu(TEST_MTU).build(), null /* listener */)
+        captureRetrieval().respond(TEST_ATTRIBUTES)
+
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, mockListener())
+        captureRetrieval(times = 2)
+    }
+
+    @Test
+    fun testDelete_InvalidatesCache() {
+        mStore.prefetchNetworkAttributes(TEST_L2KEY)
+        captureRetrieval().respond(TEST_ATTRIBUTES)
+
+        mStore.delete(TEST_L2KEY, false /* needWipe */, null /* listener */)
+        verify(mService).delete(eq(TEST_L2KEY), anyBoolean(), any())
+
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, mockListener())
+        captureRetrieval(times = 2)
+    }
+
+    @Test
+    fun testCache_EntriesExpire() {
+        mStore.prefetchNetworkAttributes(TEST_L2KEY)
+        captureRetrieval().respond(TEST_ATTRIBUTES)
+
+        mTimeMs += NetworkStackIpMemoryStore.CACHE_EXPIRY_MS - 1
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, mockListener())
+        captureRetrieval(times = 1)
+
+        // Storing attributes does not extend the expiry of the entry.
+        mStore.storeNetworkAttributes(TEST_L2KEY,
+                NetworkAttributes.Builder().setMtu(TEST_MTU).build(), null /* listener */)
+        mTimeMs += 1
+        mStore.retrieveNetworkAttributes(TEST_L2KEY, mockListener())
+        captureRetrieval(times = 2)
+    }
+
+    @Test
+    fun testCache_Bounded() {
+        for (i in 0..NetworkStackIpMemoryStore.MAX_CACHED_ATTRIBUTES) {
+            val l2Key = "l2key_$i"
+            mStore.prefetchNetworkAttributes(l2Key)
+            val captor = ArgumentCaptor.forClass(IOnNetworkAttributesRetrievedListener::class.java)
+            verify(mService).retrieveNetworkAttributes(eq(l2Key), captor.capture())
+            captor.value.onNetworkAttributesRetrieved(Status(Status.SUCCESS).toParcelable(), l2Key,
+                    TEST_ATTRIBUTES.toParcelable())
+        }
+        // The least recently used key was evicted.
+        mStore.prefetchNetworkAttributes("l2key_0")
+        verify(mService, times(2)).retrieveNetworkAttributes(eq("l2key_0"), any())
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf
+
+import android.net.apf.ApfCounterTracker.Counter
+import android.net.apf.ApfInterpreter.DROP
+import android.net.apf.ApfInterpreter.PASS
+import android.net.apf.BaseApfGenerator.APF_VERSION_4
+import android.net.apf.BaseApfGenerator.DROP_LABEL
+import android.net.apf.BaseApfGenerator.MIN_APF_VERSION_IN_DEV
+import android.net.apf.BaseApfGenerator.Register.R0
+import android.net.apf.BaseApfGenerator.Register.R1
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for the pure-Java APF interpreter. Where possible, the expectations are the same as the
+ * ones used against the native interpreter in ApfV5Test.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ApfInterpreterTest {
+
+    private val testPacket = byteArrayOf(1, 2, 3, 4, 5, 6, 7, 8,
+                                         9, 10, 11, 12, 13, 14, 15, 16)
+
+    private fun runV6(program: ByteArray, packet: ByteArray): ApfInterpreter {
+        val interpreter = ApfInterpreter(MIN_APF_VERSION_IN_DEV, RAM_SIZE)
+        interpreter.loadProgram(program)
+        interpreter.run(packet, 0 /* filterAgeSeconds */)
+        return interpreter
+    }
+
+    private fun assertVerdict(
+        expected: Int,
+        apfVersion: Int,
+        program: ByteArray,
+        packet: ByteArray
+    ) {
+        val interpreter = ApfInterpreter(apfVersion, RAM_SIZE)
+        interpreter.loadProgram(program)
+        assertEquals(expected, interpreter.run(packet, 0 /* filterAgeSeconds */))
+    }
+
+    @Test
+    fun testV4Basics() {
+        var program = ApfV4Generator(APF_VERSION_4)
+                .addLoad8(R0, 1)
+                .addJumpIfR0Equals(2, DROP_LABEL)
+                .generate()
+        assertVerdict(DROP, APF_VERSION_4, program, testPacket)
+
+        program = ApfV4Generator(APF_VERSION_4)
+                .addLoadImmediate(R0, 1)
+                .addAdd(2)
+                .addJumpIfR0Equals(3, DROP_LABEL)
+                .generate()
+        assertVerdict(DROP, APF_VERSION_4, program, testPacket)
+
+        program = ApfV4Generator(APF_VERSION_4)
+                .addLoadImmediate(R0, 2)
+                .addJumpIfBytesAtR0NotEqual(byteArrayOf(3, 4), DROP_LABEL)
+                .generate()
+        assertVerdict(PASS, APF_VERSION_4, program, testPacket)
+
+        program = ApfV4Generator(APF_VERSION_4)
+                .addLoadImmediate(R0, 2)
+                .addJumpIfBytesAtR0NotEqual(byteArrayOf(3, 5), DROP_LABEL)
+                .generate()
+        assertVerdict(DROP, APF_VERSION_4, program, testPacket)
+
+        program = ApfV4Generator(APF_VERSION_4)
+                .addLoadImmediate(R0, 1234)
+                .addStoreData(R0, -4)
+                .addLoadImmediate(R0, 0)
+                .addLoadData(R0, -4)
+                .addJumpIfR0Equals(1234, DROP_LABEL)
+                .generate()
+        assertVerdict(DROP, APF_VERSION_4, program, testPacket)
+
+        // Packets no longer than an Ethernet header are always passed.
+        program = ApfV4Generator(APF_VERSION_4).addJump(DROP_LABEL).generate()
+        assertVerdict(PASS, APF_VERSION_4, program, ByteArray(14))
+    }
+
+    @Test
+    fun testPrefilledMemoryAndInstructionCount() {
+        val program = ApfV4Generator(APF_VERSION_4)
+                .addLoadFromMemory(R0, 14) // packet size
+                .addJumpIfR0Equals(testPacket.size, DROP_LABEL)
+                .generate()
+        val interpreter = ApfInterpreter(APF_VERSION_4, RAM_SIZE)
+        interpreter.loadProgram(program)
+        assertEquals(DROP, interpreter.run(testPacket, 0 /* filterAgeSeconds */))
+        assertEquals(2, interpreter.getInstructionCount())
+    }
+
+    @Test
+    fun testPassDropCounters() {
+        var program = ApfV6Generator()
+                .addData(byteArrayOf())
+                .addCountAndDrop(Counter.DROPPED_ETH_BROADCAST.value())
+                .generate()
+        var interpreter = runV6(program, testPacket)
+        assertEquals(1L, interpreter.getCounterValue(Counter.TOTAL_PACKETS))
+        assertEquals(1L, interpreter.getCounterValue(Counter.DROPPED_ETH_BROADCAST))
+
+        // Counters persist across runs and program loads.
+        assertEquals(DROP, interpreter.run(testPacket, 0 /* filterAgeSeconds */))
+        assertEquals(2L, interpreter.getCounterValue(Counter.DROPPED_ETH_BROADCAST))
+        program = ApfV6Generator()
+                .addData(byteArrayOf())
+                .addCountAndPass(Counter.PASSED_ARP.value())
+                .generate()
+        interpreter.loadProgram(program)
+        assertEquals(PASS, interpreter.run(testPacket, 0 /* filterAgeSeconds */))
+        assertEquals(3L, interpreter.getCounterValue(Counter.TOTAL_PACKETS))
+        assertEquals(1L, interpreter.getCounterValue(Counter.PASSED_ARP))
+
+        interpreter.clearData()
+        assertEquals(0L, interpreter.getCounterValue(Counter.TOTAL_PACKETS))
+    }
+
+    @Test
+    fun testAllocateAndTransmitFailure() {
+        var program = ApfV6Generator()
+                .addData(byteArrayOf())
+                .addAllocate(65535)
+                .addDrop()
+                .generate()
+        var interpreter = runV6(program, testPacket)
+        assertEquals(1L, interpreter.getCounterValue(Counter.PASSED_ALLOCATE_FAILURE))
+
+        program = ApfV6Generator()
+                .addData(byteArrayOf())
+                .addAllocate(14)
+                .addLoadImmediate(R0, 13)
+                .addStoreToMemory(R0, 10)
+                .addTransmitWithoutChecksum()
+                .addDrop()
+                .generate()
+        interpreter = runV6(program, testPacket)
+        assertEquals(1L, interpreter.getCounterValue(Counter.PASSED_TRANSMIT_FAILURE))
+        assertEquals(0, interpreter.getTransmittedPacketLength())
+    }
+
+    @Test
+    fun testWriteAndCopyToTxBuffer() {
+        var program = ApfV6Generator()
+                .addAllocate(14)
+                .addWriteU8(0x01)
+                .addWriteU16(0x0203)
+                .addWriteU32(0x04050607)
+                .addLoadImmediate(R0, 1)
+                .addWriteU8(R0)
+                .addLoadImmediate(R0, 0x0203)
+                .addWriteU16(R0)
+                .addLoadImmediate(R1, 0x04050607)
+                .addWriteU32(R1)
+                .addTransmitWithoutChecksum()
+                .generate()
+        var interpreter = runV6(program, testPacket)
+        assertContentEquals(byteArrayOf(0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x01, 0x02,
+                0x03, 0x04, 0x05, 0x06, 0x07), interpreter.getTransmittedPacket())
+
+        program = ApfV6Generator()
+                .addData(byteArrayOf(33, 34, 35))
+                .addAllocate(14)
+                .addDataCopy(2 /* src */, 2 /* len */)
+                .addDataCopy(4 /* src */, 1 /* len */)
+                .addPacketCopy(0 /* src */, 1 /* len */)
+                .addPacketCopy(1 /* src */, 3 /* len */)
+                .addLoadImmediate(R0, 2)
+                .addDataCopyFromR0(2 /* len */)
+                .addLoadImmediate(R0, 4)
+                .addLoadImmediate(R1, 1)
+                .addDataCopyFromR0LenR1()
+                .addLoadImmediate(R0, 0)
+                .addPacketCopyFromR0(1 /* len */)
+                .addLoadImmediate(R0, 1)
+                .addLoadImmediate(R1, 3)
+                .addPacketCopyFromR0LenR1()
+                .addTransmitWithoutChecksum()
+                .generate()
+        interpreter = runV6(program, testPacket)
+        assertContentEquals(byteArrayOf(33, 34, 35, 1, 2, 3, 4, 33, 34, 35, 1, 2, 3, 4),
+                interpreter.getTransmittedPacket())
+    }
+
+    @Test
+    fun testTransmitL4() {
+        val etherIpv4UdpPacket = intArrayOf(
+            0x01, 0x00, 0x5e, 0x00, 0x00, 0xfb,
+            0x38, 0xca, 0x84, 0xb7, 0x7f, 0x16,
+            0x08, 0x00, // end of ethernet header
+            0x45, 0x04, 0x00, 0x3f, 0x43, 0xcd, 0x40, 0x00, 0xff, 0x11,
+            0x00, 0x00, // ipv4 checksum set to 0
+            0xc0, 0xa8, 0x01, 0x03,
+            0xe0, 0x00, 0x00, 0xfb, // end of ipv4 header
+            0x14, 0xe9, 0x14, 0xe9, 0x00, 0x2b,
+            0x00, 0x2b, // end of udp header. udp checksum set to udp (header + payload) size
+            0x00, 0x00, 0x84, 0x00, 0x00, 0x00,
+            0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x01, 0x62, 0x05, 0x6c, 0x6f, 0x63, 0x61, 0x6c,
+            0x00, 0x00, 0x01, 0x80, 0x01, 0x00, 0x00, 0x00, 0x78, 0x00, 0x04, 0xc0, 0xa8, 0x01,
+            0x09,
+        ).map { it.toByte() }.toByteArray()
+        val program = ApfV6Generator()
+                .addData(etherIpv4UdpPacket)
+                .addAllocate(etherIpv4UdpPacket.size)
+                .addDataCopy(2 /* src */, etherIpv4UdpPacket.size /* len */)
+                .addTransmitL4(ETH_HLEN /* ipOfs */,
+                        ETH_HLEN + IPV4_HLEN + 6 /* csumOfs */,
+                        ETH_HLEN + IPV4_HLEN - 8 /* csumStart */,
+                        IPPROTO_UDP /* partialCsum */,
+                        true /* isUdp */)
+                .generate()
+        val interpreter = runV6(program, testPacket)
+        val txBuf = interpreter.getTransmittedPacket()
+        assertEquals(etherIpv4UdpPacket.size, txBuf.size)
+        assertEquals(0x9535, readU16(txBuf, ETH_HLEN + 10))
+        assertEquals(0xa73d, readU16(txBuf, ETH_HLEN + IPV4_HLEN + 6))
+    }
+
+    @Test
+    fun testDnsMatch() {
+        // needles = { A, B.LOCAL }
+        val needles = intArrayOf(
+            0x01, 'A'.code,
+            0x00,
+            0x01, 'B'.code,
+            0x05, 'L'.code, 'O'.code, 'C'.code, 'A'.code, 'L'.code,
+            0x00,
+            0x00
+        ).map { it.toByte() }.toByteArray()
+        val questions = intArrayOf(
+            0x00, 0x00, 0x00, 0x00, // tid = 0x00, flags = 0x00,
+            0x00, 0x02, // qdcount = 2
+            0x00, 0x00, // ancount = 0
+            0x00, 0x00, // nscount = 0
+            0x00, 0x00, // arcount = 0
+            0x01, 'a'.code,
+            0x01, 'b'.code,
+            0x05, 'l'.code, 'o'.code, 'c'.code, 'a'.code, 'l'.code,
+            0x00, // qname1 = a.b.local
+            0x00, 0x01, 0x00, 0x01, // type = A, class = 0x0001
+            0xc0, 0x0e, // qname2 = b.local (name compression)
+            0x00, 0x01, 0x00, 0x01 // type = A, class = 0x0001
+        ).map { it.toByte() }.toByteArray()
+        val answers = intArrayOf(
+            0x00, 0x00, 0x84, 0x00, // tid = 0x00, flags = 0x8400,
+            0x00, 0x00, // qdcount = 0
+            0x00, 0x02, // ancount = 2
+            0x00, 0x00, // nscount = 0
+            0x00, 0x00, // arcount = 0
+            0x01, 'a'.code,
+            0x01, 'b'.code,
+            0x05, 'l'.code, 'o'.code, 'c'.code, 'a'.code, 'l'.code,
+            0x00, // name1 = a.b.local
+            0x00, 0x01, 0x80, 0x01, // type = A, class = 0x8001
+            0x00, 0x00, 0x00, 0x78, // ttl = 120
+            0x00, 0x04, 0xc0, 0xa8, 0x01, 0x09, // rdlengh = 4, rdata = 192.168.1.9
+            0xc0, 0x0e, // name2 = b.local (name compression)
+            0x00, 0x01, 0x80, 0x01, // type = A, class = 0x8001
+            0x00, 0x00, 0x00, 0x78, // ttl = 120
+            0x00, 0x04, 0xc0, 0xa8, 0x01, 0x09 // rdlengh = 4, rdata = 192.168.1.9
+        ).map { it.toByte() }.toByteArray()
+
+        val containsQ = ApfV6Generator()
+                .addData(byteArrayOf())
+                .addLoadImmediate(R0, 0)
+                .addJumpIfPktAtR0ContainDnsQ(needles, 0x01 /* qtype */, DROP_LABEL)
+                .addPass()
+                .generate()
+        assertVerdict(DROP, MIN_APF_VERSION_IN_DEV, containsQ, questions)
+
+        val doesNotContainQ = ApfV6Generator()
+                .addData(byteArrayOf())
+                .addLoadImmediate(R0, 0)
+                .addJumpIfPktAtR0DoesNotContainDnsQ(needles, 0x01 /* qtype */, DROP_LABEL)
+                .addPass()
+                .generate()
+        assertVerdict(PASS, MIN_APF_VERSION_IN_DEV, doesNotContainQ, questions)
+
+        val containsA = ApfV6Generator()
+                .addData(byteArrayOf())
+                .addLoadImmediate(R0, 0)
+                .addJumpIfPktAtR0ContainDnsA(needles, DROP_LABEL)
+                .addPass()
+                .generate()
+        assertVerdict(DROP, MIN_APF_VERSION_IN_DEV, containsA, answers)
+        assertVerdict(PASS, MIN_APF_VERSION_IN_DEV, containsA, questions)
+
+        // A compression pointer pointing to itself is a corrupt packet.
+        val badQuestions = questions.copyOf()
+        badQuestions[28] = 0x1b
+        val interpreter = runV6(containsQ, badQuestions)
+        assertEquals(1L, interpreter.getCounterValue(Counter.CORRUPT_DNS_PACKET))
+
+        val containsQSafe = ApfV6Generator()
+                .addData(byteArrayOf())
+                .addLoadImmediate(R0, 0)
+                .addJumpIfPktAtR0ContainDnsQSafe(needles, 0x01 /* qtype */, DROP_LABEL)
+                .addPass()
+                .generate()
+        assertVerdict(DROP, MIN_APF_VERSION_IN_DEV, containsQ, badQuestions)
+        assertVerdict(PASS, MIN_APF_VERSION_IN_DEV, containsQSafe, badQuestions)
+    }
+
+    private fun readU16(buf: ByteArray, offset: Int): Int {
+        return ((buf[offset].toInt() and 0xff) shl 8) or (buf[offset + 1].toInt() and 0xff)
+    }
+
+    companion object {
+        const val RAM_SIZE = 2048
+        const val ETH_HLEN = 14
+        const val IPV4_HLEN = 20
+        const val IPPROTO_UDP = 17
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf
+
+import android.net.apf.BaseApfGenerator.APF_VERSION_4
+import android.net.apf.BaseApfGenerator.DROP_LABEL
+import android.net.apf.BaseApfGenerator.PASS_LABEL
+import android.net.apf.BaseApfGenerator.Register.R0
+import android.net.apf.BaseApfGenerator.Register.R1
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import java.util.Random
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for the peephole optimizer in BaseApfGenerator.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ApfOptimizerTest {
+
+    private fun newGenerator(optimize: Boolean) = ApfV4Generator(APF_VERSION_4).also {
+        it.setOptimizationEnabled(optimize)
+    }
+
+    @Test
+    fun testDisabledByDefault() {
+        val program = ApfV4Generator(APF_VERSION_4)
+                .addLoadImmediate(R0, 1)
+                .addLoadImmediate(R0, 1)
+                .generate()
+        assertEquals(4, program.size)
+    }
+
+    @Test
+    fun testJumpThreading() {
+        val optimized = newGenerator(true)
+                .addJumpIfR0Equals(1, "a")
+                .addLoadImmediate(R0, 2)
+                .defineLabel("a")
+                .addJump("b")
+                .addLoadImmediate(R0, 3)
+                .defineLabel("b")
+                .addJump(DROP_LABEL)
+                .generate()
+        val expected = newGenerator(false)
+                .addJumpIfR0Equals(1, DROP_LABEL)
+                .addLoadImmediate(R0, 2)
+                .addJump(DROP_LABEL)
+                .generate()
+        assertContentEquals(expected, optimized)
+    }
+
+    private fun addFarJumpChain(gen: ApfV4Generator) = gen
+            .addJumpIfR0Equals(1, "a")
+            .addJumpIfR0Equals(2, "skip")
+            .defineLabel("a")
+            .addJump("far")
+            .defineLabel("skip")
+            .also { for (i in 1..150) it.addLoadImmediate(R1, i) }
+            .defineLabel("far")
+            .addLoad8(R0, 1)
+
+    @Test
+    fun testJumpThreading_DoesNotGrowProgram() {
+        // Threading the first jump to "far" would need a 2-byte offset instead of a 1-byte one,
+        // so the jump is left alone.
+        val unoptimized = addFarJumpChain(newGenerator(false)).generate()
+        val optimized = addFarJumpChain(newGenerator(true)).generate()
+        assertTrue(optimized.size <= unoptimized.size)
+        assertContentEquals(unoptimized, optimized)
+
+        val unoptimizedFragment = addFarJumpChain(newGenerator(false)).generateFragment()
+        val optimizedFragment = addFarJumpChain(newGenerator(true)).generateFragment()
+        assertTrue(optimizedFragment.length() <= unoptimizedFragment.length())
+    }
+
+    @Test
+    fun testRemoveJumpsToNextInstruction() {
+        val optimized = newGenerator(true)
+                .addLoad16(R0, 12)
+                .addJumpIfR0Equals(0x800, "next")
+                .defineLabel("next")
+                .addJumpIfBytesAtR0NotEqual(byteArrayOf(1, 2), "end")
+                .defineLabel("end")
+                .addJump(PASS_LABEL)
+                .generate()
+        // JNEBS is kept because it checks that the bytes are within the packet.
+        val expected = newGenerator(false)
+                .addLoad16(R0, 12)
+                .addJumpIfBytesAtR0NotEqual(byteArrayOf(1, 2), PASS_LABEL)
+                .generate()
+        assertContentEquals(expected, optimized)
+    }
+
+    @Test
+    fun testRemoveRedundantLoads() {
+        val optimized = newGenerator(true)
+                .addLoadImmediate(R1, 5)
+                .addLoad16(R0, 12)
+                .addJumpIfR0Equals(0x800, DROP_LABEL)
+                .addLoadImmediate(R1, 5)
+                .addLoad16(R0, 12)
+                .addJumpIfR0Equals(0x806, DROP_LABEL)
+                // Reachable from elsewhere: the registers are unknown here.
+                .defineLabel("loop")
+                .addLoadImmediate(R1, 5)
+                .addSwap()
+                .addLoadImmediate(R0, 5)
+                .addAdd(1)
+                .addLoadImmediate(R0, 5)
+                .addJump("loop")
+                .generate()
+        val expected = newGenerator(false)
+                .addLoadImmediate(R1, 5)
+                .addLoad16(R0, 12)
+                .addJumpIfR0Equals(0x800, DROP_LABEL)
+                .addJumpIfR0Equals(0x806, DROP_LABEL)
+                .defineLabel("loop")
+                .addLoadImmediate(R1, 5)
+                .addSwap()
+                .addAdd(1)
+                .addLoadImmediate(R0, 5)
+                .addJump("loop")
+                .generate()
+        assertContentEquals(expected, optimized)
+    }
+
+    @Test
+    fun testRemoveUnreachableInstructions() {
+        val optimized = newGenerator(true)
+                .addJumpIfR0Equals(1, "skip")
+                .addJump(DROP_LABEL)
+                .addLoad8(R0, 1)
+                .defineLabel("unused")
+                .addLoad8(R0, 2)
+                .defineLabel("skip")
+                .addLoad8(R0, 3)
+                .addPass()
+                .addLoad8(R0, 4)
+                .generate()
+        val expected = newGenerator(false)
+                .addJumpIfR0Equals(1, "skip")
+                .addJump(DROP_LABEL)
+                .defineLabel("skip")
+                .addLoad8(R0, 3)
+                .addPass()
+                .generate()
+        assertContentEquals(expected, optimized)
+    }
+
+    @Test
+    fun testRegionsArePreserved() {
+        val gen = newGenerator(true)
+                .defineRegion("first")
+                .addLoad8(R0, 1)
+                .addJump(DROP_LABEL)
+                .addLoad8(R0, 2)
+                .defineRegion("second")
+                .addLoad8(R0, 3)
+        val program = gen.generate()
+        assertEquals(listOf("first", "second"), gen.getRegionNames())
+        assertEquals(listOf(0, program.size), gen.getRegionOffsets().toList())
+    }
+
+    @Test
+    fun testOptimizedDnsFilterBehavesIdentically() {
+        val names = arrayOf("_googlecast", "_tcp", "local")
+        fun buildProgram(optimize: Boolean): ByteArray {
+            val gen = newGenerator(optimize)
+            gen.addLoadFromMemory(R1, BaseApfGenerator.IPV4_HEADER_SIZE_MEMORY_SLOT)
+            DnsUtils.generateFilter(gen, names)
+            return gen.generate()
+        }
+        val unoptimized = ApfInterpreter(APF_VERSION_4, RAM_SIZE)
+        unoptimized.loadProgram(buildProgram(false))
+        val optimized = ApfInterpreter(APF_VERSION_4, RAM_SIZE)
+        val program = buildProgram(true)
+        optimized.loadProgram(program)
+        assertTrue(program.size <= unoptimized.getProgramLength())
+
+        val random = Random(42)
+        val qnames = listOf("_googlecast._tcp.local", "_airplay._tcp.local", "a.b")
+        repeat(1000) {
+            val packet = makeMdnsPacket(random, qnames)
+            assertEquals(unoptimized.run(packet, 0), optimized.run(packet, 0))
+            assertTrue(optimized.getInstructionCount() <= unoptimized.getInstructionCount())
+        }
+    }
+
+    private fun makeMdnsPacket(random: Random, qnames: List<String>): ByteArray {
+        val qdcount = 1 + random.nextInt(2)
+        val packet = ArrayList<Byte>()
+        val header = ByteArray(ETH_HLEN + IPV4_HLEN + UDP_HLEN + DNS_HLEN)
+        header[ETH_HLEN] = 0x45
+        header[ETH_HLEN + IPV4_HLEN + UDP_HLEN + 5] = qdcount.toByte()
+        packet.addAll(header.toList())
+        repeat(qdcount) {
+            for (label in qnames[random.nextInt(qnames.size)].split(".")) {
+                packet.add(label.length.toByte())
+                packet.addAll(label.toByteArray().toList())
+            }
+            // Terminating zero, qtype PTR, qclass IN.
+            packet.addAll(byteArrayOf(0, 0, 12, 0, 1).toList())
+        }
+        return packet.toByteArray()
+    }
+
+    companion object {
+        const val RAM_SIZE = 4096
+        const val ETH_HLEN = 14
+        const val IPV4_HLEN = 20
+        const val UDP_HLEN = 8
+        const val DNS_HLEN = 12
+    }
+}
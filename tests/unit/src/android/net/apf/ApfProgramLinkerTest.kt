@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf
+
+import android.net.apf.BaseApfGenerator.APF_VERSION_4
+import android.net.apf.BaseApfGenerator.DROP_LABEL
+import android.net.apf.BaseApfGenerator.IllegalInstructionException
+import android.net.apf.BaseApfGenerator.PASS_LABEL
+import android.net.apf.BaseApfGenerator.Register.R0
+import android.net.apf.BaseApfGenerator.Register.R1
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import java.util.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for linking APF program fragments.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ApfProgramLinkerTest {
+
+    private fun emitPrologue(gen: ApfV4Generator) {
+        gen.defineRegion("prologue")
+                .addLoad16(R0, 12)
+                .addJumpIfR0Equals(0x0806, "countAndDrop")
+                .addJumpIfR0NotEquals(0x86dd, "countAndPass")
+                .addLoad8(R0, 20)
+                .addJumpIfR0NotEquals(58, PASS_LABEL)
+    }
+
+    // Similar to an RA filter: drops packets of a given length and content, as long as the
+    // filter age is not above the lifetime.
+    private fun emitFilter(gen: ApfV4Generator, n: Int, lifetime: Int?) {
+        val next = "filter$n"
+        gen.defineRegion("filter")
+                .addLoadFromMemory(R0, BaseApfGenerator.PACKET_SIZE_MEMORY_SLOT)
+                .addJumpIfR0NotEquals(60 + n, next)
+                .addLoadFromMemory(R0, BaseApfGenerator.FILTER_AGE_MEMORY_SLOT)
+                .addJumpIfR0GreaterThan((lifetime ?: 0).toLong(), next)
+        if (lifetime == null) gen.markLastImmediateAsParameter(LIFETIME)
+        gen.addLoadImmediate(R0, 30)
+                .addJumpIfBytesAtR0NotEqual(byteArrayOf(n.toByte(), 2, 3), next)
+                .addJump("countAndDrop")
+                .defineLabel(next)
+    }
+
+    private fun emitEpilogue(gen: ApfV4Generator) {
+        gen.defineRegion("epilogue")
+                .addLoadImmediate(R1, -8)
+                .defineLabel("countAndPass")
+                .addLoadData(R0, 0)
+                .addAdd(1)
+                .addStoreData(R0, 0)
+                .addJump(PASS_LABEL)
+                .defineLabel("countAndDrop")
+                .addLoadData(R0, 0)
+                .addAdd(1)
+                .addStoreData(R0, 0)
+                .addJump(DROP_LABEL)
+    }
+
+    private fun fragment(emit: (ApfV4Generator) -> Unit): ApfProgramFragment {
+        val gen = ApfV4Generator(APF_VERSION_4)
+        gen.setOptimizationEnabled(true)
+        emit(gen)
+        return gen.generateFragment()
+    }
+
+    @Test
+    fun testLinkedProgramBehavesLikeGeneratedProgram() {
+        val prologue = fragment { emitPrologue(it) }
+        val filters = (0 until 3).map { n -> fragment { emitFilter(it, n, null) } }
+        val epilogue = fragment { emitEpilogue(it) }
+        val random = Random(42)
+
+        // The same fragments are linked with different parameters, as ApfFilter does every time
+        // it installs a program.
+        for (lifetime in listOf(0, 5, 300, 65535)) {
+            val linker = ApfProgramLinker().add(prologue)
+            filters.forEach {
+                it.setParameter(LIFETIME, lifetime)
+                linker.add(it)
+            }
+            linker.add(epilogue)
+            val linked = linker.link()
+            assertEquals(linker.length(), linked.size)
+
+            val gen = ApfV4Generator(APF_VERSION_4)
+            emitPrologue(gen)
+            for (n in 0 until 3) emitFilter(gen, n, lifetime)
+            emitEpilogue(gen)
+            val expected = ApfInterpreter(APF_VERSION_4, RAM_SIZE)
+            expected.loadProgram(gen.generate())
+            val actual = ApfInterpreter(APF_VERSION_4, RAM_SIZE)
+            actual.loadProgram(linked)
+
+            repeat(2000) {
+                val packet = ByteArray(60 + random.nextInt(4)).also { random.nextBytes(it) }
+                if (random.nextInt(4) > 0) {
+                    packet[12] = 0x86.toByte()
+                    packet[13] = 0xdd.toByte()
+                }
+                if (random.nextInt(4) > 0) packet[20] = 58
+                if (random.nextBoolean()) {
+                    packet[30] = random.nextInt(3).toByte()
+                    packet[31] = 2
+                    packet[32] = 3
+                }
+                val age = random.nextInt(400)
+                assertEquals(expected.run(packet, packet.size, age),
+                        actual.run(packet, packet.size, age))
+            }
+        }
+    }
+
+    @Test
+    fun testRegions() {
+        val prologue = fragment { emitPrologue(it) }
+        val filter = fragment { emitFilter(it, 0, null) }
+        val epilogue = fragment { emitEpilogue(it) }
+        val linker = ApfProgramLinker().add(prologue).add(filter).add(epilogue)
+        assertFailsWith<IllegalStateException> { linker.getRegionOffsets() }
+        linker.link()
+        assertEquals(listOf("prologue", "filter", "epilogue"), linker.getRegionNames())
+        assertEquals(listOf(0, prologue.length(), prologue.length() + filter.length()),
+                linker.getRegionOffsets().toList())
+    }
+
+    @Test
+    fun testUndefinedLabel() {
+        val gen = ApfV4Generator(APF_VERSION_4).addJump("nowhere")
+        assertFailsWith<IllegalInstructionException> {
+            ApfProgramLinker().add(gen.generateFragment()).link()
+        }
+        // Outside of fragments, undefined labels are still an error at generation time.
+        assertFailsWith<IllegalInstructionException> {
+            ApfV4Generator(APF_VERSION_4).addJump("nowhere").generate()
+        }
+    }
+
+    @Test
+    fun testDuplicateLabel() {
+        val first = fragment { it.defineLabel("label").addLoad8(R0, 0) }
+        val second = fragment { it.defineLabel("label").addLoad8(R0, 1) }
+        assertFailsWith<IllegalInstructionException> {
+            ApfProgramLinker().add(first).add(second).link()
+        }
+    }
+
+    @Test
+    fun testParameters() {
+        val frag = fragment {
+            it.addJumpIfR0GreaterThan(0, PASS_LABEL).markLastImmediateAsParameter(LIFETIME)
+        }
+        assertFailsWith<IllegalArgumentException> { frag.setParameter("unknown", 1) }
+        assertFailsWith<IllegalArgumentException> { frag.setParameter(LIFETIME, 65536) }
+        // NEG has no immediate other than its extended opcode.
+        assertFailsWith<IllegalStateException> {
+            ApfV4Generator(APF_VERSION_4).addNeg(R0).markLastImmediateAsParameter("neg")
+        }
+    }
+
+    companion object {
+        const val RAM_SIZE = 2048
+        const val LIFETIME = "lifetime"
+    }
+}
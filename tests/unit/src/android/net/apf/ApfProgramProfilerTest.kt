@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf
+
+import android.net.apf.ApfInterpreter.DROP
+import android.net.apf.ApfInterpreter.PASS
+import android.net.apf.BaseApfGenerator.APF_VERSION_4
+import android.net.apf.BaseApfGenerator.DROP_LABEL
+import android.net.apf.BaseApfGenerator.PASS_LABEL
+import android.net.apf.BaseApfGenerator.Register.R0
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import com.android.internal.util.IndentingPrintWriter
+import java.io.StringWriter
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for APF program profiling.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ApfProgramProfilerTest {
+
+    private val arpPacket = ByteArray(60).also { it[12] = 0x08; it[13] = 0x06 }
+    private val ipv4Packet = ByteArray(60).also { it[12] = 0x08; it[13] = 0x00 }
+
+    // Instructions executed, by region:
+    //   ARP packets: ethertype: 2 (ldh, jne), arp: 3 (li, add, jmp)
+    //   Other packets: ethertype: 2 (ldh, jne), then 1 more (jmp) after the arp region.
+    private fun generateProgram(): ApfV4Generator {
+        val gen = ApfV4Generator(APF_VERSION_4)
+        gen.defineRegion("ethertype")
+                .addLoad16(R0, 12)
+                .addJumpIfR0NotEquals(0x0806, "skip_arp")
+                .defineRegion("arp")
+                .addLoadImmediate(R0, 1)
+                .addAdd(1)
+                .addJump(DROP_LABEL)
+                .defineLabel("skip_arp")
+                .defineRegion("ethertype")
+                .addJump(PASS_LABEL)
+        return gen
+    }
+
+    @Test
+    fun testRegionOffsets() {
+        val gen = generateProgram()
+        assertFailsWith<IllegalStateException> { gen.getRegionOffsets() }
+        val program = gen.generate()
+        assertEquals(listOf("ethertype", "arp", "ethertype"), gen.getRegionNames())
+        val offsets = gen.getRegionOffsets()
+        assertEquals(3, offsets.size)
+        assertEquals(0, offsets[0])
+        assertTrue(offsets[1] < offsets[2])
+        assertTrue(offsets[2] < program.size)
+    }
+
+    @Test
+    fun testRegionsDoNotChangeBytecode() {
+        val program = generateProgram().generate()
+        val unprofiled = ApfV4Generator(APF_VERSION_4)
+                .addLoad16(R0, 12)
+                .addJumpIfR0NotEquals(0x0806, "skip_arp")
+                .addLoadImmediate(R0, 1)
+                .addAdd(1)
+                .addJump(DROP_LABEL)
+                .defineLabel("skip_arp")
+                .addJump(PASS_LABEL)
+                .generate()
+        assertContentEquals(unprofiled, program)
+    }
+
+    @Test
+    fun testInstructionsPerRegionAndPacketType() {
+        val gen = generateProgram()
+        val program = gen.generate()
+        val profiler = ApfProgramProfiler(APF_VERSION_4, RAM_SIZE, program,
+                gen.getRegionNames(), gen.getRegionOffsets())
+
+        assertEquals(DROP, profiler.profile("ARP", arpPacket))
+        assertEquals(DROP, profiler.profile("ARP", arpPacket))
+        assertEquals(PASS, profiler.profile("IPv4", ipv4Packet))
+
+        assertEquals(listOf("ethertype", "arp"), profiler.getRegions())
+        assertEquals(2, profiler.getPacketCount("ARP"))
+        assertEquals(1, profiler.getPacketCount("IPv4"))
+        assertEquals(0, profiler.getPacketCount("IPv6"))
+
+        assertEquals(4L, profiler.getInstructionCount("ARP", "ethertype"))
+        assertEquals(6L, profiler.getInstructionCount("ARP", "arp"))
+        assertEquals(3L, profiler.getInstructionCount("IPv4", "ethertype"))
+        assertEquals(0L, profiler.getInstructionCount("IPv4", "arp"))
+        assertEquals(7L, profiler.getInstructionCount("ethertype"))
+        assertEquals(6L, profiler.getInstructionCount("arp"))
+        assertEquals(13L, profiler.getTotalInstructionCount())
+    }
+
+    @Test
+    fun testUnnamedRegion() {
+        val gen = ApfV4Generator(APF_VERSION_4)
+                .addLoad16(R0, 12)
+                .defineRegion("rest")
+                .addJump(DROP_LABEL)
+        val program = gen.generate()
+        val profiler = ApfProgramProfiler(APF_VERSION_4, RAM_SIZE, program,
+                gen.getRegionNames(), gen.getRegionOffsets())
+        profiler.profile("IPv4", ipv4Packet)
+        assertEquals(1L, profiler.getInstructionCount(ApfProgramProfiler.UNNAMED_REGION))
+        assertEquals(1L, profiler.getInstructionCount("rest"))
+    }
+
+    @Test
+    fun testDump() {
+        val gen = generateProgram()
+        val program = gen.generate()
+        val profiler = ApfProgramProfiler(APF_VERSION_4, RAM_SIZE, program,
+                gen.getRegionNames(), gen.getRegionOffsets())
+        val sw = StringWriter()
+        profiler.dump(IndentingPrintWriter(sw, "  "))
+        assertTrue(sw.toString().contains("No packets profiled."))
+
+        profiler.profile("ARP", arpPacket)
+        val sw2 = StringWriter()
+        profiler.dump(IndentingPrintWriter(sw2, "  "))
+        val out = sw2.toString()
+        assertTrue(out.contains("ARP: 1 packets (0 passed, 1 dropped)"), out)
+        assertTrue(out.contains("arp: 3 (60.0%)"), out)
+    }
+
+    companion object {
+        const val RAM_SIZE = 1024
+    }
+}
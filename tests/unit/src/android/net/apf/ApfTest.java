@@ -45,9 +45,12 @@ import static com.android.net.module.util.NetworkStackConstants.ICMPV6_ECHO_REQU
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -126,6 +129,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Tests for APF program generator and interpreter.
@@ -163,6 +168,8 @@ public class ApfTest {
         doReturn(mPowerManager).when(mContext).getSystemService(PowerManager.class);
         doReturn(mApfSessionInfoMetrics).when(mDependencies).getApfSessionInfoMetrics();
         doReturn(mIpClientRaInfoMetrics).when(mDependencies).getIpClientRaInfoMetrics();
+        doReturn(RaReceiver.getInstance()).when(mDependencies).getRaReceiver();
+        doCallRealMethod().when(mDependencies).makeInstallHandler(any());
     }
 
     private static final String TAG = "ApfTest";
@@ -1481,6 +1488,34 @@ public class ApfTest {
         apfFilter.shutdown();
     }
 
+    @Test
+    public void testApfFilterMdnsSharedSuffixes() throws Exception {
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
+        final ApfConfiguration config = getDefaultConfig();
+        config.multicastFilter = DROP_MULTICAST;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics);
+        for (String name : new String[] {"googlecast.tcp.local", "airplay.tcp.local",
+                "printer.local", "local", "googlecast.tcp.local.extra"}) {
+            apfFilter.addToMdnsAllowList(name.split("[.]"));
+        }
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+
+        for (String name : new String[] {"googlecast.tcp.local", "airplay.tcp.local",
+                "printer.local", "local", "googlecast.tcp.local.extra"}) {
+            assertPass(program, makeMdnsV4Packet(name));
+            assertPass(program, makeMdnsV6Packet(name));
+        }
+        // Names that share labels with allowed names, but are not allowed.
+        for (String name : new String[] {"other.tcp.local", "airplay.udp.local", "airplay.tcp",
+                "printer.locale", "airplay.tcp.local.extra", "googlecast.tcp.local.other"}) {
+            assertDrop(program, makeMdnsV4Packet(name));
+            assertDrop(program, makeMdnsV6Packet(name));
+        }
+
+        apfFilter.shutdown();
+    }
+
     private ApfV4Generator generateDnsFilter(boolean ipv6, String... labels) throws Exception {
         ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
         gen.addLoadImmediate(R1, ipv6 ? IPV6_HEADER_LEN : IPV4_HEADER_LEN);
@@ -1551,6 +1586,47 @@ public class ApfTest {
         doTestDnsParsing(false, ipv6, "otherservice.tcp.local", pkt);
     }
 
+    private void doTestDnsParsingMultipleNames(boolean expectPass, List<String> filterNames,
+            byte[] pkt) throws Exception {
+        final List<String[]> names = new ArrayList<>();
+        for (String name : filterNames) names.add(name.split(/*regex=*/ "[.]"));
+        final ApfV4Generator gen = new ApfV4Generator(MIN_APF_VERSION);
+        gen.addLoadImmediate(R1, IPV6_HEADER_LEN);
+        DnsUtils.generateFilter(gen, names);
+
+        // Hack to prevent the APF instruction limit triggering.
+        for (int i = 0; i < 500; i++) {
+            gen.addNop();
+        }
+
+        final byte[] program = gen.generate();
+        if (expectPass) {
+            assertPass(program, pkt, 0);
+        } else {
+            assertDrop(program, pkt, 0);
+        }
+    }
+
+    @Test
+    public void testDnsParsingMultipleNames() throws Exception {
+        final List<String> names = Arrays.asList("googlecast.tcp.local", "airplay.tcp.local",
+                "printer.local");
+        doTestDnsParsingMultipleNames(true, names, makeMdnsV6Packet("googlecast.tcp.local"));
+        doTestDnsParsingMultipleNames(true, names, makeMdnsV6Packet("airplay.tcp.local"));
+        doTestDnsParsingMultipleNames(true, names, makeMdnsV6Packet("printer.local"));
+        doTestDnsParsingMultipleNames(false, names, makeMdnsV6Packet("other.tcp.local"));
+        doTestDnsParsingMultipleNames(false, names, makeMdnsV6Packet("airplay.udp.local"));
+        doTestDnsParsingMultipleNames(false, names, makeMdnsV6Packet("printer.locale"));
+        doTestDnsParsingMultipleNames(true, names,
+                makeMdnsV6Packet("developer.android.com", "airplay.tcp.local"));
+
+        final byte[] pkt = makeMdnsCompressedV6Packet();
+        doTestDnsParsingMultipleNames(true,
+                Arrays.asList("otherservice.tcp.local", "matter.tcp.local"), pkt);
+        doTestDnsParsingMultipleNames(false,
+                Arrays.asList("otherservice.tcp.local", "thirdservice.tcp.local"), pkt);
+    }
+
     private void doTestDnsParsingProgramLength(int expectedLength,
             String filterName) throws Exception {
         final String[] labels = filterName.split(/*regex=*/ "[.]");
@@ -2482,6 +2558,33 @@ public class ApfTest {
         assertEquals(expected, ra.toString());
     }
 
+    @Test
+    public void testRaParserReuse() throws Exception {
+        MockIpClientCallback cb = new MockIpClientCallback();
+        ApfConfiguration config = getDefaultConfig();
+        TestApfFilter apfFilter = new TestApfFilter(mContext, config, cb, mNetworkQuirkMetrics);
+
+        final byte[] largeRa = buildLargeRa();
+        final byte[] smallRa = new RaPacketBuilder(1800 /* router lft */)
+                .addPioOption(600, 300, "2001:db8:a::/64").build();
+        final String largeRaString = apfFilter.new Ra(largeRa, largeRa.length).toString();
+        final String smallRaString = apfFilter.new Ra(smallRa, smallRa.length).toString();
+
+        // The parser reads RAs in place from a buffer that is larger than the RA, like the
+        // receive buffer, and keeps no state from one RA to the next.
+        final ApfFilter.RaParser parser = apfFilter.new RaParser();
+        final byte[] buffer = new byte[1514];
+        for (byte[] packet : new byte[][] { largeRa, smallRa, largeRa }) {
+            Arrays.fill(buffer, (byte) 0xff);
+            System.arraycopy(packet, 0, buffer, 0, packet.length);
+            parser.parse(buffer, packet.length);
+            final ApfFilter.Ra ra = apfFilter.new Ra(parser);
+            assertEquals(packet == largeRa ? largeRaString : smallRaString, ra.toString());
+            assertEquals(ApfFilter.Ra.MatchType.MATCH_DROP, ra.matches(parser));
+        }
+        apfFilter.shutdown();
+    }
+
     // Verify that the last program pushed to the IpClient.Callback properly filters the
     // given packet for the given lifetime.
     private void verifyRaLifetime(byte[] program, ByteBuffer packet, int lifetime) {
@@ -3203,6 +3306,63 @@ public class ApfTest {
         verifyInstallPacketFilterFailure(true /* isLegacy */);
     }
 
+    @Test
+    public void testCoalescedProgramInstalls() throws Exception {
+        final AtomicInteger installs = new AtomicInteger();
+        final AtomicReference<Thread> installThread = new AtomicReference<>();
+        final MockIpClientCallback ipClientCallback = new MockIpClientCallback() {
+            @Override
+            public boolean installPacketFilter(byte[] filter) {
+                installs.incrementAndGet();
+                installThread.set(Thread.currentThread());
+                return super.installPacketFilter(filter);
+            }
+        };
+        final ApfConfiguration config = getDefaultConfig();
+        config.installCoalescingWindowMs = 200;
+        final TestApfFilter apfFilter = new TestApfFilter(mContext, config, ipClientCallback,
+                mNetworkQuirkMetrics, mDependencies);
+        ipClientCallback.assertProgramUpdateAndGet();
+        assertEquals(1, installs.get());
+        // Installs do not run on the RA receiver thread shared by all interfaces.
+        assertNotEquals(RaReceiver.getInstance().getHandler().getLooper().getThread(),
+                installThread.get());
+
+        final LinkProperties lp = new LinkProperties();
+        lp.addLinkAddress(new LinkAddress(InetAddress.getByAddress(MOCK_IPV4_ADDR), 19));
+        // Changes requested while holding the lock cannot be installed in between, so they are
+        // all merged into one install at the end of the window.
+        ipClientCallback.resetApfProgramWait();
+        synchronized (apfFilter) {
+            apfFilter.setLinkProperties(lp);
+            apfFilter.setMulticastFilter(DROP_MULTICAST);
+            apfFilter.setDozeMode(true);
+        }
+        final byte[] program = ipClientCallback.assertProgramUpdateAndGet();
+        assertEquals(2, installs.get());
+
+        // The merged program reflects all the changes.
+        final MockIpClientCallback expectedCallback = new MockIpClientCallback();
+        final TestApfFilter expectedFilter = new TestApfFilter(mContext, getDefaultConfig(),
+                expectedCallback, mNetworkQuirkMetrics, mDependencies);
+        expectedFilter.setLinkProperties(lp);
+        expectedFilter.setMulticastFilter(DROP_MULTICAST);
+        expectedFilter.setDozeMode(true);
+        assertProgramEquals(expectedCallback.assertProgramUpdateAndGet(), program);
+        expectedFilter.shutdown();
+
+        // Changes that cancel out produce the installed program again, which is not reinstalled.
+        ipClientCallback.resetApfProgramWait();
+        synchronized (apfFilter) {
+            apfFilter.setMulticastFilter(ALLOW_MULTICAST);
+            apfFilter.setMulticastFilter(DROP_MULTICAST);
+        }
+        ipClientCallback.assertNoProgramUpdate();
+        assertEquals(2, installs.get());
+
+        apfFilter.shutdown();
+    }
+
     private void verifyApfProgramOverSize(boolean isLegacy) throws Exception {
         final MockIpClientCallback ipClientCallback = new MockIpClientCallback();
         final ApfConfiguration config = getDefaultConfig();
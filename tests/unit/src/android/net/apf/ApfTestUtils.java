@@ -17,6 +17,7 @@ package android.net.apf;
 
 import static android.net.apf.ApfJniUtils.apfSimulate;
 import static android.system.OsConstants.AF_UNIX;
+import static android.system.OsConstants.SOCK_NONBLOCK;
 import static android.system.OsConstants.SOCK_STREAM;
 
 import static org.junit.Assert.assertEquals;
@@ -335,7 +336,7 @@ public class ApfTestUtils {
          */
         public void pretendPacketReceived(byte[] packet) throws IOException, ErrnoException {
             mMockIpClientCb.resetApfProgramWait();
-            // ApfFilter's ReceiveThread will be waiting to read this.
+            // ApfFilter's RA receiver will be waiting to read this.
             Os.write(mWriteSocket, packet, 0, packet.length);
         }
 
@@ -360,24 +361,19 @@ public class ApfTestUtils {
             FileDescriptor readSocket = new FileDescriptor();
             mWriteSocket = new FileDescriptor();
             try {
-                Os.socketpair(AF_UNIX, SOCK_STREAM, 0, mWriteSocket, readSocket);
+                Os.socketpair(AF_UNIX, SOCK_STREAM | SOCK_NONBLOCK, 0, mWriteSocket, readSocket);
             } catch (ErrnoException e) {
                 fail();
                 return;
             }
-            // Now pass readSocket to ReceiveThread as if it was setup to read raw RAs.
+            // Now pass readSocket to the RA receiver as if it was setup to read raw RAs.
             // This allows us to pretend RA packets have been received via pretendPacketReceived().
-            mReceiveThread = new ReceiveThread(readSocket);
-            mReceiveThread.start();
+            startReceivingRas(readSocket);
         }
 
         @Override
         public synchronized void shutdown() {
             super.shutdown();
-            if (mReceiveThread != null) {
-                mReceiveThread.halt();
-                mReceiveThread = null;
-            }
             IoUtils.closeQuietly(mWriteSocket);
         }
 
@@ -443,7 +439,7 @@ public class ApfTestUtils {
          */
         public void pretendPacketReceived(byte[] packet) throws IOException, ErrnoException {
             mMockIpClientCb.resetApfProgramWait();
-            // ApfFilter's ReceiveThread will be waiting to read this.
+            // ApfFilter's RA receiver will be waiting to read this.
             Os.write(mWriteSocket, packet, 0, packet.length);
         }
 
@@ -456,24 +452,19 @@ public class ApfTestUtils {
             FileDescriptor readSocket = new FileDescriptor();
             mWriteSocket = new FileDescriptor();
             try {
-                Os.socketpair(AF_UNIX, SOCK_STREAM, 0, mWriteSocket, readSocket);
+                Os.socketpair(AF_UNIX, SOCK_STREAM | SOCK_NONBLOCK, 0, mWriteSocket, readSocket);
             } catch (ErrnoException e) {
                 fail();
                 return;
             }
-            // Now pass readSocket to ReceiveThread as if it was setup to read raw RAs.
+            // Now pass readSocket to the RA receiver as if it was setup to read raw RAs.
             // This allows us to pretend RA packets have been received via pretendPacketReceived().
-            mReceiveThread = new ReceiveThread(readSocket);
-            mReceiveThread.start();
+            startReceivingRas(readSocket);
         }
 
         @Override
         public synchronized void shutdown() {
             super.shutdown();
-            if (mReceiveThread != null) {
-                mReceiveThread.halt();
-                mReceiveThread = null;
-            }
             IoUtils.closeQuietly(mWriteSocket);
         }
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf
+
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for DnsNameTrie.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DnsNameTrieTest {
+    private fun names(vararg names: String) = names.map { it.split(".").toTypedArray() }
+
+    private fun DnsNameTrie.Node.follow(name: String): DnsNameTrie.Node {
+        var node = this
+        for (label in name.split(".")) node = node.getChild(label)
+        return node
+    }
+
+    @Test
+    fun testSharedSuffixes() {
+        val trie = DnsNameTrie(names("_googlecast._tcp.local", "_airplay._tcp.local",
+                "printer.local"), false /* matchPrefixes */)
+        val root = trie.root
+        assertEquals(listOf("_googlecast", "_airplay", "printer"), root.labels)
+        // "_tcp.local" is matched by a single node.
+        assertSame(root.getChild("_googlecast"), root.getChild("_airplay"))
+        assertEquals(2, root.getChild("_googlecast").inDegree)
+        // "local" is matched by a single node, whichever label precedes it.
+        assertSame(root.follow("_googlecast._tcp"), root.getChild("printer"))
+        assertEquals(2, root.getChild("printer").inDegree)
+        val end = root.follow("_googlecast._tcp.local")
+        assertSame(end, root.follow("printer.local"))
+        assertTrue(end.isTerminal)
+        assertTrue(end.labels.isEmpty())
+        // root, after _googlecast or _airplay, after _tcp or printer, end.
+        assertEquals(4, trie.nodes.size)
+    }
+
+    @Test
+    fun testTopologicalOrder() {
+        val trie = DnsNameTrie(names("a.b.c", "x.b.c", "b.c", "y.c", "c"),
+                false /* matchPrefixes */)
+        assertSame(trie.root, trie.nodes[0])
+        trie.nodes.forEachIndexed { i, node ->
+            assertEquals(i, node.index)
+            for (label in node.labels) assertTrue(node.getChild(label).index > i)
+        }
+    }
+
+    @Test
+    fun testTerminalNodeWithChildren() {
+        val trie = DnsNameTrie(names("a.local", "a.local.b"), false /* matchPrefixes */)
+        val node = trie.root.follow("a.local")
+        assertTrue(node.isTerminal)
+        assertEquals(listOf("b"), node.labels)
+        assertFalse(trie.root.follow("a").isTerminal)
+    }
+
+    @Test
+    fun testMatchPrefixes() {
+        val trie = DnsNameTrie(names("a.local.b", "a.local"), true /* matchPrefixes */)
+        val node = trie.root.follow("a.local")
+        assertTrue(node.isTerminal)
+        assertTrue(node.labels.isEmpty())
+    }
+
+    @Test
+    fun testDuplicateNames() {
+        val trie = DnsNameTrie(names("a.local", "a.local"), false /* matchPrefixes */)
+        assertEquals(3, trie.nodes.size)
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf
+
+import android.net.apf.RaFilterPacker.Strategy.LRU
+import android.net.apf.RaFilterPacker.Strategy.VALUE
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import kotlin.test.assertContentEquals
+import kotlin.test.assertFailsWith
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for RaFilterPacker.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class RaFilterPackerTest {
+
+    @Test
+    fun testLruStopsAtFirstOverflow() {
+        // The third filter would fit, but LRU stops at the second one.
+        assertContentEquals(booleanArrayOf(true, false, false),
+                RaFilterPacker.pack(LRU, intArrayOf(50, 100, 20),
+                        doubleArrayOf(1.0, 9.0, 1.0), 120))
+        assertContentEquals(booleanArrayOf(true, true),
+                RaFilterPacker.pack(LRU, intArrayOf(50, 50), doubleArrayOf(0.0, 0.0), 100))
+    }
+
+    @Test
+    fun testValuePrefersDenseFilters() {
+        // Two small filters for frequent RAs are worth more than one large filter.
+        assertContentEquals(booleanArrayOf(false, true, true),
+                RaFilterPacker.pack(VALUE, intArrayOf(100, 50, 50),
+                        doubleArrayOf(3.0, 2.0, 2.0), 100))
+        // A filter that does not fit is skipped, and the next ones are still considered.
+        assertContentEquals(booleanArrayOf(true, false, true),
+                RaFilterPacker.pack(VALUE, intArrayOf(50, 100, 20),
+                        doubleArrayOf(1.0, 9.0, 1.0), 90))
+    }
+
+    @Test
+    fun testValueFallsBackToBestSingleFilter() {
+        // The small filter is denser, but the large one alone is worth more.
+        assertContentEquals(booleanArrayOf(false, true),
+                RaFilterPacker.pack(VALUE, intArrayOf(10, 100), doubleArrayOf(5.0, 40.0), 100))
+    }
+
+    @Test
+    fun testEmptyAndOversized() {
+        assertContentEquals(booleanArrayOf(),
+                RaFilterPacker.pack(VALUE, intArrayOf(), doubleArrayOf(), 100))
+        assertContentEquals(booleanArrayOf(false),
+                RaFilterPacker.pack(VALUE, intArrayOf(200), doubleArrayOf(5.0), 100))
+        assertContentEquals(booleanArrayOf(false),
+                RaFilterPacker.pack(LRU, intArrayOf(200), doubleArrayOf(5.0), 100))
+    }
+
+    @Test
+    fun testMismatchedLengths() {
+        assertFailsWith<IllegalArgumentException> {
+            RaFilterPacker.pack(VALUE, intArrayOf(1, 2), doubleArrayOf(1.0), 100)
+        }
+    }
+}
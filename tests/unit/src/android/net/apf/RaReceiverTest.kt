@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.system.Os
+import android.system.OsConstants.AF_UNIX
+import android.system.OsConstants.SOCK_NONBLOCK
+import android.system.OsConstants.SOCK_SEQPACKET
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import com.android.net.module.util.SocketUtils
+import com.android.testutils.waitForIdle
+import java.io.FileDescriptor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for RaReceiver.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class RaReceiverTest {
+    private val thread = HandlerThread(RaReceiverTest::class.java.simpleName)
+    private lateinit var handler: Handler
+    private lateinit var receiver: RaReceiver
+    private val writeSockets = ArrayList<FileDescriptor>()
+
+    @Before
+    fun setUp() {
+        thread.start()
+        handler = Handler(thread.looper)
+        receiver = RaReceiver(handler)
+    }
+
+    @After
+    fun tearDown() {
+        writeSockets.forEach { SocketUtils.closeSocketQuietly(it) }
+        thread.quitSafely()
+        thread.join()
+    }
+
+    // Returns the read end of a socket pair, and keeps the write end in writeSockets.
+    private fun makeSocketPair(): FileDescriptor {
+        val readSocket = FileDescriptor()
+        val writeSocket = FileDescriptor()
+        Os.socketpair(AF_UNIX, SOCK_SEQPACKET or SOCK_NONBLOCK, 0, writeSocket, readSocket)
+        writeSockets.add(writeSocket)
+        return readSocket
+    }
+
+    private fun register(
+        socket: FileDescriptor,
+        name: String,
+        received: LinkedBlockingQueue<String>
+    ) = receiver.register(socket) { packet, length ->
+        received.add(name + ":" + String(packet, 0, length))
+    }
+
+    @Test
+    fun testDispatchesToOwningCallback() {
+        val received = LinkedBlockingQueue<String>()
+        val wlan = makeSocketPair()
+        val eth = makeSocketPair()
+        register(wlan, "wlan0", received)
+        register(eth, "eth0", received)
+        handler.waitForIdle(TIMEOUT_MS)
+
+        Os.write(writeSockets[0], "ra1".toByteArray(), 0, 3)
+        assertEquals("wlan0:ra1", received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        Os.write(writeSockets[1], "ra2".toByteArray(), 0, 3)
+        assertEquals("eth0:ra2", received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+
+        // Packets queued on a socket are all read when it becomes readable, in order.
+        Os.write(writeSockets[0], "ra3".toByteArray(), 0, 3)
+        Os.write(writeSockets[0], "ra4".toByteArray(), 0, 3)
+        assertEquals("wlan0:ra3", received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        assertEquals("wlan0:ra4", received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+    }
+
+    @Test
+    fun testSharedBuffer() {
+        // Pairs of the buffer passed to the callback and the packet it contained.
+        val received = LinkedBlockingQueue<Pair<ByteArray, ByteArray>>()
+        repeat(2) {
+            receiver.register(makeSocketPair()) { packet, length ->
+                received.add(Pair(packet, packet.copyOf(length)))
+            }
+        }
+        handler.waitForIdle(TIMEOUT_MS)
+        Os.write(writeSockets[0], byteArrayOf(0), 0, 1)
+        val first = received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        Os.write(writeSockets[1], byteArrayOf(1, 2), 0, 2)
+        val second = received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        assertNotNull(first)
+        assertNotNull(second)
+        assertContentEquals(byteArrayOf(0), first.second)
+        assertContentEquals(byteArrayOf(1, 2), second.second)
+        assertTrue(first.first === second.first)
+    }
+
+    @Test
+    fun testCancel() {
+        val received = LinkedBlockingQueue<String>()
+        val socket = makeSocketPair()
+        val registration = register(socket, "wlan0", received)
+        handler.waitForIdle(TIMEOUT_MS)
+        registration.cancel()
+        // Cancelling again is a no-op.
+        registration.cancel()
+        handler.waitForIdle(TIMEOUT_MS)
+        assertFalse(socket.valid())
+    }
+
+    @Test
+    fun testCancelBeforeStart() {
+        val received = LinkedBlockingQueue<String>()
+        val socket = makeSocketPair()
+        // Registering and cancelling from the receiver thread cancels before the reader starts.
+        handler.post { register(socket, "wlan0", received).cancel() }
+        handler.waitForIdle(TIMEOUT_MS)
+        assertFalse(socket.valid())
+    }
+
+    companion object {
+        const val TIMEOUT_MS = 1000L
+    }
+}
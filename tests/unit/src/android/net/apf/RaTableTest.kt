@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net.apf
+
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Tests for RaTable.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class RaTableTest {
+
+    @Test
+    fun testMostRecentlyUsedOrder() {
+        val table = RaTable<String>()
+        table.addFirst("a", 1, 100)
+        table.addFirst("b", 2, 100)
+        table.addLast("c", 3, 100)
+        assertEquals(listOf("b", "a", "c"), table.toList())
+
+        table.replace("a", "a2", 1, 100)
+        assertEquals(listOf("a2", "b", "c"), table.toList())
+        assertFalse(table.contains("a"))
+
+        // Updating an RA in place moves it to the front.
+        table.replace("c", "c", 3, 200)
+        assertEquals(listOf("c", "a2", "b"), table.toList())
+
+        assertEquals("b", table.removeLast())
+        assertEquals(listOf("c", "a2"), table.toList())
+        assertEquals(2, table.size())
+
+        table.clear()
+        assertEquals(0, table.size())
+        assertNull(table.removeLast())
+    }
+
+    @Test
+    fun testFind() {
+        val table = RaTable<String>()
+        table.addFirst("a", 1, 100)
+        table.addFirst("b", 1, 100)
+        table.addFirst("c", 2, 100)
+
+        // Only RAs with the same fingerprint are considered.
+        assertEquals("a", table.find(1) { it == "a" })
+        assertEquals("b", table.find(1) { it == "b" })
+        assertNull(table.find(1) { it == "c" })
+        assertNull(table.find(3) { true })
+
+        assertTrue(table.remove("b"))
+        assertFalse(table.remove("b"))
+        assertNull(table.find(1) { it == "b" })
+        assertEquals("a", table.find(1) { it == "a" })
+    }
+
+    @Test
+    fun testRemoveExpired() {
+        val table = RaTable<String>()
+        table.addFirst("a", 1, 30)
+        table.addFirst("b", 2, 10)
+        table.addFirst("c", 3, 20)
+        table.addFirst("d", 4, 10)
+
+        assertEquals(listOf<String>(), table.removeExpired(9))
+        assertEquals(listOf("b", "d"), table.removeExpired(10))
+        assertEquals(listOf("c", "a"), table.toList())
+
+        // Replacing an RA updates its expiry.
+        table.replace("c", "c", 3, 40)
+        assertEquals(listOf("a"), table.removeExpired(35))
+        assertEquals(listOf("c"), table.toList())
+        assertNull(table.find(1) { true })
+    }
+
+    @Test
+    fun testManyFingerprints() {
+        val table = RaTable<Int>()
+        // Enough RAs to grow the table several times, with fingerprints that only differ in
+        // their high bits.
+        for (i in 0 until 100) table.addLast(i, i shl 20, 100)
+        for (i in 0 until 100) {
+            assertEquals(i, table.find(i shl 20) { true })
+        }
+        assertNull(table.find(0) { it != 0 })
+        assertEquals((0 until 100).toList(), table.toList())
+        assertTrue(table.removeExpired(99).isEmpty())
+        assertEquals(100, table.removeExpired(100).size)
+        assertEquals(0, table.size())
+    }
+
+    @Test
+    fun testDuplicateRa() {
+        val table = RaTable<String>()
+        table.addFirst("a", 1, 100)
+        assertFailsWith<IllegalArgumentException> { table.addLast("a", 2, 100) }
+    }
+
+    @Test
+    fun testModificationDuringIteration() {
+        val table = RaTable<String>()
+        table.addFirst("a", 1, 100)
+        table.addFirst("b", 2, 100)
+        assertFailsWith<ConcurrentModificationException> {
+            for (ra in table) table.remove(ra)
+        }
+    }
+}
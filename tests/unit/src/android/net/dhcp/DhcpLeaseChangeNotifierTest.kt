@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp
+
+import android.net.InetAddresses.parseNumericAddress
+import android.net.IpPrefix
+import android.net.MacAddress
+import android.net.dhcp.DhcpLeaseChangeNotifier.VERSION_ADDED_LEASES_DELTA
+import android.os.Handler
+import android.os.HandlerThread
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import com.android.net.module.util.Inet4AddressUtils.intToInet4AddressHTH
+import com.android.net.module.util.SharedLog
+import com.android.testutils.waitForIdle
+import java.net.Inet4Address
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val TIMEOUT_MS = 1000L
+
+/**
+ * Tests for DhcpLeaseChangeNotifier.
+ */
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DhcpLeaseChangeNotifierTest {
+    companion object {
+        private val TEST_ADDR_1 = parseNumericAddress("192.168.42.10") as Inet4Address
+        private val TEST_ADDR_2 = parseNumericAddress("192.168.42.11") as Inet4Address
+        private val TEST_HWADDR_1 = MacAddress.fromString("01:23:45:67:89:ab")
+        private val TEST_HWADDR_2 = MacAddress.fromString("01:23:45:67:89:ac")
+    }
+
+    private data class Delta(
+        val added: Set<DhcpLease>,
+        val removed: Set<DhcpLease>,
+        val renewed: Set<DhcpLease>
+    )
+
+    private class TestCallbacks(private val version: Int) : IDhcpEventCallbacks.Stub() {
+        val fullLists = LinkedBlockingQueue<Set<DhcpLease>>()
+        val deltas = LinkedBlockingQueue<Delta>()
+
+        override fun onLeasesChanged(newLeases: List<DhcpLeaseParcelable>) {
+            fullLists.add(newLeases.map(::fromParcelable).toSet())
+        }
+
+        override fun onLeasesChangedDelta(
+            addedLeases: List<DhcpLeaseParcelable>,
+            removedLeases: List<DhcpLeaseParcelable>,
+            renewedLeases: List<DhcpLeaseParcelable>
+        ) {
+            deltas.add(Delta(addedLeases.map(::fromParcelable).toSet(),
+                    removedLeases.map(::fromParcelable).toSet(),
+                    renewedLeases.map(::fromParcelable).toSet()))
+        }
+
+        override fun onNewPrefixRequest(currentPrefix: IpPrefix) {}
+        override fun getInterfaceVersion() = version
+        override fun getInterfaceHash() = HASH
+    }
+
+    private val leases = HashMap<Inet4Address, DhcpLease>()
+    private val notifier = DhcpLeaseChangeNotifier(leases,
+            SharedLog(DhcpLeaseChangeNotifierTest::class.java.simpleName))
+    private val thread = HandlerThread(DhcpLeaseChangeNotifierTest::class.java.simpleName)
+
+    @After
+    fun tearDown() {
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun lease(addr: Inet4Address, hwAddr: MacAddress, expTime: Long) =
+            DhcpLease(null, hwAddr, addr, 24, expTime, null)
+
+    private fun commit(lease: DhcpLease, notify: Boolean = true) {
+        notifier.onLeaseChanged(lease.netAddr, leases.put(lease.netAddr, lease))
+        if (notify) notifier.notifyChanged()
+    }
+
+    private fun remove(addr: Inet4Address, notify: Boolean = true) {
+        notifier.onLeaseChanged(addr, leases.remove(addr))
+        if (notify) notifier.notifyChanged()
+    }
+
+    @Test
+    fun testLegacyCallbacks() {
+        val cb = TestCallbacks(VERSION_ADDED_LEASES_DELTA - 1)
+        notifier.addCallbacks(cb)
+        val lease1 = lease(TEST_ADDR_1, TEST_HWADDR_1, 1000L)
+        val lease2 = lease(TEST_ADDR_2, TEST_HWADDR_2, 1000L)
+        commit(lease1)
+        commit(lease2)
+        remove(TEST_ADDR_1)
+
+        assertEquals(setOf(lease1), cb.fullLists.poll())
+        assertEquals(setOf(lease1, lease2), cb.fullLists.poll())
+        assertEquals(setOf(lease2), cb.fullLists.poll())
+        assertNull(cb.fullLists.poll())
+        assertNull(cb.deltas.poll())
+    }
+
+    @Test
+    fun testDeltaCallbacks() {
+        val lease1 = lease(TEST_ADDR_1, TEST_HWADDR_1, 1000L)
+        commit(lease1)
+        val cb = TestCallbacks(VERSION_ADDED_LEASES_DELTA)
+        notifier.addCallbacks(cb)
+        // Existing leases are reported when registering
+        assertEquals(Delta(setOf(lease1), setOf(), setOf()), cb.deltas.poll())
+
+        val renewed = lease1.renewedLease(2000L, "hostname")
+        commit(renewed)
+        assertEquals(Delta(setOf(), setOf(), setOf(renewed)), cb.deltas.poll())
+
+        // The address is reassigned to another client
+        val lease2 = lease(TEST_ADDR_1, TEST_HWADDR_2, 3000L)
+        commit(lease2)
+        assertEquals(Delta(setOf(lease2), setOf(renewed), setOf()), cb.deltas.poll())
+
+        // Expiration is reported with the next notification
+        remove(TEST_ADDR_1, notify = false)
+        val lease3 = lease(TEST_ADDR_2, TEST_HWADDR_1, 3000L)
+        commit(lease3)
+        assertEquals(Delta(setOf(lease3), setOf(lease2), setOf()), cb.deltas.poll())
+
+        // Changes that cancel out are not reported
+        remove(TEST_ADDR_2, notify = false)
+        commit(lease3)
+        assertNull(cb.deltas.poll())
+        assertNull(cb.fullLists.poll())
+    }
+
+    @Test
+    fun testExpiration() {
+        val legacyCb = TestCallbacks(VERSION_ADDED_LEASES_DELTA - 1)
+        val deltaCb = TestCallbacks(VERSION_ADDED_LEASES_DELTA)
+        val lease1 = lease(TEST_ADDR_1, TEST_HWADDR_1, 1000L)
+        commit(lease1, notify = false)
+        notifier.addCallbacks(legacyCb)
+        notifier.addCallbacks(deltaCb)
+        assertEquals(Delta(setOf(lease1), setOf(), setOf()), deltaCb.deltas.poll())
+
+        // Only delta callbacks are notified of expirations
+        remove(TEST_ADDR_1, notify = false)
+        notifier.notifyExpired()
+        assertEquals(Delta(setOf(), setOf(lease1), setOf()), deltaCb.deltas.poll())
+        assertNull(legacyCb.fullLists.poll())
+        assertNull(deltaCb.deltas.poll())
+    }
+
+    @Test
+    fun testBatching() {
+        thread.start()
+        val handler = Handler(thread.looper)
+        val legacyCb = TestCallbacks(VERSION_ADDED_LEASES_DELTA - 1)
+        val deltaCb = TestCallbacks(VERSION_ADDED_LEASES_DELTA)
+        val lease1 = lease(TEST_ADDR_1, TEST_HWADDR_1, 1000L)
+        val lease2 = lease(TEST_ADDR_2, TEST_HWADDR_2, 1000L)
+        handler.post {
+            notifier.setBatching(handler, 50L)
+            notifier.addCallbacks(legacyCb)
+            notifier.addCallbacks(deltaCb)
+            commit(lease1)
+            commit(lease2)
+            commit(lease1.renewedLease(2000L, null))
+        }
+
+        // All changes are reported in a single notification
+        val renewed = lease1.renewedLease(2000L, null)
+        assertEquals(setOf(renewed, lease2),
+                legacyCb.fullLists.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        assertEquals(Delta(setOf(renewed, lease2), setOf(), setOf()),
+                deltaCb.deltas.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+
+        // flush() sends the pending notification immediately
+        handler.post {
+            notifier.setBatching(handler, 10_000L)
+            remove(TEST_ADDR_2)
+            notifier.flush()
+        }
+        handler.waitForIdle(TIMEOUT_MS)
+        assertEquals(setOf(renewed), legacyCb.fullLists.poll())
+        assertEquals(Delta(setOf(), setOf(lease2), setOf()), deltaCb.deltas.poll())
+        assertNull(legacyCb.fullLists.poll())
+        assertNull(deltaCb.deltas.poll())
+    }
+}
+
+private fun fromParcelable(p: DhcpLeaseParcelable) = DhcpLease(p.clientId,
+        MacAddress.fromBytes(p.hwAddr), intToInet4AddressHTH(p.netAddr), p.prefixLength,
+        p.expTime, p.hostname)
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp
+
+import android.net.InetAddresses.parseNumericAddress
+import android.net.IpPrefix
+import android.net.MacAddress
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import com.android.net.module.util.SharedLog
+import java.io.File
+import java.io.RandomAccessFile
+import java.net.Inet4Address
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DhcpLeaseJournalTest {
+    companion object {
+        private const val TEST_BOOT_ID = "4b6c3a1e-1d5c-4f3e-9a5e-0123456789ab"
+        private val TEST_PREFIX = IpPrefix("192.168.42.0/24")
+        private val TEST_HWADDR_1 = MacAddress.fromString("01:23:45:67:89:ab")
+        private val TEST_HWADDR_2 = MacAddress.fromString("01:23:45:67:89:ac")
+        private val TEST_CLIENT_ID = byteArrayOf(0, 1, 2, 127)
+    }
+
+    private lateinit var file: File
+    private val log = SharedLog(DhcpLeaseJournalTest::class.java.simpleName)
+
+    @Before
+    fun setUp() {
+        file = File.createTempFile("dhcp_leases", null)
+        file.delete()
+    }
+
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+
+    private fun addr(addr: String) = parseNumericAddress(addr) as Inet4Address
+
+    private fun lease(addr: String, hwAddr: MacAddress, expTime: Long, clientId: ByteArray? = null,
+                      hostname: String? = null) =
+            DhcpLease(clientId, hwAddr, addr(addr), TEST_PREFIX.prefixLength, expTime, hostname)
+
+    private fun makeJournal(bootId: String = TEST_BOOT_ID) = DhcpLeaseJournal(file, bootId, log)
+
+    @Test
+    fun testRestore_NoJournal() {
+        assertEquals(emptyList(), makeJournal().restore(TEST_PREFIX))
+    }
+
+    @Test
+    fun testRestore() {
+        val lease1 = lease("192.168.42.10", TEST_HWADDR_1, 1000L, TEST_CLIENT_ID, "host1")
+        val lease2 = lease("192.168.42.11", TEST_HWADDR_2, 2000L)
+        val journal = makeJournal()
+        journal.reset(TEST_PREFIX, listOf(lease1))
+        journal.onLeaseCommitted(lease2)
+        val renewed = lease1.renewedLease(3000L, null)
+        journal.onLeaseCommitted(renewed)
+        journal.onLeaseRemoved(lease2.netAddr)
+        // Journal is not closed, as if the process had crashed.
+
+        assertEquals(listOf(renewed), makeJournal().restore(TEST_PREFIX))
+    }
+
+    @Test
+    fun testRestore_OtherBootOrPrefix() {
+        val journal = makeJournal()
+        journal.reset(TEST_PREFIX, listOf(lease("192.168.42.10", TEST_HWADDR_1, 1000L)))
+        journal.close()
+
+        assertEquals(emptyList(), makeJournal("other_boot").restore(TEST_PREFIX))
+        assertEquals(emptyList(), makeJournal().restore(IpPrefix("192.168.43.0/24")))
+        assertEquals(1, makeJournal().restore(TEST_PREFIX).size)
+    }
+
+    @Test
+    fun testRestore_TornRecord() {
+        val lease1 = lease("192.168.42.10", TEST_HWADDR_1, 1000L)
+        val journal = makeJournal()
+        journal.reset(TEST_PREFIX, listOf(lease1))
+        val endOfFirstRecord = firstZeroLengthOffset()
+        journal.onLeaseCommitted(lease("192.168.42.11", TEST_HWADDR_2, 2000L))
+        journal.close()
+
+        // Corrupt the last byte of the second record payload
+        RandomAccessFile(file, "rw").use {
+            val pos = firstZeroLengthOffset() - 5L
+            it.seek(pos)
+            it.write(it.readByte().toInt() xor 0xff)
+        }
+        assertTrue(endOfFirstRecord < firstZeroLengthOffset())
+        assertEquals(listOf(lease1), makeJournal().restore(TEST_PREFIX))
+    }
+
+    @Test
+    fun testCompaction() {
+        val journal = makeJournal()
+        journal.reset(TEST_PREFIX, emptyList())
+        val lease = lease("192.168.42.10", TEST_HWADDR_1, 0L, TEST_CLIENT_ID, "host")
+        // Renew the same lease enough times to fill the journal several times over
+        var expTime = 0L
+        while (expTime < 10 * DhcpLeaseJournal.JOURNAL_SIZE / 20) {
+            expTime++
+            journal.onLeaseCommitted(lease.renewedLease(expTime, null))
+        }
+
+        assertEquals(DhcpLeaseJournal.JOURNAL_SIZE.toLong(), file.length())
+        assertEquals(listOf(lease.renewedLease(expTime, null)),
+                makeJournal().restore(TEST_PREFIX))
+    }
+
+    /**
+     * Find the offset of the first record with length zero, which marks the end of the journal.
+     */
+    private fun firstZeroLengthOffset(): Int {
+        val bytes = file.readBytes()
+        // Magic, version, boot ID and prefix.
+        var pos = 4 + 4 + 1 + TEST_BOOT_ID.length + 4 + 1
+        while (true) {
+            val length = ((bytes[pos].toInt() and 0xff) shl 8) or (bytes[pos + 1].toInt() and 0xff)
+            if (length == 0) return pos
+            pos += 2 + length + 4
+        }
+    }
+}
@@ -32,7 +32,9 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
@@ -165,8 +167,11 @@ public class DhcpLeaseRepositoryTest {
                 null /* clientAddr */, DEFAULT_TARGET_PREFIX_LENGTH);
 
         // /28 should have 16 addresses, 14 w/o the first/last, 11 w/o excluded addresses
+        assertEquals(11, mRepo.getNumAvailableAddresses());
         requestAddresses((byte) 11);
         verify(mCallbacks, times(11)).onLeasesChanged(any());
+        assertEquals(11, mRepo.getNumCommittedLeases());
+        assertEquals(0, mRepo.getNumAvailableAddresses());
 
         try {
             mRepo.getOffer(null, TEST_MAC_2,
@@ -178,6 +183,34 @@ public class DhcpLeaseRepositoryTest {
         verifyNoMoreInteractions(mCallbacks);
     }
 
+    @SuppressLint("NewApi")
+    @Test
+    public void testAddressExhaustion_FreedAddressesOffered() throws Exception {
+        mRepo.updateParams(new IpPrefix(TEST_SERVER_ADDR, 28), TEST_EXCL_SET, TEST_LEASE_TIME_MS,
+                null /* clientAddr */, DEFAULT_TARGET_PREFIX_LENGTH);
+        final Set<Inet4Address> addrs = requestAddresses((byte) 11);
+
+        // Release one address and decline another: only the released one can be offered.
+        final Inet4Address[] leased = addrs.toArray(new Inet4Address[0]);
+        final byte[] hwAddrBytes = new byte[] { 8, 4, 3, 2, 1, 0 };
+        for (byte i = 0; i < 11; i++) {
+            hwAddrBytes[5] = i;
+            final MacAddress mac = MacAddress.fromBytes(hwAddrBytes);
+            if (mRepo.releaseLease(CLIENTID_UNSPEC, mac, leased[0])) continue;
+            mRepo.markAndReleaseDeclinedLease(CLIENTID_UNSPEC, mac, leased[1]);
+        }
+        assertDeclined(leased[1]);
+        final DhcpLease offer = mRepo.getOffer(CLIENTID_UNSPEC, TEST_MAC_2,
+                IPV4_ADDR_ANY /* relayAddr */, INETADDR_UNSPEC /* reqAddr */, HOSTNAME_NONE);
+        assertEquals(leased[0], offer.getNetAddr());
+        requestLeaseSelecting(TEST_MAC_2, offer.getNetAddr());
+
+        // The declined address is only offered once no other address is left.
+        final DhcpLease offer2 = mRepo.getOffer(CLIENTID_UNSPEC, TEST_MAC_3,
+                IPV4_ADDR_ANY /* relayAddr */, INETADDR_UNSPEC /* reqAddr */, HOSTNAME_NONE);
+        assertEquals(leased[1], offer2.getNetAddr());
+    }
+
     @SuppressLint("NewApi")
     @Test
     public void testUpdateParams_LeaseCleanup() throws Exception {
@@ -292,6 +325,49 @@ public class DhcpLeaseRepositoryTest {
         assertEquals(TEST_MAC_1, offer.getHwAddr());
     }
 
+    @Test
+    public void testGetOffer_HwAddrLeaseDoesNotMatchClientId() throws Exception {
+        requestLeaseSelecting(TEST_MAC_1, TEST_INETADDR_1, TEST_HOSTNAME_1);
+
+        // Same MAC, but the client now sends a client ID
+        final DhcpLease offer = mRepo.getOffer(new byte[] { 1, 2 }, TEST_MAC_1,
+                IPV4_ADDR_ANY /* relayAddr */, INETADDR_UNSPEC /* reqAddr */, HOSTNAME_NONE);
+        assertNotEquals(TEST_INETADDR_1, offer.getNetAddr());
+        assertEquals(HOSTNAME_NONE, offer.getHostname());
+    }
+
+    @Test
+    public void testGetOffer_ExistingLeaseManyClients() throws Exception {
+        final Set<Inet4Address> addrs = requestAddresses((byte) 100);
+        byte[] hwAddrBytes = new byte[] { 8, 4, 3, 2, 1, 0 };
+        for (byte i = 0; i < 100; i++) {
+            hwAddrBytes[5] = i;
+            final DhcpLease offer = mRepo.getOffer(CLIENTID_UNSPEC,
+                    MacAddress.fromBytes(hwAddrBytes), IPV4_ADDR_ANY /* relayAddr */,
+                    INETADDR_UNSPEC /* reqAddr */, HOSTNAME_NONE);
+            // Each client is offered its existing lease
+            assertEquals("host_" + i, offer.getHostname());
+            assertTrue(addrs.remove(offer.getNetAddr()));
+        }
+    }
+
+    @Test
+    public void testGetOffer_ExpiredLeaseNotFound() throws Exception {
+        requestLeaseSelecting(TEST_MAC_1, TEST_INETADDR_1);
+        mRepo.requestLease(new byte[] { 1, 2 }, TEST_MAC_2, IPV4_ADDR_ANY /* clientAddr */,
+                IPV4_ADDR_ANY /* relayAddr */, TEST_INETADDR_2 /* reqAddr */, true /* sidSet */,
+                HOSTNAME_NONE);
+
+        when(mClock.elapsedRealtime()).thenReturn(TEST_TIME + TEST_LEASE_TIME_MS);
+        // The clients do not have a lease anymore, so they are offered the requested addresses
+        final DhcpLease offer1 = mRepo.getOffer(CLIENTID_UNSPEC, TEST_MAC_1,
+                IPV4_ADDR_ANY /* relayAddr */, TEST_INETADDR_2 /* reqAddr */, HOSTNAME_NONE);
+        assertEquals(TEST_INETADDR_2, offer1.getNetAddr());
+        final DhcpLease offer2 = mRepo.getOffer(new byte[] { 1, 2 }, TEST_MAC_2,
+                IPV4_ADDR_ANY /* relayAddr */, TEST_INETADDR_1 /* reqAddr */, HOSTNAME_NONE);
+        assertEquals(TEST_INETADDR_1, offer2.getNetAddr());
+    }
+
     @Test
     public void testGetOffer_RequestedAddress() throws Exception {
         DhcpLease offer = mRepo.getOffer(CLIENTID_UNSPEC, TEST_MAC_1, IPV4_ADDR_ANY /* relayAddr */,
@@ -516,6 +592,17 @@ public class DhcpLeaseRepositoryTest {
         assertEquals(TEST_INETADDR_1, lease2.getNetAddr());
     }
 
+    @Test
+    public void testReleaseLease_ClientLeaseNotFound() throws Exception {
+        requestLeaseSelecting(TEST_MAC_1, TEST_INETADDR_1);
+        assertTrue(mRepo.releaseLease(CLIENTID_UNSPEC, TEST_MAC_1, TEST_INETADDR_1));
+
+        // The released lease is not renewed when the client asks for another address
+        final DhcpLease offer = mRepo.getOffer(CLIENTID_UNSPEC, TEST_MAC_1,
+                IPV4_ADDR_ANY /* relayAddr */, TEST_INETADDR_2 /* reqAddr */, HOSTNAME_NONE);
+        assertEquals(TEST_INETADDR_2, offer.getNetAddr());
+    }
+
     @Test
     public void testReleaseLease_UnknownLease() {
         assertFalse(mRepo.releaseLease(CLIENTID_UNSPEC, TEST_MAC_1, TEST_INETADDR_1));
@@ -537,6 +624,86 @@ public class DhcpLeaseRepositoryTest {
         }
     }
 
+    @Test
+    public void testExpireLeases() throws Exception {
+        assertEquals(DhcpLease.EXPIRATION_NEVER, mRepo.getNextExpirationTime());
+        final DhcpLease lease = requestLeaseSelecting(TEST_MAC_1, TEST_INETADDR_1);
+        verifyLeasesChangedCallback(lease);
+        when(mClock.elapsedRealtime()).thenReturn(TEST_TIME + 10);
+        mRepo.markLeaseDeclined(TEST_INETADDR_2);
+        assertEquals(TEST_TIME + TEST_LEASE_TIME_MS, mRepo.getNextExpirationTime());
+
+        // Nothing expired yet
+        mRepo.expireLeases();
+        assertHasLease(lease);
+
+        when(mClock.elapsedRealtime()).thenReturn(TEST_TIME + TEST_LEASE_TIME_MS);
+        mRepo.expireLeases();
+        // Legacy callbacks are not notified of expirations
+        verifyLeasesChangedCallback(0 /* times */);
+        assertEquals(TEST_TIME + 10 + TEST_LEASE_TIME_MS, mRepo.getNextExpirationTime());
+        assertDeclined(TEST_INETADDR_2);
+
+        when(mClock.elapsedRealtime()).thenReturn(TEST_TIME + 10 + TEST_LEASE_TIME_MS);
+        mRepo.expireLeases();
+        assertNotDeclined(TEST_INETADDR_2);
+        assertEquals(DhcpLease.EXPIRATION_NEVER, mRepo.getNextExpirationTime());
+    }
+
+    @Test
+    public void testExpireLeases_RenewedAndReleasedLeases() throws Exception {
+        final DhcpLease lease1 = requestLeaseSelecting(TEST_MAC_1, TEST_INETADDR_1);
+        requestLeaseSelecting(TEST_MAC_2, TEST_INETADDR_2);
+        assertTrue(mRepo.releaseLease(CLIENTID_UNSPEC, TEST_MAC_2, TEST_INETADDR_2));
+
+        when(mClock.elapsedRealtime()).thenReturn(TEST_TIME + 1000);
+        final DhcpLease renewed = requestLeaseRenewing(TEST_MAC_1, TEST_INETADDR_1);
+        assertEquals(TEST_TIME + 1000 + TEST_LEASE_TIME_MS, renewed.getExpTime());
+        // The expiration of the original lease, and of the released lease, are no longer relevant
+        assertEquals(renewed.getExpTime(), mRepo.getNextExpirationTime());
+
+        when(mClock.elapsedRealtime()).thenReturn(lease1.getExpTime());
+        mRepo.expireLeases();
+        assertHasLease(renewed);
+    }
+
+    @Test
+    public void testSetLeaseJournal() throws Exception {
+        final DhcpLease inUse = requestLeaseSelecting(TEST_MAC_1, TEST_INETADDR_1);
+        final DhcpLease restored = new DhcpLease(CLIENTID_UNSPEC, TEST_MAC_2, TEST_INETADDR_2,
+                TEST_IP_PREFIX.getPrefixLength(), TEST_TIME + 1000, TEST_HOSTNAME_2);
+        final DhcpLease expired = new DhcpLease(CLIENTID_UNSPEC, TEST_MAC_3,
+                parseAddr4("192.168.42.250"), TEST_IP_PREFIX.getPrefixLength(), TEST_TIME,
+                HOSTNAME_NONE);
+        final DhcpLease conflicting = new DhcpLease(CLIENTID_UNSPEC, TEST_MAC_3, TEST_INETADDR_1,
+                TEST_IP_PREFIX.getPrefixLength(), TEST_TIME + 1000, HOSTNAME_NONE);
+        final DhcpLease reserved = new DhcpLease(CLIENTID_UNSPEC, TEST_MAC_3, TEST_RESERVED_ADDR,
+                TEST_IP_PREFIX.getPrefixLength(), TEST_TIME + 1000, HOSTNAME_NONE);
+        final DhcpLeaseJournal journal = mock(DhcpLeaseJournal.class);
+        when(journal.restore(TEST_IP_PREFIX)).thenReturn(
+                Arrays.asList(restored, expired, conflicting, reserved));
+
+        mRepo.setLeaseJournal(journal);
+        assertHasLease(restored);
+        assertEquals(2, mRepo.getCommittedLeases().size());
+        verifyLeasesChangedCallback(inUse, restored);
+        verify(journal).reset(eq(TEST_IP_PREFIX), argThat(leases -> leases.size() == 2
+                && leases.contains(inUse) && leases.contains(restored)));
+
+        // The client of the restored lease is ACKed on its first INIT-REBOOT request
+        final DhcpLease renewed = requestLeaseInitReboot(TEST_MAC_2, TEST_INETADDR_2);
+        assertEquals(TEST_INETADDR_2, renewed.getNetAddr());
+        verify(journal).onLeaseCommitted(renewed);
+
+        assertTrue(mRepo.releaseLease(CLIENTID_UNSPEC, TEST_MAC_2, TEST_INETADDR_2));
+        verify(journal).onLeaseRemoved(TEST_INETADDR_2);
+
+        mRepo.closeLeaseJournal();
+        verify(journal).close();
+        requestLeaseSelecting(TEST_MAC_2, TEST_INETADDR_2);
+        verify(journal, times(1)).onLeaseCommitted(any());
+    }
+
     @Test
     public void testMarkLeaseDeclined() throws Exception {
         final DhcpLease lease = mRepo.getOffer(CLIENTID_UNSPEC, TEST_MAC_1,
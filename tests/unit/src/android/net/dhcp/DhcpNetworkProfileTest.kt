@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp
+
+import android.net.InetAddresses.parseNumericAddress
+import android.net.dhcp.DhcpNetworkProfile.FLAG_INIT_REBOOT_FAILED
+import android.net.dhcp.DhcpNetworkProfile.FLAG_RAPID_COMMIT
+import android.net.dhcp.DhcpPacket.DHCP_LEASE_TIME
+import android.net.dhcp.DhcpPacket.DHCP_MESSAGE_TYPE
+import android.net.dhcp.DhcpPacket.DHCP_ROUTER
+import android.net.dhcp.DhcpPacket.DHCP_SERVER_IDENTIFIER
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import java.net.Inet4Address
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DhcpNetworkProfileTest {
+    companion object {
+        private val SERVER_ID = parseNumericAddress("192.168.1.1") as Inet4Address
+        private val OTHER_SERVER_ID = parseNumericAddress("192.168.1.2") as Inet4Address
+        private val OPTION_TYPES = byteArrayOf(DHCP_MESSAGE_TYPE, DHCP_SERVER_IDENTIFIER,
+                DHCP_LEASE_TIME, DHCP_ROUTER)
+    }
+
+    private fun makeRttEstimate() = DhcpRttEstimator().apply { addSample(40) }.toBytes()
+
+    @Test
+    fun testSerialization() {
+        val profile = DhcpNetworkProfile(SERVER_ID, OPTION_TYPES, makeRttEstimate(),
+                FLAG_RAPID_COMMIT or FLAG_INIT_REBOOT_FAILED)
+        val restored = DhcpNetworkProfile.fromBytes(profile.toBytes())
+
+        assertEquals(profile, restored)
+        assertEquals(SERVER_ID, restored!!.serverId)
+        assertContentEquals(makeRttEstimate(), restored.rttEstimate)
+        assertTrue(restored.hasFlag(FLAG_RAPID_COMMIT))
+        assertTrue(restored.hasFlag(FLAG_INIT_REBOOT_FAILED))
+        assertFalse(restored.hasFlag(DhcpNetworkProfile.FLAG_INIT_REBOOT_ACKED))
+    }
+
+    @Test
+    fun testSerialization_EmptyProfile() {
+        val profile = DhcpNetworkProfile(null /* serverId */, null /* ackOptionTypes */,
+                null /* rttEstimate */, 0 /* flags */)
+        val restored = DhcpNetworkProfile.fromBytes(profile.toBytes())
+
+        assertEquals(profile, restored)
+        assertNull(restored!!.serverId)
+        assertNull(restored.rttEstimate)
+        assertEquals(0, restored.flags)
+    }
+
+    @Test
+    fun testFromBytes_InvalidData() {
+        val bytes = DhcpNetworkProfile(SERVER_ID, OPTION_TYPES, makeRttEstimate(), 0).toBytes()
+
+        assertNull(DhcpNetworkProfile.fromBytes(null))
+        assertNull(DhcpNetworkProfile.fromBytes(byteArrayOf()))
+        assertNull(DhcpNetworkProfile.fromBytes(bytes.copyOf(bytes.size - 1)))
+        assertNull(DhcpNetworkProfile.fromBytes(bytes + byteArrayOf(0)))
+        // Unknown version
+        assertNull(DhcpNetworkProfile.fromBytes(bytes.copyOf().also { it[0] = 2 }))
+    }
+
+    @Test
+    fun testIsSameServerConfiguration() {
+        val profile = DhcpNetworkProfile(SERVER_ID, OPTION_TYPES, null /* rttEstimate */,
+                FLAG_RAPID_COMMIT)
+
+        assertTrue(profile.isSameServerConfiguration(SERVER_ID, OPTION_TYPES))
+        // The order of the options does not matter.
+        assertTrue(profile.isSameServerConfiguration(SERVER_ID, OPTION_TYPES.reversedArray()))
+        assertFalse(profile.isSameServerConfiguration(OTHER_SERVER_ID, OPTION_TYPES))
+        assertFalse(profile.isSameServerConfiguration(SERVER_ID,
+                OPTION_TYPES.copyOf(OPTION_TYPES.size - 1)))
+        assertFalse(profile.isSameServerConfiguration(null /* serverId */, OPTION_TYPES))
+    }
+}
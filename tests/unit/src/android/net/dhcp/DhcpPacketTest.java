@@ -139,10 +139,11 @@ public class DhcpPacketTest {
             return this;
         }
 
-        public ByteBuffer buildPacket(int encap, short unusedDestUdp, short unusedSrcUdp) {
-            ByteBuffer result = ByteBuffer.allocate(MAX_LENGTH);
+        public ByteBuffer buildPacket(int encap, short unusedDestUdp, short unusedSrcUdp,
+                ByteBuffer result) {
             fillInPacket(encap, CLIENT_ADDR, SERVER_ADDR,
                          DHCP_CLIENT, DHCP_SERVER, result, DHCP_BOOTREPLY, false);
+            result.flip();
             return result;
         }
 
@@ -166,9 +167,7 @@ public class DhcpPacketTest {
         // Convenience method.
         public ByteBuffer build() {
             // ENCAP_BOOTP packets don't contain ports, so just pass in 0.
-            ByteBuffer pkt = buildPacket(ENCAP_BOOTP, (short) 0, (short) 0);
-            pkt.flip();
-            return pkt;
+            return buildPacket(ENCAP_BOOTP, (short) 0, (short) 0);
         }
     }
 
@@ -1338,6 +1337,53 @@ public class DhcpPacketTest {
         assertEquals(offerPacket.mIpv6OnlyWaitTime, null);
     }
 
+    private static ByteBuffer buildTestRequestPacket(int encap, short secs, ByteBuffer buf) {
+        final byte[] hwaddr = {
+                (byte) 0xda, (byte) 0x01, (byte) 0x19, (byte) 0x5b, (byte) 0xb1, (byte) 0x7a
+        };
+        return DhcpPacket.buildRequestPacket(encap, 0xdeadbeef, secs, INADDR_ANY,
+                false /* broadcast */, hwaddr, CLIENT_ADDR, SERVER_ADDR,
+                DhcpClient.DEFAULT_REQUESTED_PARAMS, HOSTNAME, new ArrayList<>(), buf);
+    }
+
+    private static byte[] toByteArray(ByteBuffer buf) {
+        return Arrays.copyOfRange(buf.array(), buf.position(), buf.limit());
+    }
+
+    @Test
+    public void testBuildPacketIntoBuffer() throws Exception {
+        final ByteBuffer buf = ByteBuffer.allocate(DhcpPacket.MAX_LENGTH);
+        for (int encap : new int[] { ENCAP_L2, ENCAP_L3, ENCAP_BOOTP }) {
+            final ByteBuffer expected = buildTestRequestPacket(encap, (short) 3,
+                    ByteBuffer.allocate(DhcpPacket.MAX_LENGTH));
+            // Fill the buffer with a larger packet first, to verify that it is fully overwritten.
+            buildTestRequestPacket(ENCAP_L2, (short) 0, buf);
+            final ByteBuffer packet = buildTestRequestPacket(encap, (short) 3, buf);
+
+            assertTrue(packet == buf);
+            assertTrue(Arrays.equals(toByteArray(expected), toByteArray(packet)));
+        }
+    }
+
+    @Test
+    public void testUpdateSecs() throws Exception {
+        final short[] testSecs = new short[] { 1, 2, 255, 256, 0x7fff, (short) 0xffff, 0 };
+        for (int encap : new int[] { ENCAP_L2, ENCAP_L3, ENCAP_BOOTP }) {
+            final ByteBuffer packet = buildTestRequestPacket(encap, (short) 0,
+                    ByteBuffer.allocate(DhcpPacket.MAX_LENGTH));
+            for (short secs : testSecs) {
+                DhcpPacket.updateSecs(packet, encap, secs);
+                final ByteBuffer expected = buildTestRequestPacket(encap, secs,
+                        ByteBuffer.allocate(DhcpPacket.MAX_LENGTH));
+                assertEquals(expected.limit(), packet.limit());
+                assertTrue("Unexpected packet with secs " + secs + " for encap " + encap,
+                        Arrays.equals(toByteArray(expected), toByteArray(packet)));
+                assertEquals(secs, DhcpPacket.decodeFullPacket(packet.duplicate(), encap,
+                        TEST_EMPTY_OPTIONS_SKIP_LIST).mSecs);
+            }
+        }
+    }
+
     private static byte[] intToByteArray(int val) {
         return ByteBuffer.allocate(4).putInt(val).array();
     }
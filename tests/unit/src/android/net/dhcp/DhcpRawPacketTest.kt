@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp
+
+import android.net.InetAddresses.parseNumericAddress
+import android.net.dhcp.DhcpPacket.DHCP_BOOTREPLY
+import android.net.dhcp.DhcpPacket.DHCP_MESSAGE_TYPE_OFFER
+import android.net.dhcp.DhcpPacket.DHCP_ROUTER
+import android.net.dhcp.DhcpPacket.DHCP_SERVER_IDENTIFIER
+import android.net.dhcp.DhcpPacket.DHCP_SUBNET_MASK
+import android.net.dhcp.DhcpPacket.DHCP_USER_CLASS
+import android.net.dhcp.DhcpPacket.ENCAP_BOOTP
+import android.net.dhcp.DhcpPacket.ENCAP_L2
+import android.net.dhcp.DhcpPacket.INADDR_ANY
+import android.net.metrics.DhcpErrorEvent
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import com.android.net.module.util.Inet4AddressUtils.inet4AddressToIntHTH
+import java.net.Inet4Address
+import java.nio.ByteBuffer
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DhcpRawPacketTest {
+    companion object {
+        private const val TEST_XID = 0x12345678
+        private val SERVER_ADDR = parseNumericAddress("192.168.1.1") as Inet4Address
+        private val CLIENT_ADDR = parseNumericAddress("192.168.1.42") as Inet4Address
+        private val NETMASK = parseNumericAddress("255.255.255.0") as Inet4Address
+        private val BROADCAST_ADDR = parseNumericAddress("192.168.1.255") as Inet4Address
+        private val CLIENT_MAC = byteArrayOf(0x02, 0x11, 0x22, 0x33, 0x44, 0x55)
+    }
+
+    private fun makeOffer(encap: Int): ByteBuffer = DhcpPacket.buildOfferPacket(encap, TEST_XID,
+            false /* broadcast */, SERVER_ADDR, INADDR_ANY /* relayIp */, CLIENT_ADDR /* yourIp */,
+            CLIENT_MAC, 3600 /* timeout */, NETMASK, BROADCAST_ADDR, listOf(SERVER_ADDR),
+            listOf(SERVER_ADDR), SERVER_ADDR, null /* domainName */, null /* hostname */,
+            false /* metered */, 1500.toShort() /* mtu */, null /* captivePortalUrl */)
+
+    private fun ByteBuffer.toByteArray() = ByteArray(remaining()).also { duplicate().get(it) }
+
+    @Test
+    fun testParse() {
+        for (encap in listOf(ENCAP_L2, ENCAP_BOOTP)) {
+            val buffer = makeOffer(encap)
+            val position = buffer.position()
+            val packet = DhcpRawPacket.parse(buffer, encap)
+
+            assertEquals(position, buffer.position())
+            assertEquals(DHCP_BOOTREPLY, packet.op)
+            assertEquals(TEST_XID, packet.transactionId)
+            assertEquals(DHCP_MESSAGE_TYPE_OFFER, packet.messageType)
+            assertEquals(inet4AddressToIntHTH(CLIENT_ADDR), packet.yourIpAsInt)
+            assertEquals(0, packet.clientIpAsInt)
+            assertEquals(0, packet.relayIpAsInt)
+            assertTrue(packet.clientMacEquals(CLIENT_MAC))
+            assertFalse(packet.clientMacEquals(byteArrayOf(0x02, 0x11, 0x22, 0x33, 0x44, 0x56)))
+            assertFalse(packet.clientMacEquals(CLIENT_MAC.copyOf(5)))
+
+            assertEquals(SERVER_ADDR, packet.getOptionInet4Address(DHCP_SERVER_IDENTIFIER))
+            assertEquals(NETMASK, packet.getOptionInet4Address(DHCP_SUBNET_MASK))
+            assertContentEquals(SERVER_ADDR.address, packet.getOptionValue(DHCP_ROUTER))
+            assertEquals(4, packet.getOptionLength(DHCP_ROUTER))
+            assertFalse(packet.hasOption(DHCP_USER_CLASS))
+            assertEquals(-1, packet.getOptionLength(DHCP_USER_CLASS))
+            assertNull(packet.getOptionValue(DHCP_USER_CLASS))
+        }
+    }
+
+    @Test
+    fun testDecode() {
+        val bytes = makeOffer(ENCAP_L2).toByteArray()
+        val expected = DhcpPacket.decodeFullPacket(bytes, bytes.size, ENCAP_L2)
+        val decoded = DhcpRawPacket.parse(bytes, bytes.size, ENCAP_L2).decode(ByteArray(0))
+
+        assertTrue(decoded is DhcpOfferPacket)
+        assertEquals(expected.toString(), decoded.toString())
+        assertEquals(expected.mGateways, decoded.mGateways)
+        assertEquals(expected.mLeaseTime, decoded.mLeaseTime)
+    }
+
+    @Test
+    fun testGetOptionTypes() {
+        val bytes = makeOffer(ENCAP_L2).toByteArray()
+        val packet = DhcpRawPacket.parse(bytes, bytes.size, ENCAP_L2)
+        val types = packet.optionTypes
+
+        assertEquals(DhcpPacket.DHCP_MESSAGE_TYPE, types[0])
+        assertTrue(types.contains(DHCP_SERVER_IDENTIFIER))
+        assertTrue(types.contains(DHCP_ROUTER))
+        assertFalse(types.contains(DHCP_USER_CLASS))
+        // Skipped options are still reported by the decoded packet.
+        assertContentEquals(types, packet.decode(byteArrayOf(DHCP_ROUTER)).optionTypes)
+    }
+
+    @Test
+    fun testParse_BadMagicCookie() {
+        val bytes = makeOffer(ENCAP_BOOTP).toByteArray()
+        bytes[DhcpPacket.MIN_PACKET_LENGTH_BOOTP] = 0
+        val e = assertFailsWith<DhcpPacket.ParseException> {
+            DhcpRawPacket.parse(bytes, bytes.size, ENCAP_BOOTP)
+        }
+        assertEquals(DhcpErrorEvent.DHCP_BAD_MAGIC_COOKIE, e.errorCode)
+    }
+
+    @Test
+    fun testParse_TruncatedOption() {
+        val bytes = makeOffer(ENCAP_BOOTP).toByteArray()
+        // Message type option, followed by an option that ends after the end of the packet.
+        val options = byteArrayOf(0x63, 0x82.toByte(), 0x53, 0x63, 53, 1, 2, DHCP_ROUTER, 8, 1, 2)
+        val truncated = bytes.copyOf(DhcpPacket.MIN_PACKET_LENGTH_BOOTP + options.size)
+        options.copyInto(truncated, DhcpPacket.MIN_PACKET_LENGTH_BOOTP)
+
+        val e = assertFailsWith<DhcpPacket.ParseException> {
+            DhcpRawPacket.parse(truncated, truncated.size, ENCAP_BOOTP)
+        }
+        assertEquals(DhcpErrorEvent.errorCodeWithOption(DhcpErrorEvent.BUFFER_UNDERFLOW,
+                DHCP_ROUTER.toInt()), e.errorCode)
+    }
+
+    @Test
+    fun testParse_NoMessageType() {
+        val bytes = makeOffer(ENCAP_BOOTP).toByteArray()
+        val truncated = bytes.copyOf(DhcpPacket.MIN_PACKET_LENGTH_BOOTP + 5)
+        truncated[DhcpPacket.MIN_PACKET_LENGTH_BOOTP + 4] = DhcpPacket.DHCP_OPTION_END
+
+        val e = assertFailsWith<DhcpPacket.ParseException> {
+            DhcpRawPacket.parse(truncated, truncated.size, ENCAP_BOOTP)
+        }
+        assertEquals(DhcpErrorEvent.DHCP_NO_MSG_TYPE, e.errorCode)
+    }
+}
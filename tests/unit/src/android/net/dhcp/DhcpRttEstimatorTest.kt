@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.dhcp
+
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class DhcpRttEstimatorTest {
+    companion object {
+        private const val MIN_TIMEOUT_MS = 250
+        private const val MAX_TIMEOUT_MS = 1000
+    }
+
+    @Test
+    fun testNoEstimate() {
+        val estimator = DhcpRttEstimator()
+        assertFalse(estimator.hasEstimate())
+        assertEquals(MAX_TIMEOUT_MS, estimator.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+        assertNull(estimator.toBytes())
+    }
+
+    @Test
+    fun testFirstSample() {
+        val estimator = DhcpRttEstimator()
+        estimator.addSample(100)
+        // SRTT = 100, RTTVAR = 50
+        assertEquals(300, estimator.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+        assertEquals(1, estimator.getSampleCount())
+    }
+
+    @Test
+    fun testSmoothing() {
+        val estimator = DhcpRttEstimator()
+        estimator.addSample(100)
+        estimator.addSample(20)
+        // RTTVAR = (3 * 50 + |100 - 20|) / 4 = 57, SRTT = (7 * 100 + 20) / 8 = 90
+        assertEquals(90 + 4 * 57, estimator.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+    }
+
+    @Test
+    fun testTimeoutClamped() {
+        val fast = DhcpRttEstimator()
+        fast.addSample(10)
+        assertEquals(MIN_TIMEOUT_MS, fast.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+
+        val slow = DhcpRttEstimator()
+        slow.addSample(800)
+        assertEquals(MAX_TIMEOUT_MS, slow.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+
+        val jump = DhcpRttEstimator()
+        jump.addSample(Long.MAX_VALUE)
+        assertEquals(MAX_TIMEOUT_MS, jump.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+    }
+
+    @Test
+    fun testBackOff() {
+        val estimator = DhcpRttEstimator()
+        estimator.backOff(500)
+        assertFalse(estimator.hasEstimate())
+
+        estimator.addSample(10)
+        // SRTT = 10, RTTVAR = 5: the reply came after the timeout of 30ms
+        estimator.backOff(100)
+        // SRTT = max(2 * 10, 100) = 100, RTTVAR = max(2 * 5, 100 / 2) = 50
+        assertEquals(300, estimator.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+
+        // Backing off doubles the timeout even if the reply took less than the estimate.
+        estimator.backOff(10)
+        assertEquals(600, estimator.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+        assertEquals(1, estimator.getSampleCount())
+
+        val restored = DhcpRttEstimator()
+        assertTrue(restored.restore(estimator.toBytes()))
+        assertEquals(600, restored.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+    }
+
+    @Test
+    fun testSerialization() {
+        val estimator = DhcpRttEstimator()
+        estimator.addSample(60)
+        estimator.addSample(40)
+
+        val restored = DhcpRttEstimator()
+        assertTrue(restored.restore(estimator.toBytes()))
+        assertTrue(restored.hasEstimate())
+        assertEquals(0, restored.getSampleCount())
+        assertEquals(estimator.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS),
+                restored.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+    }
+
+    @Test
+    fun testRestore_InvalidData() {
+        val estimator = DhcpRttEstimator()
+        assertFalse(estimator.restore(null))
+        assertFalse(estimator.restore(byteArrayOf()))
+        assertFalse(estimator.restore(byteArrayOf(1, 0, 0, 0, 100)))
+        // Unknown version
+        assertFalse(estimator.restore(byteArrayOf(2, 0, 0, 0, 100, 0, 0, 0, 10)))
+        // Negative RTT
+        assertFalse(estimator.restore(byteArrayOf(1, -1, -1, -1, -1, 0, 0, 0, 10)))
+        assertFalse(estimator.hasEstimate())
+    }
+
+    @Test
+    fun testRestore_DoesNotOverrideSamples() {
+        val stored = DhcpRttEstimator()
+        stored.addSample(500)
+
+        val estimator = DhcpRttEstimator()
+        estimator.addSample(10)
+        assertFalse(estimator.restore(stored.toBytes()))
+        assertEquals(MIN_TIMEOUT_MS, estimator.getTimeoutMs(MIN_TIMEOUT_MS, MAX_TIMEOUT_MS))
+    }
+}
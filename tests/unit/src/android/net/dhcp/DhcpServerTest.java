@@ -17,15 +17,20 @@
 package android.net.dhcp;
 
 import static android.net.InetAddresses.parseNumericAddress;
+import static android.net.dhcp.DhcpLease.EXPIRATION_NEVER;
+import static android.net.dhcp.DhcpPacket.DHCP_CLIENT;
 import static android.net.dhcp.DhcpPacket.DHCP_HOST_NAME;
+import static android.net.dhcp.DhcpPacket.DHCP_SERVER;
 import static android.net.dhcp.DhcpPacket.ENCAP_BOOTP;
 import static android.net.dhcp.DhcpPacket.INADDR_ANY;
+import static android.net.dhcp.DhcpServer.LEASE_CALLBACKS_BATCHING_MS;
 import static android.net.dhcp.DhcpPacket.INADDR_BROADCAST;
 import static android.net.dhcp.DhcpServer.CMD_RECEIVE_PACKET;
 import static android.net.dhcp.IDhcpServer.STATUS_SUCCESS;
 
 import static com.android.net.module.util.Inet4AddressUtils.inet4AddressToIntHTH;
 import static com.android.networkstack.util.NetworkStackUtils.DHCP_RAPID_COMMIT_VERSION;
+import static com.android.networkstack.util.NetworkStackUtils.DHCP_SERVER_LEASE_JOURNAL_VERSION;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -33,10 +38,15 @@ import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -52,6 +62,8 @@ import android.net.dhcp.DhcpLeaseRepository.InvalidAddressException;
 import android.net.dhcp.DhcpLeaseRepository.OutOfAddressesException;
 import android.net.dhcp.DhcpServer.Clock;
 import android.net.dhcp.DhcpServer.Dependencies;
+import android.net.dhcp.DhcpServingParams.RelaySubnet;
+import android.net.networkstack.aidl.dhcp.DhcpRelaySubnetParcel;
 import android.os.ConditionVariable;
 import android.testing.AndroidTestingRunner;
 
@@ -67,9 +79,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.Inet4Address;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -112,6 +128,13 @@ public class DhcpServerTest {
             TEST_HOSTNAME);
     private static final int TEST_TIMEOUT_MS = 10000;
 
+    private static final IpPrefix TEST_RELAY_PREFIX = new IpPrefix("10.1.0.0/24");
+    private static final Inet4Address TEST_RELAY_ADDR = parseAddr("10.1.0.1");
+    private static final Inet4Address TEST_RELAY_CLIENT_ADDR = parseAddr("10.1.0.42");
+    private static final DhcpLease TEST_RELAY_LEASE = new DhcpLease(null, TEST_CLIENT_MAC,
+            TEST_RELAY_CLIENT_ADDR, TEST_RELAY_PREFIX.getPrefixLength(),
+            TEST_LEASE_EXPTIME_SECS * 1000L + TEST_CLOCK_TIME, null /* hostname */);
+
     @NonNull @Mock
     private Context mContext;
     @NonNull @Mock
@@ -119,16 +142,22 @@ public class DhcpServerTest {
     @NonNull @Mock
     private DhcpLeaseRepository mRepository;
     @NonNull @Mock
+    private DhcpLeaseRepository mRelayRepository;
+    @NonNull @Mock
     private Clock mClock;
     @NonNull @Mock
     private DhcpPacketListener mPacketListener;
     @NonNull @Mock
     private IDhcpEventCallbacks mEventCallbacks;
+    @NonNull @Mock
+    private DhcpLeaseJournal mJournal;
 
     @NonNull @Captor
     private ArgumentCaptor<ByteBuffer> mSentPacketCaptor;
     @NonNull @Captor
     private ArgumentCaptor<Inet4Address> mResponseDstAddrCaptor;
+    @NonNull @Captor
+    private ArgumentCaptor<Integer> mResponseDstPortCaptor;
 
     @NonNull
     private MyDhcpServer mServer;
@@ -200,9 +229,14 @@ public class DhcpServerTest {
         when(mDeps.isFeatureNotChickenedOut(eq(mContext), eq(DHCP_RAPID_COMMIT_VERSION)))
                 .thenReturn(true);
         doNothing().when(mDeps)
-                .sendPacket(any(), mSentPacketCaptor.capture(), mResponseDstAddrCaptor.capture());
+                .sendPacket(any(), mSentPacketCaptor.capture(), mResponseDstAddrCaptor.capture(),
+                        mResponseDstPortCaptor.capture());
         when(mClock.elapsedRealtime()).thenReturn(TEST_CLOCK_TIME);
         when(mPacketListener.start()).thenReturn(true);
+        when(mRepository.getNextExpirationTime()).thenReturn(EXPIRATION_NEVER);
+        when(mDeps.makeRelayLeaseRepository(any(), anyLong(), any(), any()))
+                .thenReturn(mRelayRepository);
+        when(mRelayRepository.getNextExpirationTime()).thenReturn(EXPIRATION_NEVER);
 
         mServer = new MyDhcpServer(mContext, TEST_IFACE, makeServingParams(),
                 new SharedLog(DhcpServerTest.class.getSimpleName()), mDeps);
@@ -230,6 +264,54 @@ public class DhcpServerTest {
         verify(mRepository).addLeaseCallbacks(eq(mEventCallbacks));
     }
 
+    @Test
+    public void testStart_LeaseCallbacksBatching() throws Exception {
+        when(mDeps.getIntDeviceConfig(eq(LEASE_CALLBACKS_BATCHING_MS), anyInt(), anyInt(),
+                anyInt())).thenReturn(100);
+        mServer.start(mAssertSuccessCallback, mEventCallbacks);
+        HandlerUtils.waitForIdle(mServer.getHandler(), TEST_TIMEOUT_MS);
+
+        final InOrder inOrder = inOrder(mRepository);
+        inOrder.verify(mRepository).setLeaseCallbacksBatching(mServer.getHandler(), 100L);
+        inOrder.verify(mRepository).addLeaseCallbacks(mEventCallbacks);
+    }
+
+    @Test
+    public void testStart_NoLeaseCallbacksBatching() throws Exception {
+        startServer();
+        verify(mRepository, never()).setLeaseCallbacksBatching(any(), anyLong());
+    }
+
+    @Test
+    public void testStart_LeaseJournal() throws Exception {
+        when(mDeps.isFeatureEnabled(eq(mContext), eq(DHCP_SERVER_LEASE_JOURNAL_VERSION)))
+                .thenReturn(true);
+        when(mDeps.makeLeaseJournal(eq(TEST_IFACE), any())).thenReturn(mJournal);
+        startServer();
+
+        verify(mRepository).setLeaseJournal(mJournal);
+    }
+
+    @Test
+    public void testStart_LeaseJournalDisabled() throws Exception {
+        when(mDeps.makeLeaseJournal(eq(TEST_IFACE), any())).thenReturn(mJournal);
+        startServer();
+
+        verify(mDeps, never()).makeLeaseJournal(any(), any());
+        verify(mRepository, never()).setLeaseJournal(any());
+    }
+
+    @Test
+    public void testExpireLeases() throws Exception {
+        // A lease expires now, and none after it is removed.
+        when(mRepository.getNextExpirationTime()).thenReturn(TEST_CLOCK_TIME, EXPIRATION_NEVER);
+        startServer();
+
+        verify(mRepository, timeout(TEST_TIMEOUT_MS)).expireLeases();
+        HandlerUtils.waitForIdle(mServer.getHandler(), TEST_TIMEOUT_MS);
+        verify(mRepository, times(1)).expireLeases();
+    }
+
     @Test
     public void testDiscover() throws Exception {
         startServer();
@@ -444,8 +526,140 @@ public class DhcpServerTest {
         assertMatchesLease(packet, serverAddr, clientAddr, null);
     }
 
+    private void updateServingParamsWithRelaySubnet() throws Exception {
+        final DhcpServingParamsParcel params = new DhcpServingParamsParcel();
+        params.serverAddr = inet4AddressToIntHTH(TEST_SERVER_ADDR);
+        params.serverAddrPrefixLength = TEST_PREFIX_LENGTH;
+        params.defaultRouters = toIntArray(TEST_DEFAULT_ROUTERS);
+        params.dnsServers = toIntArray(TEST_DNS_SERVERS);
+        params.excludedAddrs = toIntArray(TEST_EXCLUDED_ADDRS);
+        params.dhcpLeaseTimeSecs = TEST_LEASE_EXPTIME_SECS;
+        params.linkMtu = TEST_MTU;
+        final DhcpRelaySubnetParcel subnet = new DhcpRelaySubnetParcel();
+        subnet.subnetAddr = inet4AddressToIntHTH(TEST_RELAY_ADDR);
+        subnet.prefixLength = TEST_RELAY_PREFIX.getPrefixLength();
+        subnet.defaultRouters = new int[] { inet4AddressToIntHTH(TEST_RELAY_ADDR) };
+        subnet.excludedAddrs = new int[0];
+        params.relaySubnets = Collections.singletonList(subnet);
+
+        mServer.updateParams(params, mAssertSuccessCallback);
+        HandlerUtils.waitForIdle(mServer.getHandler(), TEST_TIMEOUT_MS);
+    }
+
+    @Test
+    public void testDiscover_RelaySubnet() throws Exception {
+        startServer();
+        updateServingParamsWithRelaySubnet();
+        final ArgumentCaptor<RelaySubnet> subnetCaptor = ArgumentCaptor.forClass(RelaySubnet.class);
+        verify(mDeps).makeRelayLeaseRepository(subnetCaptor.capture(),
+                eq(TEST_LEASE_EXPTIME_SECS * 1000L), any(), any());
+        assertEquals(TEST_RELAY_PREFIX, subnetCaptor.getValue().prefix);
+        assertTrue(subnetCaptor.getValue().excludedAddrs.contains(TEST_RELAY_ADDR));
+
+        when(mRelayRepository.getOffer(isNull() /* clientId */, eq(TEST_CLIENT_MAC),
+                eq(TEST_RELAY_ADDR) /* relayAddr */, isNull() /* reqAddr */,
+                isNull() /* hostname */)).thenReturn(TEST_RELAY_LEASE);
+
+        final DhcpDiscoverPacket discover = new DhcpDiscoverPacket(TEST_TRANSACTION_ID,
+                (short) 0 /* secs */, TEST_RELAY_ADDR /* relayIp */, TEST_CLIENT_MAC_BYTES,
+                false /* broadcast */, INADDR_ANY /* srcIp */, false /* rapidCommit */);
+        mServer.sendMessage(CMD_RECEIVE_PACKET, discover);
+        HandlerUtils.waitForIdle(mServer.getHandler(), TEST_TIMEOUT_MS);
+
+        assertResponseSentTo(TEST_RELAY_ADDR, DHCP_SERVER);
+        final DhcpOfferPacket packet = assertOffer(getPacket());
+        assertMatchesLease(packet, TEST_SERVER_ADDR, TEST_RELAY_CLIENT_ADDR, null /* hostname */);
+        assertEquals(parseAddr("255.255.255.0"), packet.mSubnetMask);
+        assertEquals(Collections.singletonList(TEST_RELAY_ADDR), packet.mGateways);
+        verify(mRepository, never()).getOffer(any(), any(), any(), any(), any());
+        // The client is not on the link
+        verify(mDeps, never()).addArpEntry(any(), any(), any(), any());
+    }
+
+    @Test
+    public void testDump_RelaySubnetStats() throws Exception {
+        startServer();
+        updateServingParamsWithRelaySubnet();
+        when(mRelayRepository.getOffer(isNull() /* clientId */, eq(TEST_CLIENT_MAC),
+                eq(TEST_RELAY_ADDR) /* relayAddr */, isNull() /* reqAddr */,
+                isNull() /* hostname */)).thenReturn(TEST_RELAY_LEASE);
+        when(mRelayRepository.getNumCommittedLeases()).thenReturn(3);
+        when(mRelayRepository.getNumAvailableAddresses()).thenReturn(250);
+
+        final DhcpDiscoverPacket discover = new DhcpDiscoverPacket(TEST_TRANSACTION_ID,
+                (short) 0 /* secs */, TEST_RELAY_ADDR /* relayIp */, TEST_CLIENT_MAC_BYTES,
+                false /* broadcast */, INADDR_ANY /* srcIp */, false /* rapidCommit */);
+        mServer.sendMessage(CMD_RECEIVE_PACKET, discover);
+        HandlerUtils.waitForIdle(mServer.getHandler(), TEST_TIMEOUT_MS);
+
+        final StringWriter writer = new StringWriter();
+        mServer.dump(new FileDescriptor(), new PrintWriter(writer), new String[0]);
+        final String dump = writer.toString();
+        assertTrue(dump, dump.contains(TEST_RELAY_PREFIX
+                + ": offers=1 acks=0 naks=0 leasesInUse=3 availableAddresses=250"));
+    }
+
+    @Test
+    public void testRequest_NotRelayedInRelaySubnet() throws Exception {
+        startServer();
+        updateServingParamsWithRelaySubnet();
+
+        when(mRepository.requestLease(isNull() /* clientId */, eq(TEST_CLIENT_MAC),
+                eq(TEST_RELAY_CLIENT_ADDR) /* clientAddr */, eq(INADDR_ANY) /* relayAddr */,
+                isNull() /* reqAddr */, eq(false) /* sidSet */, isNull() /* hostname */))
+                .thenThrow(new InvalidAddressException("Test error"));
+
+        // The client address of packets that are not relayed does not select a relay subnet.
+        final DhcpRequestPacket request = new DhcpRequestPacket(TEST_TRANSACTION_ID,
+                (short) 0 /* secs */, TEST_RELAY_CLIENT_ADDR /* clientIp */,
+                INADDR_ANY /* relayIp */, TEST_CLIENT_MAC_BYTES, false /* broadcast */);
+        mServer.sendMessage(CMD_RECEIVE_PACKET, request);
+        HandlerUtils.waitForIdle(mServer.getHandler(), TEST_TIMEOUT_MS);
+
+        assertResponseSentTo(INADDR_BROADCAST);
+        assertNak(getPacket());
+        verify(mRelayRepository, never()).requestLease(any(), any(), any(), any(), any(),
+                anyBoolean(), any());
+    }
+
+    @Test
+    public void testReceive_RelayedFromServerPort() throws Exception {
+        startServer();
+        updateServingParamsWithRelaySubnet();
+        when(mRelayRepository.getOffer(isNull() /* clientId */, eq(TEST_CLIENT_MAC),
+                eq(TEST_RELAY_ADDR) /* relayAddr */, isNull() /* reqAddr */,
+                isNull() /* hostname */)).thenReturn(TEST_RELAY_LEASE);
+
+        final DhcpServer.PacketListener listener =
+                mServer.new PacketListener(mServer.getHandler());
+        final DhcpDiscoverPacket discover = new DhcpDiscoverPacket(TEST_TRANSACTION_ID,
+                (short) 0 /* secs */, TEST_RELAY_ADDR /* relayIp */, TEST_CLIENT_MAC_BYTES,
+                false /* broadcast */, INADDR_ANY /* srcIp */, false /* rapidCommit */);
+        listener.onReceive(discover, TEST_RELAY_ADDR, DHCP_SERVER);
+        HandlerUtils.waitForIdle(mServer.getHandler(), TEST_TIMEOUT_MS);
+
+        assertResponseSentTo(TEST_RELAY_ADDR, DHCP_SERVER);
+        assertMatchesLease(assertOffer(getPacket()), TEST_SERVER_ADDR, TEST_RELAY_CLIENT_ADDR,
+                null /* hostname */);
+    }
+
+    @Test
+    public void testReceive_NotRelayedFromServerPort() throws Exception {
+        startServer();
+
+        final DhcpServer.PacketListener listener =
+                mServer.new PacketListener(mServer.getHandler());
+        final DhcpDiscoverPacket discover = new DhcpDiscoverPacket(TEST_TRANSACTION_ID,
+                (short) 0 /* secs */, INADDR_ANY /* relayIp */, TEST_CLIENT_MAC_BYTES,
+                false /* broadcast */, INADDR_ANY /* srcIp */, false /* rapidCommit */);
+        listener.onReceive(discover, TEST_CLIENT_ADDR, DHCP_SERVER);
+        HandlerUtils.waitForIdle(mServer.getHandler(), TEST_TIMEOUT_MS);
+
+        verify(mRepository, never()).getOffer(any(), any(), any(), any(), any());
+        verify(mDeps, never()).sendPacket(any(), any(), any(), anyInt());
+    }
+
     /* TODO: add more tests once packet construction is refactored, including:
-     *  - usage of giaddr
      *  - usage of broadcast bit
      *  - other request states (init-reboot/renewing/rebinding)
      */
@@ -475,7 +689,12 @@ public class DhcpServerTest {
     }
 
     private void assertResponseSentTo(@NonNull Inet4Address addr) {
+        assertResponseSentTo(addr, DHCP_CLIENT);
+    }
+
+    private void assertResponseSentTo(@NonNull Inet4Address addr, int port) {
         assertEquals(addr, mResponseDstAddrCaptor.getValue());
+        assertEquals(port, (int) mResponseDstPortCaptor.getValue());
     }
 
     private static DhcpNakPacket assertNak(@Nullable DhcpPacket packet) {
@@ -494,7 +713,7 @@ public class DhcpServerTest {
     }
 
     private DhcpPacket getPacket() throws Exception {
-        verify(mDeps, times(1)).sendPacket(any(), any(), any());
+        verify(mDeps, times(1)).sendPacket(any(), any(), any(), anyInt());
         return DhcpPacket.decodeFullPacket(mSentPacketCaptor.getValue(), ENCAP_BOOTP,
                 new byte[0] /* optionsToSkip */);
     }
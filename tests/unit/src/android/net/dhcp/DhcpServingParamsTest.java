@@ -27,8 +27,11 @@ import static junit.framework.Assert.assertTrue;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.net.IpPrefix;
 import android.net.LinkAddress;
 import android.net.dhcp.DhcpServingParams.InvalidParameterException;
+import android.net.dhcp.DhcpServingParams.RelaySubnet;
+import android.net.networkstack.aidl.dhcp.DhcpRelaySubnetParcel;
 
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
@@ -43,7 +46,9 @@ import org.junit.runner.RunWith;
 import java.net.Inet4Address;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 @RunWith(AndroidJUnit4.class)
@@ -66,6 +71,11 @@ public class DhcpServingParamsTest {
     private static final boolean TEST_METERED = true;
     private static final boolean TEST_CHANGE_PREFIX_ON_DECLINE = true;
     private static final int LEASES_SUBNET_PREFIX_LENGTH = 25;
+    private static final IpPrefix TEST_RELAY_PREFIX = new IpPrefix("10.1.0.0/24");
+    private static final Set<Inet4Address> TEST_RELAY_ROUTERS = new HashSet<>(
+            Arrays.asList(parseAddr("10.1.0.1")));
+    private static final Set<Inet4Address> TEST_RELAY_EXCLUDED_ADDRS = new HashSet<>(
+            Arrays.asList(parseAddr("10.1.0.200")));
 
     @Before
     public void setUp() {
@@ -194,9 +204,65 @@ public class DhcpServingParamsTest {
         mBuilder.setLeasesSubnetPrefixLength(31).build();
     }
 
+    private static List<RelaySubnet> makeRelaySubnets(@NonNull String... prefixes) {
+        final RelaySubnet[] subnets = new RelaySubnet[prefixes.length];
+        for (int i = 0; i < prefixes.length; i++) {
+            subnets[i] = new RelaySubnet(new IpPrefix(prefixes[i]), Collections.emptySet(),
+                    Collections.emptySet());
+        }
+        return Arrays.asList(subnets);
+    }
+
+    @Test
+    public void testBuild_RelaySubnets() throws InvalidParameterException {
+        final DhcpServingParams params = mBuilder
+                .setRelaySubnets(Collections.singletonList(new RelaySubnet(TEST_RELAY_PREFIX,
+                        TEST_RELAY_ROUTERS, TEST_RELAY_EXCLUDED_ADDRS)))
+                .build();
+
+        assertEquals(1, params.relaySubnets.size());
+        final RelaySubnet subnet = params.relaySubnets.get(0);
+        assertEquals(TEST_RELAY_PREFIX, subnet.prefix);
+        assertEquals(TEST_RELAY_ROUTERS, subnet.defaultRouters);
+        assertContains(subnet.excludedAddrs, TEST_RELAY_EXCLUDED_ADDRS);
+        assertContains(subnet.excludedAddrs, TEST_RELAY_ROUTERS);
+        assertContains(subnet.excludedAddrs, TEST_DNS_SERVERS);
+        assertEquals(parseAddr("255.255.255.0"), subnet.getPrefixMaskAsAddress());
+        assertEquals(parseAddr("10.1.0.255"), subnet.getBroadcastAddress());
+    }
+
+    @Test
+    public void testBuild_NoRelaySubnet() throws InvalidParameterException {
+        assertTrue(mBuilder.build().relaySubnets.isEmpty());
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void testBuild_RelaySubnetOverlapsServerPrefix() throws InvalidParameterException {
+        mBuilder.setRelaySubnets(makeRelaySubnets("192.168.1.0/24")).build();
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void testBuild_RelaySubnetsOverlap() throws InvalidParameterException {
+        mBuilder.setRelaySubnets(makeRelaySubnets("10.1.0.0/24", "10.1.0.128/25")).build();
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void testBuild_RelaySubnetPrefixTooLarge() throws InvalidParameterException {
+        mBuilder.setRelaySubnets(makeRelaySubnets("10.1.0.0/31")).build();
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void testBuild_RelaySubnetRouterOutsideSubnet() throws InvalidParameterException {
+        mBuilder.setRelaySubnets(Collections.singletonList(new RelaySubnet(TEST_RELAY_PREFIX,
+                Collections.singleton(parseAddr("10.2.0.1")), Collections.emptySet()))).build();
+    }
+
     @Test
     public void testFromParcelableObject() throws InvalidParameterException {
-        final DhcpServingParams params = mBuilder.build();
+        final DhcpServingParams params = mBuilder
+                .setRelaySubnets(Collections.singletonList(new RelaySubnet(TEST_RELAY_PREFIX,
+                        TEST_RELAY_ROUTERS, TEST_RELAY_EXCLUDED_ADDRS)))
+                .build();
         final DhcpServingParamsParcel parcel = new DhcpServingParamsParcel();
         parcel.defaultRouters = toIntArray(TEST_DEFAULT_ROUTERS);
         parcel.dhcpLeaseTimeSecs = TEST_LEASE_TIME_SECS;
@@ -209,6 +275,12 @@ public class DhcpServingParamsTest {
         parcel.singleClientAddr = inet4AddressToIntHTH(TEST_CLIENT_ADDR);
         parcel.changePrefixOnDecline = TEST_CHANGE_PREFIX_ON_DECLINE;
         parcel.leasesSubnetPrefixLength = LEASES_SUBNET_PREFIX_LENGTH;
+        final DhcpRelaySubnetParcel relaySubnet = new DhcpRelaySubnetParcel();
+        relaySubnet.subnetAddr = inet4AddressToIntHTH(parseAddr("10.1.0.42"));
+        relaySubnet.prefixLength = TEST_RELAY_PREFIX.getPrefixLength();
+        relaySubnet.defaultRouters = toIntArray(TEST_RELAY_ROUTERS);
+        relaySubnet.excludedAddrs = toIntArray(TEST_RELAY_EXCLUDED_ADDRS);
+        parcel.relaySubnets = Collections.singletonList(relaySubnet);
         final DhcpServingParams parceled = DhcpServingParams.fromParcelableObject(parcel);
 
         assertEquals(params.defaultRouters, parceled.defaultRouters);
@@ -221,8 +293,15 @@ public class DhcpServingParamsTest {
         assertEquals(params.singleClientAddr, parceled.singleClientAddr);
         assertEquals(params.changePrefixOnDecline, parceled.changePrefixOnDecline);
         assertEquals(params.leasesSubnetPrefixLength, parceled.leasesSubnetPrefixLength);
-
-        MiscAsserts.assertFieldCountEquals(11, DhcpServingParamsParcel.class);
+        assertEquals(1, parceled.relaySubnets.size());
+        final RelaySubnet expectedSubnet = params.relaySubnets.get(0);
+        final RelaySubnet parceledSubnet = parceled.relaySubnets.get(0);
+        assertEquals(expectedSubnet.prefix, parceledSubnet.prefix);
+        assertEquals(expectedSubnet.defaultRouters, parceledSubnet.defaultRouters);
+        assertEquals(expectedSubnet.excludedAddrs, parceledSubnet.excludedAddrs);
+
+        MiscAsserts.assertFieldCountEquals(12, DhcpServingParamsParcel.class);
+        MiscAsserts.assertFieldCountEquals(4, DhcpRelaySubnetParcel.class);
     }
 
     @Test(expected = InvalidParameterException.class)
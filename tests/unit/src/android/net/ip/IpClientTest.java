@@ -27,6 +27,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
@@ -427,6 +428,8 @@ public class IpClientTest {
         verifyNetworkAttributesStored(l2Key, new NetworkAttributes.Builder()
                 .setCluster(cluster)
                 .build());
+        // setL2KeyAndCluster only takes effect before R, where it prefetches the attributes.
+        verify(mIpMemoryStore, atMost(1)).prefetchNetworkAttributes(l2Key);
 
         verifyShutdown(ipc);
     }
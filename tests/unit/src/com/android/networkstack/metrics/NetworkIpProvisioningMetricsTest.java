@@ -103,6 +103,10 @@ public class NetworkIpProvisioningMetricsTest {
         // Entering 1 IP_CONFLICT_COUNT
         mMetrics.incrementCountForIpConflict();
 
+        // Entering 2 adaptive retransmissions
+        mMetrics.addAdaptiveRetransmission(600);
+        mMetrics.addAdaptiveRetransmission(250);
+
         // Entering 4 DhcpFeatures and one is repeated, so it should only count to 3
         mMetrics.setDhcpEnabledFeature(DhcpFeature.DF_INITREBOOT);
         mMetrics.setDhcpEnabledFeature(DhcpFeature.DF_RAPIDCOMMIT);
@@ -133,6 +137,8 @@ public class NetworkIpProvisioningMetricsTest {
         assertEquals(3, mStats.getDhcpSession().getDiscoverCount());
         assertEquals(2, mStats.getDhcpSession().getRequestCount());
         assertEquals(1, mStats.getDhcpSession().getConflictCount());
+        assertEquals(2, mStats.getDhcpSession().getAdaptiveRetransmitCount());
+        assertEquals(850, mStats.getDhcpSession().getAdaptiveRetransmitSavedMillis());
         assertEquals(3, mStats.getDhcpSession().getUsedFeaturesCount());
         assertEquals(6, mStats.getDhcpSession().getErrorCodeCount());
         assertEquals(HostnameTransResult.HTR_SUCCESS, mStats.getDhcpSession().getHtResult());
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.metrics
+
+import androidx.test.filters.SmallTest
+import androidx.test.runner.AndroidJUnit4
+import com.android.internal.util.IndentingPrintWriter
+import com.android.networkstack.metrics.ProvisioningStateLatencies.LINK_TYPE_BLUETOOTH
+import com.android.networkstack.metrics.ProvisioningStateLatencies.LINK_TYPE_CELLULAR
+import com.android.networkstack.metrics.ProvisioningStateLatencies.LINK_TYPE_ETHERNET
+import com.android.networkstack.metrics.ProvisioningStateLatencies.LINK_TYPE_OTHER
+import com.android.networkstack.metrics.ProvisioningStateLatencies.LINK_TYPE_WIFI
+import com.android.networkstack.metrics.ProvisioningStateLatencies.STATE_DHCP6_SOLICIT
+import com.android.networkstack.metrics.ProvisioningStateLatencies.STATE_DHCP_INIT
+import com.android.networkstack.metrics.ProvisioningStateLatencies.STATE_DHCP_REQUESTING
+import com.android.networkstack.metrics.ProvisioningStateLatencies.STATE_NONE
+import java.io.StringWriter
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+@SmallTest
+class ProvisioningStateLatenciesTest {
+    private fun ms(ms: Long) = ms * 1_000_000L
+
+    @Test
+    fun testPercentiles() {
+        val latencies = ProvisioningStateLatencies()
+        assertEquals(-1, latencies.getPercentileUpperBoundMs(STATE_DHCP_INIT, 50))
+
+        // 9 fast durations and one slow one.
+        repeat(9) { latencies.record(STATE_DHCP_INIT, ms(3)) }
+        latencies.record(STATE_DHCP_INIT, ms(1500))
+
+        assertEquals(10, latencies.getCount(STATE_DHCP_INIT))
+        assertEquals(5, latencies.getPercentileUpperBoundMs(STATE_DHCP_INIT, 50))
+        assertEquals(5, latencies.getPercentileUpperBoundMs(STATE_DHCP_INIT, 90))
+        assertEquals(2_000, latencies.getPercentileUpperBoundMs(STATE_DHCP_INIT, 99))
+        assertEquals(0, latencies.getCount(STATE_DHCP_REQUESTING))
+    }
+
+    @Test
+    fun testBucketBounds() {
+        val latencies = ProvisioningStateLatencies()
+        // Bounds are inclusive.
+        latencies.record(STATE_DHCP_REQUESTING, ms(10))
+        assertEquals(10, latencies.getPercentileUpperBoundMs(STATE_DHCP_REQUESTING, 100))
+        latencies.record(STATE_DHCP_REQUESTING, ms(10) + 1)
+        assertEquals(20, latencies.getPercentileUpperBoundMs(STATE_DHCP_REQUESTING, 100))
+
+        // Durations beyond the last bound are reported as the maximum.
+        latencies.record(STATE_DHCP6_SOLICIT, ms(120_000))
+        assertEquals(120_000, latencies.getPercentileUpperBoundMs(STATE_DHCP6_SOLICIT, 50))
+    }
+
+    @Test
+    fun testInvalidRecordsIgnored() {
+        val latencies = ProvisioningStateLatencies()
+        latencies.record(STATE_NONE, ms(1))
+        latencies.record(STATE_DHCP_INIT, -1)
+        assertEquals(0, latencies.getCount(STATE_DHCP_INIT))
+    }
+
+    @Test
+    fun testReset() {
+        val latencies = ProvisioningStateLatencies()
+        latencies.record(STATE_DHCP_INIT, ms(100))
+        latencies.reset()
+        assertEquals(0, latencies.getCount(STATE_DHCP_INIT))
+        assertEquals(-1, latencies.getPercentileUpperBoundMs(STATE_DHCP_INIT, 50))
+    }
+
+    @Test
+    fun testLinkTypes() {
+        assertEquals(LINK_TYPE_WIFI, ProvisioningStateLatencies.getLinkType("wlan0"))
+        assertEquals(LINK_TYPE_ETHERNET, ProvisioningStateLatencies.getLinkType("eth1"))
+        assertEquals(LINK_TYPE_BLUETOOTH, ProvisioningStateLatencies.getLinkType("bt-pan"))
+        assertEquals(LINK_TYPE_CELLULAR, ProvisioningStateLatencies.getLinkType("rmnet_data0"))
+        assertEquals(LINK_TYPE_OTHER, ProvisioningStateLatencies.getLinkType("test_iface0"))
+
+        // Interfaces of the same link type share their latencies.
+        assertSame(ProvisioningStateLatencies.forInterface("wlan0"),
+                ProvisioningStateLatencies.forInterface("wlan1"))
+    }
+
+    @Test
+    fun testDump() {
+        ProvisioningStateLatencies.resetAll()
+        val latencies = ProvisioningStateLatencies.forInterface("wlan0")
+        latencies.record(STATE_DHCP_INIT, ms(3))
+        latencies.record(STATE_DHCP_INIT, ms(300))
+
+        val writer = StringWriter()
+        ProvisioningStateLatencies.dumpAll(IndentingPrintWriter(writer, "  "))
+        val dump = writer.toString()
+        assertTrue(dump.contains("wifi:"), dump)
+        assertTrue(dump.contains("DhcpClient.DhcpInitState: count=2"), dump)
+        assertTrue(dump.contains("<=5ms:1 <=500ms:1"), dump)
+    }
+}